@@ -2,42 +2,42 @@ import java.nio.channels.*;
 import java.io.IOException;
 import java.util.concurrent.locks.*;
 
+// Accepts on a listening channel registered with a dispatcher's selector and adds the new connection
+// to that dispatcher. With a shared listener, lock serializes the competing dispatchers; with one
+// SO_REUSEPORT listener per dispatcher, lock is null.
 public class AcceptHandler implements IAcceptHandler {
-    private IReadWriteHandlerFactory rwhf;
+    private Dispatcher dispatcher;
     private Lock lock;
 
-    public AcceptHandler(IReadWriteHandlerFactory rwhf, Lock lock) {
-        this.rwhf = rwhf;
+    public AcceptHandler(Dispatcher dispatcher, Lock lock) {
+        this.dispatcher = dispatcher;
         this.lock = lock;
     }
 
     public void handleException() {
-        System.out.println("AcceptHandler: handleException()");
+        Debug.DEBUG("AcceptHandler: handleException()", DebugType.NONSERVER);
     }
 
     public void handleAccept(SelectionKey key) throws IOException {
         ServerSocketChannel server = (ServerSocketChannel) key.channel();
 
-        try {
+        if (lock != null) {
             lock.lock();
-
+        }
+        try {
             SocketChannel client = server.accept();
 
             if (client != null) {
-                Debug.DEBUG("AcceptHandler: accepted connection from " + client, DebugType.NONSERVER);
+                Debug.DEBUG(() -> "AcceptHandler: accepted connection from " + client, DebugType.NONSERVER);
 
-                client.configureBlocking(false);
-
-                IReadWriteHandler rwh = rwhf.createHandler();
-                int ops = rwh.getInitOps();
-
-                SelectionKey clientKey = client.register(key.selector(), ops);
-                clientKey.attach(rwh);
+                dispatcher.addConnection(client);
             } else {
                 Debug.DEBUG("AcceptHandler: null client", DebugType.NONSERVER);
             }
         } finally {
-            lock.unlock();
+            if (lock != null) {
+                lock.unlock();
+            }
         }
     }
 }
@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.nio.channels.*;
+
+// Dedicated accept thread: blocks in accept() on the listening channel and hands each connection to
+// one dispatcher, so only that dispatcher's selector is woken up. Dispatchers at their
+// MaxConnectionsPerDispatcher limit are skipped; while all are full, nothing is accepted and new
+// connections wait in the listen backlog.
+//
+// balancing:
+// ROUND_ROBIN: dispatchers in turn
+// LEAST_CONNECTIONS: dispatcher with the fewest open connections
+public class Acceptor implements Runnable {
+    public enum Balance {
+        ROUND_ROBIN,
+        LEAST_CONNECTIONS
+    }
+
+    private ServerSocketChannel server;
+    // replaced when a config reload changes nSelectLoops
+    private volatile Dispatcher[] dispatchers;
+    private Balance balance;
+    private int next;
+
+    // how often a full server checks whether a dispatcher has room again
+    private static final long FULL_POLL_MILLIS = 10;
+
+    public Acceptor(ServerSocketChannel server, Dispatcher[] dispatchers, Balance balance) {
+        this.server = server;
+        this.dispatchers = dispatchers;
+        this.balance = balance;
+        this.next = 0;
+    }
+
+    public void setDispatchers(Dispatcher[] dispatchers) {
+        this.dispatchers = dispatchers;
+    }
+
+    public void run() {
+        try {
+            server.configureBlocking(true);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        }
+
+        while (!Thread.interrupted()) {
+            try {
+                while (allFull()) {
+                    Thread.sleep(FULL_POLL_MILLIS);
+                }
+            } catch (InterruptedException ex) {
+                break;
+            }
+
+            try {
+                SocketChannel client = server.accept();
+                Debug.DEBUG(() -> "Acceptor: accepted connection from " + client, DebugType.NONSERVER);
+
+                pickDispatcher().handOff(client);
+            } catch (ClosedChannelException ex) {
+                break;
+            } catch (IOException ex) {
+                Debug.DEBUG(() -> "Acceptor: accept failed: " + ex, DebugType.SERVER);
+            }
+        }
+    }
+
+    private boolean allFull() {
+        Dispatcher[] dispatchers = this.dispatchers;
+        for (Dispatcher d : dispatchers) {
+            if (!d.isFull()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Dispatcher pickDispatcher() {
+        Dispatcher[] dispatchers = this.dispatchers;
+        if (balance == Balance.LEAST_CONNECTIONS) {
+            Dispatcher best = dispatchers[0];
+            for (int i = 1; i < dispatchers.length; i++) {
+                if (dispatchers[i].getConnectionCount() < best.getConnectionCount()) {
+                    best = dispatchers[i];
+                }
+            }
+            return best;
+        }
+
+        next %= dispatchers.length;
+        Dispatcher d = dispatchers[next];
+        next = (next + 1) % dispatchers.length;
+        for (int i = 1; i < dispatchers.length && d.isFull(); i++) {
+            d = dispatchers[next];
+            next = (next + 1) % dispatchers.length;
+        }
+        return d;
+    }
+}
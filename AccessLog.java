@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Access log in Common or Combined Log Format. Each dispatcher formats its entries straight into its
+// own Batch (a direct buffer, no locking, no per-entry Strings for the line itself); a full or stale
+// batch is queued whole and written by the LogWriter thread, then its buffer is reused.
+//
+// config:
+// AccessLog <file>                 enables the log
+// AccessLogFormat common|combined  default combined
+//
+// typical use (dispatcher thread):
+// AccessLog.Batch batch = accessLog.newBatch();
+// batch.log(remoteAddr, request, 200, 1234);
+// batch.flushIfStale(System.currentTimeMillis());      // once per select loop
+
+public class AccessLog {
+    private static final int BATCH_SIZE = 64 * 1024;
+    // entries wait at most this long in a batch before being handed to the writer
+    public static final long FLUSH_MILLIS = 1000;
+    // longest request line / header value copied into an entry
+    private static final int MAX_FIELD = 2048;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+
+    private final FileChannel channel;
+    private final boolean combined;
+    private final ConcurrentLinkedQueue<ByteBuffer> full;
+    private final ConcurrentLinkedQueue<ByteBuffer> free;
+
+    public AccessLog(String fileName, boolean combined) throws IOException {
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.combined = combined;
+        full = new ConcurrentLinkedQueue<ByteBuffer>();
+        free = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    // LogWriter thread: writes queued batches; returns false if there were none
+    public boolean drain() {
+        boolean wrote = false;
+        ByteBuffer buf;
+        while ((buf = full.poll()) != null) {
+            try {
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+            } catch (IOException ex) {
+                Debug.DEBUG("AccessLog: write failed: " + ex, DebugType.SERVER);
+            }
+            buf.clear();
+            free.add(buf);
+            wrote = true;
+        }
+        return wrote;
+    }
+
+    // One dispatcher's pending entries; only used on that dispatcher's thread
+    public class Batch {
+        private ByteBuffer buf;
+        private long firstEntryMillis;
+
+        // formatted time of day, redone once per second
+        private long cachedSecond = -1;
+        private String cachedTime;
+
+        private Batch() {
+            buf = takeBuffer();
+        }
+
+        // host ident authuser [time] "request line" status bytes ["referer" "user-agent"]
+        public void log(String remoteAddr, Request request, int status, long bytes) {
+            long now = System.currentTimeMillis();
+            if (buf.remaining() < 4 * MAX_FIELD + 256) {
+                flush();
+            }
+            if (buf.position() == 0) {
+                firstEntryMillis = now;
+            }
+
+            putAscii(remoteAddr);
+            putAscii(" - - [");
+            putAscii(formatTime(now));
+            putAscii("] \"");
+            if (request != null && request.getReqUrl() != null) {
+                putAscii(request.getReqMethod().toString());
+                buf.put((byte) ' ');
+                putEscaped(request.getReqUrl());
+                buf.put((byte) ' ');
+                putEscaped(request.getReqProtocol());
+            } else {
+                buf.put((byte) '-');
+            }
+            putAscii("\" ");
+            putAscii(Integer.toString(status));
+            buf.put((byte) ' ');
+            putAscii(bytes > 0 ? Long.toString(bytes) : "-");
+
+            if (combined) {
+                putAscii(" \"");
+                putEscaped(request == null ? null : request.lookupHeader("Referer"));
+                putAscii("\" \"");
+                putEscaped(request == null ? null : request.lookupHeader(Request.USER_AGENT));
+                buf.put((byte) '"');
+            }
+            buf.put((byte) '\n');
+        }
+
+        public boolean isEmpty() {
+            return buf.position() == 0;
+        }
+
+        public void flushIfStale(long now) {
+            if (buf.position() > 0 && now - firstEntryMillis >= FLUSH_MILLIS) {
+                flush();
+            }
+        }
+
+        public void flush() {
+            if (buf.position() == 0) {
+                return;
+            }
+            buf.flip();
+            full.add(buf);
+            LogWriter.wake();
+            buf = takeBuffer();
+        }
+
+        private String formatTime(long now) {
+            long second = now / 1000;
+            if (second != cachedSecond) {
+                cachedSecond = second;
+                cachedTime = TIME_FORMAT.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(now), ZoneId.systemDefault()));
+            }
+            return cachedTime;
+        }
+
+        private void putAscii(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                buf.put((byte) s.charAt(i));
+            }
+        }
+
+        // quotes, backslashes and control characters as \xhh, like Apache; "-" for a missing value
+        private void putEscaped(String s) {
+            if (s == null) {
+                buf.put((byte) '-');
+                return;
+            }
+            int n = Math.min(s.length(), MAX_FIELD / 4);
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\' || c < 0x20 || c >= 0x7f) {
+                    buf.put((byte) '\\');
+                    buf.put((byte) 'x');
+                    buf.put((byte) Character.forDigit((c >> 4) & 0xf, 16));
+                    buf.put((byte) Character.forDigit(c & 0xf, 16));
+                } else {
+                    buf.put((byte) c);
+                }
+            }
+        }
+    }
+
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buf = free.poll();
+        return (buf != null) ? buf : ByteBuffer.allocateDirect(BATCH_SIZE);
+    }
+}
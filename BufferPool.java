@@ -0,0 +1,140 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+// Per-dispatcher pool of direct ByteBuffers in a few size classes. Buffers are sliced out of larger
+// direct slabs, borrowed for the length of a read or a queued write and released afterwards, so a
+// busy connection does not allocate per request and an idle one holds no buffers at all.
+// Not thread-safe: only used on the owning Dispatcher's thread (statistics may be read from others).
+// A shared pool (Engine virtual, whose connections each have a thread) locks around borrow and release.
+//
+// typical use:
+// ByteBuffer buf = pool.borrow(4096);      // cleared, capacity >= 4096
+// ...
+// pool.release(buf);                       // buffers not from this pool are ignored
+//
+// Requests above the largest size class, or beyond maxBytes of slabs, get a plain heap buffer that is
+// left to the garbage collector.
+
+public class BufferPool {
+    public static final int[] SIZE_CLASSES = { 4096, 16384, 65536 };
+    public static final int SLAB_SIZE = 256 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024;
+
+    private final long maxBytes;
+    private long slabBytes;
+
+    private final ArrayDeque<ByteBuffer>[] free;
+    private final long[] borrows;
+    private final long[] inUse;
+    private long slabs;
+    private long unpooled;
+    // null unless shared
+    private final Lock lock;
+
+    public BufferPool(long maxBytes) {
+        this(maxBytes, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(long maxBytes, boolean shared) {
+        this.maxBytes = maxBytes;
+        lock = shared ? new ReentrantLock() : null;
+        free = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[SIZE_CLASSES.length];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ArrayDeque<ByteBuffer>();
+        }
+        borrows = new long[SIZE_CLASSES.length];
+        inUse = new long[SIZE_CLASSES.length];
+    }
+
+    // Returns a cleared buffer with at least size bytes of capacity
+    public ByteBuffer borrow(int size) {
+        if (lock == null) {
+            return take(size);
+        }
+        lock.lock();
+        try {
+            return take(size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Gives buf back to its size class; heap buffers handed out as a fallback are dropped
+    public void release(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect()) {
+            return;
+        }
+        if (lock == null) {
+            giveBack(buf);
+            return;
+        }
+        lock.lock();
+        try {
+            giveBack(buf);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer take(int size) {
+        int c = sizeClass(size);
+        if (c < 0) {
+            unpooled++;
+            return ByteBuffer.allocate(size);
+        }
+
+        if (free[c].isEmpty() && !allocateSlab(c)) {
+            unpooled++;
+            return ByteBuffer.allocate(SIZE_CLASSES[c]);
+        }
+        borrows[c]++;
+        inUse[c]++;
+        ByteBuffer buf = free[c].pop();
+        buf.clear();
+        return buf;
+    }
+
+    private void giveBack(ByteBuffer buf) {
+        int c = Arrays.binarySearch(SIZE_CLASSES, buf.capacity());
+        if (c < 0) {
+            return;
+        }
+        inUse[c]--;
+        free[c].push(buf);
+    }
+
+    public String toString() {
+        String str = "BufferPool: " + slabs + " slabs, " + slabBytes + "/" + maxBytes + " bytes, " + unpooled + " unpooled allocations";
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            str += "\n  " + SIZE_CLASSES[i] + ": " + borrows[i] + " borrows, " + inUse[i] + " in use, " + free[i].size() + " free";
+        }
+        return str;
+    }
+
+    private static int sizeClass(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Slices a new slab into buffers of class c; false once the pool is at maxBytes
+    private boolean allocateSlab(int c) {
+        if (slabBytes + SLAB_SIZE > maxBytes) {
+            return false;
+        }
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        int size = SIZE_CLASSES[c];
+        for (int position = 0; position + size <= SLAB_SIZE; position += size) {
+            slab.limit(position + size).position(position);
+            free[c].push(slab.slice());
+        }
+        slabBytes += SLAB_SIZE;
+        slabs++;
+        return true;
+    }
+}
@@ -0,0 +1,479 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.*;
+import java.util.function.Function;
+
+// Server-wide micro-cache for cgi scripts that opt in with CgiCache, keyed by script, QUERY_STRING and
+// the request headers the rule names. It keeps the script's output (status, headers, body) rather than
+// a rendered response, so a hit goes through the handler's usual cgi path: chunking, compression and
+// HTTP/2 framing are per client as before.
+//
+// Single flight: requests for a key that is not cached join the one run of the script in progress for
+// it, from any dispatcher, instead of starting their own. The flight keeps the output while it fits in
+// CgiCacheMaxEntry, replays it to requests that join late and stores it when the script ends. Output
+// that grows larger, a status other than 200, Set-Cookie or Cache-Control: no-store/private make the
+// response uncacheable: no one else joins, and the script is paced by the slowest client still reading.
+//
+// Stale-while-revalidate: for stale milliseconds after an entry's ttl it is still served, while one
+// background run of the script replaces it.
+//
+// typical use (ReadWriteHandler.performCgi):
+// String cacheKey = cgiCache.key(script, queryString, request::lookupHeader);   // null: not cached
+// responseStream = cgiCache.serve(script, cacheKey, callbacks, key, this, h -> new CgiStream(..., h, ...));
+// // null: the script is at its CgiLimit, answer 503
+//
+// config:
+// CgiCache <url> <ttlMillis> [staleMillis] [header ...]    cache url's 200 responses for ttl, serve them
+//                                         stale for staleMillis more (default 0) while refreshing;
+//                                         named headers are part of the key; may be repeated
+// CgiCacheSize <bytes>                    total size of cached bodies (default 8 MiB)
+// CgiCacheMaxEntry <bytes>                largest cached body (default 256 KiB)
+
+public class CgiCache {
+    public static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+    public static final long DEFAULT_MAX_ENTRY_BYTES = 256 * 1024;
+    // accounted size of an entry's status and headers
+    private static final int ENTRY_OVERHEAD = 256;
+
+    // stream of a response served from the cache: nothing to pace or stop
+    private static final IResponseStream CACHED = new IResponseStream() {
+        public void release(int bytes) {
+        }
+
+        public void cancel() {
+        }
+    };
+
+    // One CgiCache line
+    private static class Rule {
+        private final long ttlMillis;
+        private final long staleMillis;
+        private final String[] keyHeaders;
+
+        private Rule(long ttlMillis, long staleMillis, String[] keyHeaders) {
+            this.ttlMillis = ttlMillis;
+            this.staleMillis = staleMillis;
+            this.keyHeaders = keyHeaders;
+        }
+    }
+
+    private static class Entry {
+        private final int statusCode;
+        private final String message;
+        private final List<String> headers;
+        private final byte[] body;
+        private final long expires;         // fresh until
+        private final long staleUntil;      // served while being refreshed until
+
+        private Entry(int statusCode, String message, List<String> headers, byte[] body, long expires, long staleUntil) {
+            this.statusCode = statusCode;
+            this.message = message;
+            this.headers = headers;
+            this.body = body;
+            this.expires = expires;
+            this.staleUntil = staleUntil;
+        }
+
+        private int size() {
+            return body.length + ENTRY_OVERHEAD;
+        }
+    }
+
+    // One request reading a flight's output
+    private class Subscriber implements IResponseStream {
+        private final Flight flight;
+        private final Executor callbacks;
+        private final SelectionKey key;
+        private final ICgiOutputHandler handler;
+        private long released;              // bytes its connection has written
+        private boolean cancelled;
+
+        private Subscriber(Flight flight, Executor callbacks, SelectionKey key, ICgiOutputHandler handler) {
+            this.flight = flight;
+            this.callbacks = callbacks;
+            this.key = key;
+            this.handler = handler;
+        }
+
+        public void release(int bytes) {
+            synchronized (flight) {
+                released += bytes;
+                flight.releaseCredits();
+            }
+        }
+
+        public void cancel() {
+            synchronized (flight) {
+                cancelled = true;
+                flight.releaseCredits();
+            }
+        }
+    }
+
+    // One run of a script whose output goes to every request that joined it, and maybe to the cache.
+    // Its handler calls come straight from the CgiStream worker; each subscriber gets them through its
+    // own callbacks.
+    private class Flight implements ICgiOutputHandler {
+        private final String cacheKey;
+        private final Rule rule;
+        private IResponseStream source;
+        private final ArrayList<Subscriber> subscribers;
+
+        private boolean headersDone;
+        private int statusCode;
+        private String message;
+        private List<String> headers;
+        // output so far while it may still be cached; null once it cannot
+        private ArrayList<ByteBuffer> body;
+        private long bodyBytes;
+        private long releasedToSource;
+        private boolean ended;
+        private boolean failed;
+
+        private Flight(String cacheKey, Rule rule) {
+            this.cacheKey = cacheKey;
+            this.rule = rule;
+            subscribers = new ArrayList<Subscriber>();
+            body = new ArrayList<ByteBuffer>();
+        }
+
+        // Adds a request and replays the output so far; false if the output is no longer kept
+        private synchronized boolean join(Subscriber s) {
+            if (body == null) {
+                return false;
+            }
+            subscribers.add(s);
+            if (headersDone) {
+                sendHeaders(s);
+                for (ByteBuffer data : body) {
+                    sendData(s, data);
+                }
+                if (ended) {
+                    sendEnd(s);
+                }
+            }
+            return true;
+        }
+
+        public synchronized void handleCgiHeaders(SelectionKey key, int statusCode, String message, List<String> headers) {
+            headersDone = true;
+            this.statusCode = statusCode;
+            this.message = message;
+            this.headers = Collections.unmodifiableList(new ArrayList<String>(headers));
+            if (!isCacheable(statusCode, headers)) {
+                Debug.DEBUG(() -> "CgiCache: response not cacheable: " + cacheKey, DebugType.NONSERVER);
+                uncacheable.increment();
+                stopKeeping();
+            }
+            for (Subscriber s : subscribers) {
+                sendHeaders(s);
+            }
+        }
+
+        public synchronized void handleCgiData(SelectionKey key, ByteBuffer data) {
+            int length = data.remaining();
+            bodyBytes += length;
+            if (body != null) {
+                if (bodyBytes > maxEntryBytes) {
+                    Debug.DEBUG(() -> "CgiCache: response too large to cache: " + cacheKey, DebugType.NONSERVER);
+                    uncacheable.increment();
+                    stopKeeping();
+                } else {
+                    body.add(data);
+                }
+            }
+            for (Subscriber s : subscribers) {
+                sendData(s, data);
+            }
+            releaseCredits();
+        }
+
+        public synchronized void handleCgiEnd(SelectionKey key, boolean failed) {
+            ended = true;
+            this.failed = failed;
+            flights.remove(cacheKey, this);
+            if (!failed && headersDone && body != null) {
+                byte[] bytes = new byte[(int) bodyBytes];
+                int position = 0;
+                for (ByteBuffer data : body) {
+                    int length = data.remaining();
+                    data.duplicate().get(bytes, position, length);
+                    position += length;
+                }
+                long now = System.currentTimeMillis();
+                put(cacheKey, new Entry(statusCode, message, headers, bytes, now + rule.ttlMillis,
+                        now + rule.ttlMillis + rule.staleMillis));
+            }
+            for (Subscriber s : subscribers) {
+                sendEnd(s);
+            }
+        }
+
+        // Gives the script credits for what it may produce next: everything while the output is kept
+        // (it is held anyway), otherwise what the slowest remaining request has written. With no request
+        // left the script is only worth finishing for the cache.
+        private void releaseCredits() {
+            long target;
+            if (body != null) {
+                target = bodyBytes;
+            } else {
+                target = Long.MAX_VALUE;
+                for (Subscriber s : subscribers) {
+                    if (!s.cancelled) {
+                        target = Math.min(target, s.released);
+                    }
+                }
+                if (target == Long.MAX_VALUE) {
+                    if (source != null && !ended) {
+                        source.cancel();
+                    }
+                    return;
+                }
+            }
+            if (source != null && target > releasedToSource) {
+                source.release((int) (target - releasedToSource));
+                releasedToSource = target;
+            }
+        }
+
+        // no more late joiners: later requests for the key start their own run
+        private void stopKeeping() {
+            body = null;
+            flights.remove(cacheKey, this);
+        }
+
+        // the script could not be started: leader is answered by the caller, anyone who joined meanwhile fails
+        private synchronized void abandon(Subscriber leader) {
+            subscribers.remove(leader);
+            flights.remove(cacheKey, this);
+            body = null;
+            ended = true;
+            failed = true;
+            for (Subscriber s : subscribers) {
+                sendEnd(s);
+            }
+        }
+
+        private void sendHeaders(Subscriber s) {
+            int code = statusCode;
+            String msg = message;
+            List<String> hdrs = headers;
+            s.callbacks.execute(() -> s.handler.handleCgiHeaders(s.key, code, msg, hdrs));
+        }
+
+        // every subscriber gets its own position over the same bytes
+        private void sendData(Subscriber s, ByteBuffer data) {
+            ByteBuffer view = data.duplicate();
+            s.callbacks.execute(() -> s.handler.handleCgiData(s.key, view));
+        }
+
+        private void sendEnd(Subscriber s) {
+            boolean f = failed;
+            s.callbacks.execute(() -> s.handler.handleCgiEnd(s.key, f));
+        }
+    }
+
+    private final HashMap<String, Rule> rules;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+
+    // access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries;
+    private long currentBytes;
+    private final Lock lock;
+    // runs in progress, by cache key
+    private final ConcurrentHashMap<String, Flight> flights;
+
+    private final LongAdder hits;
+    private final LongAdder staleHits;
+    private final LongAdder misses;
+    private final LongAdder coalesced;
+    private final LongAdder revalidations;
+    private final LongAdder uncacheable;
+    private final LongAdder evictions;
+
+    public CgiCache(List<String> ruleDirectives, long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(Math.min(maxEntryBytes, maxBytes), Integer.MAX_VALUE);
+        rules = new HashMap<String, Rule>();
+        entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+        lock = new ReentrantLock();
+        flights = new ConcurrentHashMap<String, Flight>();
+
+        hits = new LongAdder();
+        staleHits = new LongAdder();
+        misses = new LongAdder();
+        coalesced = new LongAdder();
+        revalidations = new LongAdder();
+        uncacheable = new LongAdder();
+        evictions = new LongAdder();
+
+        for (String directive : ruleDirectives) {
+            String[] arr = directive.trim().split("\\s+");
+            try {
+                if (arr.length < 2 || !arr[0].startsWith("/")) {
+                    throw new NumberFormatException();
+                }
+                long ttl = Long.parseLong(arr[1]);
+                long stale = (arr.length > 2) ? Long.parseLong(arr[2]) : 0;
+                String[] keyHeaders = (arr.length > 3) ? Arrays.copyOfRange(arr, 3, arr.length) : new String[0];
+                rules.put(arr[0], new Rule(ttl, stale, keyHeaders));
+            } catch (NumberFormatException ex) {
+                Debug.PRINT("CgiCache: expected <url> <ttlMillis> [staleMillis] [header ...], got " + directive);
+            }
+        }
+    }
+
+    // Cache key for a request to script, or null if script is not cached
+    public String key(String script, String queryString, Function<String, String> headers) {
+        Rule rule = rules.get(script);
+        if (rule == null || maxBytes <= 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(script).append('\n').append(queryString);
+        for (String name : rule.keyHeaders) {
+            String value = headers.apply(name);
+            sb.append('\n').append((value == null) ? "" : value);
+        }
+        return sb.toString();
+    }
+
+    // Answers a request for cacheKey through handler: from the cache, by joining the run in progress for
+    // the key, or by starting one with newStream(flight) on the CgiExecutor. Returns the stream for the
+    // handler to release and cancel, or null if the script is at its CgiLimit.
+    public IResponseStream serve(String script, String cacheKey, Executor callbacks, SelectionKey key, ICgiOutputHandler handler,
+            Function<ICgiOutputHandler, CgiStream> newStream) {
+        Rule rule = rules.get(script);
+        long now = System.currentTimeMillis();
+        Entry entry;
+        lock.lock();
+        try {
+            entry = entries.get(cacheKey);
+            if (entry != null && now >= entry.staleUntil) {
+                entries.remove(cacheKey);
+                currentBytes -= entry.size();
+                entry = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (entry != null) {
+            if (now < entry.expires) {
+                hits.increment();
+            } else {
+                staleHits.increment();
+                revalidate(script, cacheKey, rule, newStream);
+            }
+            Entry e = entry;
+            callbacks.execute(() -> handler.handleCgiHeaders(key, e.statusCode, e.message, e.headers));
+            if (e.body.length > 0) {
+                callbacks.execute(() -> handler.handleCgiData(key, ByteBuffer.wrap(e.body)));
+            }
+            callbacks.execute(() -> handler.handleCgiEnd(key, false));
+            return CACHED;
+        }
+
+        misses.increment();
+        while (true) {
+            Flight flight = flights.get(cacheKey);
+            if (flight != null) {
+                Subscriber s = new Subscriber(flight, callbacks, key, handler);
+                if (flight.join(s)) {
+                    coalesced.increment();
+                    return s;
+                }
+                // output no longer kept; it leaves the map itself
+                flights.remove(cacheKey, flight);
+                continue;
+            }
+            flight = new Flight(cacheKey, rule);
+            if (flights.putIfAbsent(cacheKey, flight) != null) {
+                continue;
+            }
+            Subscriber s = new Subscriber(flight, callbacks, key, handler);
+            flight.join(s);
+            if (!start(script, flight, newStream)) {
+                flight.abandon(s);
+                return null;
+            }
+            return s;
+        }
+    }
+
+    // starts a background run replacing cacheKey's stale entry, unless one is in progress
+    private void revalidate(String script, String cacheKey, Rule rule, Function<ICgiOutputHandler, CgiStream> newStream) {
+        Flight flight = new Flight(cacheKey, rule);
+        if (flights.putIfAbsent(cacheKey, flight) != null) {
+            return;
+        }
+        Debug.DEBUG(() -> "CgiCache: revalidating " + cacheKey, DebugType.NONSERVER);
+        revalidations.increment();
+        if (!start(script, flight, newStream)) {
+            flight.abandon(null);
+        }
+    }
+
+    private boolean start(String script, Flight flight, Function<ICgiOutputHandler, CgiStream> newStream) {
+        CgiStream stream = newStream.apply(flight);
+        synchronized (flight) {
+            flight.source = stream;
+        }
+        return Server.getCgiExecutor().submit(script, stream);
+    }
+
+    private static boolean isCacheable(int statusCode, List<String> headers) {
+        if (statusCode != 200) {
+            return false;
+        }
+        for (String header : headers) {
+            if (header.regionMatches(true, 0, "Set-Cookie:", 0, 11)) {
+                return false;
+            }
+            if (header.regionMatches(true, 0, "Cache-Control:", 0, 14)) {
+                String value = header.substring(14).toLowerCase();
+                if (value.contains("no-store") || value.contains("private") || value.contains("no-cache")) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void put(String cacheKey, Entry entry) {
+        lock.lock();
+        try {
+            Entry old = entries.put(cacheKey, entry);
+            if (old != null) {
+                currentBytes -= old.size();
+            }
+            currentBytes += entry.size();
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (currentBytes > maxBytes && it.hasNext()) {
+                Entry eldest = it.next().getValue();
+                it.remove();
+                currentBytes -= eldest.size();
+                evictions.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+        Debug.DEBUG(() -> "CgiCache: stored " + cacheKey.replace('\n', ' ') + " (" + entry.size() + " bytes)", DebugType.NONSERVER);
+    }
+
+    public String toString() {
+        lock.lock();
+        try {
+            return "CgiCache: " + entries.size() + " entries, " + currentBytes + "/" + maxBytes + " bytes, " + hits.sum()
+                    + " hits, " + staleHits.sum() + " stale hits, " + misses.sum() + " misses, " + coalesced.sum()
+                    + " coalesced, " + revalidations.sum() + " revalidations, " + uncacheable.sum() + " uncacheable, "
+                    + evictions.sum() + " evictions, " + flights.size() + " in flight";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs CGI scripts off the dispatcher threads. Each script path gets its own bounded pool, so a slow
+// script can only tie up its own workers; when its queue is full, submit() refuses the request and
+// the connection is answered with 503 instead of waiting.
+// Scripts named by CgiWorkers are not forked per request: their requests go to a CgiWorkerPool of
+// persistent processes, and their concurrency defaults to the number of workers.
+// Only executable files inside a CgiDirectory are scripts; resolveScript maps a request url to one, by
+// its canonical path, before anything of the request is given to it.
+// A forked script's request body is written to its stdin by a thread of getStdinWriters(), which has as
+// many threads as the forked scripts' pools have workers together, so every running script has a writer.
+//
+// config:
+// CgiDirectory <url>                     directory under the server root holding scripts (default /cgi);
+//                                        may be repeated
+// CgiMaxConcurrency <n>                  default workers per script
+// CgiQueueSize <n>                       default queued requests per script
+// CgiLimit <url> <maxConcurrency> <queueSize>   per-script override, may be repeated
+// CgiWorkers <url> <n> [maxRequests]     persistent worker processes for url (see CgiWorkerPool)
+
+public class CgiExecutor {
+    public static final int DEFAULT_MAX_CONCURRENCY = 4;
+    public static final int DEFAULT_QUEUE_SIZE = 32;
+    public static final String DEFAULT_DIRECTORY = "/cgi";
+
+    private final int defaultMaxConcurrency;
+    private final int defaultQueueSize;
+    private final HashMap<String, int[]> limits;
+    private final ConcurrentHashMap<String, ThreadPoolExecutor> pools;
+    private final HashMap<String, CgiWorkerPool> workerPools;
+    // canonical server root (the working directory) and script directories inside it
+    private final Path root;
+    private final ArrayList<Path> directories;
+    // writers of forked scripts' stdin, one thread per worker of their pools
+    private final ThreadPoolExecutor stdinWriters;
+    private int stdinThreads;
+
+    public CgiExecutor(int defaultMaxConcurrency, int defaultQueueSize, List<String> limitDirectives,
+            List<String> workerDirectives, long workerTimeoutMillis, long workerPingMillis, List<String> directoryDirectives) {
+        this.defaultMaxConcurrency = defaultMaxConcurrency;
+        this.defaultQueueSize = defaultQueueSize;
+        limits = new HashMap<String, int[]>();
+        pools = new ConcurrentHashMap<String, ThreadPoolExecutor>();
+        workerPools = new HashMap<String, CgiWorkerPool>();
+        Path cwd = canonicalPath(new File(""));
+        root = (cwd != null) ? cwd : new File("").getAbsoluteFile().toPath();
+        directories = new ArrayList<Path>();
+        stdinWriters = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+            Thread t = new Thread(r, "cgi-stdin");
+            t.setDaemon(true);
+            return t;
+        });
+        stdinWriters.allowCoreThreadTimeOut(true);
+
+        if (directoryDirectives.isEmpty()) {
+            directoryDirectives = Collections.singletonList(DEFAULT_DIRECTORY);
+        }
+        for (String directive : directoryDirectives) {
+            Path dir = canonicalPath(new File(root.toFile(), directive.trim()));
+            if (dir != null && dir.startsWith(root) && !dir.equals(root) && dir.toFile().isDirectory()) {
+                directories.add(dir);
+            } else {
+                Debug.PRINT("CgiDirectory: not a directory inside the server root: " + directive);
+            }
+        }
+        for (String directive : limitDirectives) {
+            String[] arr = directive.trim().split("\\s+");
+            if (arr.length == 3) {
+                limits.put(arr[0], new int[] { Integer.parseInt(arr[1]), Integer.parseInt(arr[2]) });
+            } else {
+                Debug.PRINT("CgiLimit: expected <url> <maxConcurrency> <queueSize>, got " + directive);
+            }
+        }
+        for (String directive : workerDirectives) {
+            String[] arr = directive.trim().split("\\s+");
+            if ((arr.length == 2 || arr.length == 3) && arr[0].startsWith("/")) {
+                int maxRequests = (arr.length == 3) ? Integer.parseInt(arr[2]) : CgiWorkerPool.DEFAULT_MAX_REQUESTS;
+                workerPools.put(arr[0], new CgiWorkerPool(arr[0], Integer.parseInt(arr[1]), maxRequests,
+                        workerTimeoutMillis, workerPingMillis));
+            } else {
+                Debug.PRINT("CgiWorkers: expected <url> <workers> [maxRequests], got " + directive);
+            }
+        }
+    }
+
+    // The url of the script url names, by its canonical path ("/cgi/price.cgi" for "//cgi/./price.cgi"), or
+    // null if that is not an executable file inside a CgiDirectory. Links are followed first, so none
+    // leads out of the directories.
+    public String resolveScript(String url) {
+        Path file = canonicalPath(new File(root.toFile(), url));
+        if (file == null || !file.toFile().isFile() || !file.toFile().canExecute()) {
+            return null;
+        }
+        for (Path dir : directories) {
+            if (file.startsWith(dir)) {
+                return "/" + root.relativize(file).toString().replace(File.separatorChar, '/');
+            }
+        }
+        return null;
+    }
+
+    // The persistent workers serving script, or null if it is forked per request
+    public CgiWorkerPool getWorkerPool(String script) {
+        return workerPools.get(script);
+    }
+
+    // Queues task on script's pool; returns false if the script is at its concurrency and queue limit, or
+    // is not a url resolveScript returns. Pools are never removed, so only scripts that exist get one.
+    public boolean submit(String script, Runnable task) {
+        ThreadPoolExecutor pool = pools.get(script);
+        if (pool == null) {
+            if (!script.equals(resolveScript(script))) {
+                Debug.DEBUG(() -> "CgiExecutor: not a script " + script, DebugType.SERVER);
+                return false;
+            }
+            pool = pools.computeIfAbsent(script, this::createPool);
+        }
+        try {
+            pool.execute(task);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            Debug.DEBUG(() -> "CgiExecutor: rejected " + script, DebugType.SERVER);
+            return false;
+        }
+    }
+
+    // Copies request bodies to forked scripts' stdin (CgiStream)
+    public Executor getStdinWriters() {
+        return stdinWriters;
+    }
+
+    // CGI requests running or queued, across all scripts
+    public int getPendingCount() {
+        int pending = 0;
+        for (ThreadPoolExecutor pool : pools.values()) {
+            pending += pool.getActiveCount() + pool.getQueue().size();
+        }
+        return pending;
+    }
+
+    // Lets running and queued requests finish, then ends the workers; for an executor replaced by a reload.
+    // Stdin writers stay for the requests still running and end when idle.
+    public void shutdown() {
+        for (ThreadPoolExecutor pool : pools.values()) {
+            pool.shutdown();
+        }
+        for (CgiWorkerPool workers : workerPools.values()) {
+            workers.shutdown();
+        }
+    }
+
+    public String toString() {
+        String str = "CgiExecutor:";
+        for (Map.Entry<String, ThreadPoolExecutor> set : pools.entrySet()) {
+            ThreadPoolExecutor pool = set.getValue();
+            str += "\n  " + set.getKey() + ": " + pool.getActiveCount() + "/" + pool.getMaximumPoolSize() + " running, "
+                    + pool.getQueue().size() + " queued, " + pool.getCompletedTaskCount() + " completed";
+        }
+        for (CgiWorkerPool workers : workerPools.values()) {
+            str += "\n  " + workers;
+        }
+        return str;
+    }
+
+    // file with links and . or .. resolved, or null if its name is not a valid path
+    private static Path canonicalPath(File file) {
+        try {
+            return file.getCanonicalFile().toPath();
+        } catch (IOException | InvalidPathException ex) {
+            return null;
+        }
+    }
+
+    private ThreadPoolExecutor createPool(String script) {
+        int[] limit = limits.get(script);
+        CgiWorkerPool workers = workerPools.get(script);
+        int maxConcurrency = (limit != null) ? limit[0] : (workers != null) ? workers.getSize() : defaultMaxConcurrency;
+        int queueSize = (limit != null) ? limit[1] : defaultQueueSize;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread t = new Thread(r, "cgi" + script + "-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(queueSize, 1)), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        if (workers == null) {
+            addStdinWriters(maxConcurrency);
+        }
+        return pool;
+    }
+
+    private synchronized void addStdinWriters(int n) {
+        stdinThreads += n;
+        stdinWriters.setMaximumPoolSize(Math.max(stdinThreads, 1));
+        stdinWriters.setCorePoolSize(Math.max(stdinThreads, 1));
+    }
+}
@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+// Runs one cgi script on a CgiExecutor worker and streams its stdout to the thread serving the
+// connection: handler calls go through callbacks (the dispatcher's invokeLater, or the queue a
+// blocking connection thread takes them from).
+// A script with persistent workers (CgiWorkers) is not started: the request goes to a worker from its
+// CgiWorkerPool, whose response frames are read like a forked script's stdout.
+// The request body goes to a forked script's stdin from a thread of stdinWriters (CgiExecutor's), so a
+// script may write output before it has read all of its input, and a streamed body may still be arriving.
+// The script's own header section (Content-Type, Status, Location, ...) is parsed first and handed over
+// as a whole, then the body follows in chunks of up to CHUNK_SIZE bytes as the script produces them.
+//
+// Backpressure: the worker holds at most maxBuffered bytes that the socket has not taken yet. It takes
+// credits before each read and the handler gives them back (release) once the bytes have been written,
+// so a slow client stalls the script's pipe instead of growing the heap.
+//
+// typical use:
+// CgiStream stream = new CgiStream(processBuilder, body, executor.getStdinWriters(), dispatcher::invokeLater, key, handler, 64 * 1024);
+// (or new CgiStream(workerPool, env, body, dispatcher::invokeLater, key, handler, 64 * 1024))
+// executor.submit(script, stream);
+// ... handler.handleCgiData(key, data) -> responseBody.addBuffer(data, () -> stream.release(n))
+// stream.cancel();     // connection closed early
+
+public class CgiStream implements Runnable, IResponseStream {
+    public static final int CHUNK_SIZE = 8192;
+    public static final long DEFAULT_MAX_BUFFERED = 64 * 1024;
+    // largest cgi header section accepted
+    private static final int MAX_HEADER_SIZE = 8192;
+
+    private final ProcessBuilder processBuilder;
+    private final CgiWorkerPool workerPool;
+    private final Map<String, String> env;
+    private final RequestBody body;
+    private final Executor stdinWriters;
+    private final Executor callbacks;
+    private final SelectionKey key;
+    private final ICgiOutputHandler handler;
+
+    private final Semaphore credits;
+    private volatile boolean cancelled;
+    private volatile Process process;
+
+    // body may be null: stdin is closed right away
+    public CgiStream(ProcessBuilder processBuilder, RequestBody body, Executor stdinWriters, Executor callbacks, SelectionKey key,
+            ICgiOutputHandler handler, long maxBuffered) {
+        this.processBuilder = processBuilder;
+        workerPool = null;
+        env = null;
+        this.body = body;
+        this.stdinWriters = stdinWriters;
+        this.callbacks = callbacks;
+        this.key = key;
+        this.handler = handler;
+        credits = new Semaphore((int) Math.max(Math.min(maxBuffered, Integer.MAX_VALUE), CHUNK_SIZE));
+    }
+
+    // Sends env and a collected body to a worker of workerPool instead of starting a process
+    public CgiStream(CgiWorkerPool workerPool, Map<String, String> env, RequestBody body, Executor callbacks, SelectionKey key,
+            ICgiOutputHandler handler, long maxBuffered) {
+        processBuilder = null;
+        this.workerPool = workerPool;
+        this.env = env;
+        this.body = body;
+        stdinWriters = null;
+        this.callbacks = callbacks;
+        this.key = key;
+        this.handler = handler;
+        credits = new Semaphore((int) Math.max(Math.min(maxBuffered, Integer.MAX_VALUE), CHUNK_SIZE));
+    }
+
+    // Gives back credits for bytes written to (or dropped by) the connection; any thread
+    public void release(int bytes) {
+        credits.release(bytes);
+    }
+
+    // Stops the script; no further handler calls matter after this
+    public void cancel() {
+        cancelled = true;
+        credits.release(CHUNK_SIZE);        // wake the worker if it waits for credits
+        Process p = process;
+        if (p != null) {
+            p.destroy();
+        }
+    }
+
+    public void run() {
+        boolean failed = false;
+        CgiWorkerPool.Worker worker = null;
+        try {
+            if (cancelled) {
+                return;
+            }
+            InputStream out;
+            if (workerPool != null) {
+                worker = workerPool.take();
+                if (worker == null) {
+                    failed = true;
+                    return;
+                }
+                // cancel kills the worker; release replaces it
+                process = worker.getProcess();
+                if (cancelled) {
+                    return;
+                }
+                if (body != null) {
+                    try (InputStream in = body.openStream()) {
+                        out = worker.send(env, in, body.getLength());
+                    }
+                } else {
+                    out = worker.send(env, InputStream.nullInputStream(), 0);
+                }
+            } else {
+                process = processBuilder.start();
+                if (cancelled) {
+                    process.destroy();
+                    return;
+                }
+                Process p = process;
+                stdinWriters.execute(() -> writeStdin(p));
+                out = process.getInputStream();
+            }
+
+            try (InputStream in = out) {
+                byte[] head = new byte[MAX_HEADER_SIZE];
+                int headLength = 0;
+                int bodyStart = -1;
+                while (bodyStart < 0) {
+                    int readBytes = in.read(head, headLength, head.length - headLength);
+                    if (readBytes < 0 || (readBytes == 0 && headLength == head.length)) {
+                        break;
+                    }
+                    headLength += readBytes;
+                    bodyStart = findBodyStart(head, headLength);
+                }
+                if (bodyStart < 0) {
+                    Debug.DEBUG("CgiStream: no cgi header section", DebugType.NONSERVER);
+                    failed = true;
+                    return;
+                }
+                if (!parseHeaders(new String(head, 0, bodyStart, StandardCharsets.ISO_8859_1))) {
+                    failed = true;
+                    return;
+                }
+
+                // body bytes read together with the headers
+                if (bodyStart < headLength) {
+                    int n = headLength - bodyStart;
+                    credits.acquire(n);
+                    send(ByteBuffer.wrap(Arrays.copyOfRange(head, bodyStart, headLength)));
+                }
+
+                while (true) {
+                    credits.acquire(CHUNK_SIZE);
+                    if (cancelled) {
+                        return;
+                    }
+                    byte[] chunk = new byte[CHUNK_SIZE];
+                    int readBytes = in.read(chunk);
+                    if (readBytes < 0) {
+                        credits.release(CHUNK_SIZE);
+                        break;
+                    }
+                    credits.release(CHUNK_SIZE - readBytes);
+                    if (readBytes > 0) {
+                        send(ByteBuffer.wrap(chunk, 0, readBytes));
+                    }
+                }
+            }
+
+            if (worker == null) {
+                process.waitFor();
+            }
+            Debug.DEBUG("cgi success", DebugType.NONSERVER);
+        } catch (IOException | InterruptedException e) {
+            Debug.DEBUG("Cgi error", DebugType.NONSERVER);
+            failed = true;
+        } finally {
+            if (worker != null) {
+                // a worker whose response was not read to its end is not reused
+                workerPool.release(worker);
+            } else if (failed && process != null) {
+                process.destroy();
+            }
+            boolean cgiFailed = failed || cancelled;
+            callbacks.execute(() -> handler.handleCgiEnd(key, cgiFailed));
+        }
+    }
+
+    // Copies the body to the script and closes its stdin. Errors only end the copy: a script may exit
+    // without reading its input, and a body that breaks off also ends the connection, which cancels the script.
+    private void writeStdin(Process p) {
+        try (OutputStream stdin = p.getOutputStream()) {
+            if (body != null) {
+                try (InputStream in = body.openStream()) {
+                    in.transferTo(stdin);
+                }
+            }
+        } catch (IOException ex) {
+            Debug.DEBUG(() -> "CgiStream: stdin: " + ex.getMessage(), DebugType.NONSERVER);
+        }
+    }
+
+    private void send(ByteBuffer data) {
+        callbacks.execute(() -> handler.handleCgiData(key, data));
+    }
+
+    // Returns index of the first body byte (after the blank line ending the headers), or -1
+    private static int findBodyStart(byte[] buf, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buf[i] != '\n') {
+                continue;
+            }
+            if (i + 1 < length && buf[i + 1] == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < length && buf[i + 1] == '\r' && buf[i + 2] == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    // Turns the cgi header section into the response status and header lines (RFC 3875 section 6.3)
+    private boolean parseHeaders(String section) {
+        int statusCode = 200;
+        String message = "OK";
+        boolean hasStatus = false;
+        boolean hasLocation = false;
+        ArrayList<String> headers = new ArrayList<String>();
+
+        for (String line : section.split("\r?\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                Debug.DEBUG(() -> "CgiStream: malformed cgi header " + line, DebugType.NONSERVER);
+                return false;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+
+            if (name.equalsIgnoreCase("Status")) {
+                String[] arr = value.split("\\s+", 2);
+                try {
+                    statusCode = Integer.parseInt(arr[0]);
+                } catch (NumberFormatException ex) {
+                    return false;
+                }
+                message = (arr.length > 1) ? arr[1] : "";
+                hasStatus = true;
+            } else if (name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Transfer-Encoding")
+                    || name.equalsIgnoreCase("Connection")) {
+                // the server frames the body itself
+            } else {
+                hasLocation |= name.equalsIgnoreCase("Location");
+                headers.add(name + ": " + value);
+            }
+        }
+        if (hasLocation && !hasStatus) {
+            statusCode = 302;
+            message = "Found";
+        }
+
+        int code = statusCode;
+        String msg = message;
+        callbacks.execute(() -> handler.handleCgiHeaders(key, code, msg, headers));
+        return true;
+    }
+}
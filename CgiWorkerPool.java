@@ -0,0 +1,311 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Long-lived worker processes for one cgi script (CgiWorkers), so a request costs a pipe round trip
+// instead of a fork and exec. Each worker serves one request at a time over a framed stdin/stdout
+// protocol; CgiStream takes a worker, sends the request and reads the script's output from the
+// response frames exactly as it reads a forked script's stdout.
+//
+// protocol (all lengths in decimal ASCII):
+//   request   "<env bytes> <body bytes>\n", then NAME=VALUE\0 for every request variable (QUERY_STRING,
+//             REMOTE_ADDR, ...; the worker inherits the server's environment once, at start), then the body
+//   response  the cgi output (headers, blank line, body) in frames "<n>\n" + n bytes, ended by "0\n"
+//   ping      a request without variables or body ("0 0\n"), answered by "0\n" alone
+// A worker exits when its stdin is closed. cgi/price-worker.cgi is price.cgi as a worker.
+//
+// Workers are started on demand up to the pool size. A worker is replaced when it exits, breaks the
+// protocol, takes longer than CgiWorkerTimeout for a response, does not answer the ping sent to a
+// worker idle for CgiWorkerPing, or has served its request limit.
+//
+// typical use (CgiStream, on a CgiExecutor thread):
+// CgiWorkerPool.Worker w = pool.take();          // null: shut down, or the script cannot be started
+// InputStream out = w.send(env, body, length);   // read to -1 for the whole cgi output
+// pool.release(w);                               // back to the pool, or replaced if it did not finish
+//
+// config:
+// CgiWorkers <url> <n> [maxRequests]     serve url with n persistent workers, each replaced after
+//                                        maxRequests requests (default 1000, 0: never); may be repeated
+// CgiWorkerTimeout <millis>              longest response before the worker is killed (default 30000, 0: none)
+// CgiWorkerPing <millis>                 idle time after which a worker is pinged before use (default 10000)
+
+public class CgiWorkerPool {
+    public static final int DEFAULT_MAX_REQUESTS = 1000;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+    public static final long DEFAULT_PING_MILLIS = 10000;
+    // longest wait for a ping answer
+    private static final long PING_TIMEOUT_MILLIS = 1000;
+    // longest wait for an idle worker before checking whether one may be started
+    private static final long RETRY_TAKE_MILLIS = 100;
+    // longest frame or request line accepted from a worker
+    private static final int MAX_LENGTH_DIGITS = 10;
+
+    // kills workers past their deadline, for every pool
+    private static final ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "cgi-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        watchdog.setRemoveOnCancelPolicy(true);
+    }
+
+    // One worker process and its pipes
+    public class Worker {
+        private final Process process;
+        private final OutputStream stdin;
+        private final InputStream stdout;
+        private int requests;
+        private long idleSince;
+        private boolean responding;        // a response is sent for which the end frame has not been read
+        private ScheduledFuture<?> deadline;
+
+        private Worker(Process process) {
+            this.process = process;
+            stdin = new BufferedOutputStream(process.getOutputStream());
+            stdout = new BufferedInputStream(process.getInputStream());
+        }
+
+        public Process getProcess() {
+            return process;
+        }
+
+        // Writes one request with bodyLength bytes of body and returns its cgi output, which ends (-1) at
+        // the response's end frame
+        public InputStream send(Map<String, String> env, InputStream body, long bodyLength) throws IOException {
+            ByteArrayOutputStream vars = new ByteArrayOutputStream(512);
+            for (Map.Entry<String, String> e : env.entrySet()) {
+                // a NUL would end the variable early and shift every one after it
+                if (e.getKey().indexOf('\0') >= 0 || e.getValue().indexOf('\0') >= 0) {
+                    throw new IOException("NUL in request variable " + e.getKey());
+                }
+                vars.write((e.getKey() + "=" + e.getValue()).getBytes(StandardCharsets.ISO_8859_1));
+                vars.write(0);
+            }
+            responding = true;
+            requests++;
+            if (timeoutMillis > 0) {
+                deadline = watchdog.schedule(this::kill, timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            stdin.write((vars.size() + " " + bodyLength + "\n").getBytes(StandardCharsets.US_ASCII));
+            vars.writeTo(stdin);
+            if (body.transferTo(stdin) != bodyLength) {
+                throw new IOException("request body changed length");
+            }
+            stdin.flush();
+            return new ResponseInputStream();
+        }
+
+        // true if the worker answers an empty request in time
+        private boolean ping() {
+            try {
+                ScheduledFuture<?> pingDeadline = watchdog.schedule(this::kill, PING_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                stdin.write("0 0\n".getBytes(StandardCharsets.US_ASCII));
+                stdin.flush();
+                boolean answered = readLength() == 0;
+                pingDeadline.cancel(false);
+                return answered && process.isAlive();
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+
+        // killed by the watchdog: blocked reads of its stdout end
+        private void kill() {
+            Debug.DEBUG(() -> "CgiWorkerPool: " + script + " worker timed out", DebugType.SERVER);
+            timeouts.incrementAndGet();
+            process.destroyForcibly();
+        }
+
+        private int readLength() throws IOException {
+            int length = 0;
+            int digits = 0;
+            int b;
+            while ((b = stdout.read()) != '\n') {
+                if (b < '0' || b > '9' || ++digits > MAX_LENGTH_DIGITS) {
+                    throw new IOException(b < 0 ? "worker exited" : "bad frame length");
+                }
+                length = length * 10 + (b - '0');
+            }
+            if (digits == 0) {
+                throw new IOException("bad frame length");
+            }
+            return length;
+        }
+
+        // The frames of the current response as one stream; closing it leaves the pipe open
+        private class ResponseInputStream extends InputStream {
+            private int frameRemaining;
+            private boolean ended;
+
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xff);
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                while (frameRemaining == 0) {
+                    if (ended) {
+                        return -1;
+                    }
+                    frameRemaining = readLength();
+                    if (frameRemaining == 0) {
+                        ended = true;
+                        responding = false;
+                        if (deadline != null) {
+                            deadline.cancel(false);
+                        }
+                        return -1;
+                    }
+                }
+                int n = stdout.read(b, off, Math.min(len, frameRemaining));
+                if (n < 0) {
+                    throw new IOException("worker exited");
+                }
+                frameRemaining -= n;
+                return n;
+            }
+
+            public void close() {
+            }
+        }
+    }
+
+    private final String script;
+    private final String command;
+    private final int size;
+    private final int maxRequests;
+    private final long timeoutMillis;
+    private final long pingMillis;
+
+    // idle workers, most recently used first
+    private final LinkedBlockingDeque<Worker> idle;
+    // workers started and not yet retired, idle or busy
+    private final AtomicInteger live;
+    private volatile boolean shutdown;
+
+    private final AtomicLong started;
+    private final AtomicLong retired;
+    private final AtomicLong timeouts;
+    private final AtomicLong served;
+
+    public CgiWorkerPool(String script, int size, int maxRequests, long timeoutMillis, long pingMillis) {
+        this.script = script;
+        command = script.substring(1);
+        this.size = Math.max(size, 1);
+        this.maxRequests = maxRequests;
+        this.timeoutMillis = timeoutMillis;
+        this.pingMillis = pingMillis;
+        idle = new LinkedBlockingDeque<Worker>();
+        live = new AtomicInteger();
+        started = new AtomicLong();
+        retired = new AtomicLong();
+        timeouts = new AtomicLong();
+        served = new AtomicLong();
+    }
+
+    // Returns a healthy idle worker, a new one if fewer than size are running, or waits for one to be
+    // released; null if the script cannot be started
+    public Worker take() throws InterruptedException {
+        while (true) {
+            Worker w = idle.pollFirst();
+            if (w == null) {
+                if (reserve()) {
+                    return start();
+                }
+                // a worker retired meanwhile leaves room to start one: check again now and then
+                w = idle.pollFirst(RETRY_TAKE_MILLIS, TimeUnit.MILLISECONDS);
+                if (w == null) {
+                    continue;
+                }
+            }
+            if (w.process.isAlive() && (System.currentTimeMillis() - w.idleSince < pingMillis || w.ping())) {
+                return w;
+            }
+            Debug.DEBUG(() -> "CgiWorkerPool: " + script + " worker failed its health check", DebugType.SERVER);
+            retire(w);
+        }
+    }
+
+    // Gives w back after a request; a worker that did not finish its response, exited or reached its
+    // request limit is replaced by a new one on demand
+    public void release(Worker w) {
+        served.incrementAndGet();
+        if (w.responding || !w.process.isAlive() || shutdown || (maxRequests > 0 && w.requests >= maxRequests)) {
+            retire(w);
+            return;
+        }
+        w.idleSince = System.currentTimeMillis();
+        idle.addFirst(w);
+    }
+
+    // Ends every idle worker now and busy ones as they are released; for a pool replaced by a reload,
+    // whose queued requests still get a worker each
+    public void shutdown() {
+        shutdown = true;
+        Worker w;
+        while ((w = idle.pollFirst()) != null) {
+            retire(w);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public String toString() {
+        return script + ": " + live.get() + "/" + size + " workers, " + idle.size() + " idle, " + started.get() + " started, "
+                + retired.get() + " retired, " + timeouts.get() + " timed out, " + served.get() + " requests";
+    }
+
+    // counts a worker about to be started, if there is room for one
+    private boolean reserve() {
+        int n;
+        do {
+            n = live.get();
+            if (n >= size) {
+                return false;
+            }
+        } while (!live.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    private Worker start() {
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        // an unread stderr pipe would block a chatty script
+        processBuilder.redirectError(ProcessBuilder.Redirect.DISCARD);
+        try {
+            Worker w = new Worker(processBuilder.start());
+            started.incrementAndGet();
+            Debug.DEBUG(() -> "CgiWorkerPool: started " + script + " worker", DebugType.SERVER);
+            return w;
+        } catch (IOException ex) {
+            live.decrementAndGet();
+            Debug.DEBUG(() -> "CgiWorkerPool: cannot start " + script + ": " + ex.getMessage(), DebugType.SERVER);
+            return null;
+        }
+    }
+
+    // closing stdin asks the worker to exit; one that does not is killed a little later
+    private void retire(Worker w) {
+        live.decrementAndGet();
+        retired.incrementAndGet();
+        if (w.deadline != null) {
+            w.deadline.cancel(false);
+        }
+        try {
+            w.stdin.close();
+        } catch (IOException ex) {}
+        if (w.process.isAlive()) {
+            w.process.onExit().orTimeout(PING_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                    .whenComplete((p, ex) -> w.process.destroyForcibly());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.nio.ByteBuffer;
+
+// Decodes a request body sent with Transfer-Encoding: chunked (RFC 7230 section 4.1), keeping its place
+// between reads like RequestParser. Chunk extensions and trailer fields are read and dropped.
+//
+// typical use:
+// ByteBuffer data = decoder.decode(inBuffer);     // body bytes, a view into inBuffer; may be empty
+// decoder.isDone()                                // last chunk and trailer read; inBuffer is at the next request
+// decoder.isError()                               // malformed: answer 400 and close
+
+public class ChunkedDecoder {
+    // longest chunk size line (size and extensions) or trailer field accepted
+    private static final int MAX_LINE = 4096;
+    // largest chunk size accepted, in hex digits
+    private static final int MAX_SIZE_DIGITS = 15;
+
+    private enum State {
+        SIZE,           // hex digits of the chunk size
+        EXTENSION,      // rest of the size line
+        DATA,
+        DATA_END,       // CRLF after the chunk data
+        TRAILER,        // trailer fields, ended by an empty line
+        DONE,
+        ERROR
+    }
+    private State state;
+    private long chunkRemaining;
+    private int sizeDigits;
+    private int lineLength;         // bytes of the size line or trailer field so far
+    private boolean sawCR;
+
+    public ChunkedDecoder() {
+        state = State.SIZE;
+    }
+
+    public boolean isDone() {
+        return state == State.DONE;
+    }
+
+    public boolean isError() {
+        return state == State.ERROR;
+    }
+
+    // Consumes framing from in up to the next piece of chunk data and returns that data (consumed too),
+    // or an empty buffer if in ran out, the body ended or it is malformed
+    public ByteBuffer decode(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            if (state == State.DATA) {
+                int n = (int) Math.min(chunkRemaining, in.remaining());
+                ByteBuffer data = in.duplicate();
+                data.limit(data.position() + n);
+                in.position(in.position() + n);
+                chunkRemaining -= n;
+                if (chunkRemaining == 0) {
+                    state = State.DATA_END;
+                }
+                return data;
+            }
+            if (state == State.DONE || state == State.ERROR) {
+                break;
+            }
+
+            byte b = in.get();
+            switch (state) {
+                case SIZE:
+                    int digit = Character.digit(b, 16);
+                    if (digit >= 0) {
+                        if (++sizeDigits > MAX_SIZE_DIGITS) {
+                            state = State.ERROR;
+                        }
+                        chunkRemaining = chunkRemaining * 16 + digit;
+                        lineLength++;
+                    } else if (sizeDigits == 0) {
+                        state = State.ERROR;
+                    } else {
+                        state = State.EXTENSION;
+                        endOfLine(b);
+                    }
+                    break;
+                case EXTENSION:
+                    endOfLine(b);
+                    break;
+                case DATA_END:
+                    if (b == '\r' && !sawCR) {
+                        sawCR = true;
+                    } else if (b == '\n') {
+                        sawCR = false;
+                        state = State.SIZE;
+                    } else {
+                        state = State.ERROR;
+                    }
+                    break;
+                case TRAILER:
+                    if (b == '\n') {
+                        // an empty line ends the trailer
+                        state = (lineLength == 0) ? State.DONE : State.TRAILER;
+                        lineLength = 0;
+                    } else if (b != '\r' && ++lineLength > MAX_LINE) {
+                        state = State.ERROR;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return ByteBuffer.allocate(0);
+    }
+
+    // b is a byte of the size line after the size: at its LF, the chunk's data (or the trailer) follows
+    private void endOfLine(byte b) {
+        if (b != '\n') {
+            if (++lineLength > MAX_LINE) {
+                state = State.ERROR;
+            }
+            return;
+        }
+        lineLength = 0;
+        sizeDigits = 0;
+        if (chunkRemaining == 0) {
+            state = State.TRAILER;
+        } else {
+            state = State.DATA;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+// Reloads the config when its file changes: a daemon thread watches the file's directory and calls
+// Server.reload() once writes have settled, so an editor saving in several steps (or a new file moved
+// into place) causes one reload of the finished file. A file that does not parse leaves the running
+// config in place.
+//
+// typical use:
+// new ConfigWatcher(configFile).start();       // once, in Server.main
+//
+// config:
+// ConfigWatch on|off       reload when the config file changes (default on); the manager's reload
+//                          command works either way
+
+public class ConfigWatcher extends Thread {
+    // quiet time after the last change before reloading
+    public static final long SETTLE_MILLIS = 200;
+
+    private final Path file;
+
+    public ConfigWatcher(File configFile) {
+        super("config-watcher");
+        setDaemon(true);
+        file = configFile.toPath().toAbsolutePath();
+    }
+
+    public void run() {
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+
+            while (true) {
+                boolean changed = isConfigChange(watchService.take());
+                WatchKey key;
+                while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= isConfigChange(key);
+                }
+                if (changed) {
+                    Debug.PRINT(Server.reload());
+                }
+            }
+        } catch (IOException ex) {
+            Debug.PRINT("ConfigWatcher: cannot watch " + file + " (" + ex.getMessage() + "); use the reload command");
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            return;
+        }
+    }
+
+    // whether key's events touch the config file; other files in its directory are ignored
+    private boolean isConfigChange(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
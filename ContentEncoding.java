@@ -0,0 +1,214 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Content-coding negotiation (Accept-Encoding with q-values) and compression. Static files are sent
+// from a precompressed sidecar next to them (index.html.br, index.html.gz) when one exists and is not
+// older than the file; otherwise compressible types are gzip/deflate-compressed once, on a compressor
+// thread, and the variant is kept in the ResponseCache under variantKey(fileName, coding), next to the
+// identity response. Until the variant is cached the file is sent as is; a variant that does not shrink
+// enough or is too large for the cache is stored as a no-variant entry, so it is not compressed again.
+// Cgi output of a compressible type is compressed as it streams. Brotli is only ever served from
+// sidecars (the JDK has no encoder).
+//
+// typical use:
+// String coding = ContentEncoding.negotiate(request.lookupHeader(Request.ACCEPT_ENCODING), hasBr, true, true);
+// ContentEncoding.compressLater(responseCache, f, coding, level, maxRatio);   // then send f as is
+//
+// config:
+// Compression on|off              negotiate content codings at all (default on)
+// CompressionLevel <1-9>          deflate level of on-the-fly compression (default 6)
+// CompressMinSize <bytes>         smaller files are always sent as is (default 256)
+// CompressMaxSize <bytes>         larger files are only sent compressed from sidecars (default 1048576)
+// CompressMaxRatio <percent>      keep a compressed variant only if at most this size of the original (default 90)
+
+public class ContentEncoding {
+    public static final String BR = "br";
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    public static final long DEFAULT_LEVEL = 6;
+    public static final long DEFAULT_MIN_SIZE = 256;
+    public static final long DEFAULT_MAX_SIZE = 1024 * 1024;
+    public static final long DEFAULT_MAX_RATIO = 90;
+    private static final int COMPRESSOR_THREADS = 2;
+    // files waiting for a compressor; beyond this a request leaves its file to a later one
+    private static final int MAX_QUEUED = 64;
+
+    private static final ThreadPoolExecutor compressors = new ThreadPoolExecutor(COMPRESSOR_THREADS, COMPRESSOR_THREADS,
+            0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED), r -> {
+                Thread t = new Thread(r, "compressor");
+                t.setDaemon(true);
+                return t;
+            });
+    // variant keys queued or being compressed
+    private static final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    // Returns the coding to send, or null for identity: the available coding with the highest q-value
+    // (ties go to br, then gzip, then deflate), unless the client rates identity higher. No header, an
+    // empty one or q=0 for everything available means identity.
+    public static String negotiate(String acceptEncoding, boolean br, boolean gzip, boolean deflate) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+
+        double brQ = -1, gzipQ = -1, deflateQ = -1, identityQ = -1, anyQ = -1;
+        int start = 0;
+        while (start < acceptEncoding.length()) {
+            int end = acceptEncoding.indexOf(',', start);
+            if (end == -1) {
+                end = acceptEncoding.length();
+            }
+            String element = acceptEncoding.substring(start, end);
+            start = end + 1;
+
+            int semicolon = element.indexOf(';');
+            String coding = ((semicolon == -1) ? element : element.substring(0, semicolon)).trim().toLowerCase();
+            double q = (semicolon == -1) ? 1 : parseQ(element.substring(semicolon + 1));
+            switch (coding) {
+                case BR: brQ = q; break;
+                case GZIP: case "x-gzip": gzipQ = q; break;
+                case DEFLATE: deflateQ = q; break;
+                case "identity": identityQ = q; break;
+                case "*": anyQ = q; break;
+                default: break;
+            }
+        }
+
+        // codings not listed get the q-value of *, if given
+        String best = null;
+        double bestQ = 0;
+        if (br && weight(brQ, anyQ) > bestQ) {
+            best = BR;
+            bestQ = weight(brQ, anyQ);
+        }
+        if (gzip && weight(gzipQ, anyQ) > bestQ) {
+            best = GZIP;
+            bestQ = weight(gzipQ, anyQ);
+        }
+        if (deflate && weight(deflateQ, anyQ) > bestQ) {
+            best = DEFLATE;
+            bestQ = weight(deflateQ, anyQ);
+        }
+        return (best != null && bestQ >= identityQ) ? best : null;
+    }
+
+    // text, and other types that are text underneath; images, audio, video and archives are already compressed
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        return contentType.startsWith("text/") || contentType.startsWith("application/json")
+                || contentType.startsWith("application/javascript") || contentType.startsWith("application/xml")
+                || contentType.startsWith("application/wasm") || contentType.startsWith("image/svg+xml")
+                || contentType.startsWith("image/x-icon");
+    }
+
+    // Returns f's content compressed with coding (gzip or deflate), or null if it cannot be read
+    public static byte[] compress(File f, String coding, int level) {
+        try {
+            byte[] content = Files.readAllBytes(f.toPath());
+            ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 3 + 64);
+            try (DeflaterOutputStream compressor = newCompressor(coding, out, level, false)) {
+                compressor.write(content);
+            }
+            return out.toByteArray();
+        } catch (IOException ex) {
+            Debug.DEBUG(() -> "ContentEncoding: could not compress " + f, DebugType.NONSERVER);
+            return null;
+        }
+    }
+
+    // Compresses f with coding (gzip or deflate) on a compressor thread and caches the rendered variant, or
+    // a no-variant entry if it is larger than maxRatio percent of f or too large for the cache. Returns at
+    // once; does nothing if the variant is already on its way, the queue is full or the cache stores nothing.
+    public static void compressLater(ResponseCache cache, FileMetaCache.Entry f, String coding, int level, long maxRatio) {
+        String key = variantKey(f.getFile().getPath(), coding);
+        if (!cache.isEnabled() || !pending.add(key)) {
+            return;
+        }
+        try {
+            compressors.execute(() -> {
+                try {
+                    storeVariant(cache, key, f, coding, level, maxRatio);
+                } finally {
+                    pending.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            pending.remove(key);
+            Debug.DEBUG(() -> "ContentEncoding: compressor queue full, " + key + " left for later", DebugType.NONSERVER);
+        }
+    }
+
+    private static void storeVariant(ResponseCache cache, String key, FileMetaCache.Entry f, String coding, int level, long maxRatio) {
+        long lastModified = f.getLastModified();
+        long length = f.getLength();
+        byte[] compressed = compress(f.getFile(), coding, level);
+        if (compressed == null) {
+            return;
+        }
+        if (compressed.length * 100 <= length * maxRatio) {
+            byte[] fileHeaders = ResponseHeaders.encodedFileHeaders(lastModified, compressed.length, f.getContentType(), coding);
+            ByteBuffer response = ByteBuffer.allocate(fileHeaders.length + 2 + compressed.length);
+            response.put(fileHeaders);
+            response.put((byte) '\r');
+            response.put((byte) '\n');
+            response.put(compressed);
+            response.flip();
+            if (cache.storeResponse(key, f.getFile(), lastModified, length, f.getContentType(), response, compressed.length) != null) {
+                return;
+            }
+        }
+        cache.storeNoVariant(key, f.getFile(), lastModified, length);
+    }
+
+    // gzip or deflate (zlib) stream into out; syncFlush makes flush() emit everything written so far
+    public static DeflaterOutputStream newCompressor(String coding, OutputStream out, int level, boolean syncFlush) throws IOException {
+        if (coding.equals(GZIP)) {
+            return new GZIPOutputStream(out, 8192, syncFlush) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+        return new DeflaterOutputStream(out, new Deflater(level), 8192, syncFlush) {
+            // the Deflater is ours, not the stream's default one, so end it ourselves
+            public void close() throws IOException {
+                super.close();
+                def.end();
+            }
+        };
+    }
+
+    // ResponseCache key of fileName sent with coding
+    public static String variantKey(String fileName, String coding) {
+        return fileName + ";" + coding;
+    }
+
+    private static double weight(double q, double anyQ) {
+        return (q >= 0) ? q : anyQ;
+    }
+
+    // "q=0.5" (RFC 9110 weight); malformed weights count as 0
+    private static double parseQ(String params) {
+        params = params.trim();
+        if (!params.startsWith("q=") && !params.startsWith("Q=")) {
+            return 1;
+        }
+        try {
+            double q = Double.parseDouble(params.substring(2).trim());
+            return (q >= 0 && q <= 1) ? q : 0;
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+}
@@ -1,27 +1,79 @@
+import java.util.function.Supplier;
+
+// Debug logging with per-type switches that can be flipped at runtime (LogLevel directive, manager
+// "log" command). Disabled types cost one volatile read; messages are only built for enabled types
+// when passed as a Supplier, and go to stdout through a lock-free ring drained by LogWriter.
+//
+// typical use:
+// Debug.DEBUG("constant message", DebugType.NONSERVER);
+// Debug.DEBUG(() -> "read " + n + " bytes from " + client, DebugType.NONSERVER);
+// Debug.setEnabled(DebugType.PARSING, true);
+//
+// PRINT is for console output that must appear right away (startup, manager replies).
+
 public class Debug {
-    private static boolean DEBUG = true;
-    private static boolean DEBUG_SERVER = true;
-    private static boolean DEBUG_SERVER_VERBOSE = true;
-    private static boolean DEBUG_NONSERVER = true;
-    private static boolean DEBUG_PARSING = true;
+    private static final int RING_SIZE = 8192;
 
-    public static void DEBUG(String s, DebugType t) {
-        if (DEBUG) {
-            if (t == DebugType.SERVER && DEBUG_SERVER) {
-                System.out.println(s);
-            }
-            if (t == DebugType.SERVER_VERBOSE && DEBUG_SERVER_VERBOSE) {
-                System.out.println(s);
-            }
-            if (t == DebugType.NONSERVER && DEBUG_NONSERVER) {
-                System.out.println(s);
-            }
-            if (t == DebugType.PARSING && DEBUG_PARSING) {
-                System.out.println(s);
+    // bit per DebugType ordinal; all off by default
+    private static volatile int enabled = 0;
+
+    private static final LogRing ring = new LogRing(RING_SIZE);
+    static {
+        LogWriter.start(ring);
+    }
+
+    public static boolean isEnabled(DebugType t) {
+        return (enabled & (1 << t.ordinal())) != 0;
+    }
+
+    public static synchronized void setEnabled(DebugType t, boolean on) {
+        if (on) {
+            enabled |= 1 << t.ordinal();
+        } else {
+            enabled &= ~(1 << t.ordinal());
+        }
+    }
+
+    // Parses a LogLevel value: "all", "none", or a space-separated list of DebugType names
+    public static void setLevels(String levels) {
+        for (DebugType t : DebugType.values()) {
+            setEnabled(t, false);
+        }
+        for (String name : levels.trim().split("\\s+")) {
+            if (name.equalsIgnoreCase("all")) {
+                for (DebugType t : DebugType.values()) {
+                    setEnabled(t, true);
+                }
+            } else if (!name.equalsIgnoreCase("none") && !name.isEmpty()) {
+                try {
+                    setEnabled(DebugType.valueOf(name.toUpperCase()), true);
+                } catch (IllegalArgumentException ex) {
+                    PRINT("LogLevel: unknown debug type " + name);
+                }
             }
         }
     }
 
+    public static String levelsToString() {
+        String str = "";
+        for (DebugType t : DebugType.values()) {
+            str += t + "=" + (isEnabled(t) ? "on" : "off") + " ";
+        }
+        return str + "(" + ring.getDropped() + " lines dropped)";
+    }
+
+    public static void DEBUG(String s, DebugType t) {
+        if (isEnabled(t) && ring.offer(s)) {
+            LogWriter.wake();
+        }
+    }
+
+    public static void DEBUG(Supplier<String> s, DebugType t) {
+        if (isEnabled(t) && ring.offer(s.get())) {
+            LogWriter.wake();
+        }
+    }
+
     public static void PRINT(String s) {
         System.out.println(s);
     }
@@ -1,14 +1,50 @@
 import java.nio.channels.*;
 import java.io.IOException;
 import java.util.*; // Set and Iterator
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // import javax.swing.plaf.basic.BasicTreeUI.SelectionModelPropertyChangeHandler;
 
 public class Dispatcher extends Thread {
+    // open connections above which this dispatcher stops accepting (0: no limit)
+    public static final long DEFAULT_MAX_CONNECTIONS = 0;
+
     private Selector selector;
     private int id;
+    private IReadWriteHandlerFactory rwhFactory;
+
+    // work handed over by other threads (e.g. accepted connections), run at the top of the select loop
+    private ConcurrentLinkedQueue<Runnable> pendingTasks;
+    protected AtomicInteger connectionCount;
+    private volatile int maxConnections;
+    // this dispatcher's OP_ACCEPT registration, if it accepts itself; interest is dropped while full
+    private SelectionKey acceptKey;
+    private boolean acceptPaused;
+    // whether the listener of acceptKey is this dispatcher's alone (reuseport) rather than shared
+    private boolean ownsListener;
+    // retired by a config reload: no longer accepts, and the loop ends when the last connection closes
+    private boolean retiring;
+    // select loop lag: when the outstanding probe task was posted (0 if none), and the last one's wait
+    private volatile long probePosted;
+    private volatile long loopLag;
+    // connection timeouts; only touched on this dispatcher's thread
+    private TimerWheel timerWheel;
+    // connection buffers; only touched on this dispatcher's thread
+    private BufferPool bufferPool;
+    // this dispatcher's pending access log entries, or null if there is no access log
+    private AccessLog.Batch accessLog;
+    // counters and latency histograms, readable from any thread
+    private DispatcherMetrics metrics;
+    // idle keep-alive connections to proxy upstreams; only touched on this dispatcher's thread
+    private UpstreamPool upstreamPool;
 
-    public Dispatcher(int id) {
+    public Dispatcher(int id, IReadWriteHandlerFactory rwhFactory) {
+        this(id, rwhFactory, false);
+    }
+
+    // sharedBufferPool: connections are served by threads of their own (VirtualThreadDispatcher)
+    protected Dispatcher(int id, IReadWriteHandlerFactory rwhFactory, boolean sharedBufferPool) {
         try {
             selector = Selector.open();
         } catch (IOException ex) {
@@ -17,6 +53,15 @@ public class Dispatcher extends Thread {
             System.exit(1);
         } 
         this.id = id;
+        this.rwhFactory = rwhFactory;
+        pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+        connectionCount = new AtomicInteger();
+        maxConnections = (int) Server.getConfigValue("MaxConnectionsPerDispatcher", DEFAULT_MAX_CONNECTIONS);
+        timerWheel = new TimerWheel(TimerWheel.DEFAULT_TICK_MILLIS, TimerWheel.DEFAULT_WHEEL_SIZE);
+        bufferPool = new BufferPool(Server.getConfigValue("BufferPoolSize", BufferPool.DEFAULT_MAX_BYTES), sharedBufferPool);
+        accessLog = (Server.getAccessLog() != null) ? Server.getAccessLog().newBatch() : null;
+        metrics = new DispatcherMetrics(this);
+        upstreamPool = new UpstreamPool();
     }
 
     public Selector selector() {
@@ -27,17 +72,207 @@ public class Dispatcher extends Thread {
         return id;
     }
 
+    public TimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public UpstreamPool getUpstreamPool() {
+        return upstreamPool;
+    }
+
+    public AccessLog.Batch getAccessLog() {
+        return accessLog;
+    }
+
+    // Adds a response to the access log, if there is one
+    public void logAccess(String remoteAddress, Request request, int status, long bytes) {
+        if (accessLog != null) {
+            accessLog.log(remoteAddress, request, status, bytes);
+        }
+    }
+
+    public DispatcherMetrics getMetrics() {
+        return metrics;
+    }
+
+    // open client connections owned by this dispatcher; safe to read from any thread
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    // at its MaxConnectionsPerDispatcher limit; safe to read from any thread
+    public boolean isFull() {
+        return maxConnections > 0 && connectionCount.get() >= maxConnections;
+    }
+
+    // Accepts from listener through handler from now on, instead of from the listener it had, if any;
+    // any thread. A listener of its own (shared false) is closed when replaced; a shared one is left
+    // to Server, which closes it once every dispatcher has moved on.
+    public void setListener(ServerSocketChannel listener, IAcceptHandler handler, boolean shared) {
+        invokeLater(() -> {
+            closeListener();
+            try {
+                acceptKey = listener.register(selector, acceptPaused ? 0 : SelectionKey.OP_ACCEPT, handler);
+                ownsListener = !shared;
+            } catch (IOException ex) {
+                Debug.DEBUG(() -> "Dispatcher: cannot accept from " + listener, DebugType.SERVER);
+            }
+        });
+    }
+
+    // Stops accepting and ends the select loop once the open connections have closed; any thread
+    public void retire() {
+        invokeLater(() -> {
+            closeListener();
+            retiring = true;
+        });
+    }
+
+    // Picks up MaxConnectionsPerDispatcher from a reloaded config; any thread
+    public void reloadConfig() {
+        invokeLater(() -> {
+            maxConnections = (int) Server.getConfigValue("MaxConnectionsPerDispatcher", DEFAULT_MAX_CONNECTIONS);
+            updateAcceptInterest();
+        });
+    }
+
+    // Posts a task measuring how long it waits for the select loop; any thread, one probe at a time
+    public void probeLoopLag() {
+        if (probePosted != 0) {
+            return;
+        }
+        long posted = System.nanoTime();
+        probePosted = posted;
+        invokeLater(() -> {
+            loopLag = System.nanoTime() - posted;
+            probePosted = 0;
+        });
+    }
+
+    // lag of the last probe, or longer if the current one is still waiting
+    public long getLoopLag() {
+        long posted = probePosted;
+        long waiting = (posted != 0) ? System.nanoTime() - posted : 0;
+        return Math.max(loopLag, waiting);
+    }
+
+    // Runs task on this dispatcher's thread at the start of its next select loop iteration
+    public void invokeLater(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    // Hands an accepted connection to this dispatcher from another thread; it counts as open right
+    // away, so the acceptor sees isFull() before the connection is registered
+    public void handOff(SocketChannel client) {
+        connectionCount.incrementAndGet();
+        invokeLater(() -> {
+            try {
+                registerConnection(client);
+            } catch (IOException | RuntimeException ex) {
+                Debug.DEBUG(() -> "Dispatcher: cannot register handed-off connection " + client + ": " + ex, DebugType.NONSERVER);
+                connectionClosed();
+                try {
+                    client.close();
+                } catch (IOException e) {}
+            }
+        });
+    }
+
+    // Registers an accepted connection with this dispatcher's selector; must run on the dispatcher thread
+    // Registers an accepted connection; one that cannot be set up is closed, the listener stays open
+    public void addConnection(SocketChannel client) throws IOException {
+        connectionCount.incrementAndGet();
+        try {
+            registerConnection(client);
+        } catch (IOException | RuntimeException ex) {
+            Debug.DEBUG(() -> "Dispatcher: cannot register connection " + client + ": " + ex, DebugType.NONSERVER);
+            connectionClosed();
+            try {
+                client.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    private void registerConnection(SocketChannel client) throws IOException {
+        client.configureBlocking(false);
+
+        IReadWriteHandler rwh = rwhFactory.createHandler(this);
+        int ops = rwh.getInitOps();
+
+        SelectionKey clientKey = client.register(selector, ops);
+        clientKey.attach(rwh);
+        metrics.countAccept();
+        rwh.handleConnected(clientKey);
+        updateAcceptInterest();
+    }
+
+    // Called by a connection's handler once its channel is closed
+    public void connectionClosed() {
+        connectionCount.decrementAndGet();
+        updateAcceptInterest();
+    }
+
+    // Leaves further connections in the listen backlog (or to other dispatchers) while full, and
+    // accepts again once there is room; must run on the dispatcher thread
+    private void updateAcceptInterest() {
+        if (acceptKey == null || !acceptKey.isValid()) {
+            return;
+        }
+        if (!acceptPaused && isFull()) {
+            Debug.DEBUG(() -> "dispatcher " + id + " full, pausing accept", DebugType.SERVER);
+            acceptKey.interestOps(0);
+            acceptPaused = true;
+            metrics.countAcceptPause();
+        } else if (acceptPaused && !isFull()) {
+            acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+            acceptPaused = false;
+        }
+    }
+
+    // must run on the dispatcher thread
+    private void closeListener() {
+        if (acceptKey == null) {
+            return;
+        }
+        acceptKey.cancel();
+        if (ownsListener) {
+            try {
+                acceptKey.channel().close();
+            } catch (IOException ex) {}
+        }
+        acceptKey = null;
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
     public void run() {
-        while (!Thread.interrupted()) {
+        while (!Thread.interrupted() && !(retiring && connectionCount.get() == 0)) {
             Debug.DEBUG("Enter select loop", DebugType.NONSERVER);
 
             try {
-                selector.select();
+                // wake up for the earliest timeout, and to flush the access log
+                long timeout = timerWheel.millisUntilNextDeadline(System.currentTimeMillis());
+                if (accessLog != null && !accessLog.isEmpty() && (timeout == 0 || timeout > AccessLog.FLUSH_MILLIS)) {
+                    timeout = AccessLog.FLUSH_MILLIS;
+                }
+                metrics.countSelect(selector.select(timeout));
             } catch (IOException ex) {
                 ex.printStackTrace();
                 break;
             }
 
+            runPendingTasks();
+
             Set<SelectionKey> readyKeys = selector.selectedKeys();
             Iterator<SelectionKey> it = readyKeys.iterator();
 
@@ -45,26 +280,42 @@ public class Dispatcher extends Thread {
                 SelectionKey key = it.next();
                 it.remove();
 
+                if (!key.isValid()) {   // closed by a pending task or timeout
+                    continue;
+                }
+
                 try {
                     if (key.isAcceptable()) {
                         IAcceptHandler ah = (IAcceptHandler) key.attachment();
-                        Debug.DEBUG("dispatcher " + Integer.toString(id) + " accept", DebugType.SERVER);
+                        Debug.DEBUG(() -> "dispatcher " + Integer.toString(id) + " accept", DebugType.SERVER);
                         ah.handleAccept(key);
-                    }
-                    if (key.isReadable() || key.isWritable()) {
+                    } else if (key.isConnectable()) {
+                        IConnectHandler ch = (IConnectHandler) key.attachment();
+                        Debug.DEBUG(() -> "dispatcher " + Integer.toString(id) + " connect", DebugType.SERVER);
+                        ch.handleConnect(key);
+                    } else if (key.isReadable() || key.isWritable()) {
                         IReadWriteHandler rwh = (IReadWriteHandler) key.attachment();
 
                         if (key.isReadable()) {                            
-                            Debug.DEBUG("dispatcher " + Integer.toString(id) + " read", DebugType.SERVER);
+                            Debug.DEBUG(() -> "dispatcher " + Integer.toString(id) + " read", DebugType.SERVER);
                             rwh.handleRead(key);
                         }
                         else if (key.isWritable()) {
-                            Debug.DEBUG("dispatcher " + Integer.toString(id) + " write", DebugType.SERVER);
+                            Debug.DEBUG(() -> "dispatcher " + Integer.toString(id) + " write", DebugType.SERVER);
                             rwh.handleWrite(key);
                         }
                     }
-                } catch (IOException ex) {
-                    Debug.DEBUG("Dispatcher: exception handling key " + key, DebugType.NONSERVER);
+                } catch (IOException | RuntimeException ex) {
+                    // a failure on one connection (a bug included) closes that connection, not the loop
+                    Debug.DEBUG(() -> "Dispatcher: exception handling key " + key + ": " + ex, DebugType.NONSERVER);
+                    if (key.attachment() instanceof IAcceptHandler) {
+                        continue;
+                    }
+
+                    IChannelHandler handler = (IChannelHandler) key.attachment();
+                    if (handler != null) {
+                        handler.handleException();
+                    }
 
                     key.cancel();
                     try {
@@ -72,6 +323,23 @@ public class Dispatcher extends Thread {
                     } catch (IOException e) {}
                 }
             }
+
+            long now = System.currentTimeMillis();
+            timerWheel.expire(now);
+            if (accessLog != null) {
+                accessLog.flushIfStale(now);
+            }
+        }
+
+        upstreamPool.closeAll();
+        if (accessLog != null) {
+            accessLog.flush();
+        }
+        if (retiring) {
+            Debug.DEBUG(() -> "dispatcher " + id + " retired", DebugType.SERVER);
+            try {
+                selector.close();
+            } catch (IOException ex) {}
         }
     }
-}
\ No newline at end of file
+}
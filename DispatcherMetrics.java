@@ -0,0 +1,199 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms for one dispatcher. Only the dispatcher's own thread (and, for
+// CGI, the thread finishing the CGI on its behalf) updates them, so every update is an uncontended
+// atomic add and dispatchers never share a cache line for metrics; the management thread, JMX and
+// /server-status read them while they change. With Engine virtual, every connection thread updates
+// the engine's one set, which the adders and atomic arrays also handle.
+//
+// typical use:
+// dispatcher.getMetrics().countStatus(200);
+// dispatcher.getMetrics().getParseLatency().record(System.nanoTime() - start);
+
+public class DispatcherMetrics implements IDispatcherMetricsMXBean {
+    private final Dispatcher dispatcher;
+
+    private final LongAdder accepts;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+    private final LongAdder selectWakeups;
+    private final LongAdder emptySelects;
+    private final LongAdder cgiInvocations;
+    private final LongAdder acceptPauses;
+    private final LongAdder shedRequests;
+    private final AtomicLongArray statusCounts;
+
+    // per-phase latencies: head parsing, url to file mapping, response writes, CGI start to end
+    private final LatencyHistogram parseLatency;
+    private final LatencyHistogram lookupLatency;
+    private final LatencyHistogram writeLatency;
+    private final LatencyHistogram cgiLatency;
+
+    public DispatcherMetrics(Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        accepts = new LongAdder();
+        bytesIn = new LongAdder();
+        bytesOut = new LongAdder();
+        selectWakeups = new LongAdder();
+        emptySelects = new LongAdder();
+        cgiInvocations = new LongAdder();
+        acceptPauses = new LongAdder();
+        shedRequests = new LongAdder();
+        statusCounts = new AtomicLongArray(600);
+        parseLatency = new LatencyHistogram();
+        lookupLatency = new LatencyHistogram();
+        writeLatency = new LatencyHistogram();
+        cgiLatency = new LatencyHistogram();
+    }
+
+    public void countAccept() {
+        accepts.increment();
+    }
+
+    public void countBytesIn(long n) {
+        bytesIn.add(n);
+    }
+
+    public void countBytesOut(long n) {
+        bytesOut.add(n);
+    }
+
+    public void countSelect(int readyKeys) {
+        selectWakeups.increment();
+        if (readyKeys == 0) {
+            emptySelects.increment();
+        }
+    }
+
+    public void countCgiInvocation() {
+        cgiInvocations.increment();
+    }
+
+    public void countAcceptPause() {
+        acceptPauses.increment();
+    }
+
+    public void countShedRequest() {
+        shedRequests.increment();
+    }
+
+    public void countStatus(int code) {
+        if (code >= 100 && code < 600) {
+            statusCounts.incrementAndGet(code);
+        }
+    }
+
+    public LatencyHistogram getParseLatency() {
+        return parseLatency;
+    }
+
+    public LatencyHistogram getLookupLatency() {
+        return lookupLatency;
+    }
+
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    public LatencyHistogram getCgiLatency() {
+        return cgiLatency;
+    }
+
+    public int getDispatcherId() {
+        return dispatcher.getDispatcherId();
+    }
+
+    public long getAccepts() {
+        return accepts.sum();
+    }
+
+    public int getOpenConnections() {
+        return dispatcher.getConnectionCount();
+    }
+
+    public long getRequests() {
+        long requests = 0;
+        for (int code = 100; code < 600; code++) {
+            requests += statusCounts.get(code);
+        }
+        return requests;
+    }
+
+    public Map<String, Long> getStatusCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (int code = 100; code < 600; code++) {
+            long count = statusCounts.get(code);
+            if (count > 0) {
+                counts.put(Integer.toString(code), count);
+            }
+        }
+        return counts;
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getSelectWakeups() {
+        return selectWakeups.sum();
+    }
+
+    public long getEmptySelects() {
+        return emptySelects.sum();
+    }
+
+    public long getCgiInvocations() {
+        return cgiInvocations.sum();
+    }
+
+    public long getAcceptPauses() {
+        return acceptPauses.sum();
+    }
+
+    public long getShedRequests() {
+        return shedRequests.sum();
+    }
+
+    public long getLoopLagMicros() {
+        return dispatcher.getLoopLag() / 1000;
+    }
+
+    public long getParseP50Micros() {
+        return LatencyHistogram.percentile(parseLatency.snapshot(), 50) / 1000;
+    }
+
+    public long getParseP99Micros() {
+        return LatencyHistogram.percentile(parseLatency.snapshot(), 99) / 1000;
+    }
+
+    public long getLookupP50Micros() {
+        return LatencyHistogram.percentile(lookupLatency.snapshot(), 50) / 1000;
+    }
+
+    public long getLookupP99Micros() {
+        return LatencyHistogram.percentile(lookupLatency.snapshot(), 99) / 1000;
+    }
+
+    public long getWriteP50Micros() {
+        return LatencyHistogram.percentile(writeLatency.snapshot(), 50) / 1000;
+    }
+
+    public long getWriteP99Micros() {
+        return LatencyHistogram.percentile(writeLatency.snapshot(), 99) / 1000;
+    }
+
+    public long getCgiP50Millis() {
+        return LatencyHistogram.percentile(cgiLatency.snapshot(), 50) / 1000000;
+    }
+
+    public long getCgiP99Millis() {
+        return LatencyHistogram.percentile(cgiLatency.snapshot(), 99) / 1000000;
+    }
+}
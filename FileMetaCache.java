@@ -0,0 +1,221 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Shared cache of file metadata by doc-rooted file name (the same key as ResponseCache): whether the
+// path is a regular file, its length, mtime and content type. Misses are cached too, so repeated 404s
+// and the index_m.html / index.html probes of "/" do not stat the disk. Entries are dropped when a
+// WatchService on the document roots reports a change below them; a bounded TTL covers missed or
+// unsupported notifications.
+//
+// typical use:
+// FileMetaCache cache = new FileMetaCache(ttlMillis, maxEntries);
+// cache.watch(Server.getDocumentRoots());     // in Server.main, and again after a config reload
+// FileMetaCache.Entry e = cache.lookup("www-root/index.html");
+// if (e.isFile()) ... e.getLength(), e.getLastModified(), e.getContentType()
+//
+// config:
+// FileCacheTTL <ms>        longest time an entry is trusted without a change notification
+// FileCacheSize <n>        entries kept before the table is dropped and rebuilt
+
+public class FileMetaCache {
+    public static final long DEFAULT_TTL_MILLIS = 10000;
+    public static final int DEFAULT_MAX_ENTRIES = 65536;
+    // TTL used when the document roots cannot be watched
+    private static final long UNWATCHED_TTL_MILLIS = 1000;
+
+    public static class Entry {
+        private final File file;
+        private final boolean isFile;
+        private final long length;
+        private final long lastModified;
+        private final String contentType;
+        private final long expires;
+
+        private Entry(File file, boolean isFile, long length, long lastModified, String contentType, long expires) {
+            this.file = file;
+            this.isFile = isFile;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.expires = expires;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        // false for missing paths and directories
+        public boolean isFile() {
+            return isFile;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final ConcurrentHashMap<String, Entry> entries;
+    private volatile boolean watching;
+
+    // directory watched by each key
+    private final ConcurrentHashMap<WatchKey, Path> watchedDirs;
+    private WatchService watchService;
+    private Thread watcher;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder invalidations;
+
+    public FileMetaCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+        entries = new ConcurrentHashMap<String, Entry>();
+        watchedDirs = new ConcurrentHashMap<WatchKey, Path>();
+
+        hits = new LongAdder();
+        misses = new LongAdder();
+        invalidations = new LongAdder();
+    }
+
+    // Returns metadata for fileName, from the cache while fresh, otherwise from the filesystem
+    public Entry lookup(String fileName) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(fileName);
+        if (entry != null && now < entry.expires) {
+            hits.increment();
+            return entry;
+        }
+
+        misses.increment();
+        File f = new File(fileName);
+        boolean isFile = f.isFile();
+        long ttl = watching ? ttlMillis : Math.min(ttlMillis, UNWATCHED_TTL_MILLIS);
+        entry = new Entry(f, isFile, isFile ? f.length() : 0, isFile ? f.lastModified() : 0,
+                isFile ? MimeTypes.lookup(f.getName()) : null, now + ttl);
+
+        if (entries.size() >= maxEntries) {
+            entries.clear();
+        }
+        entries.put(fileName, entry);
+        return entry;
+    }
+
+    // Starts a daemon thread watching every directory below the document roots; later calls add roots
+    // (registering a directory again is harmless)
+    public synchronized void watch(Collection<String> docRoots) {
+        try {
+            if (watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+            }
+            for (String docRoot : docRoots) {
+                registerTree(Paths.get(stripLeadingSlash(docRoot)));
+            }
+        } catch (IOException ex) {
+            Debug.PRINT("FileMetaCache: cannot watch document roots (" + ex.getMessage() + "), using "
+                    + UNWATCHED_TTL_MILLIS + "ms TTL");
+            watching = false;
+            return;
+        }
+
+        if (watcher == null) {
+            watcher = new Thread(this::runWatcher, "file-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+        watching = true;
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public String toString() {
+        return "FileMetaCache: " + entries.size() + " entries, " + hits.sum() + " hits, " + misses.sum() + " misses, "
+                + invalidations.sum() + " invalidations, " + (watching ? watchedDirs.size() + " dirs watched" : "not watching");
+    }
+
+    private void runWatcher() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+
+            Path dir = watchedDirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                    // events were lost; start over
+                    entries.clear();
+                    invalidations.increment();
+                    continue;
+                }
+
+                Path child = dir.resolve((Path) event.context());
+                String name = child.toString();
+                Debug.DEBUG(() -> "FileMetaCache: " + event.kind().name() + " " + name, DebugType.NONSERVER);
+                invalidate(name);
+
+                // a directory coming or going changes everything below it
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    invalidatePrefix(name + File.separator);
+                } else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+                    invalidatePrefix(name + File.separator);
+                    try {
+                        registerTree(child);
+                    } catch (IOException ex) {
+                        Debug.DEBUG(() -> "FileMetaCache: cannot watch " + name, DebugType.NONSERVER);
+                    }
+                }
+            }
+
+            if (!key.reset()) {
+                watchedDirs.remove(key);
+            }
+        }
+    }
+
+    private void registerTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedDirs.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void invalidate(String fileName) {
+        if (entries.remove(fileName) != null) {
+            invalidations.increment();
+        }
+    }
+
+    private void invalidatePrefix(String prefix) {
+        if (entries.keySet().removeIf(name -> name.startsWith(prefix))) {
+            invalidations.increment();
+        }
+    }
+
+    // file names are relative to the working directory, like the doc-rooted names built for requests
+    private static String stripLeadingSlash(String docRoot) {
+        return docRoot.startsWith("/") ? docRoot.substring(1) : docRoot;
+    }
+}
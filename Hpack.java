@@ -0,0 +1,480 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// HPACK header compression for HTTP/2 (RFC 7541): the static table, Huffman coding of string literals,
+// prefix-coded integers, and an Encoder and Decoder that each keep one direction's dynamic table.
+// Every HTTP/2 connection has its own pair; neither is thread-safe. Names and values are ISO-8859-1
+// strings, as RequestParser produces them for HTTP/1.x.
+//
+// typical use:
+// Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+// ArrayList<String> fields = new ArrayList<String>();     // name, value, name, value, ...
+// if (!decoder.decode(headerBlock, fields)) ...           // COMPRESSION_ERROR: close the connection
+//
+// Hpack.Encoder encoder = new Hpack.Encoder(Hpack.DEFAULT_TABLE_SIZE);
+// encoder.encode(Arrays.asList(":status", "200", "content-type", "text/html"), out);
+
+public class Hpack {
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+    // counted against the table size for every entry besides its name and value (RFC 7541 4.1)
+    public static final int ENTRY_OVERHEAD = 32;
+
+    // RFC 7541 Appendix A; index 1 is the first entry
+    private static final String[][] STATIC_TABLE = {
+        { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+        { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+        { ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+        { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" }, { "accept-encoding", "gzip, deflate" },
+        { "accept-language", "" }, { "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" },
+        { "age", "" }, { "allow", "" }, { "authorization", "" }, { "cache-control", "" },
+        { "content-disposition", "" }, { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+        { "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+        { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" },
+        { "from", "" }, { "host", "" }, { "if-match", "" }, { "if-modified-since", "" },
+        { "if-none-match", "" }, { "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" },
+        { "link", "" }, { "location", "" }, { "max-forwards", "" }, { "proxy-authenticate", "" },
+        { "proxy-authorization", "" }, { "range", "" }, { "referer", "" }, { "refresh", "" },
+        { "retry-after", "" }, { "server", "" }, { "set-cookie", "" }, { "strict-transport-security", "" },
+        { "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" }, { "via", "" },
+        { "www-authenticate", "" },
+    };
+
+    // "name\0value" and name -> lowest static index
+    private static final HashMap<String, Integer> staticFields = new HashMap<String, Integer>();
+    private static final HashMap<String, Integer> staticNames = new HashMap<String, Integer>();
+
+    // RFC 7541 Appendix B: code (right-aligned) and length in bits of symbols 0-255; 256 is EOS
+    private static final int EOS = 256;
+    private static final int EOS_CODE = 0x3fffffff;
+    private static final int EOS_LENGTH = 30;
+    private static final int[] HUFFMAN_CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+        0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+        0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+        0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+        0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+        0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+        0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+        0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+        0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+        0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+        0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+        0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+        0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+        0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+        0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+        0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+        0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+        0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+        0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+        0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+        0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+        0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+        0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+        0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+        0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+        0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+        0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+    };
+    private static final int[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+    };
+
+    // decoding tree: node n has its children at [2n] (bit 0) and [2n + 1] (bit 1); a child > 0 is
+    // another node, a child < 0 the leaf of symbol -child - 1
+    private static final int[] HUFFMAN_TREE = new int[2 * EOS];
+
+    static {
+        for (int i = STATIC_TABLE.length; i >= 1; i--) {
+            staticFields.put(STATIC_TABLE[i - 1][0] + '\0' + STATIC_TABLE[i - 1][1], i);
+            staticNames.put(STATIC_TABLE[i - 1][0], i);
+        }
+
+        int nodes = 1;
+        for (int sym = 0; sym <= EOS; sym++) {
+            int code = (sym == EOS) ? EOS_CODE : HUFFMAN_CODES[sym];
+            int length = (sym == EOS) ? EOS_LENGTH : HUFFMAN_LENGTHS[sym];
+            int node = 0;
+            for (int bit = length - 1; bit > 0; bit--) {
+                int child = 2 * node + ((code >>> bit) & 1);
+                if (HUFFMAN_TREE[child] == 0) {
+                    HUFFMAN_TREE[child] = nodes++;
+                }
+                node = HUFFMAN_TREE[child];
+            }
+            HUFFMAN_TREE[2 * node + (code & 1)] = -sym - 1;
+        }
+    }
+
+    // Compresses header fields (name, value pairs) into header blocks for one connection. Fields
+    // go out as indexes where the static or dynamic table has them; others are added to the dynamic
+    // table, except values that rarely repeat.
+    public static class Encoder {
+        private final int limit;            // most table memory we are willing to use
+        private final DynamicTable table;
+        private int minTableSize;           // smallest size set since the last block; -1: no update due
+
+        public Encoder(int tableSize) {
+            limit = tableSize;
+            table = new DynamicTable(tableSize);
+            minTableSize = -1;
+        }
+
+        // the peer's SETTINGS_HEADER_TABLE_SIZE; the next block starts with the size update(s)
+        public void setMaxTableSize(int size) {
+            size = Math.min(size, limit);
+            if (size == table.maxSize) {
+                return;
+            }
+            minTableSize = (minTableSize < 0) ? size : Math.min(minTableSize, size);
+            table.setMaxSize(size);
+        }
+
+        public void encode(List<String> fields, ByteArrayOutputStream out) {
+            if (minTableSize >= 0) {
+                // a reduction followed by an increase is signalled as both (RFC 7541 4.2)
+                if (minTableSize < table.maxSize) {
+                    writeInteger(out, 0x20, 5, minTableSize);
+                }
+                writeInteger(out, 0x20, 5, table.maxSize);
+                minTableSize = -1;
+            }
+            for (int i = 0; i + 1 < fields.size(); i += 2) {
+                encodeField(fields.get(i), fields.get(i + 1), out);
+            }
+        }
+
+        private void encodeField(String name, String value, ByteArrayOutputStream out) {
+            Integer index = staticFields.get(name + '\0' + value);
+            if (index == null) {
+                int dynamic = table.find(name, value);
+                index = (dynamic < 0) ? null : STATIC_TABLE.length + 1 + dynamic;
+            }
+            if (index != null) {
+                writeInteger(out, 0x80, 7, index);
+                return;
+            }
+
+            Integer nameIndex = staticNames.get(name);
+            if (nameIndex == null) {
+                int dynamic = table.findName(name);
+                nameIndex = (dynamic < 0) ? 0 : STATIC_TABLE.length + 1 + dynamic;
+            }
+
+            if (name.equals("set-cookie")) {
+                writeInteger(out, 0x10, 4, nameIndex);      // never indexed, here or by intermediaries
+            } else if (name.equals("content-length") || name.equals("content-range")) {
+                writeInteger(out, 0x00, 4, nameIndex);      // different on almost every response
+            } else {
+                writeInteger(out, 0x40, 6, nameIndex);
+                table.add(name, value);
+            }
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+        }
+    }
+
+    // Decompresses the header blocks of one connection. The peer may resize the dynamic table up to
+    // the size we allowed (SETTINGS_HEADER_TABLE_SIZE, 4096 unless sent).
+    public static class Decoder {
+        private final int limit;
+        private final DynamicTable table;
+
+        public Decoder(int tableSize) {
+            limit = tableSize;
+            table = new DynamicTable(tableSize);
+        }
+
+        // Decodes one complete header block, appending name, value pairs to fields in order; false on
+        // a COMPRESSION_ERROR, after which the connection's tables are out of step and it must close
+        public boolean decode(ByteBuffer block, List<String> fields) {
+            boolean fieldSeen = false;
+            while (block.hasRemaining()) {
+                int b = block.get() & 0xff;
+                String name;
+                String value;
+
+                if ((b & 0x80) != 0) {
+                    // indexed field
+                    int index = readInteger(b, 7, block);
+                    name = lookupName(index);
+                    value = lookupValue(index);
+                    if (name == null || index == 0) {
+                        return false;
+                    }
+                } else if ((b & 0x20) != 0 && (b & 0x40) == 0) {
+                    // dynamic table size update, only at the start of a block
+                    int size = readInteger(b, 5, block);
+                    if (fieldSeen || size < 0 || size > limit) {
+                        return false;
+                    }
+                    table.setMaxSize(size);
+                    continue;
+                } else {
+                    // literal with incremental indexing (01), without indexing (0000) or never indexed (0001)
+                    boolean indexing = (b & 0x40) != 0;
+                    int index = readInteger(b, indexing ? 6 : 4, block);
+                    if (index < 0) {
+                        return false;
+                    }
+                    name = (index == 0) ? readString(block) : lookupName(index);
+                    value = readString(block);
+                    if (name == null || value == null) {
+                        return false;
+                    }
+                    if (indexing) {
+                        table.add(name, value);
+                    }
+                }
+
+                fieldSeen = true;
+                fields.add(name);
+                fields.add(value);
+            }
+            return true;
+        }
+
+        private String lookupName(int index) {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][0];
+            }
+            int dynamic = index - STATIC_TABLE.length - 1;
+            return (dynamic >= 0 && dynamic < table.count) ? table.name(dynamic) : null;
+        }
+
+        private String lookupValue(int index) {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][1];
+            }
+            int dynamic = index - STATIC_TABLE.length - 1;
+            return (dynamic >= 0 && dynamic < table.count) ? table.value(dynamic) : null;
+        }
+    }
+
+    // Entries newest first (index 0), evicted oldest first once their sizes add up to more than maxSize
+    private static class DynamicTable {
+        private String[] names;
+        private String[] values;
+        private int head;           // slot of the newest entry
+        private int count;
+        private int size;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+            names = new String[16];
+            values = new String[16];
+        }
+
+        String name(int i) {
+            return names[(head + i) % names.length];
+        }
+
+        String value(int i) {
+            return values[(head + i) % names.length];
+        }
+
+        // an entry larger than the whole table empties it (RFC 7541 4.4)
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            while (count > 0 && size + entrySize > maxSize) {
+                evict();
+            }
+            if (entrySize > maxSize) {
+                return;
+            }
+
+            if (count == names.length) {
+                String[] newNames = new String[2 * count];
+                String[] newValues = new String[2 * count];
+                for (int i = 0; i < count; i++) {
+                    newNames[i] = name(i);
+                    newValues[i] = value(i);
+                }
+                names = newNames;
+                values = newValues;
+                head = 0;
+            }
+            head = (head - 1 + names.length) % names.length;
+            names[head] = name;
+            values[head] = value;
+            count++;
+            size += entrySize;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            while (size > maxSize) {
+                evict();
+            }
+        }
+
+        // index of name: value, or -1
+        int find(String name, String value) {
+            for (int i = 0; i < count; i++) {
+                if (name(i).equals(name) && value(i).equals(value)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int findName(String name) {
+            for (int i = 0; i < count; i++) {
+                if (name(i).equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void evict() {
+            int oldest = (head + count - 1) % names.length;
+            size -= names[oldest].length() + values[oldest].length() + ENTRY_OVERHEAD;
+            names[oldest] = null;
+            values[oldest] = null;
+            count--;
+        }
+    }
+
+    // value with an N-bit prefix in the low bits of a first byte starting with firstBits (RFC 7541 5.1)
+    private static void writeInteger(ByteArrayOutputStream out, int firstBits, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(firstBits | value);
+            return;
+        }
+        out.write(firstBits | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // the integer whose prefix is in first; -1 if truncated or too large
+    private static int readInteger(int first, int prefixBits, ByteBuffer src) {
+        int max = (1 << prefixBits) - 1;
+        long value = first & max;
+        if (value < max) {
+            return (int) value;
+        }
+        for (int shift = 0; shift <= 28 && src.hasRemaining(); shift += 7) {
+            int b = src.get() & 0xff;
+            value += (long) (b & 0x7f) << shift;
+            if (value > Integer.MAX_VALUE) {
+                return -1;
+            }
+            if ((b & 0x80) == 0) {
+                return (int) value;
+            }
+        }
+        return -1;
+    }
+
+    // string literal, Huffman-coded when that is shorter
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        long bits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            bits += HUFFMAN_LENGTHS[s.charAt(i) & 0xff];
+        }
+        int huffmanLength = (int) ((bits + 7) / 8);
+
+        if (huffmanLength >= s.length()) {
+            writeInteger(out, 0x00, 7, s.length());
+            for (int i = 0; i < s.length(); i++) {
+                out.write(s.charAt(i));
+            }
+            return;
+        }
+
+        writeInteger(out, 0x80, 7, huffmanLength);
+        long acc = 0;
+        int n = 0;          // bits in acc not yet written
+        for (int i = 0; i < s.length(); i++) {
+            int sym = s.charAt(i) & 0xff;
+            acc = (acc << HUFFMAN_LENGTHS[sym]) | HUFFMAN_CODES[sym];
+            n += HUFFMAN_LENGTHS[sym];
+            while (n >= 8) {
+                n -= 8;
+                out.write((int) (acc >>> n));
+            }
+            acc &= (1L << n) - 1;
+        }
+        if (n > 0) {
+            // padded with the most significant bits of EOS
+            out.write((int) ((acc << (8 - n)) | (0xff >>> n)));
+        }
+    }
+
+    // string literal at src's position; null if truncated or badly padded
+    private static String readString(ByteBuffer src) {
+        if (!src.hasRemaining()) {
+            return null;
+        }
+        int first = src.get() & 0xff;
+        int length = readInteger(first, 7, src);
+        if (length < 0 || length > src.remaining()) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder(length * 2);
+        if ((first & 0x80) == 0) {
+            for (int i = 0; i < length; i++) {
+                sb.append((char) (src.get() & 0xff));
+            }
+            return sb.toString();
+        }
+
+        int node = 0;
+        int pendingBits = 0;        // bits read since the last complete symbol
+        boolean allOnes = true;
+        for (int i = 0; i < length; i++) {
+            int b = src.get() & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int value = (b >>> bit) & 1;
+                int child = HUFFMAN_TREE[2 * node + value];
+                if (child < 0) {
+                    int sym = -child - 1;
+                    if (sym == EOS) {
+                        return null;
+                    }
+                    sb.append((char) sym);
+                    node = 0;
+                    pendingBits = 0;
+                    allOnes = true;
+                } else {
+                    node = child;
+                    pendingBits++;
+                    allOnes &= (value == 1);
+                }
+            }
+        }
+        // padding is shorter than a byte and a prefix of EOS (all ones)
+        return (pendingBits <= 7 && allOnes) ? sb.toString() : null;
+    }
+}
@@ -0,0 +1,1191 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Cleartext HTTP/2 (h2c, RFC 9113) on a selector dispatcher. A ReadWriteHandler hands its connection
+// over when the first bytes are the client preface (prior knowledge) or when it answers an
+// Upgrade: h2c request with 101; from then on this handler is the key's attachment. Every stream's
+// request is served by a ReadWriteHandler of its own in stream mode, so content selection, caching,
+// compression, cgi and the access log work as for HTTP/1.x: the response head it generates becomes
+// a HEADERS frame, the rest DATA frames (the way Apache's mod_http2 reuses its HTTP/1 code).
+//
+// Streams share the connection frame by frame: the most urgent ready stream goes first (RFC 9218
+// priority header or PRIORITY_UPDATE, u=0..7, default 3), streams of equal urgency share by weight
+// (RFC 7540 PRIORITY and HEADERS weights, 1-256, default 16; dependencies are not kept), and
+// non-incremental ones (i absent from a priority header) are sent one after the other. DATA is
+// limited by the client's connection and stream windows. At most MAX_QUEUED_BYTES of frames wait for
+// the socket, so priorities decide everything not yet handed to it.
+//
+// config:
+// H2c on|off                         accept HTTP/2 over cleartext at all (default on)
+// H2MaxConcurrentStreams <n>         streams a client may have open at once (default 100)
+// MaxHeaderSize and MaxContentLength apply per stream; KeepAliveTimeout while no stream is open
+
+public class Http2ReadWriteHandler implements IReadWriteHandler {
+    public static final int PREFACE_MISMATCH = -1;
+    public static final int PREFACE_PARTIAL = 0;
+    public static final int PREFACE_COMPLETE = 1;
+
+    public static final long DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] SWITCHING_PROTOCOLS =
+            "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    // frame types
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+    private static final int PRIORITY_UPDATE = 0x10;
+
+    // frame flags
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY_FLAG = 0x20;
+
+    // settings
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    // error codes
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private static final int FRAME_HEADER_SIZE = 9;
+    // largest frame payload we accept (never raised from the default) and the peer's until it says otherwise
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    // DATA frames are built in pooled 16K buffers, header included
+    private static final int MAX_DATA_PAYLOAD = 16384 - FRAME_HEADER_SIZE;
+    // frames waiting for the socket before no further ones are built, nor requests read
+    private static final long MAX_QUEUED_BYTES = 64 * 1024;
+    // response bytes taken from a stream's handler ahead of framing; its head must fit
+    private static final int PENDING_SIZE = 16384;
+    private static final int IN_BUFFER_SIZE = FRAME_HEADER_SIZE + DEFAULT_MAX_FRAME_SIZE;
+    private static final int DEFAULT_URGENCY = 3;
+    private static final int DEFAULT_WEIGHT = 16;
+    // buildRequest result for a malformed request (stream error), as opposed to an HTTP status
+    private static final int MALFORMED = -1;
+
+    private static class Stream {
+        final int id;
+        Request request;
+        ByteArrayOutputStream content;  // request body received so far; GET bodies are not kept
+        boolean remoteClosed;           // END_STREAM received
+        ReadWriteHandler handler;       // serves the request once it is complete
+        ByteBuffer pending;             // response bytes taken from handler, not yet framed (fill mode)
+        boolean headersSent;
+        boolean failed;
+        boolean closed;
+        int sendWindow;
+        int recvWindow;
+        int urgency;
+        boolean incremental;
+        int weight;
+        long pass;                      // grows by bytes sent / weight; the smallest goes next
+
+        Stream(int id) {
+            this.id = id;
+            urgency = DEFAULT_URGENCY;
+            incremental = true;
+            weight = DEFAULT_WEIGHT;
+        }
+    }
+
+    private Dispatcher dispatcher;
+    private BufferPool bufferPool;
+    private DispatcherMetrics metrics;
+    private SocketChannel channel;
+    private SelectionKey key;
+
+    private ByteBuffer inBuffer;        // borrowed while unprocessed bytes are held; fill mode
+    private boolean prefaceReceived;
+    private boolean settingsReceived;
+    private Hpack.Decoder decoder;
+    private Hpack.Encoder encoder;
+
+    private HashMap<Integer, Stream> streams;
+    private int lastStreamId;           // highest stream the client has opened
+    private int maxConcurrentStreams;
+    private int maxHeaderListSize;
+    private long maxContentLength;
+
+    // header block arriving in HEADERS and CONTINUATION frames
+    private ByteArrayOutputStream headerBlock;
+    private int headerStreamId;
+    private int headerFlags;
+    private int headerWeight;           // 0: no priority in the HEADERS frame
+    private int headerDependency;
+
+    // flow control: what the client lets us send, and what we let it send before a WINDOW_UPDATE
+    private int peerInitialWindow;
+    private int peerMaxFrameSize;
+    private int sendWindow;
+    private int recvWindow;
+
+    // frames queued for the socket, and their size
+    private ResponseBody output;
+    private long queuedBytes;
+    private long virtualTime;           // pass of the stream served last; new streams start there
+
+    private boolean goingAway;          // GOAWAY sent or received: no new streams
+    private boolean goAwaySent;
+    private boolean closing;            // close once the output is written
+    private boolean closed;
+
+    private TimerWheel.Timeout idleTimeout;
+    private long keepAliveTimeout;
+
+    public Http2ReadWriteHandler(Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        bufferPool = dispatcher.getBufferPool();
+        metrics = dispatcher.getMetrics();
+
+        decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        encoder = new Hpack.Encoder(Hpack.DEFAULT_TABLE_SIZE);
+        streams = new HashMap<Integer, Stream>();
+        maxConcurrentStreams = (int) Server.getConfigValue("H2MaxConcurrentStreams", DEFAULT_MAX_CONCURRENT_STREAMS);
+        maxHeaderListSize = (int) Server.getConfigValue("MaxHeaderSize", RequestParser.DEFAULT_MAX_HEADER_SIZE);
+        maxContentLength = Server.getConfigValue("MaxContentLength", ReadWriteHandler.DEFAULT_MAX_CONTENT_LENGTH);
+        keepAliveTimeout = Server.getConfigValue("KeepAliveTimeout", ReadWriteHandler.DEFAULT_KEEPALIVE_TIMEOUT);
+
+        peerInitialWindow = DEFAULT_WINDOW_SIZE;
+        peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+        sendWindow = DEFAULT_WINDOW_SIZE;
+        recvWindow = DEFAULT_WINDOW_SIZE;
+        output = new ResponseBody();
+        idleTimeout = new TimerWheel.Timeout(this::handleIdleTimeout);
+    }
+
+    // PREFACE_COMPLETE if buf starts with the client preface, PREFACE_PARTIAL if what it holds so far
+    // could still be one; buf's position is left as is
+    public static int matchPreface(ByteBuffer buf) {
+        int n = Math.min(buf.remaining(), PREFACE.length);
+        for (int i = 0; i < n; i++) {
+            if (buf.get(buf.position() + i) != PREFACE[i]) {
+                return PREFACE_MISMATCH;
+            }
+        }
+        return (n == PREFACE.length) ? PREFACE_COMPLETE : PREFACE_PARTIAL;
+    }
+
+    // HTTP2-Settings header of an Upgrade: h2c request: a base64url SETTINGS payload; null if malformed
+    public static byte[] decodeSettings(String header) {
+        if (header == null) {
+            return null;
+        }
+        try {
+            byte[] settings = Base64.getUrlDecoder().decode(header.trim());
+            return (settings.length % 6 == 0) ? settings : null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    public int getInitOps() {
+        return SelectionKey.OP_READ;
+    }
+
+    // a connection that speaks HTTP/2 from the start
+    public void handleConnected(SelectionKey key) {
+        takeOver(key, null, null, null);
+    }
+
+    // Takes over key's connection from a ReadWriteHandler. upgradeRequest (null with prior knowledge)
+    // is answered as stream 1 after a 101 response, with settings from its HTTP2-Settings header
+    // applied as the client's; input holds bytes the ReadWriteHandler read but did not use (fill mode).
+    public void takeOver(SelectionKey key, Request upgradeRequest, byte[] settings, ByteBuffer input) {
+        this.key = key;
+        channel = (SocketChannel) key.channel();
+        Debug.DEBUG(() -> "Http2ReadWriteHandler: " + channel + (upgradeRequest != null ? " upgraded" : " with prior knowledge"),
+                DebugType.NONSERVER);
+
+        if (upgradeRequest != null) {
+            queue(ByteBuffer.wrap(SWITCHING_PROTOCOLS), null);
+        }
+        ByteBuffer ours = ByteBuffer.allocate(12);
+        ours.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(maxConcurrentStreams);
+        ours.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(maxHeaderListSize);
+        queueFrame(SETTINGS, 0, 0, ours.array());
+
+        if (settings != null) {
+            applySettings(ByteBuffer.wrap(settings));
+        }
+        if (upgradeRequest != null && !closing) {
+            Stream s = openStream(1, 0);
+            s.request = upgradeRequest;
+            s.remoteClosed = true;
+            startStream(s);
+        }
+
+        if (input != null && input.position() > 0) {
+            inBuffer = bufferPool.borrow(IN_BUFFER_SIZE);
+            ByteBuffer bytes = input.duplicate();
+            bytes.flip();
+            inBuffer.put(bytes);
+        }
+        processInput();
+        fillOutput();
+        updateInterest();
+    }
+
+    public void handleRead(SelectionKey key) throws IOException {
+        if (closed) {
+            return;
+        }
+        if (inBuffer == null) {
+            inBuffer = bufferPool.borrow(IN_BUFFER_SIZE);
+        }
+        int readBytes = channel.read(inBuffer);
+        if (readBytes == -1) {
+            Debug.DEBUG("Http2ReadWriteHandler: end of stream", DebugType.NONSERVER);
+            close();
+            return;
+        }
+        metrics.countBytesIn(readBytes);
+
+        processInput();
+        fillOutput();
+        updateInterest();
+    }
+
+    public void handleWrite(SelectionKey key) throws IOException {
+        if (closed) {
+            return;
+        }
+        long writeStart = System.nanoTime();
+        long writeBytes = output.writeTo(channel);
+        metrics.getWriteLatency().record(System.nanoTime() - writeStart);
+        metrics.countBytesOut(writeBytes);
+
+        fillOutput();
+        updateInterest();
+    }
+
+    public void handleException() {
+        Debug.DEBUG("Http2ReadWriteHandler: handleException()", DebugType.NONSERVER);
+        close();
+    }
+
+    // write while frames are queued; read unless closing or too much output is waiting; the idle
+    // timeout runs while no stream is open
+    private void updateInterest() {
+        if (closed) {
+            return;
+        }
+        if ((closing || (goingAway && streams.isEmpty())) && output.isEmpty()) {
+            close();
+            return;
+        }
+
+        int ops = 0;
+        if (!output.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (!closing && queuedBytes < MAX_QUEUED_BYTES) {
+            ops |= SelectionKey.OP_READ;
+        }
+        key.interestOps(ops);
+
+        TimerWheel wheel = dispatcher.getTimerWheel();
+        if (!streams.isEmpty()) {
+            wheel.cancel(idleTimeout);
+        } else if (keepAliveTimeout > 0 && !idleTimeout.isScheduled()) {
+            wheel.schedule(idleTimeout, keepAliveTimeout, System.currentTimeMillis());
+        }
+    }
+
+    private void handleIdleTimeout() {
+        if (closed || !streams.isEmpty()) {
+            return;
+        }
+        Debug.DEBUG("Http2ReadWriteHandler: idle timeout", DebugType.NONSERVER);
+        sendGoAway(NO_ERROR);
+        closing = true;
+        updateInterest();
+    }
+
+    private void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        dispatcher.getTimerWheel().cancel(idleTimeout);
+        for (Stream s : new ArrayList<Stream>(streams.values())) {
+            removeStream(s);
+        }
+        output.release();
+        bufferPool.release(inBuffer);
+        inBuffer = null;
+        dispatcher.connectionClosed();
+
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ex) {}
+    }
+
+    // Handles every complete frame in inBuffer, keeping a partial one for the next read
+    private void processInput() {
+        if (inBuffer == null) {
+            return;
+        }
+        inBuffer.flip();
+
+        if (!prefaceReceived) {
+            int match = matchPreface(inBuffer);
+            if (match == PREFACE_MISMATCH) {
+                connectionError(PROTOCOL_ERROR, "no client preface");
+            } else if (match == PREFACE_COMPLETE) {
+                inBuffer.position(inBuffer.position() + PREFACE.length);
+                prefaceReceived = true;
+            }
+        }
+
+        while (prefaceReceived && !closing && inBuffer.remaining() >= FRAME_HEADER_SIZE) {
+            int start = inBuffer.position();
+            int length = ((inBuffer.get(start) & 0xff) << 16) | ((inBuffer.get(start + 1) & 0xff) << 8)
+                    | (inBuffer.get(start + 2) & 0xff);
+            if (length > DEFAULT_MAX_FRAME_SIZE) {
+                connectionError(FRAME_SIZE_ERROR, "frame of " + length + " bytes");
+                break;
+            }
+            if (inBuffer.remaining() < FRAME_HEADER_SIZE + length) {
+                break;
+            }
+
+            int type = inBuffer.get(start + 3) & 0xff;
+            int flags = inBuffer.get(start + 4) & 0xff;
+            int streamId = inBuffer.getInt(start + 5) & 0x7fffffff;
+            ByteBuffer payload = inBuffer.slice(start + FRAME_HEADER_SIZE, length);
+            inBuffer.position(start + FRAME_HEADER_SIZE + length);
+            handleFrame(type, flags, streamId, payload);
+        }
+
+        inBuffer.compact();
+        if (inBuffer.position() == 0 || closing) {
+            bufferPool.release(inBuffer);
+            inBuffer = null;
+        }
+    }
+
+    private void handleFrame(int type, int flags, int streamId, ByteBuffer payload) {
+        Debug.DEBUG(() -> "Http2ReadWriteHandler: frame type " + type + " flags " + flags + " stream " + streamId
+                + " length " + payload.remaining(), DebugType.NONSERVER);
+
+        // a header block may not be interrupted, and the client's SETTINGS come first
+        if (headerBlock != null && (type != CONTINUATION || streamId != headerStreamId)) {
+            connectionError(PROTOCOL_ERROR, "header block interrupted");
+            return;
+        }
+        if (!settingsReceived && type != SETTINGS) {
+            connectionError(PROTOCOL_ERROR, "first frame is not SETTINGS");
+            return;
+        }
+
+        switch (type) {
+            case DATA:
+                handleData(flags, streamId, payload);
+                break;
+            case HEADERS:
+                handleHeaders(flags, streamId, payload);
+                break;
+            case CONTINUATION:
+                handleContinuation(flags, streamId, payload);
+                break;
+            case PRIORITY:
+                handlePriority(streamId, payload);
+                break;
+            case PRIORITY_UPDATE:
+                handlePriorityUpdate(streamId, payload);
+                break;
+            case RST_STREAM:
+                handleRstStream(streamId, payload);
+                break;
+            case SETTINGS:
+                handleSettings(flags, streamId, payload);
+                break;
+            case PING:
+                handlePing(flags, streamId, payload);
+                break;
+            case GOAWAY:
+                if (streamId != 0) {
+                    connectionError(PROTOCOL_ERROR, "GOAWAY on a stream");
+                    return;
+                }
+                // streams already open are still answered
+                goingAway = true;
+                break;
+            case WINDOW_UPDATE:
+                handleWindowUpdate(streamId, payload);
+                break;
+            case PUSH_PROMISE:
+                connectionError(PROTOCOL_ERROR, "PUSH_PROMISE from client");
+                break;
+            default:
+                break;      // unknown frame types are ignored
+        }
+    }
+
+    private void handleSettings(int flags, int streamId, ByteBuffer payload) {
+        if (streamId != 0) {
+            connectionError(PROTOCOL_ERROR, "SETTINGS on a stream");
+            return;
+        }
+        if ((flags & ACK) != 0) {
+            if (payload.hasRemaining()) {
+                connectionError(FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+            }
+            return;
+        }
+        if (payload.remaining() % 6 != 0) {
+            connectionError(FRAME_SIZE_ERROR, "SETTINGS length " + payload.remaining());
+            return;
+        }
+        if (applySettings(payload)) {
+            settingsReceived = true;
+            queueFrame(SETTINGS, ACK, 0, new byte[0]);
+        }
+    }
+
+    // the client's settings; false after a connection error
+    private boolean applySettings(ByteBuffer payload) {
+        while (payload.remaining() >= 6) {
+            int id = payload.getShort() & 0xffff;
+            int value = payload.getInt();       // unsigned; above 2^31 - 1 reads as negative
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    encoder.setMaxTableSize((value < 0) ? Integer.MAX_VALUE : value);
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    // we never push
+                    if (value != 0 && value != 1) {
+                        connectionError(PROTOCOL_ERROR, "ENABLE_PUSH " + value);
+                        return false;
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    // applies to the windows of open streams too
+                    if (value < 0) {
+                        connectionError(FLOW_CONTROL_ERROR, "INITIAL_WINDOW_SIZE " + value);
+                        return false;
+                    }
+                    int delta = value - peerInitialWindow;
+                    for (Stream s : streams.values()) {
+                        if ((long) s.sendWindow + delta > Integer.MAX_VALUE) {
+                            connectionError(FLOW_CONTROL_ERROR, "stream window overflow");
+                            return false;
+                        }
+                        s.sendWindow += delta;
+                    }
+                    peerInitialWindow = value;
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                        connectionError(PROTOCOL_ERROR, "MAX_FRAME_SIZE " + value);
+                        return false;
+                    }
+                    peerMaxFrameSize = value;
+                    break;
+                default:
+                    break;      // MAX_CONCURRENT_STREAMS limits pushes only; MAX_HEADER_LIST_SIZE is advisory
+            }
+        }
+        return true;
+    }
+
+    private void handlePing(int flags, int streamId, ByteBuffer payload) {
+        if (streamId != 0) {
+            connectionError(PROTOCOL_ERROR, "PING on a stream");
+        } else if (payload.remaining() != 8) {
+            connectionError(FRAME_SIZE_ERROR, "PING length " + payload.remaining());
+        } else if ((flags & ACK) == 0) {
+            byte[] opaque = new byte[8];
+            payload.get(opaque);
+            queueFrame(PING, ACK, 0, opaque);
+        }
+    }
+
+    private void handleWindowUpdate(int streamId, ByteBuffer payload) {
+        if (payload.remaining() != 4) {
+            connectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE length " + payload.remaining());
+            return;
+        }
+        int increment = payload.getInt() & 0x7fffffff;
+
+        if (streamId == 0) {
+            if (increment == 0 || (long) sendWindow + increment > Integer.MAX_VALUE) {
+                connectionError(increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR, "connection WINDOW_UPDATE " + increment);
+                return;
+            }
+            sendWindow += increment;
+            return;
+        }
+
+        if (streamId > lastStreamId) {
+            connectionError(PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId);
+            return;
+        }
+        Stream s = streams.get(streamId);
+        if (s == null) {
+            return;     // already closed
+        }
+        if (increment == 0) {
+            resetStream(s, PROTOCOL_ERROR);
+        } else if ((long) s.sendWindow + increment > Integer.MAX_VALUE) {
+            resetStream(s, FLOW_CONTROL_ERROR);
+        } else {
+            s.sendWindow += increment;
+        }
+    }
+
+    private void handleRstStream(int streamId, ByteBuffer payload) {
+        if (streamId == 0 || streamId > lastStreamId) {
+            connectionError(PROTOCOL_ERROR, "RST_STREAM on stream " + streamId);
+            return;
+        }
+        if (payload.remaining() != 4) {
+            connectionError(FRAME_SIZE_ERROR, "RST_STREAM length " + payload.remaining());
+            return;
+        }
+        Stream s = streams.get(streamId);
+        if (s != null) {
+            Debug.DEBUG(() -> "Http2ReadWriteHandler: stream " + streamId + " reset by client", DebugType.NONSERVER);
+            removeStream(s);
+        }
+    }
+
+    // RFC 7540 priority: only the weight is kept
+    private void handlePriority(int streamId, ByteBuffer payload) {
+        if (streamId == 0) {
+            connectionError(PROTOCOL_ERROR, "PRIORITY on stream 0");
+            return;
+        }
+        Stream s = streams.get(streamId);
+        if (payload.remaining() != 5) {
+            if (s != null) {
+                resetStream(s, FRAME_SIZE_ERROR);
+            } else {
+                queueRstStream(streamId, FRAME_SIZE_ERROR);
+            }
+            return;
+        }
+        int dependency = payload.getInt() & 0x7fffffff;
+        int weight = (payload.get() & 0xff) + 1;
+        if (dependency == streamId) {
+            if (s != null) {
+                resetStream(s, PROTOCOL_ERROR);
+            } else {
+                queueRstStream(streamId, PROTOCOL_ERROR);
+            }
+        } else if (s != null) {
+            s.weight = weight;
+        }
+    }
+
+    // RFC 9218: a new priority header value for an open stream
+    private void handlePriorityUpdate(int streamId, ByteBuffer payload) {
+        if (streamId != 0 || payload.remaining() < 4) {
+            connectionError(streamId != 0 ? PROTOCOL_ERROR : FRAME_SIZE_ERROR, "bad PRIORITY_UPDATE");
+            return;
+        }
+        Stream s = streams.get(payload.getInt() & 0x7fffffff);
+        if (s != null) {
+            setPriority(s, StandardCharsets.ISO_8859_1.decode(payload).toString());
+        }
+    }
+
+    private void handleHeaders(int flags, int streamId, ByteBuffer payload) {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            connectionError(PROTOCOL_ERROR, "HEADERS on stream " + streamId);
+            return;
+        }
+        if (!streams.containsKey(streamId)) {
+            if (streamId <= lastStreamId) {
+                connectionError(STREAM_CLOSED, "HEADERS on closed stream " + streamId);
+                return;
+            }
+            lastStreamId = streamId;
+        }
+
+        int padLength = 0;
+        if ((flags & PADDED) != 0) {
+            if (!payload.hasRemaining()) {
+                connectionError(FRAME_SIZE_ERROR, "HEADERS without pad length");
+                return;
+            }
+            padLength = payload.get() & 0xff;
+        }
+        headerWeight = 0;
+        if ((flags & PRIORITY_FLAG) != 0) {
+            if (payload.remaining() < 5) {
+                connectionError(FRAME_SIZE_ERROR, "HEADERS without priority");
+                return;
+            }
+            headerDependency = payload.getInt() & 0x7fffffff;
+            headerWeight = (payload.get() & 0xff) + 1;
+        }
+        if (padLength > payload.remaining()) {
+            connectionError(PROTOCOL_ERROR, "HEADERS padding too long");
+            return;
+        }
+        payload.limit(payload.limit() - padLength);
+
+        headerStreamId = streamId;
+        headerFlags = flags;
+        if ((flags & END_HEADERS) != 0) {
+            completeHeaders(payload);
+        } else {
+            headerBlock = new ByteArrayOutputStream(2 * payload.remaining());
+            appendHeaderBlock(payload);
+        }
+    }
+
+    private void handleContinuation(int flags, int streamId, ByteBuffer payload) {
+        if (headerBlock == null) {
+            connectionError(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+            return;
+        }
+        appendHeaderBlock(payload);
+        if (!closing && (flags & END_HEADERS) != 0) {
+            ByteBuffer block = ByteBuffer.wrap(headerBlock.toByteArray());
+            headerBlock = null;
+            completeHeaders(block);
+        }
+    }
+
+    // a compressed block may not be much larger than the header list it decodes to
+    private void appendHeaderBlock(ByteBuffer payload) {
+        if (headerBlock.size() + payload.remaining() > 2 * maxHeaderListSize + DEFAULT_MAX_FRAME_SIZE) {
+            connectionError(ENHANCE_YOUR_CALM, "header block too large");
+            return;
+        }
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        headerBlock.write(bytes, 0, bytes.length);
+    }
+
+    // A complete header block: a new request, or trailers ending one. Blocks are always decoded, even
+    // for streams that are refused, to keep the dynamic table in step with the client's.
+    private void completeHeaders(ByteBuffer block) {
+        ArrayList<String> fields = new ArrayList<String>();
+        if (!decoder.decode(block, fields)) {
+            connectionError(COMPRESSION_ERROR, "bad header block");
+            return;
+        }
+        boolean endStream = (headerFlags & END_STREAM) != 0;
+
+        Stream s = streams.get(headerStreamId);
+        if (s != null) {
+            if (s.remoteClosed || !endStream) {
+                resetStream(s, s.remoteClosed ? STREAM_CLOSED : PROTOCOL_ERROR);
+            } else {
+                s.remoteClosed = true;
+                endOfRequest(s);
+            }
+            return;
+        }
+
+        if (goingAway || streams.size() >= maxConcurrentStreams) {
+            queueRstStream(headerStreamId, REFUSED_STREAM);
+            return;
+        }
+        s = openStream(headerStreamId, headerWeight);
+        s.remoteClosed = endStream;
+        if (headerWeight > 0 && headerDependency == s.id) {
+            resetStream(s, PROTOCOL_ERROR);
+            return;
+        }
+
+        int status = buildRequest(s, fields);
+        if (status == MALFORMED) {
+            resetStream(s, PROTOCOL_ERROR);
+        } else if (status != 0) {
+            sendStatusOnly(s, status);
+        } else if (s.remoteClosed) {
+            endOfRequest(s);
+        }
+    }
+
+    private Stream openStream(int id, int weight) {
+        Stream s = new Stream(id);
+        s.sendWindow = peerInitialWindow;
+        s.recvWindow = DEFAULT_WINDOW_SIZE;
+        s.pass = virtualTime;
+        if (weight > 0) {
+            s.weight = weight;
+        }
+        streams.put(id, s);
+        lastStreamId = Math.max(lastStreamId, id);
+        return s;
+    }
+
+    // Fills in s.request from the pseudo-headers and headers; returns 0, an error status to answer
+    // with, or MALFORMED (RFC 9113 8.1.1)
+    private int buildRequest(Stream s, List<String> fields) {
+        Request request = new Request();
+        String method = null;
+        String scheme = null;
+        String path = null;
+        String authority = null;
+        long listSize = 0;
+        boolean regularSeen = false;
+
+        for (int i = 0; i + 1 < fields.size(); i += 2) {
+            String name = fields.get(i);
+            String value = fields.get(i + 1);
+            listSize += name.length() + value.length() + Hpack.ENTRY_OVERHEAD;
+
+            if (name.startsWith(":")) {
+                if (regularSeen) {
+                    return MALFORMED;
+                }
+                if (name.equals(":method") && method == null) {
+                    method = value;
+                } else if (name.equals(":scheme") && scheme == null) {
+                    scheme = value;
+                } else if (name.equals(":path") && path == null) {
+                    path = value;
+                } else if (name.equals(":authority") && authority == null) {
+                    authority = value;
+                } else {
+                    return MALFORMED;
+                }
+                continue;
+            }
+
+            regularSeen = true;
+            if (!name.equals(name.toLowerCase(Locale.ROOT)) || name.equals("connection") || name.equals("keep-alive")
+                    || name.equals("proxy-connection") || name.equals("transfer-encoding") || name.equals("upgrade")
+                    || (name.equals("te") && !value.equals("trailers"))) {
+                return MALFORMED;
+            }
+            if (name.equals("priority")) {
+                setPriority(s, value);
+            }
+            int slot = Request.knownHeaderSlot(name);
+            if (slot != Request.UNKNOWN_HEADER) {
+                request.setHeader(slot, value);
+            } else {
+                request.addHeader(name, value);
+            }
+        }
+
+        if (listSize > maxHeaderListSize) {
+            return 431;
+        }
+        if (method == null || scheme == null || path == null || path.isEmpty()) {
+            return MALFORMED;
+        }
+
+        ReqMethod reqMethod = method.equals("GET") ? ReqMethod.GET : method.equals("POST") ? ReqMethod.POST : ReqMethod.UNKNOWN;
+        request.setRequestLine(reqMethod, path, "HTTP/2.0");
+        request.setMethodName(method);
+        if (authority != null && request.lookupHeader(Request.HOST) == null) {
+            request.setHeader(Request.HOST, authority);
+        }
+        s.request = request;
+        return 0;
+    }
+
+    // RFC 9218 priority field value, e.g. "u=1, i"; urgency 0-7, i (incremental) defaults to false
+    private static void setPriority(Stream s, String value) {
+        s.incremental = false;
+        for (String member : value.split(",")) {
+            member = member.trim();
+            if (member.equals("i") || member.equals("i=?1")) {
+                s.incremental = true;
+            } else if (member.length() == 3 && member.startsWith("u=") && member.charAt(2) >= '0' && member.charAt(2) <= '7') {
+                s.urgency = member.charAt(2) - '0';
+            }
+        }
+    }
+
+    private void handleData(int flags, int streamId, ByteBuffer payload) {
+        if (streamId == 0) {
+            connectionError(PROTOCOL_ERROR, "DATA on stream 0");
+            return;
+        }
+
+        // the whole frame counts against the connection window, whatever becomes of the stream;
+        // bodies are buffered right away, so the window is opened again as soon as half is used
+        int length = payload.remaining();
+        recvWindow -= length;
+        if (recvWindow < 0) {
+            connectionError(FLOW_CONTROL_ERROR, "connection window exceeded");
+            return;
+        }
+        if (recvWindow <= DEFAULT_WINDOW_SIZE / 2) {
+            queueWindowUpdate(0, DEFAULT_WINDOW_SIZE - recvWindow);
+            recvWindow = DEFAULT_WINDOW_SIZE;
+        }
+
+        int padLength = 0;
+        if ((flags & PADDED) != 0) {
+            padLength = payload.hasRemaining() ? (payload.get() & 0xff) : Integer.MAX_VALUE;
+        }
+        if (padLength > payload.remaining()) {
+            connectionError(PROTOCOL_ERROR, "DATA padding too long");
+            return;
+        }
+        payload.limit(payload.limit() - padLength);
+
+        if (streamId > lastStreamId) {
+            connectionError(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            return;
+        }
+        Stream s = streams.get(streamId);
+        if (s == null) {
+            return;     // closed or reset by us; the client may not know yet
+        }
+        if (s.remoteClosed) {
+            resetStream(s, STREAM_CLOSED);
+            return;
+        }
+        s.recvWindow -= length;
+        if (s.recvWindow < 0) {
+            resetStream(s, FLOW_CONTROL_ERROR);
+            return;
+        }
+
+        // GET bodies are dropped; POST bodies go to cgi scripts, others to proxy upstreams
+        if (s.request.getReqMethod() != ReqMethod.GET) {
+            if (s.content == null) {
+                s.content = new ByteArrayOutputStream(payload.remaining());
+            }
+            if (s.content.size() + payload.remaining() > maxContentLength) {
+                sendStatusOnly(s, 413);
+                return;
+            }
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            s.content.write(bytes, 0, bytes.length);
+        }
+
+        if ((flags & END_STREAM) != 0) {
+            s.remoteClosed = true;
+            endOfRequest(s);
+        } else if (s.recvWindow <= DEFAULT_WINDOW_SIZE / 2) {
+            queueWindowUpdate(s.id, DEFAULT_WINDOW_SIZE - s.recvWindow);
+            s.recvWindow = DEFAULT_WINDOW_SIZE;
+        }
+    }
+
+    // the request is complete: a declared Content-Length must match the body
+    private void endOfRequest(Stream s) {
+        int received = (s.content == null) ? 0 : s.content.size();
+        String contentLength = s.request.lookupHeader(Request.CONTENT_LENGTH);
+        if (contentLength != null && !contentLength.trim().equals(Integer.toString(received))) {
+            resetStream(s, PROTOCOL_ERROR);
+            return;
+        }
+        startStream(s);
+    }
+
+    // Hands the request to a ReadWriteHandler of its own; its response is taken as it is generated
+    private void startStream(Stream s) {
+        ByteBuffer content = null;
+        if (s.request.getReqMethod() != ReqMethod.GET) {
+            byte[] body = (s.content == null) ? new byte[0] : s.content.toByteArray();
+            s.request.setHeader(Request.CONTENT_LENGTH, Integer.toString(body.length));
+            content = ByteBuffer.wrap(body);
+        }
+        s.content = null;
+        s.pending = bufferPool.borrow(PENDING_SIZE);
+        s.handler = new ReadWriteHandler(dispatcher, channel, () -> streamUpdated(s));
+        s.handler.serveStream(s.request, content);
+    }
+
+    // more of s's response was queued outside handleRead/handleWrite (cgi output)
+    private void streamUpdated(Stream s) {
+        if (closed || s.closed) {
+            return;
+        }
+        fillOutput();
+        updateInterest();
+    }
+
+    // Builds frames from the streams' responses, most urgent first, until MAX_QUEUED_BYTES are queued
+    private void fillOutput() {
+        while (!closing && queuedBytes < MAX_QUEUED_BYTES) {
+            Stream next = null;
+            for (Stream s : streams.values()) {
+                if (isReady(s) && (next == null || comesBefore(s, next))) {
+                    next = s;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            sendFrame(next);
+        }
+    }
+
+    private static boolean comesBefore(Stream s, Stream other) {
+        if (s.urgency != other.urgency) {
+            return s.urgency < other.urgency;
+        }
+        if (s.incremental != other.incremental) {
+            return !s.incremental;
+        }
+        return s.incremental ? s.pass < other.pass : s.id < other.id;
+    }
+
+    // true if s has a frame to send now (or must be reset)
+    private boolean isReady(Stream s) {
+        if (s.handler == null) {
+            return false;       // request still arriving
+        }
+        pull(s);
+        if (s.failed || s.handler.isStreamFailed()) {
+            return true;
+        }
+        boolean done = s.handler.isResponseDone();
+        if (!s.headersSent) {
+            return done || !s.pending.hasRemaining() || findHeadEnd(s.pending) >= 0;
+        }
+        if (s.pending.position() == 0) {
+            return done;        // only END_STREAM is left
+        }
+        return sendWindow > 0 && s.sendWindow > 0;
+    }
+
+    // takes what fits of the response generated so far
+    private void pull(Stream s) {
+        if (!s.failed && s.pending.hasRemaining()) {
+            try {
+                s.handler.readResponse(s.pending);
+            } catch (IOException ex) {
+                s.failed = true;
+            }
+        }
+    }
+
+    private void sendFrame(Stream s) {
+        if (s.failed || s.handler.isStreamFailed()) {
+            resetStream(s, INTERNAL_ERROR);
+            return;
+        }
+        if (!s.headersSent) {
+            sendHeaders(s);
+            return;
+        }
+
+        ByteBuffer pending = s.pending;
+        pending.flip();
+        int n = Math.min(Math.min(pending.remaining(), MAX_DATA_PAYLOAD), Math.min(peerMaxFrameSize, Math.min(sendWindow, s.sendWindow)));
+        n = Math.max(n, 0);
+        ByteBuffer frame = bufferPool.borrow(FRAME_HEADER_SIZE + n);
+        putFrameHeader(frame, n, DATA, 0, s.id);
+        ByteBuffer data = pending.duplicate();
+        data.limit(data.position() + n);
+        frame.put(data);
+        pending.position(pending.position() + n);
+        pending.compact();
+
+        pull(s);
+        boolean endStream = pending.position() == 0 && !s.failed && s.handler.isResponseDone();
+        if (endStream) {
+            frame.put(4, (byte) END_STREAM);
+        }
+        frame.flip();
+        queue(frame, frame);
+
+        sendWindow -= n;
+        s.sendWindow -= n;
+        virtualTime = s.pass;
+        s.pass += (long) (n + FRAME_HEADER_SIZE) * DEFAULT_WEIGHT / s.weight;
+        if (endStream) {
+            finishStream(s);
+        }
+    }
+
+    // Converts the response head s's handler generated (status line and headers) into HEADERS
+    private void sendHeaders(Stream s) {
+        ByteBuffer pending = s.pending;
+        int end = findHeadEnd(pending);
+        if (end < 0) {
+            resetStream(s, INTERNAL_ERROR);     // no head, or too large
+            return;
+        }
+        byte[] headBytes = new byte[end];
+        pending.get(0, headBytes);
+        String[] lines = new String(headBytes, StandardCharsets.ISO_8859_1).split("\r\n");
+
+        // "HTTP/2.0 200 OK"
+        String[] statusLine = lines[0].split(" ", 3);
+        if (statusLine.length < 2 || statusLine[1].length() != 3) {
+            resetStream(s, INTERNAL_ERROR);
+            return;
+        }
+        ArrayList<String> fields = new ArrayList<String>();
+        fields.add(":status");
+        fields.add(statusLine[1]);
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            // connection-specific headers do not exist in HTTP/2
+            if (name.equals("connection") || name.equals("keep-alive") || name.equals("transfer-encoding")
+                    || name.equals("upgrade") || name.equals("proxy-connection")) {
+                continue;
+            }
+            fields.add(name);
+            fields.add(lines[i].substring(colon + 1).trim());
+        }
+        ByteArrayOutputStream block = new ByteArrayOutputStream(end);
+        encoder.encode(fields, block);
+
+        pending.flip();
+        pending.position(end + 4);
+        pending.compact();
+        pull(s);
+        boolean endStream = pending.position() == 0 && !s.failed && s.handler.isResponseDone();
+        queueHeaders(s.id, block.toByteArray(), endStream);
+        s.headersSent = true;
+        if (endStream) {
+            finishStream(s);
+        }
+    }
+
+    // offset of the blank line ending the response head in pending (fill mode), or -1
+    private static int findHeadEnd(ByteBuffer pending) {
+        for (int i = 0; i + 3 < pending.position(); i++) {
+            if (pending.get(i) == '\r' && pending.get(i + 1) == '\n' && pending.get(i + 2) == '\r' && pending.get(i + 3) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // a response without a body, for requests refused here rather than by a ReadWriteHandler
+    private void sendStatusOnly(Stream s, int status) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        encoder.encode(Arrays.asList(":status", Integer.toString(status), "content-length", "0"), block);
+        queueHeaders(s.id, block.toByteArray(), true);
+        metrics.countStatus(status);
+        finishStream(s);
+    }
+
+    // The response is complete; a client still sending its request is told to stop (RFC 9113 8.1)
+    private void finishStream(Stream s) {
+        if (!s.remoteClosed) {
+            queueRstStream(s.id, NO_ERROR);
+        }
+        removeStream(s);
+    }
+
+    private void resetStream(Stream s, int errorCode) {
+        Debug.DEBUG(() -> "Http2ReadWriteHandler: resetting stream " + s.id + " with error " + errorCode, DebugType.NONSERVER);
+        queueRstStream(s.id, errorCode);
+        removeStream(s);
+    }
+
+    private void removeStream(Stream s) {
+        s.closed = true;
+        streams.remove(s.id);
+        if (s.handler != null) {
+            s.handler.cancelStream();
+        }
+        bufferPool.release(s.pending);
+        s.pending = null;
+        s.content = null;
+    }
+
+    // Ends the connection after a protocol error: GOAWAY, then close once it is written
+    private void connectionError(int errorCode, String reason) {
+        Debug.DEBUG(() -> "Http2ReadWriteHandler: connection error " + errorCode + ": " + reason, DebugType.NONSERVER);
+        sendGoAway(errorCode);
+        closing = true;
+    }
+
+    private void sendGoAway(int errorCode) {
+        if (goAwaySent) {
+            return;
+        }
+        goAwaySent = true;
+        goingAway = true;
+        ByteBuffer payload = ByteBuffer.allocate(8);
+        payload.putInt(lastStreamId).putInt(errorCode);
+        queueFrame(GOAWAY, 0, 0, payload.array());
+    }
+
+    private void queueRstStream(int streamId, int errorCode) {
+        queueFrame(RST_STREAM, 0, streamId, ByteBuffer.allocate(4).putInt(errorCode).array());
+    }
+
+    private void queueWindowUpdate(int streamId, int increment) {
+        queueFrame(WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(increment).array());
+    }
+
+    // HEADERS, followed by CONTINUATION frames if the block is larger than the client's frame size
+    private void queueHeaders(int streamId, byte[] block, boolean endStream) {
+        int offset = 0;
+        do {
+            int n = Math.min(block.length - offset, peerMaxFrameSize);
+            int type = (offset == 0) ? HEADERS : CONTINUATION;
+            int flags = (offset + n == block.length) ? END_HEADERS : 0;
+            if (offset == 0 && endStream) {
+                flags |= END_STREAM;
+            }
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + n);
+            putFrameHeader(frame, n, type, flags, streamId);
+            frame.put(block, offset, n);
+            frame.flip();
+            queue(frame, null);
+            offset += n;
+        } while (offset < block.length);
+    }
+
+    private void queueFrame(int type, int flags, int streamId, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.length);
+        putFrameHeader(frame, payload.length, type, flags, streamId);
+        frame.put(payload);
+        frame.flip();
+        queue(frame, null);
+    }
+
+    // pooled (if not null) goes back to the buffer pool once frame is written or dropped
+    private void queue(ByteBuffer frame, ByteBuffer pooled) {
+        int size = frame.remaining();
+        queuedBytes += size;
+        output.addBuffer(frame, () -> {
+            queuedBytes -= size;
+            bufferPool.release(pooled);
+        });
+    }
+
+    private static void putFrameHeader(ByteBuffer buf, int length, int type, int flags, int streamId) {
+        buf.put((byte) (length >>> 16));
+        buf.put((byte) (length >>> 8));
+        buf.put((byte) length);
+        buf.put((byte) type);
+        buf.put((byte) flags);
+        buf.putInt(streamId);
+    }
+}
@@ -0,0 +1,13 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.List;
+
+// Receives a cgi script's output as it is produced; all calls arrive on the thread serving the
+// connection (its dispatcher, or its own thread with Engine virtual, where key is null)
+public interface ICgiOutputHandler {
+    public void handleCgiHeaders(SelectionKey key, int statusCode, String message, List<String> headers);
+
+    public void handleCgiData(SelectionKey key, ByteBuffer data);
+
+    public void handleCgiEnd(SelectionKey key, boolean failed);
+}
@@ -0,0 +1,7 @@
+import java.nio.channels.SelectionKey;
+import java.io.IOException;
+
+public interface IConnectHandler extends IChannelHandler {
+    // the non-blocking connect of key's channel is ready to be finished
+    public void handleConnect(SelectionKey key) throws IOException;
+}
@@ -0,0 +1,49 @@
+import java.util.Map;
+
+// JMX view of one dispatcher's DispatcherMetrics, registered as http-server:type=Dispatcher,id=<n>
+public interface IDispatcherMetricsMXBean {
+    public int getDispatcherId();
+
+    public long getAccepts();
+
+    public int getOpenConnections();
+
+    public long getRequests();
+
+    // status code -> responses sent
+    public Map<String, Long> getStatusCounts();
+
+    public long getBytesIn();
+
+    public long getBytesOut();
+
+    public long getSelectWakeups();
+
+    public long getEmptySelects();
+
+    public long getCgiInvocations();
+
+    // times accepting was paused at MaxConnectionsPerDispatcher
+    public long getAcceptPauses();
+
+    // low-priority requests answered 503 while overloaded
+    public long getShedRequests();
+
+    public long getLoopLagMicros();
+
+    public long getParseP50Micros();
+
+    public long getParseP99Micros();
+
+    public long getLookupP50Micros();
+
+    public long getLookupP99Micros();
+
+    public long getWriteP50Micros();
+
+    public long getWriteP99Micros();
+
+    public long getCgiP50Millis();
+
+    public long getCgiP99Millis();
+}
@@ -0,0 +1,8 @@
+import java.nio.channels.SelectionKey;
+
+// Receives an upstream's response like a cgi script's output (ICgiOutputHandler), plus the error
+// answered when no response head arrived; all calls arrive on the connection's dispatcher thread
+public interface IProxyOutputHandler extends ICgiOutputHandler {
+    // 502 (upstream refused or broke off), 504 (upstream timed out)
+    public void handleProxyError(SelectionKey key, int statusCode, String message);
+}
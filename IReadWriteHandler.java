@@ -2,6 +2,9 @@ import java.nio.channels.SelectionKey;
 import java.io.IOException;
 
 public interface IReadWriteHandler extends IChannelHandler {
+    // called once the connection is registered with the dispatcher's selector
+    public void handleConnected(SelectionKey key);
+
     public void handleRead(SelectionKey key) throws IOException;
 
     public void handleWrite(SelectionKey key) throws IOException;
@@ -1,3 +1,3 @@
 public interface IReadWriteHandlerFactory {
-    public IReadWriteHandler createHandler();
+    public IReadWriteHandler createHandler(Dispatcher dispatcher);
 }
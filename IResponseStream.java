@@ -0,0 +1,9 @@
+// A response body produced elsewhere (a cgi script, an upstream server) and fed to the connection's
+// ICgiOutputHandler piece by piece
+public interface IResponseStream {
+    // Gives back credits for bytes written to (or dropped by) the connection
+    public void release(int bytes);
+
+    // Stops producing; no further handler calls matter after this
+    public void cancel();
+}
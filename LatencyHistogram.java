@@ -0,0 +1,91 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Fixed-size latency histogram in nanoseconds: 8 sub-buckets per power of two, so a percentile is
+// within 12.5% of the true value, up to about 18 minutes. Recording is one uncontended atomic add
+// (each histogram belongs to one dispatcher); readers on other threads take a snapshot, and snapshots
+// of several histograms can be added up before asking for percentiles.
+//
+// typical use:
+// long start = System.nanoTime(); ...; histogram.record(System.nanoTime() - start);
+// long[] counts = histogram.snapshot();
+// long p99 = LatencyHistogram.percentile(counts, 99.0);
+
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    public static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS);
+    }
+
+    public void record(long nanos) {
+        counts.incrementAndGet(bucket(Math.max(0, nanos)));
+    }
+
+    // bucket counts at this moment
+    public long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    public static long count(long[] snapshot) {
+        long count = 0;
+        for (long c : snapshot) {
+            count += c;
+        }
+        return count;
+    }
+
+    // adds other's bucket counts to into
+    public static void add(long[] into, long[] other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            into[i] += other[i];
+        }
+    }
+
+    // Returns the upper bound of the bucket holding the given percentile (0-100), or 0 if empty
+    public static long percentile(long[] snapshot, double percentile) {
+        long count = count(snapshot);
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decides whether this node is overloaded, from open connections per dispatcher, CGI requests running
+// or queued, and select loop lag (how long a task posted to a dispatcher waits before it runs). The
+// verdict is recomputed at most every REFRESH_MILLIS by whichever dispatcher asks first, so checking
+// it on every request is a volatile read. While overloaded, /load answers 503 so load balancers back
+// off, and low-priority requests (every POST/CGI request and urls under a LowPriorityUrl prefix) are
+// answered 503 as soon as their head is parsed. 503s carry Retry-After.
+//
+// config (0 disables a watermark):
+// LoadMaxConnections <n>        average open connections per dispatcher (default 0)
+// LoadMaxCgiPending <n>         CGI requests running or queued (default 0)
+// LoadMaxLatency <ms>           select loop lag of the slowest dispatcher (default 200)
+// LowPriorityUrl <url prefix>   shed while overloaded, like POST/CGI; may be repeated
+// RetryAfter <seconds>          Retry-After of 503 responses (default 1)
+
+public class LoadMonitor {
+    public static final long REFRESH_MILLIS = 100;
+    public static final long DEFAULT_MAX_CONNECTIONS = 0;
+    public static final long DEFAULT_MAX_CGI_PENDING = 0;
+    public static final long DEFAULT_MAX_LATENCY_MILLIS = 200;
+    public static final long DEFAULT_RETRY_AFTER_SECONDS = 1;
+
+    private final long maxConnections;
+    private final long maxCgiPending;
+    private final long maxLatencyNanos;
+    private final long retryAfterSeconds;
+    private final List<String> lowPriorityUrls;
+
+    private final AtomicLong nextRefresh;
+    private volatile boolean overloaded;
+    private volatile String reason;
+
+    public LoadMonitor(long maxConnections, long maxCgiPending, long maxLatencyMillis, long retryAfterSeconds,
+            List<String> lowPriorityUrls) {
+        this.maxConnections = maxConnections;
+        this.maxCgiPending = maxCgiPending;
+        this.maxLatencyNanos = maxLatencyMillis * 1000000;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.lowPriorityUrls = new ArrayList<String>();
+        for (String url : lowPriorityUrls) {
+            this.lowPriorityUrls.add(url.trim());
+        }
+        nextRefresh = new AtomicLong();
+        overloaded = false;
+        reason = "";
+    }
+
+    public boolean isOverloaded() {
+        long now = System.currentTimeMillis();
+        long next = nextRefresh.get();
+        if (now >= next && nextRefresh.compareAndSet(next, now + REFRESH_MILLIS)) {
+            refresh(Server.getDispatchers());
+        }
+        return overloaded;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    // requests given up first under overload
+    public boolean isLowPriority(Request request) {
+        if (request.getReqMethod() == ReqMethod.POST) {
+            return true;
+        }
+        String url = request.getReqUrl();
+        for (String prefix : lowPriorityUrls) {
+            if (url.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // body of /load: verdict, then the numbers behind it
+    public String report(Dispatcher[] dispatchers) {
+        boolean over = isOverloaded();
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("Status: ").append(over ? "overloaded" : "ok").append('\n');
+        if (over) {
+            sb.append("Reason: ").append(reason).append('\n');
+        }
+        long connections = 0;
+        for (Dispatcher d : dispatchers) {
+            connections += d.getConnectionCount();
+        }
+        sb.append("Connections: ").append(connections).append('\n');
+        sb.append("CgiPending: ").append(Server.getCgiExecutor().getPendingCount()).append('\n');
+        for (Dispatcher d : dispatchers) {
+            sb.append("Dispatcher").append(d.getDispatcherId()).append("Connections: ").append(d.getConnectionCount()).append('\n');
+            sb.append("Dispatcher").append(d.getDispatcherId()).append("LoopLagMicros: ").append(d.getLoopLag() / 1000).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void refresh(Dispatcher[] dispatchers) {
+        if (dispatchers.length == 0) {
+            return;
+        }
+
+        long connections = 0;
+        long maxLag = 0;
+        for (Dispatcher d : dispatchers) {
+            connections += d.getConnectionCount();
+            maxLag = Math.max(maxLag, d.getLoopLag());
+            // measured for the next refresh
+            d.probeLoopLag();
+        }
+        long cgiPending = Server.getCgiExecutor().getPendingCount();
+
+        String why = null;
+        if (maxConnections > 0 && connections > maxConnections * dispatchers.length) {
+            why = "connections " + connections;
+        } else if (maxCgiPending > 0 && cgiPending > maxCgiPending) {
+            why = "cgi pending " + cgiPending;
+        } else if (maxLatencyNanos > 0 && maxLag > maxLatencyNanos) {
+            why = "loop lag " + (maxLag / 1000000) + "ms";
+        }
+
+        if ((why != null) != overloaded) {
+            String change = why;
+            Debug.DEBUG(() -> "LoadMonitor: " + ((change != null) ? "overloaded, " + change : "load back to normal"), DebugType.SERVER);
+        }
+        if (why != null) {
+            reason = why;
+        }
+        overloaded = (why != null);
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded lock-free queue of log lines: any number of threads offer, one writer thread polls.
+// Each slot carries a sequence number telling producers and the consumer whose turn it is, so a
+// producer only ever does one CAS on the tail; when the ring is full the line is dropped and counted
+// instead of blocking a dispatcher.
+
+public class LogRing {
+    private final String[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail;
+    private long head;              // only touched by the consumer
+    private final LongAdder dropped;
+
+    public LogRing(int capacity) {
+        int n = 1;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        slots = new String[n];
+        sequences = new AtomicLongArray(n);
+        for (int i = 0; i < n; i++) {
+            sequences.set(i, i);
+        }
+        mask = n - 1;
+        tail = new AtomicLong();
+        dropped = new LongAdder();
+    }
+
+    // Returns false (and counts a drop) if the ring is full
+    public boolean offer(String line) {
+        long pos = tail.get();
+        while (true) {
+            int i = (int) (pos & mask);
+            long diff = sequences.get(i) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots[i] = line;
+                    sequences.set(i, pos + 1);      // publishes slots[i] to the consumer
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                dropped.increment();
+                return false;
+            } else {
+                pos = tail.get();                   // another producer took this slot
+            }
+        }
+    }
+
+    // Consumer only: next line, or null if none is ready
+    public String poll() {
+        int i = (int) (head & mask);
+        if (sequences.get(i) != head + 1) {
+            return null;
+        }
+        String line = slots[i];
+        slots[i] = null;
+        sequences.set(i, head + slots.length);       // slot free for the producer one lap later
+        head++;
+        return line;
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+}
@@ -0,0 +1,78 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.io.BufferedOutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+// Background thread that drains the debug log ring to stdout and hands access log batches to their
+// file, so neither ever blocks a dispatcher. Flushes whenever it runs dry and once more at exit.
+// With nothing to write it parks until a producer calls wake(), so an idle server, or one with
+// logging off, does not wake it at all.
+//
+// typical use (producer):
+// if (ring.offer(line)) LogWriter.wake();
+
+public class LogWriter implements Runnable {
+    // the writer thread, and whether it is (about to be) parked for lack of work
+    private static volatile Thread thread;
+    private static volatile boolean idle;
+
+    private final LogRing ring;
+    private final PrintStream out;
+
+    public LogWriter(LogRing ring) {
+        this.ring = ring;
+        out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false);
+    }
+
+    public static void start(LogRing ring) {
+        LogWriter writer = new LogWriter(ring);
+        Thread t = new Thread(writer, "log-writer");
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(writer::drain, "log-writer-exit"));
+    }
+
+    // Unparks the writer if it is idle; call after queueing a line or a batch. One volatile read when busy.
+    public static void wake() {
+        if (idle) {
+            Thread t = thread;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    public void run() {
+        while (true) {
+            if (!drain()) {
+                // idle is set before the last look, so a line queued after it finds idle set and unparks
+                idle = true;
+                if (!drain()) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+            }
+        }
+    }
+
+    // Writes everything queued so far; returns false if there was nothing to write
+    private synchronized boolean drain() {
+        boolean wrote = false;
+        String line;
+        while ((line = ring.poll()) != null) {
+            out.println(line);
+            wrote = true;
+        }
+        if (wrote) {
+            out.flush();
+        }
+
+        AccessLog accessLog = Server.getAccessLog();
+        if (accessLog != null) {
+            wrote |= accessLog.drain();
+        }
+        return wrote;
+    }
+}
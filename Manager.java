@@ -3,17 +3,13 @@ import java.nio.channels.*;
 import java.io.InputStreamReader;
 
 public class Manager implements Runnable {
-        private Dispatcher[] dispatchers;
-
-        public Manager(Dispatcher[] dispatchers) {
-            this.dispatchers = dispatchers;
-        }
-
         public void run() {
             System.out.print("> ");
             try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
                 while (true) {
                     String input = reader.readLine().trim();
+                    // changed by config reloads
+                    Dispatcher[] dispatchers = Server.getDispatchers();
 
                     if (input.trim().equals("shutdown")) {
                         Debug.DEBUG("Manager: shutting system down", DebugType.SERVER);
@@ -22,9 +18,48 @@ public class Manager implements Runnable {
                             Debug.DEBUG("Manager: interrupting dispatcher " + Integer.toString(d.getDispatcherId()), DebugType.SERVER);
                             d.interrupt();
                         }
+                        // let dispatchers hand over their last access log entries
+                        for (Dispatcher d : dispatchers) {
+                            d.join(1000);
+                        }
 
                         Debug.PRINT("All threads shut down, system exiting");
                         System.exit(0);
+                    } else if (input.equals("cache")) {
+                        Debug.PRINT(Server.getResponseCache().toString());
+                        Debug.PRINT(Server.getFileMetaCache().toString());
+                        System.out.print("> ");
+                    } else if (input.equals("log")) {
+                        Debug.PRINT(Debug.levelsToString());
+                        System.out.print("> ");
+                    } else if (input.startsWith("log ")) {
+                        // e.g. "log NONSERVER PARSING", "log all", "log none"
+                        Debug.setLevels(input.substring(4));
+                        Debug.PRINT(Debug.levelsToString());
+                        System.out.print("> ");
+                    } else if (input.equals("buffers")) {
+                        for (Dispatcher d : dispatchers) {
+                            Debug.PRINT("dispatcher " + d.getDispatcherId() + " " + d.getBufferPool().toString());
+                        }
+                        System.out.print("> ");
+                    } else if (input.equals("status")) {
+                        Debug.PRINT(ServerStatus.render(dispatchers, false));
+                        System.out.print("> ");
+                    } else if (input.equals("reload")) {
+                        Debug.PRINT(Server.reload());
+                        System.out.print("> ");
+                    } else if (input.equals("cgi")) {
+                        Debug.PRINT(Server.getCgiExecutor().toString());
+                        Debug.PRINT(Server.getCgiCache().toString());
+                        System.out.print("> ");
+                    } else if (input.equals("proxy")) {
+                        for (Upstream u : Upstream.getAll()) {
+                            Debug.PRINT(u.report());
+                        }
+                        for (Dispatcher d : dispatchers) {
+                            Debug.PRINT("dispatcher " + d.getDispatcherId() + ": " + d.getUpstreamPool().getIdleCount() + " idle upstream connections");
+                        }
+                        System.out.print("> ");
                     } else {
                         Debug.DEBUG("unknown command", DebugType.SERVER);
                         System.out.print("> ");
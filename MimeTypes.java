@@ -0,0 +1,88 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+// File extension to Content-Type table, built once at startup instead of probing every file.
+// Starts with the common web types; TypesConfig <file> adds entries in mime.types format
+// ("text/html html htm", # comments).
+//
+// typical use:
+// MimeTypes.load(new File("/etc/mime.types"));    // optional, in Server.main
+// String contentType = MimeTypes.lookup("index.html");
+
+public class MimeTypes {
+    public static final String DEFAULT_TYPE = "application/octet-stream";
+
+    private static volatile HashMap<String, String> types = defaultTypes();
+
+    // Returns the content type for fileName's extension (case-insensitive), or DEFAULT_TYPE
+    public static String lookup(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot == -1 || dot == fileName.length() - 1) {
+            return DEFAULT_TYPE;
+        }
+        String type = types.get(fileName.substring(dot + 1).toLowerCase());
+        return (type != null) ? type : DEFAULT_TYPE;
+    }
+
+    // Adds the entries of a mime.types file on top of the built-in ones
+    public static void load(File f) throws IOException {
+        HashMap<String, String> loaded = defaultTypes();
+        try (BufferedReader reader = new BufferedReader(new FileReader(f))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int hash = line.indexOf('#');
+                if (hash != -1) {
+                    line = line.substring(0, hash);
+                }
+                String[] arr = line.trim().split("\\s+");
+                for (int i = 1; i < arr.length; i++) {
+                    loaded.put(arr[i].toLowerCase(), arr[0]);
+                }
+            }
+        }
+        types = loaded;
+        Debug.DEBUG(() -> "MimeTypes: " + loaded.size() + " extensions", DebugType.PARSING);
+    }
+
+    // Back to the built-in table only, for a reloaded config without TypesConfig
+    public static void reset() {
+        types = defaultTypes();
+    }
+
+    private static HashMap<String, String> defaultTypes() {
+        String[][] table = {
+            { "text/html", "html", "htm" },
+            { "text/plain", "txt", "text", "log" },
+            { "text/css", "css" },
+            { "text/csv", "csv" },
+            { "text/xml", "xml" },
+            { "text/javascript", "js", "mjs" },
+            { "application/json", "json" },
+            { "application/pdf", "pdf" },
+            { "application/zip", "zip" },
+            { "application/gzip", "gz" },
+            { "application/wasm", "wasm" },
+            { "image/jpeg", "jpg", "jpeg" },
+            { "image/png", "png" },
+            { "image/gif", "gif" },
+            { "image/svg+xml", "svg" },
+            { "image/webp", "webp" },
+            { "image/x-icon", "ico" },
+            { "audio/mpeg", "mp3" },
+            { "video/mp4", "mp4" },
+            { "video/webm", "webm" },
+            { "font/woff", "woff" },
+            { "font/woff2", "woff2" },
+        };
+        HashMap<String, String> map = new HashMap<String, String>();
+        for (String[] row : table) {
+            for (int i = 1; i < row.length; i++) {
+                map.put(row[i], row[0]);
+            }
+        }
+        return map;
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One ProxyPass line of a virtual host: requests whose url starts with prefix go to one of its
+// upstreams, with the prefix replaced by that upstream's path. Routes are part of a ServerConfig and
+// never change; the Upstreams they pick from outlive reloads.
+//
+// typical use:
+// ProxyRoute route = new ProxyRoute("ProxyPass /api http://10.0.0.5:8080/v1 http://10.0.0.6:8080/v1");
+// Upstream u = route.pick();               // null: every upstream is down
+// String path = route.upstreamUrl(u, "/api/users?id=3");      // "/v1/users?id=3"
+//
+// config (inside <VirtualHost>, may repeat; the longest matching prefix wins):
+// ProxyPass <prefix> http://host[:port][/path] ... [balance=roundrobin|leastoutstanding]
+
+public class ProxyRoute {
+    private final String prefix;
+    private final Upstream[] upstreams;
+    private final String[] paths;           // per upstream, without trailing /
+    private final boolean leastOutstanding;
+    private final AtomicInteger next;
+
+    public ProxyRoute(String line) throws IOException {
+        String[] arr = line.trim().split("\\s+");
+        if (arr.length < 3 || !arr[1].startsWith("/")) {
+            throw new IOException("ProxyPass: expected <prefix> <url> ...");
+        }
+        prefix = arr[1].endsWith("/") && arr[1].length() > 1 ? arr[1].substring(0, arr[1].length() - 1) : arr[1];
+
+        ArrayList<Upstream> us = new ArrayList<Upstream>();
+        ArrayList<String> ps = new ArrayList<String>();
+        boolean least = false;
+        for (int i = 2; i < arr.length; i++) {
+            if (arr[i].startsWith("balance=")) {
+                String balance = arr[i].substring(8);
+                if (balance.equals("leastoutstanding")) {
+                    least = true;
+                } else if (!balance.equals("roundrobin")) {
+                    throw new IOException("ProxyPass: unknown balance " + balance);
+                }
+                continue;
+            }
+            parseUpstream(arr[i], us, ps);
+        }
+        if (us.isEmpty()) {
+            throw new IOException("ProxyPass: no upstream for " + prefix);
+        }
+
+        upstreams = us.toArray(new Upstream[0]);
+        paths = ps.toArray(new String[0]);
+        leastOutstanding = least;
+        next = new AtomicInteger();
+    }
+
+    // http://host[:port][/path]; https is not supported
+    private static void parseUpstream(String url, List<Upstream> us, List<String> ps) throws IOException {
+        if (!url.startsWith("http://")) {
+            throw new IOException("ProxyPass: upstream must be http://host[:port][/path]: " + url);
+        }
+        String rest = url.substring(7);
+        int slash = rest.indexOf('/');
+        String authority = (slash < 0) ? rest : rest.substring(0, slash);
+        String path = (slash < 0) ? "" : rest.substring(slash);
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+
+        String host = authority;
+        int port = 80;
+        int colon = authority.lastIndexOf(':');
+        if (colon >= 0) {
+            host = authority.substring(0, colon);
+            try {
+                port = Integer.parseInt(authority.substring(colon + 1));
+            } catch (NumberFormatException ex) {
+                throw new IOException("ProxyPass: bad port in " + url);
+            }
+        }
+        if (host.isEmpty()) {
+            throw new IOException("ProxyPass: missing host in " + url);
+        }
+        us.add(Upstream.get(host, port));
+        ps.add(path);
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    // url is below prefix: the prefix itself, or followed by /, ? or nothing else
+    public boolean matches(String url) {
+        if (!url.startsWith(prefix)) {
+            return false;
+        }
+        if (prefix.equals("/") || url.length() == prefix.length()) {
+            return true;
+        }
+        char c = url.charAt(prefix.length());
+        return c == '/' || c == '?';
+    }
+
+    // Next upstream to send a request to, skipping those marked down; null if all are down
+    public Upstream pick() {
+        int n = upstreams.length;
+        int start = Math.floorMod(next.getAndIncrement(), n);
+        Upstream best = null;
+        for (int i = 0; i < n; i++) {
+            Upstream u = upstreams[(start + i) % n];
+            if (!u.isUp()) {
+                continue;
+            }
+            if (!leastOutstanding) {
+                return u;
+            }
+            // ties go round robin, from start
+            if (best == null || u.outstanding() < best.outstanding()) {
+                best = u;
+            }
+        }
+        return best;
+    }
+
+    // url as sent to u: the route's prefix replaced by u's path
+    public String upstreamUrl(Upstream u, String url) {
+        String path = "";
+        for (int i = 0; i < upstreams.length; i++) {
+            if (upstreams[i] == u) {
+                path = paths[i];
+                break;
+            }
+        }
+        String rest = prefix.equals("/") ? url : url.substring(prefix.length());
+        if (!rest.startsWith("/")) {
+            // the prefix itself, maybe with a query
+            return (path.isEmpty() ? "/" : path) + rest;
+        }
+        return path + rest;
+    }
+}
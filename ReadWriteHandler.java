@@ -1,6 +1,7 @@
 // Code modified from https://zoo.cs.yale.edu/classes/cs434/cs434-2023-fall/assignments/programming-proj1/examples/SelectServer/EchoLineReadWriteHandler.java
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -8,116 +9,523 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.Authenticator.RequestorType;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.*;
 import java.nio.channels.*;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-
-// for response header Date
-import java.time.format.DateTimeFormatter;
-import java.time.Instant;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-
-public class ReadWriteHandler implements IReadWriteHandler {
-    private ByteBuffer inBuffer;
-    private StringBuffer requestBuffer;
-    private StringBuffer cgiContentBuffer;
-    private int cgiContentLength;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.DeflaterOutputStream;
+
+public class ReadWriteHandler implements IReadWriteHandler, IProxyOutputHandler {
+    // files at least this large are sent from memory mappings instead of transferTo
+    private static final long DEFAULT_MMAP_THRESHOLD = 8L * 1024 * 1024;
+    // largest POST body accepted before answering 413
+    public static final long DEFAULT_MAX_CONTENT_LENGTH = 10L * 1024 * 1024;
+    // cgi bodies up to this size are also the script's QUERY_STRING; larger ones with a Content-Length are streamed
+    private static final long DEFAULT_CGI_QUERY_STRING_MAX = 4096;
+    // responses queued before we stop reading further pipelined requests
+    private static final long DEFAULT_MAX_PIPELINED_REQUESTS = 16;
+    // idle time between keep-alive requests before the connection is closed
+    public static final long DEFAULT_KEEPALIVE_TIMEOUT = 5000;
+    // time to receive a whole request head, from connect or from its first byte (408 when exceeded)
+    private static final long DEFAULT_HEADER_TIMEOUT = 10000;
+    // longest pause while receiving a request body (408 when exceeded)
+    private static final long DEFAULT_BODY_TIMEOUT = 10000;
+
+    private static final int IN_BUFFER_SIZE = 4096;
+    // most ranges served as one multipart response, after overlapping ones are merged; more get the whole file
+    private static final int MAX_RANGES = 16;
+
+    // request headers not passed on to a proxy upstream: hop-by-hop (RFC 9110 7.6.1), and those the
+    // proxy writes itself
+    private static final Set<String> PROXY_DROPPED_HEADERS = new HashSet<String>(Arrays.asList(
+        "host", "connection", "keep-alive", "proxy-connection", "te", "trailer", "transfer-encoding", "upgrade",
+        "expect", "content-length", "http2-settings", "x-forwarded-host", "x-forwarded-proto"));
+
+    private Dispatcher dispatcher;      // owner of this connection's selector
+    private BufferPool bufferPool;      // dispatcher's buffers; inBuffer and outBuffers come from here
+    private SocketChannel channel;
+
+    // serve(): blocking I/O on a thread of this connection's own, instead of selector events;
+    // cgi output arrives through cgiCallbacks, timeouts are socket read timeouts until blockingDeadline
+    private boolean blocking;
+    private BlockingQueue<Runnable> cgiCallbacks;
+    private long blockingDeadline;      // 0: none
+
+    // HTTP/2 stream (Http2ReadWriteHandler): this handler answers a single request and its response is
+    // taken with readResponse instead of written to the channel; streamUpdated runs whenever more of
+    // it was queued outside the connection handler's own calls (cgi output)
+    private Runnable streamUpdated;
+    private boolean streamFailed;       // the response broke off after its head; the stream is reset
+    // h2c: the client preface or an Upgrade: h2c request hands the connection to an Http2ReadWriteHandler
+    private boolean h2c;
+
+    private ByteBuffer inBuffer;        // borrowed while unparsed bytes are held; null otherwise
+    private RequestParser parser;
+    private long cgiContentLength;         // body bytes still to read; -1: chunked
+    private ChunkedDecoder chunkedDecoder; // Transfer-Encoding: chunked body, null otherwise
+    private RequestBody requestBody;       // a cgi or proxied request's body
+    private String cgiScript;              // the POST's script, as CgiExecutor.resolveScript names it
+    private boolean bodyStreaming;         // requestBody goes to the running script as it arrives
 
     private Request request;
     private boolean keepalive;
+    private boolean inputClosed;        // client sent EOF; answer what was received, then close
+    private int maxPipelinedRequests;
     private String url;         // possibly modified during content selection; does not include doc_root
 
-    private StringBuffer cgiOutputBuffer;
     private ByteBuffer outBuffer;
 
+    // cgi script (or proxy upstream) currently streaming its output into responseBody
+    private IResponseStream responseStream;
+    // ProxyPass route of the current request; null if it is served here
+    private ProxyRoute proxyRoute;
+    private boolean cgiHeadersSent;
+    private boolean cgiChunked;        // HTTP/1.1: chunked body; HTTP/1.0: body ends when the connection closes
+    // compresses the script's output as it arrives, flushed after every piece; null if sent as is
+    private DeflaterOutputStream cgiCompressor;
+    private ByteArrayOutputStream cgiCompressed;
+
+    // everything still to be sent, in order, for all queued responses: each response's header buffer,
+    // then its cached response or file regions
+    private ResponseBody responseBody;
+    // set when the requested file was found in the shared response cache
+    private ResponseCache.Entry cacheEntry;
+    // doc root of the current request's virtual host, without leading /
+    private String docRoot;
+
+    // content coding of the response being generated (null: identity); sidecar is the .br/.gz file sent
+    // for it (null when compressed on the fly), encodedContentType the Content-Type of the file it encodes
+    private String contentEncoding;
+    private FileMetaCache.Entry sidecar;
+    private String encodedContentType;
+    // the url has encoded variants, so responses carry Vary: Accept-Encoding
+    private boolean varyAcceptEncoding;
+    private boolean compression;
+    private int compressionLevel;
+    private long compressMinSize;
+    private long compressMaxSize;
+    private long compressMaxRatio;
+
     private enum State {
         READING_REQUEST, 
         READING_CONTENT,
         PROCESSING_REQUEST,
+        WAITING_CGI,            // cgi script running on a CgiExecutor worker; no further requests read
         SENDING_RESPONSE, 
-        CONN_CLOSED
+        CONN_CLOSED,
+        UPGRADING,              // h2c preface or upgrade request received; switching at the end of this event
+        SWITCHED                // the connection belongs to an Http2ReadWriteHandler now
     }
     private State state;
 
-    public ReadWriteHandler() {
-        inBuffer = ByteBuffer.allocate(4096);
-        requestBuffer = new StringBuffer(14096);
+    // which timeout is armed on the dispatcher's timer wheel; 0 in the config disables one
+    private enum TimeoutPhase {
+        NONE,
+        HEADER,
+        BODY,
+        KEEPALIVE
+    }
+    private TimeoutPhase timeoutPhase;
+    private TimerWheel.Timeout timeout;
+    private long keepAliveTimeout;
+    private long headerTimeout;
+    private long bodyTimeout;
+    private int requestCount;          // responses generated on this connection
+
+    // access log entry of the response being generated
+    private boolean logAccess;
+    private String remoteAddress;
+    private int responseStatus;
+    private long responseBytes;        // body bytes, not counting headers or chunk framing
+
+    // dispatcher's counters and latency histograms
+    private DispatcherMetrics metrics;
+    private long parseNanos;           // spent parsing the current request head, over all reads
+    private long cgiStartNanos;
+
+    public ReadWriteHandler(Dispatcher dispatcher) {
+        this(dispatcher, dispatcher.getBufferPool());
+    }
+
+    // bufferPool must only be used by the thread serving this connection, unless it is shared
+    public ReadWriteHandler(Dispatcher dispatcher, BufferPool bufferPool) {
+        this.dispatcher = dispatcher;
+        this.bufferPool = bufferPool;
+        metrics = dispatcher.getMetrics();
+        parser = new RequestParser((int) Server.getConfigValue("MaxRequestLine", RequestParser.DEFAULT_MAX_REQUEST_LINE),
+                (int) Server.getConfigValue("MaxHeaderSize", RequestParser.DEFAULT_MAX_HEADER_SIZE), bufferPool);
 
         keepalive = false;
+        inputClosed = false;
+        maxPipelinedRequests = (int) Server.getConfigValue("MaxPipelinedRequests", DEFAULT_MAX_PIPELINED_REQUESTS);
+
+        keepAliveTimeout = Server.getConfigValue("KeepAliveTimeout", DEFAULT_KEEPALIVE_TIMEOUT);
+        headerTimeout = Server.getConfigValue("HeaderTimeout", DEFAULT_HEADER_TIMEOUT);
+        bodyTimeout = Server.getConfigValue("BodyTimeout", DEFAULT_BODY_TIMEOUT);
+        timeoutPhase = TimeoutPhase.NONE;
 
-        // TODO: cgi output limited to 4096 chars per chunk
-        cgiOutputBuffer = new StringBuffer(4096);
-        outBuffer = ByteBuffer.allocate(4096);
+        responseBody = new ResponseBody();
+
+        compression = !Server.getConfigString("Compression", "on").equals("off");
+        compressionLevel = (int) Server.getConfigValue("CompressionLevel", ContentEncoding.DEFAULT_LEVEL);
+        compressMinSize = Server.getConfigValue("CompressMinSize", ContentEncoding.DEFAULT_MIN_SIZE);
+        compressMaxSize = Server.getConfigValue("CompressMaxSize", ContentEncoding.DEFAULT_MAX_SIZE);
+        compressMaxRatio = Server.getConfigValue("CompressMaxRatio", ContentEncoding.DEFAULT_MAX_RATIO);
+        h2c = !Server.getConfigString("H2c", "on").equals("off");
 
         state = State.READING_REQUEST;
     }
 
+    // one stream of an HTTP/2 connection on channel; see serveStream
+    public ReadWriteHandler(Dispatcher dispatcher, SocketChannel channel, Runnable streamUpdated) {
+        this(dispatcher);
+        this.streamUpdated = streamUpdated;
+        h2c = false;
+        startConnection(channel);
+    }
+
     public int getInitOps() {
         return SelectionKey.OP_READ;
     }
 
+    public void handleConnected(SelectionKey key) {
+        startConnection((SocketChannel) key.channel());
+        timeout = new TimerWheel.Timeout(() -> handleTimeout(key));
+        updateTimeout(key);
+    }
+
+    private void startConnection(SocketChannel client) {
+        channel = client;
+        logAccess = (Server.getAccessLog() != null);
+        if (logAccess) {
+            remoteAddress = client.socket().getInetAddress().getHostAddress();
+        }
+    }
+
+    // Serves the connection with blocking I/O on the calling thread until it is closed (Engine virtual:
+    // one virtual thread per connection). Requests go through the same parsing and response generation
+    // as handleRead/handleWrite; responses are written as soon as they are generated, and a cgi
+    // script's output is taken from cgiCallbacks while this thread waits for it.
+    public void serve(SocketChannel client) {
+        blocking = true;
+        h2c = false;        // HTTP/2 needs the selector dispatchers
+        cgiCallbacks = new LinkedBlockingQueue<Runnable>();
+        try {
+            client.configureBlocking(true);
+            startConnection(client);
+            Socket socket = client.socket();
+            // reads through the socket's stream honour SO_TIMEOUT, channel reads do not
+            ReadableByteChannel in = Channels.newChannel(socket.getInputStream());
+            updateTimeout(null);
+
+            while (state != State.CONN_CLOSED) {
+                if (state == State.WAITING_CGI) {
+                    cgiCallbacks.take().run();
+                    if (state != State.WAITING_CGI) {
+                        processRequestsBlocking();
+                    }
+                    continue;
+                }
+
+                long wait = 0;
+                if (blockingDeadline > 0) {
+                    wait = blockingDeadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        handleTimeout(null);
+                        continue;
+                    }
+                }
+                socket.setSoTimeout((int) Math.min(wait, Integer.MAX_VALUE));
+
+                if (inBuffer == null) {
+                    inBuffer = bufferPool.borrow(IN_BUFFER_SIZE);
+                }
+                int readBytes;
+                try {
+                    readBytes = in.read(inBuffer);
+                } catch (SocketTimeoutException ex) {
+                    continue;
+                }
+                if (readBytes > 0) {
+                    metrics.countBytesIn(readBytes);
+                } else if (readBytes == -1) {
+                    inputClosed = true;
+                }
+                processRequestsBlocking();
+            }
+        } catch (IOException | InterruptedException ex) {
+            Debug.DEBUG(() -> "ReadWriteHandler: serve: " + ex, DebugType.NONSERVER);
+            closeOnError(null);
+        }
+    }
+
+    // Answers the requests in inBuffer, writing the responses out, until only a partial request is left
+    private void processRequestsBlocking() throws IOException {
+        int answered;
+        do {
+            answered = requestCount;
+            processRequestsInBuffer(null);
+            updateSelectorState(null);
+        } while (requestCount != answered && inBuffer != null
+                && (state == State.READING_REQUEST || state == State.READING_CONTENT));
+    }
+
+    // Answers one HTTP/2 request, decoded by the connection's Http2ReadWriteHandler; content is the
+    // body of any request but a GET. The response is generated as for HTTP/1.x (its head becomes the HEADERS frame)
+    // and taken with readResponse, all at once for files or as a cgi script writes its output.
+    public void serveStream(Request request, ByteBuffer content) {
+        this.request = request;
+
+        LoadMonitor loadMonitor = Server.getLoadMonitor();
+        if (loadMonitor.isLowPriority(request) && loadMonitor.isOverloaded()) {
+            metrics.countShedRequest();
+            generateResponseWithCode(503, "Service Unavailable", null);
+            return;
+        }
+
+        proxyRoute = Server.getProxyRoute(request.lookupHeader(Request.HOST), request.getReqUrl());
+        if (request.getReqMethod() == ReqMethod.POST || (proxyRoute != null && content != null)) {
+            if (startReadingContent(null)) {
+                try {
+                    if (content != null) {
+                        requestBody.write(content);
+                    }
+                    requestBody.finish();
+                } catch (IOException ex) {
+                    generateResponseWithCode(500, "Internal Server Error", null);
+                    return;
+                }
+                state = State.WAITING_CGI;
+                if (proxyRoute != null) {
+                    performProxy(null);
+                } else {
+                    performCgi(null);
+                }
+            }
+            return;
+        }
+        if (proxyRoute != null) {
+            state = State.WAITING_CGI;
+            performProxy(null);
+            return;
+        }
+        try {
+            generateResponse();
+        } catch (IOException ex) {
+            streamFailed = true;
+        }
+    }
+
+    // Copies queued response bytes into dst; returns number of bytes copied
+    public int readResponse(ByteBuffer dst) throws IOException {
+        return responseBody.read(dst);
+    }
+
+    // true once the whole response has been generated and taken
+    public boolean isResponseDone() {
+        return state != State.WAITING_CGI && responseBody.isEmpty();
+    }
+
+    public boolean isStreamFailed() {
+        return streamFailed;
+    }
+
+    // stream reset or connection closed: stops a running cgi script and drops the rest of the response
+    public void cancelStream() {
+        cancelCgi();
+        responseBody.release();
+        releaseRequestBuffers();
+        state = State.CONN_CLOSED;
+    }
+
     public void handleException() {
-        System.out.println("ReadWriteHandler: handleException()");
+        Debug.DEBUG("ReadWriteHandler: handleException()", DebugType.NONSERVER);
+        cancelTimeout();
+        cancelCgi();
+        responseBody.release();
+        releaseRequestBuffers();
+        if (state != State.CONN_CLOSED) {
+            state = State.CONN_CLOSED;
+            dispatcher.connectionClosed();
+        }
     }
 
     private void updateSelectorState(SelectionKey key) throws IOException {
 		Debug.DEBUG("updating selector state ...", DebugType.NONSERVER);
 
+        // HTTP/2 stream: the connection's handler takes the response from here
+        if (streamUpdated != null) {
+            streamUpdated.run();
+            return;
+        }
+
+        // blocking: no selector to wait for, send everything queued now
+        if (blocking && state != State.CONN_CLOSED) {
+            while (!responseBody.isEmpty()) {
+                writeResponseBody();
+            }
+            if (state == State.SENDING_RESPONSE) {
+                state = State.CONN_CLOSED;
+            }
+        }
+
         if (state == State.CONN_CLOSED) {
             Debug.DEBUG("Connection closed; shutdown", DebugType.NONSERVER);
+            cancelTimeout();
+            cancelCgi();
+            responseBody.release();
+            releaseRequestBuffers();
+            dispatcher.connectionClosed();
             try {
-                key.channel().close();
-                key.cancel();
+                channel.close();
+                if (key != null) {
+                    key.cancel();
+                }
                 // in a more general design, call have a handleException
             } catch (IOException cex) {
             }
             return;
         }
+        if (blocking) {
+            updateTimeout(null);
+            return;
+        }
 
 		int nextState = key.interestOps();
 
-        switch (state) {
-            case READING_REQUEST:
-            case READING_CONTENT:
-                nextState = nextState | SelectionKey.OP_READ;
-                nextState = nextState & ~SelectionKey.OP_WRITE;
-                Debug.DEBUG("New state: reading -> +Read -Write", DebugType.NONSERVER);
-                break;
-            case PROCESSING_REQUEST:
-                nextState = nextState & ~SelectionKey.OP_READ;
-                nextState = nextState & ~SelectionKey.OP_WRITE;
-                Debug.DEBUG("New state: processing -> -Read -Write", DebugType.NONSERVER);
-                break;
-            case SENDING_RESPONSE:
-                nextState = nextState & ~SelectionKey.OP_READ;
-                nextState = nextState | SelectionKey.OP_WRITE;
-                Debug.DEBUG("New state: writing -> -Read +Write", DebugType.NONSERVER);
-                break;
+        // write whenever responses are queued; keep reading pipelined requests until too many responses are queued
+        if (!responseBody.isEmpty()) {
+            nextState = nextState | SelectionKey.OP_WRITE;
+        } else {
+            nextState = nextState & ~SelectionKey.OP_WRITE;
+        }
+
+        boolean reading = (state == State.READING_REQUEST || state == State.READING_CONTENT || (bodyStreaming && requestBody.hasRoom()));
+        if (reading && !inputClosed && responseBody.getPendingResponses() < maxPipelinedRequests) {
+            nextState = nextState | SelectionKey.OP_READ;
+        } else {
+            nextState = nextState & ~SelectionKey.OP_READ;
         }
+        Debug.DEBUG(() -> "New state: " + state + ", " + responseBody.getPendingResponses() + " responses queued", DebugType.NONSERVER);
 
 		key.interestOps(nextState);
+		updateTimeout(key);
 	}
 
+    // Arms the timeout matching the connection's state: the header timeout runs from connect (or the
+    // first byte of a later request) to the end of the head, the body timeout restarts on every update
+    // while content is read, the keep-alive timeout runs while idle between requests
+    private void updateTimeout(SelectionKey key) {
+        TimeoutPhase phase;
+        if (state == State.READING_REQUEST && parser.hasStarted()) {
+            phase = TimeoutPhase.HEADER;
+        } else if (state == State.READING_REQUEST && responseBody.isEmpty()) {
+            phase = (requestCount == 0) ? TimeoutPhase.HEADER : TimeoutPhase.KEEPALIVE;
+        } else if (state == State.READING_CONTENT || (bodyStreaming && requestBody.hasRoom())) {
+            phase = TimeoutPhase.BODY;
+        } else {
+            phase = TimeoutPhase.NONE;
+        }
+
+        if (phase == timeoutPhase && phase != TimeoutPhase.BODY) {
+            return;
+        }
+        timeoutPhase = phase;
+
+        long delay = 0;
+        if (phase == TimeoutPhase.HEADER) {
+            delay = headerTimeout;
+        } else if (phase == TimeoutPhase.BODY) {
+            delay = bodyTimeout;
+        } else if (phase == TimeoutPhase.KEEPALIVE) {
+            delay = keepAliveTimeout;
+        }
+
+        if (blocking) {
+            // serve() reads with a socket timeout up to here
+            blockingDeadline = (delay > 0) ? System.currentTimeMillis() + delay : 0;
+            return;
+        }
+        TimerWheel wheel = dispatcher.getTimerWheel();
+        if (delay > 0) {
+            wheel.schedule(timeout, delay, System.currentTimeMillis());
+        } else {
+            wheel.cancel(timeout);
+        }
+    }
+
+    // Idle connections are closed quietly; a partly received request gets 408 before closing
+    private void handleTimeout(SelectionKey key) {
+        if (state == State.CONN_CLOSED || !channel.isOpen()) {
+            return;
+        }
+        Debug.DEBUG(() -> "ReadWriteHandler: " + timeoutPhase + " timeout", DebugType.NONSERVER);
+
+        if (bodyStreaming) {
+            // the script is already answering: too late for a 408
+            state = State.CONN_CLOSED;
+        } else if (timeoutPhase == TimeoutPhase.BODY || (timeoutPhase == TimeoutPhase.HEADER && parser.hasStarted())) {
+            if (state == State.READING_REQUEST) {
+                request = parser.getRequest();
+            }
+            keepalive = false;
+            releaseInBuffer();
+            generateResponseWithCode(408, statusMessage(408), null);
+        } else {
+            state = State.CONN_CLOSED;
+        }
+        timeoutPhase = TimeoutPhase.NONE;
+
+        try {
+            updateSelectorState(key);
+        } catch (IOException ex) {
+            closeOnError(key);
+        }
+    }
+
+    private void cancelTimeout() {
+        if (timeout != null) {
+            dispatcher.getTimerWheel().cancel(timeout);
+        }
+        timeoutPhase = TimeoutPhase.NONE;
+    }
+
     public void handleRead(SelectionKey key) throws IOException {
 		// a connection is ready to be read
 		Debug.DEBUG("ReadWriteHandler: connection ready to be read", DebugType.NONSERVER);
 
-		if (state != State.READING_REQUEST && state != State.READING_CONTENT) { // this call should not happen, ignore
+		if (state != State.READING_REQUEST && state != State.READING_CONTENT && !bodyStreaming) { // this call should not happen, ignore
 			return;
 		}
 
-		// process incoming request
-		processRequestInBuffer(key);
+		SocketChannel client = (SocketChannel) key.channel();
+		if (inBuffer == null) {
+			inBuffer = bufferPool.borrow(IN_BUFFER_SIZE);
+		}
+		int readBytes = client.read(inBuffer);
+		if (readBytes > 0) {
+			metrics.countBytesIn(readBytes);
+		}
+		Debug.DEBUG(() -> "handleRead: Read data from connection " + client + " for " + readBytes + " byte(s); to buffer "
+				+ inBuffer, DebugType.NONSERVER);
 
-        if (state == State.PROCESSING_REQUEST) {
-            generateResponse();
-        }
+		if (readBytes == -1) { // end of stream; still answer requests already received
+			inputClosed = true;
+			Debug.DEBUG("handleRead: readBytes == -1", DebugType.NONSERVER);
+		}
+
+		// process incoming requests; several may have arrived in one segment
+		processRequestsInBuffer(key);
+		if (state == State.UPGRADING) {
+			switchToHttp2(key);
+			return;
+		}
 
 		// update state
 		updateSelectorState(key);
@@ -126,118 +534,399 @@ public class ReadWriteHandler implements IReadWriteHandler {
 	public void handleWrite(SelectionKey key) throws IOException {
 		Debug.DEBUG("ReadWriteHandler: data ready to be written", DebugType.NONSERVER);
 
-		// process data
+		// process data; queued responses go out together in gathering writes
 		SocketChannel client = (SocketChannel) key.channel();
-		Debug.DEBUG("handleWrite: Write data to connection " + client + "; from buffer " + outBuffer, DebugType.NONSERVER);
-		int writeBytes = client.write(outBuffer);
-		Debug.DEBUG("handleWrite: write " + writeBytes + " bytes; after write " + outBuffer, DebugType.NONSERVER);
-
-		if (state == State.SENDING_RESPONSE && (outBuffer.remaining() == 0)) {
-            if (keepalive) 
-			    state = State.READING_REQUEST;
-            else
-                state = State.CONN_CLOSED;
+		Debug.DEBUG(() -> "handleWrite: Write data to connection " + client + "; from buffer " + outBuffer, DebugType.NONSERVER);
+		long writeBytes = writeResponseBody();
+		Debug.DEBUG(() -> "handleWrite: write " + writeBytes + " bytes; after write " + outBuffer, DebugType.NONSERVER);
 
+		if (responseBody.isEmpty()) {
 			Debug.DEBUG("handleWrite: response sent", DebugType.NONSERVER);
 		}
 
-        outBuffer.clear();
+		// pipelined requests left in inBuffer while the response queue was full
+		if (responseBody.getPendingResponses() < maxPipelinedRequests) {
+			processRequestsInBuffer(key);
+			if (state == State.UPGRADING) {
+				switchToHttp2(key);
+				return;
+			}
+		}
 
 		// update state
 		updateSelectorState(key);
 	}
 
-	private void processRequestInBuffer(SelectionKey key) throws IOException {
-		Debug.DEBUG("processInBuffer", DebugType.NONSERVER);
+	private long writeResponseBody() throws IOException {
+		long writeStart = System.nanoTime();
+		long writeBytes = responseBody.writeTo(channel);
+		metrics.getWriteLatency().record(System.nanoTime() - writeStart);
+		metrics.countBytesOut(writeBytes);
+		return writeBytes;
+	}
 
-		SocketChannel client = (SocketChannel) key.channel();
-		int readBytes = client.read(inBuffer);
-		Debug.DEBUG("handleRead: Read data from connection " + client + " for " + readBytes + " byte(s); to buffer "
-				+ inBuffer, DebugType.NONSERVER);
+	// Parses and answers every complete request in inBuffer, keeping any partial one for the next read.
+	// inBuffer is in fill mode (ready for client.read) before and after, and given back once empty.
+	private void processRequestsInBuffer(SelectionKey key) throws IOException {
+		Debug.DEBUG("processInBuffer", DebugType.NONSERVER);
 
-		if (readBytes == -1) { // end of stream
-			state = State.SENDING_RESPONSE;
-			Debug.DEBUG("handleRead: readBytes == -1", DebugType.NONSERVER);
-		} else {
-            // TODO: throw 413 Entity Too Large if buffer overflow
+		if (inBuffer != null) {
 			inBuffer.flip(); // read input
 
-            while (state != State.PROCESSING_REQUEST && inBuffer.hasRemaining() && requestBuffer.length() < requestBuffer.capacity()) {
-                char ch = (char) inBuffer.get();
-
-                // read into request buffer
-                if (state == State.READING_REQUEST) {
-                    // Debug.DEBUG("Ch: " + String.valueOf(ch) + " (" + Integer.toString(ch) + ")", DebugType.NONSERVER);
-                    requestBuffer.append(ch);
-
-                    // "\n\r\n" (Windows) or "\r\r\n" (Mac) signal end of headers
-                    if (requestBuffer.length() >= 3 && 
-                            (requestBuffer.substring(requestBuffer.length() - 3).equals("\n\r\n") || 
-                            requestBuffer.substring(requestBuffer.length() - 3).equals("\r\r\n"))) {
-                        Debug.DEBUG("handleRead: found terminating chars", DebugType.NONSERVER);
-                        
-                        request = new Request();
-                        boolean successfulParse = request.parseRequest(requestBuffer.toString());
-
-                        if (!successfulParse) {
-                            inBuffer.clear();
-                            generateResponseWithCode(400, "Bad Request", null);
-                            return;
-                        }
-
-                        // process cgi content if necessary
-                        if (request.getReqMethod() == ReqMethod.POST) {
-                            // TODO: throw error if we are missing this header
-
-                            cgiContentLength = Integer.parseInt(request.lookupHeader("Content-Length"));
-                            cgiContentBuffer = new StringBuffer(cgiContentLength+3);
-
-                            state = State.READING_CONTENT;
-                        } else {
-                            state = State.PROCESSING_REQUEST;
-                        }
-                    }
+			// h2c with prior knowledge: the HTTP/2 client preface in place of a first request; wait while
+			// what arrived so far could still be one
+			boolean preface = false;
+			if (h2c && requestCount == 0 && state == State.READING_REQUEST && !parser.hasStarted()) {
+				int match = Http2ReadWriteHandler.matchPreface(inBuffer);
+				if (match == Http2ReadWriteHandler.PREFACE_COMPLETE) {
+					state = State.UPGRADING;
+				}
+				preface = (match != Http2ReadWriteHandler.PREFACE_MISMATCH);
+			}
+
+			while (!preface && (state == State.READING_REQUEST || state == State.READING_CONTENT || (bodyStreaming && requestBody.hasRoom()))
+					&& inBuffer.hasRemaining() && responseBody.getPendingResponses() < maxPipelinedRequests) {
+				processRequestInBuffer(key);
+
+				if (state == State.PROCESSING_REQUEST) {
+					generateResponse();
+				}
+			}
+
+			// a POST with no body can complete without any bytes left
+			if (state == State.READING_CONTENT && cgiContentLength == 0) {
+				processRequestInBuffer(key);
+				if (state == State.PROCESSING_REQUEST) {
+					generateResponse();
+				}
+			}
+
+			// keep leftover bytes of the next request
+			inBuffer.compact();
+			if (inBuffer.position() == 0) {
+				releaseInBuffer();
+			}
+		}
+
+		if (inputClosed && (state == State.READING_REQUEST || state == State.READING_CONTENT)) {
+			state = responseBody.isEmpty() ? State.CONN_CLOSED : State.SENDING_RESPONSE;
+		} else if (inputClosed && bodyStreaming) {
+			// the body broke off; the script must not take it for the whole input
+			state = State.CONN_CLOSED;
+		}
+		if (state == State.SENDING_RESPONSE && responseBody.isEmpty()) {
+			state = State.CONN_CLOSED;
+		}
+	}
+
+	// Consumes bytes of one request (head, then content) from inBuffer
+	private void processRequestInBuffer(SelectionKey key) throws IOException {
+        // parse request head straight from the bytes read; the parser keeps its place between reads
+        if (state == State.READING_REQUEST) {
+            long parseStart = System.nanoTime();
+            int result = parser.parse(inBuffer);
+            parseNanos += System.nanoTime() - parseStart;
+
+            if (result == RequestParser.DONE) {
+                metrics.getParseLatency().record(parseNanos);
+                request = parser.getRequest();
+                Debug.DEBUG("handleRead: found end of headers", DebugType.NONSERVER);
+
+                // overloaded: refuse low-priority work before reading a body or touching the disk
+                LoadMonitor loadMonitor = Server.getLoadMonitor();
+                if (loadMonitor.isLowPriority(request) && loadMonitor.isOverloaded()) {
+                    metrics.countShedRequest();
+                    keepalive = false;
+                    inBuffer.clear();
+                    inBuffer.flip();
+                    generateResponseWithCode(503, "Service Unavailable", null);
+                    return;
+                }
+
+                // the response to an Upgrade: h2c request goes out as HTTP/2 stream 1
+                if (isH2cUpgrade()) {
+                    state = State.UPGRADING;
+                    return;
                 }
 
-                // read into content buffer
-                else if (state == State.READING_CONTENT) {
-                    Debug.DEBUG("Writing ch to cgi buf: " + String.valueOf(ch) + " (" + Integer.toString(ch) + ")", DebugType.NONSERVER);
-                    cgiContentBuffer.append(ch);
-                    cgiContentLength--;
+                proxyRoute = Server.getProxyRoute(request.lookupHeader(Request.HOST), request.getReqUrl());
 
-                    if (cgiContentLength == 0) {
-                        state = State.PROCESSING_REQUEST;
-                        performCgi(key);
-                        break;
+                // process cgi content (or a proxied request's body) if necessary
+                if (request.getReqMethod() == ReqMethod.POST || (proxyRoute != null && hasContent())) {
+                    if (!startReadingContent(key)) {
+                        inBuffer.clear();
+                        inBuffer.flip();
+                        return;
                     }
+                } else if (proxyRoute != null) {
+                    state = State.WAITING_CGI;
+                    performProxy(key);
+                } else {
+                    state = State.PROCESSING_REQUEST;
                 }
+            } else if (result != RequestParser.NEED_MORE) {
+                // malformed or oversized request head
+                request = parser.getRequest();
+                keepalive = false;
+                inBuffer.clear();
+                inBuffer.flip();
+                generateResponseWithCode(result, statusMessage(result), null);
+                return;
             }
-		}
+        }
 
-		inBuffer.clear();
+        readContent(key);
 	}
 
+    // Moves body bytes from inBuffer to the content buffer or the request body, and starts the cgi script
+    // or proxied exchange once the body is complete; a streamed body goes to the script already running.
+    // Stops early when inBuffer runs out or a streamed body's window is full.
+    private void readContent(SelectionKey key) throws IOException {
+        while (state == State.READING_CONTENT || bodyStreaming) {
+            if (chunkedDecoder != null && !chunkedDecoder.isDone()) {
+                if (!inBuffer.hasRemaining()) {
+                    return;
+                }
+                ByteBuffer data = chunkedDecoder.decode(inBuffer);
+                if (chunkedDecoder.isError()) {
+                    keepalive = false;
+                    inBuffer.clear();
+                    inBuffer.flip();
+                    generateResponseWithCode(400, statusMessage(400), null);
+                    return;
+                }
+                if (requestBody.getLength() + data.remaining() > Server.getConfigValue("MaxContentLength", DEFAULT_MAX_CONTENT_LENGTH)) {
+                    keepalive = false;
+                    inBuffer.clear();
+                    inBuffer.flip();
+                    generateResponseWithCode(413, statusMessage(413), null);
+                    return;
+                }
+                requestBody.write(data);
+                continue;
+            }
+            if (cgiContentLength > 0) {
+                if (!inBuffer.hasRemaining()) {
+                    return;
+                }
+                int n = (int) Math.min(cgiContentLength, inBuffer.remaining());
+                ByteBuffer content = inBuffer.duplicate();
+                content.limit(content.position() + n);
+                n = requestBody.write(content);
+                inBuffer.position(inBuffer.position() + n);
+                cgiContentLength -= n;
+                if (n == 0) {
+                    return;     // window full; resumeBody continues once the script has read some
+                }
+                continue;
+            }
+
+            // body complete
+            if (requestBody != null) {
+                requestBody.finish();
+            }
+            if (bodyStreaming) {
+                bodyStreaming = false;
+                return;
+            }
+            state = State.WAITING_CGI;
+            if (proxyRoute != null) {
+                performProxy(key);
+            } else {
+                performCgi(key);
+            }
+        }
+    }
+
+    // A streamed body's window has room again: take what waits in inBuffer, then read on
+    private void resumeBody(SelectionKey key) {
+        if (!bodyStreaming || !channel.isOpen()) {
+            return;
+        }
+        try {
+            processRequestsInBuffer(key);
+        } catch (IOException ex) {
+            closeOnError(key);
+            return;
+        }
+        updateSelectorStateAfterCgi(key);
+    }
+
+    // Upgrade: h2c (RFC 7540 3.2) is only taken for GETs on an otherwise idle connection; a request body
+    // would have to be read before switching, and queued responses sent
+    private boolean isH2cUpgrade() {
+        if (!h2c || request.getReqMethod() != ReqMethod.GET || !request.getReqProtocol().equals("HTTP/1.1")
+                || !responseBody.isEmpty()) {
+            return false;
+        }
+        String upgrade = request.lookupHeader("Upgrade");
+        String connection = request.lookupHeader(Request.CONNECTION);
+        return upgrade != null && connection != null && hasToken(upgrade, "h2c") && hasToken(connection, "upgrade")
+                && hasToken(connection, "http2-settings")
+                && Http2ReadWriteHandler.decodeSettings(request.lookupHeader("HTTP2-Settings")) != null;
+    }
+
+    // comma-separated header value contains token (case-insensitive)
+    private static boolean hasToken(String value, String token) {
+        for (String element : value.split(",")) {
+            if (element.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Hands the connection to an Http2ReadWriteHandler, with the upgrade request as its stream 1 if
+    // there is one (none after a prior-knowledge preface); bytes read but not parsed go with it
+    private void switchToHttp2(SelectionKey key) {
+        cancelTimeout();
+        Request upgradeRequest = request;
+        byte[] settings = null;
+        if (upgradeRequest != null) {
+            settings = Http2ReadWriteHandler.decodeSettings(upgradeRequest.lookupHeader("HTTP2-Settings"));
+            upgradeRequest.setRequestLine(upgradeRequest.getReqMethod(), upgradeRequest.getReqUrl(), "HTTP/2.0");
+        }
+        state = State.SWITCHED;
+        request = null;
+
+        Http2ReadWriteHandler h2 = new Http2ReadWriteHandler(dispatcher);
+        key.attach(h2);
+        h2.takeOver(key, upgradeRequest, settings, inBuffer);
+        releaseRequestBuffers();
+    }
+
+    // a request other than a POST has a body if it says how long it is
+    private boolean hasContent() {
+        return request.lookupHeader(Request.CONTENT_LENGTH) != null || request.lookupHeader("Transfer-Encoding") != null;
+    }
+
+    // Validates the body framing of a POST (or proxied request) and prepares to read the body; returns false
+    // if an error response was generated instead (400 Content-Length not all digits or sent together with
+    // Transfer-Encoding, 411 no length, 413 over MaxContentLength, 501 unknown transfer coding, 404 not a script). A cgi body larger than CgiQueryStringMax with a Content-Length is
+    // streamed: the script starts now and reads the body from stdin as it arrives. Other cgi bodies are
+    // collected first, chunked ones included, spilling to a temp file beyond CgiBodySpill.
+    private boolean startReadingContent(SelectionKey key) {
+        String transferEncoding = (streamUpdated == null) ? request.lookupHeader("Transfer-Encoding") : null;
+        boolean chunked = (transferEncoding != null);
+        if (chunked && !transferEncoding.trim().equalsIgnoreCase("chunked")) {
+            keepalive = false;
+            generateResponseWithCode(501, statusMessage(501), null);
+            return false;
+        }
+
+        String contentLengthStr = request.lookupHeader(Request.CONTENT_LENGTH);
+        // either framing could be the one another hop used: refuse the request rather than pick one
+        if (contentLengthStr != null && (chunked || !isDigits(contentLengthStr))) {
+            keepalive = false;
+            generateResponseWithCode(400, statusMessage(400), null);
+            return false;
+        }
+        long contentLength;
+        try {
+            contentLength = (contentLengthStr == null) ? -1 : Long.parseLong(contentLengthStr);
+        } catch (NumberFormatException ex) {
+            // too many digits for a long: far over any MaxContentLength
+            contentLength = Long.MAX_VALUE;
+        }
+
+        // a proxied body is sent on with its Content-Length
+        if (contentLength < 0 && (!chunked || proxyRoute != null)) {
+            keepalive = false;
+            generateResponseWithCode(411, statusMessage(411), null);
+            return false;
+        }
+        if (contentLength > Server.getConfigValue("MaxContentLength", DEFAULT_MAX_CONTENT_LENGTH)) {
+            keepalive = false;
+            generateResponseWithCode(413, statusMessage(413), null);
+            return false;
+        }
+
+        cgiContentLength = contentLength;
+        if (proxyRoute != null) {
+            // collected like a cgi body, so memory grows with the bytes that arrive, not the announced length
+            requestBody = new RequestBody(Server.getConfigValue("CgiBodySpill", RequestBody.DEFAULT_SPILL_THRESHOLD));
+            state = State.READING_CONTENT;
+            return true;
+        }
+
+        // nothing of the request goes to a file that is not a script
+        cgiScript = Server.getCgiExecutor().resolveScript(request.getReqUrl());
+        if (cgiScript == null) {
+            keepalive = false;
+            generateResponseWithCode(404, "Not Found", null);
+            return false;
+        }
+
+        chunkedDecoder = chunked ? new ChunkedDecoder() : null;
+        if (contentLength > Server.getConfigValue("CgiQueryStringMax", DEFAULT_CGI_QUERY_STRING_MAX) && !blocking
+                && streamUpdated == null && Server.getCgiExecutor().getWorkerPool(cgiScript) == null) {
+            requestBody = new RequestBody(contentLength,
+                    (int) Server.getConfigValue("CgiBodyWindow", RequestBody.DEFAULT_WINDOW_SIZE), dispatcher::invokeLater,
+                    () -> resumeBody(key));
+            bodyStreaming = true;
+            state = State.WAITING_CGI;
+            performCgi(key);
+            if (state != State.WAITING_CGI) {
+                // answered without running the script (400, 503): the connection closes, the body is not read
+                bodyStreaming = false;
+            }
+            return true;
+        }
+        requestBody = new RequestBody(Server.getConfigValue("CgiBodySpill", RequestBody.DEFAULT_SPILL_THRESHOLD));
+        state = State.READING_CONTENT;
+        return true;
+    }
+
+    private static String statusMessage(int statusCode) {
+        switch (statusCode) {
+            case 400: return "Bad Request";
+            case 408: return "Request Timeout";
+            case 411: return "Length Required";
+            case 413: return "Payload Too Large";
+            case 414: return "URI Too Long";
+            case 431: return "Request Header Fields Too Large";
+            case 501: return "Not Implemented";
+            case 505: return "HTTP Version Not Supported";
+            default: return "Error";
+        }
+    }
+
+    // Starts the cgi script for the current POST on a CgiExecutor worker; its output is streamed back
+    // through handleCgiHeaders/handleCgiData/handleCgiEnd on the dispatcher thread
     private void performCgi(SelectionKey key) {
+        // determining Connection from headers and update keepalive variable
+        updateKeepAlive();
+
         // Check url integrity for accesses above doc root
         url = request.getReqUrl();
         if (!checkUrlIntegrity()) {
             keepalive = false;
             generateResponseWithCode(400, "Bad Request", null);
+            return;
         }
 
-        String[] splitUrl = url.split("/");
-        String executableName = splitUrl[splitUrl.length-1];
-
-        ProcessBuilder processBuilder = new ProcessBuilder(String.valueOf(url.substring(1)));  // new ProcessBuilder("cgi/price.cgi");
-        processBuilder.redirectOutput(ProcessBuilder.Redirect.PIPE);
-
-        Map<String, String> env = processBuilder.environment();
-        
-        String cgiQuery = cgiContentBuffer.toString();
-        Debug.DEBUG("cgi buffer: " + cgiQuery, DebugType.NONSERVER);
+        String script = cgiScript;
+        // request variables: added to the server's environment for a forked script, sent with the
+        // request to a persistent worker
+        Map<String, String> env = new LinkedHashMap<String, String>();
+
+        // the body goes to stdin; a small one is also QUERY_STRING, where scripts here have always read it,
+        // unless it has a NUL, which no environment variable can hold
+        RequestBody body = requestBody;
+        byte[] bodyBytes = body.getBytes();
+        boolean queryIsBody = bodyBytes != null
+                && bodyBytes.length <= Server.getConfigValue("CgiQueryStringMax", DEFAULT_CGI_QUERY_STRING_MAX)
+                && indexOf(bodyBytes, (byte) 0) < 0;
+        String cgiQuery = queryIsBody ? new String(bodyBytes, StandardCharsets.ISO_8859_1) : "";
+        Debug.DEBUG(() -> "cgi buffer: " + cgiQuery, DebugType.NONSERVER);
         env.put("QUERY_STRING", cgiQuery);
+        env.put("CONTENT_LENGTH", Long.toString(body.getLength()));
+        String contentType = request.lookupHeader("Content-Type");
+        if (contentType != null) {
+            env.put("CONTENT_TYPE", cgiHeaderValue(contentType));
+        }
 
-        Socket sock = ((SocketChannel) key.channel()).socket();
+        Socket sock = channel.socket();
         env.put("REMOTE_ADDR", sock.getInetAddress().getHostAddress());
         // Debug.DEBUG(sock.getInetAddress().getHostAddress(), DebugType.NONSERVER);
         env.put("REMOTE_HOST", "");
@@ -247,27 +936,405 @@ public class ReadWriteHandler implements IReadWriteHandler {
 
         env.put("REQUEST_METHOD", "POST");
 
-        env.put("SERVER_NAME", request.lookupHeader("Host"));
-        // Debug.DEBUG(request.lookupHeader("Host"), DebugType.NONSERVER);
+        String host = request.lookupHeader(Request.HOST);
+        env.put("SERVER_NAME", (host == null) ? "" : cgiHeaderValue(host));
+        // Debug.DEBUG(request.lookupHeader(Request.HOST), DebugType.NONSERVER);
         env.put("SERVER_PORT", Integer.toString(Server.getPort())); 
         // Debug.DEBUG(Integer.toString(Server.getPort()), DebugType.NONSERVER);
-        env.put("SERVER_PROTOCOL", request.getReqProtocol());
+        env.put("SERVER_PROTOCOL", cgiHeaderValue(request.getReqProtocol()));
         // Debug.DEBUG(request.getReqProtocol(), DebugType.NONSERVER);
         env.put("SERVER_SOFTWARE", "aPAXche/1.0.0 (Ubuntu)");
 
+        cgiHeadersSent = false;
+        Executor callbacks = blocking ? cgiCallbacks::add : dispatcher::invokeLater;
+        CgiCache cgiCache = Server.getCgiCache();
+        // only a body passed as QUERY_STRING is part of the cache key
+        String cacheKey = queryIsBody ? cgiCache.key(script, cgiQuery, request::lookupHeader) : null;
+        boolean submitted;
+        try {
+            if (cacheKey != null) {
+                // a cached response, the run in progress for the same key, or a new run shared with later requests
+                responseStream = cgiCache.serve(script, cacheKey, callbacks, key, this,
+                        flight -> newCgiStream(script, env, body, Runnable::run, null, flight));
+                submitted = responseStream != null;
+            } else {
+                CgiStream cgiStream = newCgiStream(script, env, body, callbacks, key, this);
+                responseStream = cgiStream;
+                submitted = Server.getCgiExecutor().submit(script, cgiStream);
+            }
+        } catch (IllegalArgumentException ex) {
+            // an environment the process cannot be given
+            Debug.DEBUG(() -> "cgi: " + ex.getMessage(), DebugType.NONSERVER);
+            responseStream = null;
+            if (bodyStreaming) {
+                keepalive = false;      // the body is not read
+            }
+            generateResponseWithCode(500, "Internal Server Error", null);
+            return;
+        }
+
+        if (!submitted) {
+            // script already at its CgiLimit; shed the request instead of queueing without bound
+            responseStream = null;
+            if (bodyStreaming) {
+                keepalive = false;      // the body is not read
+            }
+            generateResponseWithCode(503, "Service Unavailable", null);
+        } else {
+            metrics.countCgiInvocation();
+            cgiStartNanos = System.nanoTime();
+        }
+    }
+
+    // a request header's value as a cgi variable, without control bytes (tabs are kept): a NUL cannot be
+    // in a process environment or in a worker's NAME=VALUE\0 framing
+    private static String cgiHeaderValue(String value) {
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < 0x20 && c != '\t') || c == 0x7f) {
+                if (sb == null) {
+                    sb = new StringBuilder(value.length()).append(value, 0, i);
+                }
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return (sb == null) ? value : sb.toString();
+    }
+
+    // 1*DIGIT (RFC 9110 Content-Length), without the sign or spaces Long.parseLong would take
+    private static boolean isDigits(String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] bytes, byte b) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // script's process, or a request to one of its persistent workers, with output going to handler through callbacks
+    private CgiStream newCgiStream(String script, Map<String, String> env, RequestBody body, Executor callbacks, SelectionKey key,
+            ICgiOutputHandler handler) {
+        CgiExecutor executor = Server.getCgiExecutor();
+        CgiWorkerPool workerPool = executor.getWorkerPool(script);
+        long maxBuffered = Server.getConfigValue("CgiMaxBuffered", CgiStream.DEFAULT_MAX_BUFFERED);
+        if (workerPool != null) {
+            return new CgiStream(workerPool, env, body, callbacks, key, handler, maxBuffered);
+        }
+        ProcessBuilder processBuilder = new ProcessBuilder(String.valueOf(script.substring(1)));  // new ProcessBuilder("cgi/price.cgi");
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.PIPE);
+        // an unread stderr pipe would block a chatty script
+        processBuilder.redirectError(ProcessBuilder.Redirect.DISCARD);
+        processBuilder.environment().putAll(env);
+        return new CgiStream(processBuilder, body, executor.getStdinWriters(), callbacks, key, handler, maxBuffered);
+    }
+
+    // Sends the current request to an upstream of proxyRoute; the response is streamed back through
+    // handleCgiHeaders/handleCgiData/handleCgiEnd on the dispatcher thread, like a cgi script's output
+    private void performProxy(SelectionKey key) {
+        updateKeepAlive();
+        url = request.getReqUrl();
+
+        // sent from where it was collected; the exchange keeps it for a second attempt
+        ByteBuffer content = null;
+        if (requestBody != null) {
+            try {
+                content = requestBody.asByteBuffer();
+            } catch (IOException ex) {
+                generateProxyError(500, "Internal Server Error");
+                return;
+            }
+        }
+
+        if (blocking) {
+            // upstream connections are driven by the selector dispatchers
+            generateProxyError(502, "Bad Gateway");
+            return;
+        }
+        Upstream upstream = proxyRoute.pick();
+        if (upstream == null) {
+            generateProxyError(503, "Service Unavailable");
+            return;
+        }
+
+        String method = request.getMethodName();
+        boolean idempotent = !method.equals("POST") && !method.equals("PATCH");
+        UpstreamConnection.Exchange exchange = new UpstreamConnection.Exchange(key, this, proxyRequestHead(upstream, content),
+                content, idempotent, method.equals("HEAD"));
+        cgiHeadersSent = false;
+        responseStream = exchange;
+        exchange.start(dispatcher, upstream);
+    }
+
+    // Request line and headers as sent to upstream: hop-by-hop headers are dropped, X-Forwarded-* added
+    private ByteBuffer proxyRequestHead(Upstream upstream, ByteBuffer content) {
+        StringBuilder head = new StringBuilder(1024);
+        head.append(request.getMethodName()).append(' ').append(proxyRoute.upstreamUrl(upstream, url)).append(" HTTP/1.1\r\n");
+
+        String host = request.lookupHeader(Request.HOST);
+        boolean preserveHost = host != null && Server.getConfigString("ProxyPreserveHost", "off").equals("on");
+        head.append("Host: ").append(preserveHost ? host : upstream.getHostHeader()).append("\r\n");
+
+        String connection = request.lookupHeader(Request.CONNECTION);
+        String[] forwardedFor = new String[1];
+        request.forEachHeader((name, value) -> {
+            String lowerName = name.toLowerCase(Locale.ROOT);
+            if (lowerName.equals("x-forwarded-for")) {
+                forwardedFor[0] = value;
+            } else if (!PROXY_DROPPED_HEADERS.contains(lowerName) && (connection == null || !hasToken(connection, lowerName))) {
+                head.append(name).append(": ").append(value).append("\r\n");
+            }
+        });
+
+        String clientAddress = channel.socket().getInetAddress().getHostAddress();
+        head.append("X-Forwarded-For: ").append(forwardedFor[0] == null ? clientAddress : forwardedFor[0] + ", " + clientAddress).append("\r\n");
+        if (host != null) {
+            head.append("X-Forwarded-Host: ").append(host).append("\r\n");
+        }
+        head.append("X-Forwarded-Proto: http\r\n");
+        if (content != null) {
+            head.append("Content-Length: ").append(content.remaining()).append("\r\n");
+        }
+        head.append("\r\n");
+        return ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    // 502, 503 or 504 for a proxied request
+    private void generateProxyError(int statusCode, String message) {
+        if (request.getMethodName().equals("HEAD")) {
+            keepalive = false;      // the client expects no body after this head
+        }
+        generateTextResponse(statusCode, message, "text/plain", message + "\n");
+    }
+
+    // The upstream failed before sending a response head; resumes any pipelined requests
+    public void handleProxyError(SelectionKey key, int statusCode, String message) {
+        if (state != State.WAITING_CGI || !channel.isOpen()) {
+            return;
+        }
+        responseStream = null;
+        generateProxyError(statusCode, message);
+
         try {
-            Process process = processBuilder.start();
-            InputStream cgiProcessOutputStream = process.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(cgiProcessOutputStream));
+            processRequestsInBuffer(key);
+        } catch (IOException ex) {
+            closeOnError(key);
+            return;
+        }
+        updateSelectorStateAfterCgi(key);
+    }
+
+    // Queues status line and the script's headers; the body follows as the script writes it
+    public void handleCgiHeaders(SelectionKey key, int statusCode, String message, List<String> headers) {
+        if (state != State.WAITING_CGI || !channel.isOpen()) {
+            return;     // connection closed while the script ran
+        }
+
+        int headersSize = 4096;
+        String contentType = null;
+        boolean encoded = false;
+        boolean hasLength = false;      // an upstream's Content-Length, passed on
+        for (String header : headers) {
+            headersSize += header.length() + 2;
+            if (header.regionMatches(true, 0, "Content-Type:", 0, 13)) {
+                contentType = header.substring(13).trim();
+            } else if (header.regionMatches(true, 0, "Content-Encoding:", 0, 17)) {
+                encoded = true;
+            } else if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                hasLength = true;
+            }
+        }
+        // a proxied response to HEAD, or a 204 or 304, has no body to frame
+        boolean noBody = proxyRoute != null
+                && (request.getMethodName().equals("HEAD") || statusCode == 204 || statusCode == 304);
+
+        // HTTP/2 frames the body itself
+        cgiChunked = streamUpdated == null && !request.getReqProtocol().equals("HTTP/1.0") && !hasLength && !noBody;
+        if (!cgiChunked && !hasLength && !noBody) {
+            keepalive = false;
+        }
+        prepareOutBuffer(headersSize);
+        writeStatusLine(statusCode, message);
+        for (String header : headers) {
+            bufferWriteString(outBuffer, header);
+        }
+
+        // compress text output the client accepts, unless the script encoded it itself or sends no body
+        if (compression && !encoded && !hasLength && ContentEncoding.isCompressible(contentType) && statusCode >= 200
+                && statusCode != 204 && statusCode != 304) {
+            bufferWriteString(outBuffer, "Vary: Accept-Encoding");
+            String coding = ContentEncoding.negotiate(request.lookupHeader(Request.ACCEPT_ENCODING), false, true, true);
+            if (coding != null) {
+                try {
+                    cgiCompressed = new ByteArrayOutputStream(CgiStream.CHUNK_SIZE);
+                    cgiCompressor = ContentEncoding.newCompressor(coding, cgiCompressed, compressionLevel, true);
+                    bufferWriteString(outBuffer, "Content-Encoding: " + coding);
+                } catch (IOException ex) {
+                    cgiCompressor = null;
+                }
+            }
+        }
+        if (cgiChunked) {
+            bufferWriteString(outBuffer, "Transfer-Encoding: chunked");
+        }
+
+        // CRLF: End of headers, beginning of reponse body
+        outBuffer.put((byte) '\r');
+        outBuffer.put((byte) '\n');
+        queueOutBuffer();
+        cgiHeadersSent = true;
 
-            String s;
-            while ((s = reader.readLine()) != null && cgiOutputBuffer.length() + s.length() < cgiOutputBuffer.capacity()) {
-                cgiOutputBuffer.append(s);
+        updateSelectorStateAfterCgi(key);
+    }
+
+    // Queues one piece of script output; its credits go back to the script once the socket took it
+    public void handleCgiData(SelectionKey key, ByteBuffer data) {
+        if (state != State.WAITING_CGI || !channel.isOpen()) {
+            return;
+        }
+
+        IResponseStream stream = responseStream;
+        int length = data.remaining();
+        if (cgiCompressor != null) {
+            // credits still go back once the compressed piece is written, so backpressure is unchanged
+            try {
+                cgiCompressor.write(data.array(), data.arrayOffset() + data.position(), length);
+                cgiCompressor.flush();
+            } catch (IOException ex) {
+                closeOnError(key);
+                return;
             }
-            Debug.DEBUG("cgi success", DebugType.NONSERVER);
-        } catch (IOException e) {
-            Debug.DEBUG("Cgi error", DebugType.NONSERVER);
+            data = ByteBuffer.wrap(cgiCompressed.toByteArray());
+            cgiCompressed.reset();
+        }
+        queueCgiBody(data, () -> stream.release(length));
+
+        updateSelectorStateAfterCgi(key);
+    }
+
+    // one piece of the cgi body, as a chunk if chunked; onDone runs once it is written
+    private void queueCgiBody(ByteBuffer data, Runnable onDone) {
+        int length = data.remaining();
+        if (length == 0) {
+            onDone.run();       // an empty chunk would end the body
+            return;
+        }
+        responseBytes += length;
+        if (cgiChunked) {
+            responseBody.addBuffer(asciiBuffer(Integer.toHexString(length) + "\r\n"));
+            responseBody.addBuffer(data, onDone);
+            responseBody.addBuffer(asciiBuffer("\r\n"));
+        } else {
+            responseBody.addBuffer(data, onDone);
+        }
+    }
+
+    // Ends the cgi response and resumes any pipelined requests
+    public void handleCgiEnd(SelectionKey key, boolean failed) {
+        if (state != State.WAITING_CGI || !channel.isOpen()) {
+            return;
+        }
+        responseStream = null;
+        if (proxyRoute == null) {
+            metrics.getCgiLatency().record(System.nanoTime() - cgiStartNanos);
+        }
+        if (bodyStreaming) {
+            // the script ended before its body did: the rest of the body is not read
+            bodyStreaming = false;
+            keepalive = false;
+            releaseInBuffer();
+        }
+
+        if (!cgiHeadersSent) {
             generateResponseWithCode(500, "Internal Server Error: cgi failed", null);
+        } else {
+            if (!failed && cgiCompressor != null) {
+                // compressed stream trailer
+                try {
+                    cgiCompressor.finish();
+                    queueCgiBody(ByteBuffer.wrap(cgiCompressed.toByteArray()), () -> {});
+                } catch (IOException ex) {
+                    failed = true;
+                }
+            }
+            endCgiCompressor();
+
+            if (failed) {
+                // too late for an error status; a missing last chunk (or the early close) tells the client,
+                // a stream reset an HTTP/2 client
+                keepalive = false;
+                streamFailed = true;
+            } else if (cgiChunked) {
+                responseBody.addBuffer(asciiBuffer("0\r\n\r\n"));
+            }
+            finishRequest();
+        }
+
+        try {
+            processRequestsInBuffer(key);
+        } catch (IOException ex) {
+            closeOnError(key);
+            return;
+        }
+        updateSelectorStateAfterCgi(key);
+    }
+
+    private void updateSelectorStateAfterCgi(SelectionKey key) {
+        try {
+            updateSelectorState(key);
+        } catch (IOException ex) {
+            closeOnError(key);
+        }
+    }
+
+    // for work run outside handleRead/handleWrite, where the Dispatcher does not catch IOException
+    private void closeOnError(SelectionKey key) {
+        Debug.DEBUG("ReadWriteHandler: exception outside select handling", DebugType.NONSERVER);
+        if (streamUpdated != null) {
+            // HTTP/2: only this stream fails
+            streamFailed = true;
+            cancelStream();
+            streamUpdated.run();
+            return;
+        }
+        handleException();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {}
+    }
+
+    private void cancelCgi() {
+        if (responseStream != null) {
+            responseStream.cancel();
+            responseStream = null;
+        }
+        endCgiCompressor();
+    }
+
+    // frees the deflater's native memory now rather than when it is collected
+    private void endCgiCompressor() {
+        if (cgiCompressor != null) {
+            try {
+                cgiCompressor.close();
+            } catch (IOException ex) {}
+            cgiCompressor = null;
+            cgiCompressed = null;
         }
     }
 
@@ -289,35 +1356,69 @@ public class ReadWriteHandler implements IReadWriteHandler {
             return;
         }
 
-        if (request.getReqMethod() == ReqMethod.POST) {
-            generateResponseWithCode(200, "OK", null);
+        Debug.DEBUG(() -> request.getReqProtocol(), DebugType.NONSERVER);
+        if (streamUpdated == null && !request.getReqProtocol().startsWith("HTTP/1.")) {
+            generateResponseWithCode(505, "HTTP Version Not Supported", null);
             return;
         }
 
-        Debug.DEBUG(request.getReqProtocol().substring(0,7), DebugType.NONSERVER);
-        if (!request.getReqProtocol().substring(0,7).equals("HTTP/1.")) {
-            generateResponseWithCode(505, "HTTP Version Not Supported", null);
+        // health check for load balancers: 503 while overloaded
+        if (url.equals("/load")) {
+            LoadMonitor loadMonitor = Server.getLoadMonitor();
+            boolean overloaded = loadMonitor.isOverloaded();
+            generateTextResponse(overloaded ? 503 : 200, overloaded ? "Service Unavailable" : "OK", "text/plain",
+                    loadMonitor.report(Server.getDispatchers()));
             return;
         }
 
-        if (url.equals("/load")) {
-            generateResponseWithCode(200, "OK", null);
+        // counters of every dispatcher as text, or JSON for /server-status?json or Accept: application/json
+        if (url.equals("/server-status") || url.startsWith("/server-status?")) {
+            String accept = request.lookupHeader(Request.ACCEPT);
+            boolean json = url.indexOf("json") != -1 || (accept != null && accept.indexOf("application/json") != -1);
+            generateTextResponse(200, "OK", json ? "application/json" : "text/plain",
+                    ServerStatus.render(Server.getDispatchers(), json));
             return;
         }
 
+        long lookupStart = System.nanoTime();
+
         // Perform content selection
         performContentSelection();
 
-        // Map url to file; return 404 Not Found if not found
-        File f = mapUrlToFile();
+        // Map url to file from cached metadata and return 404 Not Found if not found;
+        // hot files are then served from the response cache without touching the filesystem
+        FileMetaCache.Entry f = mapUrlToFile();
         if (f == null) {
+            metrics.getLookupLatency().record(System.nanoTime() - lookupStart);
             keepalive = false; // close connections with Not Found errors
             generateResponseWithCode(404, "Not Found", null);
             return;
         }
+        long lastModified = f.getLastModified();
+        String contentType = f.getContentType();
+
+        // Accept-Encoding: the response may be a .br/.gz sidecar or a compressed variant kept in the
+        // response cache next to the file's own response
+        String fileName = f.getFile().getPath();
+        contentEncoding = negotiateEncoding(f);
+        ResponseCache responseCache = Server.getResponseCache();
+        if (contentEncoding == null) {
+            cacheEntry = responseCache.lookup(fileName, lastModified, f.getLength());
+        } else if (sidecar != null) {
+            cacheEntry = responseCache.lookup(ContentEncoding.variantKey(fileName, contentEncoding),
+                    sidecar.getLastModified(), sidecar.getLength());
+        } else {
+            cacheEntry = responseCache.lookup(ContentEncoding.variantKey(fileName, contentEncoding), lastModified, f.getLength());
+            if (cacheEntry != null && cacheEntry.isNoVariant()) {
+                // compressed poorly or too large to cache last time
+                contentEncoding = null;
+                cacheEntry = responseCache.lookup(fileName, lastModified, f.getLength());
+            }
+        }
+        metrics.getLookupLatency().record(System.nanoTime() - lookupStart);
 
         // if-modified-since; return 304 Not Modified if not modified since
-        boolean modifiedSince = checkIfModifiedSince(f);
+        boolean modifiedSince = checkIfModifiedSince(lastModified);
         if (!modifiedSince) {
             keepalive = false;
             generateResponseWithCode(304, "Not Modified", null);
@@ -325,105 +1426,348 @@ public class ReadWriteHandler implements IReadWriteHandler {
         }
 
         // accept; return 406 Not Acceptable if content type not found in accept header
-        boolean accepted = checkIfAccepted(f);
+        boolean accepted = checkIfAccepted(contentType);
         if (!accepted) {
                 Debug.DEBUG("406 error", DebugType.NONSERVER);
                 generateResponseWithCode(406, "Not Acceptable", null);
                 return;
         }
 
-        generateResponseWithCode(200, "OK", f);
+        // range; return 206 Partial Content for satisfiable byte ranges, 416 if none are
+        String range = request.lookupHeader(Request.RANGE);
+        if (range != null && checkIfRange(lastModified)) {
+            long length = f.getLength();
+            long[][] ranges = parseRanges(range, length);
+            if (ranges != null) {
+                // ranges are served from the file as stored
+                cacheEntry = null;
+                contentEncoding = null;
+                if (ranges.length == 0) {
+                    generateRangeNotSatisfiable(length);
+                } else {
+                    generatePartialResponse(f, lastModified, contentType, ranges);
+                }
+                return;
+            }
+        }
+
+        if (sidecar != null) {
+            encodedContentType = contentType;
+            generateResponseWithCode(200, "OK", sidecar);
+        } else if (contentEncoding != null && cacheEntry == null) {
+            generateCompressedResponse(f);
+        } else {
+            generateResponseWithCode(200, "OK", f);
+        }
 	} 
 
-    private void generateResponseWithCode(int statusCode, String message, File f) {
-        Debug.DEBUG("Output buf length: " + Integer.toString(cgiOutputBuffer.length()), DebugType.NONSERVER);
+    // Picks the content coding for f from Accept-Encoding (null: identity) among its .br/.gz sidecars and,
+    // for compressible types within the size limits, gzip/deflate compression. Sets sidecar to the
+    // sidecar to send, and varyAcceptEncoding if f has any encoded variant at all.
+    private String negotiateEncoding(FileMetaCache.Entry f) {
+        sidecar = null;
+        varyAcceptEncoding = false;
+        if (!compression) {
+            return null;
+        }
+
+        String fileName = f.getFile().getPath();
+        FileMetaCache.Entry br = findSidecar(fileName + ".br", f);
+        FileMetaCache.Entry gz = findSidecar(fileName + ".gz", f);
+        boolean compressible = ContentEncoding.isCompressible(f.getContentType())
+                && f.getLength() >= compressMinSize && f.getLength() <= compressMaxSize;
+        varyAcceptEncoding = (br != null || gz != null || compressible);
+        if (!varyAcceptEncoding) {
+            return null;
+        }
+
+        String coding = ContentEncoding.negotiate(request.lookupHeader(Request.ACCEPT_ENCODING),
+                br != null, gz != null || compressible, compressible);
+        if (ContentEncoding.BR.equals(coding)) {
+            sidecar = br;
+        } else if (ContentEncoding.GZIP.equals(coding)) {
+            sidecar = gz;
+        }
+        return coding;
+    }
+
+    // a precompressed copy of f, if there is one at least as new as f
+    private static FileMetaCache.Entry findSidecar(String fileName, FileMetaCache.Entry f) {
+        FileMetaCache.Entry e = Server.getFileMetaCache().lookup(fileName);
+        return (e.isFile() && e.getLastModified() >= f.getLastModified()) ? e : null;
+    }
+
+    // Sends f as is while a compressor makes its contentEncoding variant for the requests after this one
+    private void generateCompressedResponse(FileMetaCache.Entry f) {
+        ResponseCache responseCache = Server.getResponseCache();
+        ContentEncoding.compressLater(responseCache, f, contentEncoding, compressionLevel, compressMaxRatio);
+        contentEncoding = null;
+        cacheEntry = responseCache.lookup(f.getFile().getPath(), f.getLastModified(), f.getLength());
+        generateResponseWithCode(200, "OK", f);
+    }
 
+    private void generateResponseWithCode(int statusCode, String message, FileMetaCache.Entry f) {
         if (statusCode == 404) {
             url = "err_not_found.html";
             f = mapUrlToFile();
+            cacheEntry = null;
         } 
+        if (f == null) {
+            cacheEntry = null;
+        }
 
-        // Determine outBuffer size and allocate
+        // Determine outBuffer size; static file bodies are not copied into it
         // Use 4K as max headers size: https://stackoverflow.com/questions/686217/maximum-on-http-header-values
         int headersSize = 4096;
-        int numBytes = 0;
-        if (f != null) {
-            numBytes = (int) f.length();
-        }
-        outBuffer = ByteBuffer.allocate(headersSize + numBytes);
+        prepareOutBuffer(headersSize);
 
-        // Output response status line with error status code and error message
-        String protocol = request.getReqProtocol();
-        if (protocol != null) {
-            bufferWriteString(outBuffer, protocol + " " + Integer.toString(statusCode) + " " + message);
-        } else {
-            bufferWriteString(outBuffer, "HTTP/1.1 " + Integer.toString(statusCode) + " " + message);
+        writeStatusLine(statusCode, message);
+        writeRetryAfter(statusCode);
+        if (varyAcceptEncoding) {
+            bufferWriteString(outBuffer, "Vary: Accept-Encoding");
         }
 
-        // Output date header
-        DateTimeFormatter dtf = DateTimeFormatter.ofPattern(("eee, dd MMM uuuu HH:mm:ss"));
-        ZonedDateTime now = ZonedDateTime.now();
-        ZonedDateTime gmtNow = now.withZoneSameInstant(ZoneId.of("GMT"));
-        bufferWriteString(outBuffer, "Date: " + dtf.format(gmtNow) + " GMT");
-
-        // Output server header
-        bufferWriteString(outBuffer, "Server: aPAXche/1.0.0 (Ubuntu)");
-
         if (request.getReqMethod() == ReqMethod.POST) {
-            bufferWriteString(outBuffer, "Content-Length: " + Integer.toString(cgiOutputBuffer.length()));
+            // cgi output is streamed by handleCgiData; only error responses to a POST get here
+            bufferWriteString(outBuffer, "Content-Length: 0");
 
             // CRLF: End of headers, beginning of reponse body
             outBuffer.put((byte) '\r');
             outBuffer.put((byte) '\n');
+            finishResponse();
+        } else if (f == null) {
+            // no body; on a kept-alive or pipelined connection the length still ends the response
+            if (statusCode >= 200 && statusCode != 204 && statusCode != 304) {
+                bufferWriteString(outBuffer, "Content-Length: 0");
+            }
 
-            Debug.DEBUG("Output buf length: " + Integer.toString(cgiOutputBuffer.length()), DebugType.NONSERVER);
-            bufferWriteString(outBuffer, cgiOutputBuffer.toString());
+            // CRLF: End of headers, beginning of reponse body
+            outBuffer.put((byte) '\r');
+            outBuffer.put((byte) '\n');
+            finishResponse();
+        } else if (cacheEntry != null) {
+            // file headers and body come from the cache
+            responseBytes = cacheEntry.getBodyLength();
+            finishResponse();
+            responseBody.addBuffer(cacheEntry.newResponseView());
+            cacheEntry = null;
         } else {
-            if (f != null) {
-                // Output last-modified header
-                ZonedDateTime fileModifiedTime = ZonedDateTime.ofInstant(Instant.ofEpochMilli(f.lastModified()), ZoneId.systemDefault());
-                ZonedDateTime fileModifiedGmtTime = fileModifiedTime.withZoneSameInstant(ZoneId.of("GMT"));
-                bufferWriteString(outBuffer, "Last-Modified: " + dtf.format(fileModifiedGmtTime) + " GMT");
-
-                // Output content-type header
-                String contentType = "";
-
-                try {
-                    contentType = Files.probeContentType(f.toPath());
-                } catch (IOException ex) {}
-                
-                bufferWriteString(outBuffer, "Content-Type: " + contentType);
-
-                // Output content-length header
-                bufferWriteString(outBuffer, "Content-Length: " + Integer.toString((int) f.length()));
+            int fileHeadersStart = outBuffer.position();
+            String fileName = f.getFile().getPath();
+            long lastModified = f.getLastModified();
+            long length = f.getLength();
+            String contentType = f.getContentType();
+            String cacheKey = fileName;
+
+            if (contentEncoding != null) {
+                // precompressed sidecar: headers of the file it encodes, cached as that file's variant
+                contentType = encodedContentType;
+                cacheKey = ContentEncoding.variantKey(fileName.substring(0, fileName.lastIndexOf('.')), contentEncoding);
+                outBuffer.put(ResponseHeaders.encodedFileHeaders(lastModified, length, contentType, contentEncoding));
+            } else {
+                // Output last-modified, accept-ranges, content-type and content-length headers (cached per file)
+                outBuffer.put(ResponseHeaders.fileHeaders(fileName, lastModified, length, contentType));
             }
 
             // CRLF: End of headers, beginning of reponse body
             outBuffer.put((byte) '\r');
             outBuffer.put((byte) '\n');
 
-            // Output response body
-            if (f != null) {
-                outputResponseBody(f);
-                outBuffer.put((byte) '\r');
-                outBuffer.put((byte) '\n');
+            // Small files: cache the rendered file headers + body for later requests and send from there
+            ByteBuffer fileHeaders = outBuffer.duplicate();
+            fileHeaders.flip();
+            fileHeaders.position(fileHeadersStart);
+            ResponseCache.Entry entry = Server.getResponseCache().store(cacheKey, f.getFile(), lastModified, length, contentType, fileHeaders);
+
+            responseBytes = length;
+            if (entry != null) {
+                outBuffer.position(fileHeadersStart);
+                finishResponse();
+                responseBody.addBuffer(entry.newResponseView());
+            } else {
+                // Larger files are sent straight from the file once the headers are out:
+                // transferTo (sendfile), or memory-mapped windows above MmapThreshold
+                FileChannel fc = openFileChannel(f.getFile());
+                finishResponse();
+                if (fc == null) {
+                    keepalive = false;
+                } else if (length >= Server.getConfigValue("MmapThreshold", DEFAULT_MMAP_THRESHOLD)) {
+                    responseBody.addMappedRegion(fc, 0, length);
+                } else {
+                    responseBody.addFileRegion(fc, 0, length);
+                }
             }
         }
+    }
 
-        // Reset all buffers at once
-		outBuffer.flip();
-        requestBuffer.delete(0, requestBuffer.length());
-        if (request.getReqMethod() == ReqMethod.POST) {
-            cgiContentBuffer.delete(0, cgiContentBuffer.length());
-            cgiOutputBuffer.delete(0, cgiOutputBuffer.length());
+    // 206 Partial Content: a single range is sent as is, several as multipart/byteranges.
+    // Only the requested slices of the file are mapped.
+    private void generatePartialResponse(FileMetaCache.Entry f, long lastModified, String contentType, long[][] ranges) {
+        long length = f.getLength();
+        FileChannel fc = openFileChannel(f.getFile());
+        if (fc == null) {
+            generateResponseWithCode(500, "Internal Server Error", null);
+            return;
+        }
+
+        prepareOutBuffer(4096);
+        writeStatusLine(206, "Partial Content");
+        if (varyAcceptEncoding) {
+            bufferWriteString(outBuffer, "Vary: Accept-Encoding");
+        }
+        bufferWriteString(outBuffer, "Last-Modified: " + ResponseHeaders.formatHttpDate(lastModified));
+        bufferWriteString(outBuffer, "Accept-Ranges: bytes");
+
+        if (ranges.length == 1) {
+            long first = ranges[0][0];
+            long last = ranges[0][1];
+            bufferWriteString(outBuffer, "Content-Type: " + contentType);
+            bufferWriteString(outBuffer, "Content-Range: bytes " + first + "-" + last + "/" + length);
+            bufferWriteString(outBuffer, "Content-Length: " + Long.toString(last - first + 1));
+            outBuffer.put((byte) '\r');
+            outBuffer.put((byte) '\n');
+
+            responseBytes = last - first + 1;
+            finishResponse();
+            responseBody.addMappedRegion(fc, first, last - first + 1);
+            return;
+        }
+
+        // each part: CRLF--boundary CRLF, part headers, CRLF, data; then closing CRLF--boundary--CRLF
+        String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(length);
+        String[] partHeaders = new String[ranges.length];
+        long contentLength = 0;
+        for (int i = 0; i < ranges.length; i++) {
+            partHeaders[i] = "\r\n--" + boundary + "\r\nContent-Type: " + contentType
+                    + "\r\nContent-Range: bytes " + ranges[i][0] + "-" + ranges[i][1] + "/" + length + "\r\n\r\n";
+            contentLength += partHeaders[i].length() + ranges[i][1] - ranges[i][0] + 1;
+        }
+        String closingBoundary = "\r\n--" + boundary + "--\r\n";
+        contentLength += closingBoundary.length();
+
+        bufferWriteString(outBuffer, "Content-Type: multipart/byteranges; boundary=" + boundary);
+        bufferWriteString(outBuffer, "Content-Length: " + Long.toString(contentLength));
+        outBuffer.put((byte) '\r');
+        outBuffer.put((byte) '\n');
+
+        responseBytes = contentLength;
+        finishResponse();
+        for (int i = 0; i < ranges.length; i++) {
+            responseBody.addBuffer(asciiBuffer(partHeaders[i]));
+            responseBody.addMappedRegion(fc, ranges[i][0], ranges[i][1] - ranges[i][0] + 1);
+        }
+        responseBody.addBuffer(asciiBuffer(closingBoundary));
+    }
+
+    // response with a body generated by the server itself (status pages)
+    private void generateTextResponse(int statusCode, String message, String contentType, String body) {
+        ByteBuffer content = asciiBuffer(body);
+
+        prepareOutBuffer(4096);
+        writeStatusLine(statusCode, message);
+        writeRetryAfter(statusCode);
+        bufferWriteString(outBuffer, "Content-Type: " + contentType);
+        bufferWriteString(outBuffer, "Content-Length: " + Integer.toString(content.remaining()));
+        bufferWriteString(outBuffer, "Cache-Control: no-cache");
+        outBuffer.put((byte) '\r');
+        outBuffer.put((byte) '\n');
+
+        responseBytes = content.remaining();
+        finishResponse();
+        responseBody.addBuffer(content);
+    }
+
+    private void generateRangeNotSatisfiable(long length) {
+        prepareOutBuffer(4096);
+        writeStatusLine(416, "Range Not Satisfiable");
+        bufferWriteString(outBuffer, "Content-Range: bytes */" + length);
+        bufferWriteString(outBuffer, "Content-Length: 0");
+        outBuffer.put((byte) '\r');
+        outBuffer.put((byte) '\n');
+        finishResponse();
+    }
+
+    // Output response status line, date and server headers from pre-rendered bytes
+    private void writeStatusLine(int statusCode, String message) {
+        responseStatus = statusCode;
+        responseBytes = 0;
+
+        outBuffer.put(ResponseHeaders.statusLine(request.getReqProtocol(), statusCode, message));
+        outBuffer.put(ResponseHeaders.dateHeader(System.currentTimeMillis()));
+        outBuffer.put(ResponseHeaders.SERVER_HEADER);
+    }
+
+    // 503s say when to come back
+    private void writeRetryAfter(int statusCode) {
+        if (statusCode == 503) {
+            bufferWriteString(outBuffer, "Retry-After: " + Server.getLoadMonitor().getRetryAfterSeconds());
         }
+    }
+
+    // every response's headers go into their own pooled buffer, given back once written
+    private void prepareOutBuffer(int size) {
+        outBuffer = bufferPool.borrow(size);
+    }
+
+    // Queue outBuffer for sending and reset all request buffers at once; body parts are queued right after
+    private void finishResponse() {
+        queueOutBuffer();
+        finishRequest();
+    }
+
+    private void queueOutBuffer() {
+        ByteBuffer headers = outBuffer;
+        headers.flip();
+        responseBody.beginResponse();
+        responseBody.addBuffer(headers, () -> bufferPool.release(headers));
+        outBuffer = null;
+    }
+
+    // Reset all request buffers once the whole response is queued
+    private void finishRequest() {
+        metrics.countStatus(responseStatus);
+        if (logAccess) {
+            dispatcher.logAccess(remoteAddress, request, responseStatus, responseBytes);
+        }
+        requestCount++;
+        parser.reset();
+        parseNanos = 0;
+        releaseRequestBody();
         request = null;
+        proxyRoute = null;
+        docRoot = null;
+        contentEncoding = null;
+        sidecar = null;
+        varyAcceptEncoding = false;
+
+        // read the next pipelined request, or send what is queued and close
+		state = keepalive ? State.READING_REQUEST : State.SENDING_RESPONSE;
+    }
+
+    private void releaseInBuffer() {
+        bufferPool.release(inBuffer);
+        inBuffer = null;
+    }
+
+    // removes a spilled body, and ends a streamed one the script may still be reading
+    private void releaseRequestBody() {
+        if (requestBody != null) {
+            requestBody.delete();
+            requestBody = null;
+        }
+        chunkedDecoder = null;
+        bodyStreaming = false;
+    }
 
-		state = State.SENDING_RESPONSE;
+    // queued outBuffers are given back by responseBody.release()
+    private void releaseRequestBuffers() {
+        releaseInBuffer();
+        parser.release();
+        releaseRequestBody();
     }
 
     private void updateKeepAlive() {
-        String conn = request.lookupHeader("Connection");
+        String conn = request.lookupHeader(Request.CONNECTION);
         if (request.getReqProtocol().equals("HTTP/1.0")) {
             // HTTP/1.0 default is close, need to specify to keep alive
             keepalive = (conn != null && conn.equals("keep-alive"));
@@ -445,7 +1789,7 @@ public class ReadWriteHandler implements IReadWriteHandler {
         // indicates that the request is from a mobile handset (e.g., it should at least detect iphone by detecting iPhone in 
         // the User-Agent string), it should return index_m.html, if it exists; index.html next (fall-through), and then Not Found    
         if (url.equals("/")) {
-            String userAgent = request.lookupHeader("User-Agent");
+            String userAgent = request.lookupHeader(Request.USER_AGENT);
             if (userAgent != null && userAgent.indexOf("iPhone") != -1) {
                 if (mapUrlToFile("/index_m.html") != null) {
                     url = url + "index_m.html";
@@ -463,77 +1807,139 @@ public class ReadWriteHandler implements IReadWriteHandler {
     }
 
     // url argument has not yet appended doc_root
-    private File mapUrlToFile() {
+    private FileMetaCache.Entry mapUrlToFile() {
         return mapUrlToFile(url);
     }
 
-    // url argument has not yet appended doc_root
-    private File mapUrlToFile(String url) {
+    // url argument has not yet appended doc_root; returns null if not a regular file
+    private FileMetaCache.Entry mapUrlToFile(String url) {
+        String fileName = resolveFileName(url);
+        FileMetaCache.Entry f = Server.getFileMetaCache().lookup(fileName);
+        if (!f.isFile()) {
+            f = null; 
+            Debug.DEBUG(() -> "couldn't find file " + fileName, DebugType.NONSERVER);           
+        }
+
+        return f;
+    }
+
+    // returns doc-rooted file name for url; also the response cache key
+    private String resolveFileName(String url) {
         // url: ignore leading /
         if (url.startsWith("/")) {
             url = url.substring(1);
         }
 
-        // get docRoot
-        String hostname = request.lookupHeader("Host");
-        Debug.DEBUG("hostname: " + hostname, DebugType.NONSERVER);
-        String docRoot;
-        if (hostname != null) {
-            docRoot = Server.getVirtualHostDocRoot(hostname);
-            // Debug.DEBUG("hostname != null (path 1)", DebugType.NONSERVER);
-        } else {
-            docRoot = Server.getVirtualHostDocRoot();
-            // Debug.DEBUG("hostname == null (path 2)", DebugType.NONSERVER);
-        }
+        // get docRoot, resolved once per request
+        if (docRoot == null) {
+            String hostname = request.lookupHeader(Request.HOST);
+            Debug.DEBUG(() -> "hostname: " + hostname, DebugType.NONSERVER);
+            if (hostname != null) {
+                docRoot = Server.getVirtualHostDocRoot(hostname);
+            } else {
+                docRoot = Server.getVirtualHostDocRoot();
+            }
 
-        // doc root: ignore leading /
-        if (docRoot.startsWith("/")) {
-            docRoot = docRoot.substring(1);
+            // doc root: ignore leading /
+            if (docRoot.startsWith("/")) {
+                docRoot = docRoot.substring(1);
+            }
         }
 
         // add doc root to url
         String docRootedUrl = docRoot + url;
-        Debug.DEBUG("full url requested: " + docRootedUrl, DebugType.NONSERVER);
+        Debug.DEBUG(() -> "full url requested: " + docRootedUrl, DebugType.NONSERVER);
 
-        String fileName = docRootedUrl;
-        File f = new File(fileName);
-        if (!f.isFile()) {
-            f = null; 
-            Debug.DEBUG("couldn't find file " + fileName, DebugType.NONSERVER);           
+        return docRootedUrl;
+    }
+
+    private boolean checkIfModifiedSince(long lastModified) {
+        String ifModSinceStr = request.lookupHeader(Request.IF_MODIFIED_SINCE);
+        if (ifModSinceStr != null) {
+            // an unparseable date is ignored, as if the header was not sent
+            long ifModSince = ResponseHeaders.parseHttpDate(ifModSinceStr);
+            Debug.DEBUG(() -> "modified time: " + ifModSince, DebugType.NONSERVER);
+
+            // HTTP dates have one-second resolution
+            return ifModSince < 0 || lastModified / 1000 > ifModSince / 1000;
         }
+        return true;
+    }
 
-        return f;
+    // if-range; a Range header only applies if the validator still matches the file's Last-Modified date
+    private boolean checkIfRange(long lastModified) {
+        String ifRange = request.lookupHeader(Request.IF_RANGE);
+        return ifRange == null || ifRange.trim().equals(ResponseHeaders.formatHttpDate(lastModified));
     }
 
-    private boolean checkIfModifiedSince(File f) {
-        String ifModSinceStr = request.lookupHeader("If-Modified-Since");
-        if (ifModSinceStr != null) {
-            // removing "GMT"
-            ifModSinceStr = ifModSinceStr.substring(0, ifModSinceStr.length()-4);   
+    // Parses "bytes=first-last, first-, -suffix" into inclusive [first, last] pairs clipped to length,
+    // in file order with overlapping and adjacent ranges merged, so no byte is sent twice.
+    // Returns null if the header is malformed or asks for more than MAX_RANGES pieces (ignored, whole
+    // file is sent), or an empty array if no range is satisfiable.
+    private static long[][] parseRanges(String range, long length) {
+        range = range.trim();
+        if (!range.startsWith("bytes=")) {
+            return null;
+        }
 
-            // get ZonedDateTime representation of if-modified-since time for comparison
-            DateTimeFormatter dtf = DateTimeFormatter.ofPattern(("eee, dd MMM uuuu HH:mm:ss"));
-            LocalDateTime localIfModSinceTime = LocalDateTime.parse(ifModSinceStr, dtf);
-            ZonedDateTime ifModSinceTime = localIfModSinceTime.atZone(ZoneId.of("GMT"));
-            Debug.DEBUG("modified time: " + ifModSinceTime.toString(), DebugType.NONSERVER);
+        String[] specs = range.substring(6).split(",");
+        ArrayList<long[]> ranges = new ArrayList<long[]>();
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash == -1) {
+                    return null;
+                }
 
-            // get ZonedDateTime representation of actual file last modified time for comparison
-            ZonedDateTime fileModifiedTime = ZonedDateTime.ofInstant(Instant.ofEpochMilli(f.lastModified()), ZoneId.systemDefault());
-            ZonedDateTime fileModifiedGmtTime = fileModifiedTime.withZoneSameInstant(ZoneId.of("GMT"));
+                long first;
+                long last;
+                if (dash == 0) {
+                    // suffix range: last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = (dash == spec.length() - 1) ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if (last < first) {
+                        return null;
+                    }
+                    last = Math.min(last, length - 1);
+                }
 
-            return fileModifiedGmtTime.isAfter(ifModSinceTime);
+                if (first < length) {
+                    ranges.add(new long[] { first, last });
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return null;
         }
-        return true;
+
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        ArrayList<long[]> merged = new ArrayList<long[]>();
+        for (long[] r : ranges) {
+            long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (previous != null && r[0] <= previous[1] + 1) {
+                previous[1] = Math.max(previous[1], r[1]);
+            } else {
+                merged.add(r);
+            }
+        }
+        if (merged.size() > MAX_RANGES) {
+            return null;
+        }
+
+        return merged.toArray(new long[merged.size()][]);
     }
 
-    private boolean checkIfAccepted(File f) {
-        String acceptTypeStr = request.lookupHeader("Accept");
+    private boolean checkIfAccepted(String contentType) {
+        String acceptTypeStr = request.lookupHeader(Request.ACCEPT);
         if (acceptTypeStr != null) {
             String[] acceptTypes = acceptTypeStr.split(",");
-            String contentType = "";
-            try {
-                contentType = Files.probeContentType(f.toPath());
-            } catch (IOException ex) {}
 
             for (int i = 0; i < acceptTypes.length; i++) {
                 if (acceptTypes[i].trim().equals(contentType) || acceptTypes[i].indexOf("*/*") != -1) {
@@ -545,18 +1951,22 @@ public class ReadWriteHandler implements IReadWriteHandler {
         return true; 
     }
 
-    private void outputResponseBody(File f) {
+    private static FileChannel openFileChannel(File f) {
         try {
-            FileInputStream fileInputStream = new FileInputStream(f);
-            byte[] allBytes = fileInputStream.readAllBytes();
-
-            outBuffer.put(allBytes);
-            fileInputStream.close();
+            return FileChannel.open(f.toPath(), StandardOpenOption.READ);
         } catch (IOException ex) {
-            Debug.PRINT("ReadWriteHandler.java/outputResponseBody: unknown error reading from file input stream, system exiting");
-            System.exit(1);
+            Debug.DEBUG(() -> "ReadWriteHandler: could not open " + f, DebugType.NONSERVER);
+            return null;
+        }
+    }
+
+    private static ByteBuffer asciiBuffer(String s) {
+        ByteBuffer buf = ByteBuffer.allocate(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf.put((byte) s.charAt(i));
         }
-        
+        buf.flip();
+        return buf;
     }
 
     // careful, could overwrite buf capacity
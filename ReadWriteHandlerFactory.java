@@ -1,5 +1,5 @@
 public class ReadWriteHandlerFactory implements IReadWriteHandlerFactory {
-    public IReadWriteHandler createHandler() {
-        return new ReadWriteHandler();
+    public IReadWriteHandler createHandler(Dispatcher dispatcher) {
+        return new ReadWriteHandler(dispatcher);
     }
 }
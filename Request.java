@@ -1,38 +1,75 @@
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.io.BufferedReader;
+import java.util.function.BiConsumer;
 import java.io.IOException;
-import java.io.StringReader;
 
 // request interface:
 // Request()
 // parseRequest(String)
-// getReqMethod(), getReqUrl()
-// lookupHeader(String)
+// getReqMethod(), getMethodName(), getReqUrl()
+// lookupHeader(String), lookupHeader(int slot), forEachHeader(action)
 // toString()
 
 // typical use:
 // Request r = Request();
 // r.parseRequest(requestStr);
 // connectionType = r.lookupHeader("conn");
+//
+// Requests read from a connection are filled in by RequestParser instead of parseRequest.
 
 public class Request {
+    // well-known headers are interned into fixed slots by RequestParser
+    public static final int HOST = 0;
+    public static final int CONNECTION = 1;
+    public static final int CONTENT_LENGTH = 2;
+    public static final int IF_MODIFIED_SINCE = 3;
+    public static final int ACCEPT = 4;
+    public static final int USER_AGENT = 5;
+    public static final int RANGE = 6;
+    public static final int IF_RANGE = 7;
+    public static final int ACCEPT_ENCODING = 8;
+    public static final int UNKNOWN_HEADER = -1;
+
+    private static final String[] KNOWN_HEADER_NAMES = {
+        "Host", "Connection", "Content-Length", "If-Modified-Since", "Accept", "User-Agent", "Range", "If-Range", "Accept-Encoding"
+    };
+
     // request method line
     private ReqMethod reqMethod;
+    private String methodName;      // as sent, for UNKNOWN methods (e.g. PUT) passed on by a proxy
     private String url;
     private String protocol;
 
-    // other request headers
-    private HashMap<String, String> requestHeaders;
+    // well-known request headers by slot
+    private String[] knownHeaders;
+
+    // other request headers, in arrival order
+    private ArrayList<String> otherHeaderNames;
+    private ArrayList<String> otherHeaderValues;
 
     public Request() {
-        requestHeaders = new HashMap<String, String>();
+        knownHeaders = new String[KNOWN_HEADER_NAMES.length];
+        otherHeaderNames = new ArrayList<String>();
+        otherHeaderValues = new ArrayList<String>();
     }
 
     public ReqMethod getReqMethod() {
         return reqMethod;
     }
 
+    // method name as sent, e.g. "GET" or "DELETE"
+    public String getMethodName() {
+        if (reqMethod != ReqMethod.UNKNOWN) {
+            return reqMethod.name();
+        }
+        return (methodName == null) ? "UNKNOWN" : methodName;
+    }
+
+    public void setMethodName(String methodName) {
+        this.methodName = methodName;
+    }
+
     public String getReqUrl() {
         return url;
     }
@@ -41,88 +78,97 @@ public class Request {
         return protocol;
     }
 
-    // Returns String value of headerName key in requestHeaders, or null if not found
-    public String lookupHeader(String headerName) {
-        Debug.DEBUG("attempting lookup of key " + headerName, DebugType.PARSING);
-
-        return requestHeaders.get(headerName);
+    // Returns String value of well-known header slot, or null if not sent
+    public String lookupHeader(int slot) {
+        return knownHeaders[slot];
     }
 
-    public String toString() {
-        String str = "";
-
-        str += "Method: ";
-        if (reqMethod == ReqMethod.GET) str += "GET\n";
-        else if (reqMethod == ReqMethod.POST) str += "POST\n";
-        str += url + "\n\n";
-
-        str += "Headers:\n";
+    // Returns String value of headerName (case-insensitive), or null if not found
+    public String lookupHeader(String headerName) {
+        int slot = knownHeaderSlot(headerName);
+        if (slot != UNKNOWN_HEADER) {
+            return knownHeaders[slot];
+        }
 
-        for (Map.Entry<String, String> set : requestHeaders.entrySet()) {
-            str += set.getKey() + ": ";
-            str += set.getValue() + "\n";
+        for (int i = otherHeaderNames.size() - 1; i >= 0; i--) {
+            if (otherHeaderNames.get(i).equalsIgnoreCase(headerName)) {
+                return otherHeaderValues.get(i);
+            }
         }
+        return null;
+    }
 
-        return str;
+    // Calls action with the name and value of every header, well-known ones first
+    public void forEachHeader(BiConsumer<String, String> action) {
+        for (int i = 0; i < knownHeaders.length; i++) {
+            if (knownHeaders[i] != null) {
+                action.accept(KNOWN_HEADER_NAMES[i], knownHeaders[i]);
+            }
+        }
+        for (int i = 0; i < otherHeaderNames.size(); i++) {
+            action.accept(otherHeaderNames.get(i), otherHeaderValues.get(i));
+        }
     }
 
-    public boolean parseRequest(String req) throws IOException {
-        BufferedReader reader = new BufferedReader(new StringReader(req));
+    public static int knownHeaderCount() {
+        return KNOWN_HEADER_NAMES.length;
+    }
 
-        if ( !parseRequestLine(reader.readLine()) ) {
-            return false;
-        }
+    public static String knownHeaderName(int slot) {
+        return KNOWN_HEADER_NAMES[slot];
+    }
 
-        String header = reader.readLine();
-        while (header != null && header.length() > 0) {
-            if ( !parseHeaderLine(header) ) {
-                return false;
+    // Returns slot of a well-known header name (case-insensitive), or UNKNOWN_HEADER
+    public static int knownHeaderSlot(String headerName) {
+        for (int i = 0; i < KNOWN_HEADER_NAMES.length; i++) {
+            if (KNOWN_HEADER_NAMES[i].equalsIgnoreCase(headerName)) {
+                return i;
             }
-            header = reader.readLine();
         }
-        
-        return true;
+        return UNKNOWN_HEADER;
     }
 
-    // returns false for improperly formatted request line
-    private boolean parseRequestLine(String reqLine) {
-        String[] request = reqLine.split("\\s");
+    public void setRequestLine(ReqMethod reqMethod, String url, String protocol) {
+        this.reqMethod = reqMethod;
+        this.url = url;
+        this.protocol = protocol;
+    }
 
-        if (request.length != 3) {
-            return false;
-        }
+    public void setHeader(int slot, String value) {
+        knownHeaders[slot] = value;
+    }
 
-        if (request[0].equals("GET")) {
-            reqMethod = ReqMethod.GET;        
-            Debug.DEBUG("Parsing req method: GET", DebugType.PARSING);
-        } else if (request[0].equals("POST")) {
-            reqMethod = ReqMethod.POST;
-            Debug.DEBUG("Parsing req method: POST", DebugType.PARSING);
-        } else {
-            reqMethod = ReqMethod.UNKNOWN;
-            Debug.DEBUG("Parsing req method error: unknown request method", DebugType.PARSING);
-        }
-        
-        // non-safe url, check for validity in readWriteHandler.checkUrlIntegrity()
-        url = request[1];
-        protocol = request[2];
+    public void addHeader(String name, String value) {
+        otherHeaderNames.add(name);
+        otherHeaderValues.add(value);
+    }
 
-        Debug.DEBUG("Parsing req url: " + url, DebugType.PARSING);
-        Debug.DEBUG("Parsing req protocol: " + protocol, DebugType.PARSING);
+    public String toString() {
+        String str = "";
 
-        return true;
-    }
+        str += "Method: ";
+        str += getMethodName() + "\n";
+        str += url + "\n\n";
 
-    // returns false for improperly formatted header line
-    private boolean parseHeaderLine(String headerLine) { 
-        String[] header = headerLine.split(": ");
-        if (header.length < 2) {
-            return false;
+        str += "Headers:\n";
+
+        for (int i = 0; i < knownHeaders.length; i++) {
+            if (knownHeaders[i] != null) {
+                str += KNOWN_HEADER_NAMES[i] + ": ";
+                str += knownHeaders[i] + "\n";
+            }
+        }
+        for (int i = 0; i < otherHeaderNames.size(); i++) {
+            str += otherHeaderNames.get(i) + ": ";
+            str += otherHeaderValues.get(i) + "\n";
         }
-        
-        requestHeaders.put(header[0], header[1]);
-        Debug.DEBUG("Parsing header: " + header[0] + ", val: " + header[1], DebugType.PARSING);
 
-        return true;
+        return str;
+    }
+
+    // Parses a complete request head (request line, headers, blank line); returns false if malformed
+    public boolean parseRequest(String req) throws IOException {
+        RequestParser parser = new RequestParser(this, RequestParser.DEFAULT_MAX_REQUEST_LINE, RequestParser.DEFAULT_MAX_HEADER_SIZE, null);
+        return parser.parse(ByteBuffer.wrap(req.getBytes(StandardCharsets.ISO_8859_1))) == RequestParser.DONE;
     }
 }
@@ -0,0 +1,243 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+// The body of a cgi request on its way to the script's stdin, written by the thread serving the
+// connection and read by the script's CgiStream. Either
+//   collected: the whole body is read before the script starts, in memory up to spillThreshold bytes and
+//              in a temp file beyond (chunked bodies, whose length the script must be told, and bodies for
+//              persistent workers, whose protocol sends the length first), or
+//   streamed:  the script starts once the request head is read and gets the body through a window of
+//              windowSize bytes; the connection stops reading the socket while the window is full, and
+//              onRoom runs through callbacks once the script has taken some.
+// A proxied request's body is collected too, and sent on from asByteBuffer.
+//
+// typical use:
+// RequestBody body = new RequestBody(64 * 1024);      // collected
+// body.write(data);  ...  body.finish();
+// InputStream in = body.openStream();                 // CgiStream, once finished
+// body.delete();                                      // request done or connection closed
+//
+// config:
+// CgiBodySpill <bytes>       collected body kept in memory before it goes to a temp file (default 65536)
+// CgiBodyWindow <bytes>      streamed body held between socket and script (default 65536)
+
+public class RequestBody {
+    public static final long DEFAULT_SPILL_THRESHOLD = 64 * 1024;
+    public static final long DEFAULT_WINDOW_SIZE = 64 * 1024;
+
+    private final boolean streamed;
+    private long length;                    // collected: bytes written; streamed: Content-Length
+
+    // collected
+    private final long spillThreshold;
+    private byte[] memory;
+    private File spillFile;
+    private FileChannel spill;
+
+    // streamed: a ring of window bytes, count of them unread from start
+    private final byte[] window;
+    private int start;
+    private int count;
+    private boolean finished;
+    private boolean aborted;
+    private boolean paused;                 // the writer found the window full
+    private final Executor callbacks;
+    private final Runnable onRoom;
+
+    public RequestBody(long spillThreshold) {
+        streamed = false;
+        this.spillThreshold = spillThreshold;
+        memory = new byte[0];
+        window = null;
+        callbacks = null;
+        onRoom = null;
+    }
+
+    public RequestBody(long contentLength, int windowSize, Executor callbacks, Runnable onRoom) {
+        streamed = true;
+        length = contentLength;
+        spillThreshold = 0;
+        window = new byte[Math.max(windowSize, 1024)];
+        this.callbacks = callbacks;
+        this.onRoom = onRoom;
+    }
+
+    public boolean isStreamed() {
+        return streamed;
+    }
+
+    // bytes written so far (collected) or announced (streamed)
+    public long getLength() {
+        return length;
+    }
+
+    // Takes bytes from src: all of them when collected, as many as fit in the window when streamed.
+    // Returns the number taken.
+    public int write(ByteBuffer src) throws IOException {
+        int n = src.remaining();
+        if (!streamed) {
+            collect(src);
+            return n;
+        }
+        synchronized (this) {
+            if (aborted) {
+                // nobody reads any more; drop the rest
+                src.position(src.limit());
+                return n;
+            }
+            n = Math.min(n, window.length - count);
+            for (int i = 0, end = (start + count) % window.length; i < n; ) {
+                int part = Math.min(n - i, window.length - end);
+                src.get(window, end, part);
+                i += part;
+                end = (end + part) % window.length;
+            }
+            count += n;
+            paused = (count == window.length);
+            notifyAll();
+            return n;
+        }
+    }
+
+    // false while a streamed body's window is full
+    public synchronized boolean hasRoom() {
+        return !streamed || aborted || count < window.length;
+    }
+
+    // All of the body is written
+    public void finish() throws IOException {
+        if (!streamed) {
+            if (spill != null) {
+                spill.close();
+                spill = null;
+            } else if (memory.length != length) {
+                memory = Arrays.copyOf(memory, (int) length);
+            }
+            return;
+        }
+        synchronized (this) {
+            finished = true;
+            notifyAll();
+        }
+    }
+
+    // The body's bytes if it is collected and in memory, otherwise null
+    public byte[] getBytes() {
+        return (streamed || spillFile != null) ? null : memory;
+    }
+
+    // A finished collected body as one buffer, without a copy: the bytes in memory, or a read-only mapping
+    // of the temp file, which stays readable after delete()
+    public ByteBuffer asByteBuffer() throws IOException {
+        if (spillFile == null) {
+            return ByteBuffer.wrap(memory, 0, (int) length);
+        }
+        try (FileChannel file = FileChannel.open(spillFile.toPath(), StandardOpenOption.READ)) {
+            return file.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+    }
+
+    // The body for the script; a collected one may be read again
+    public InputStream openStream() throws IOException {
+        if (streamed) {
+            return new WindowInputStream();
+        }
+        if (spillFile != null) {
+            return new BufferedInputStream(Files.newInputStream(spillFile.toPath()));
+        }
+        return new ByteArrayInputStream(memory, 0, (int) length);
+    }
+
+    // The request is done or the connection closed: a reader still waiting for bytes gets an error, a temp file is removed
+    public void delete() {
+        if (streamed) {
+            synchronized (this) {
+                aborted = true;
+                notifyAll();
+            }
+            return;
+        }
+        try {
+            if (spill != null) {
+                spill.close();
+                spill = null;
+            }
+        } catch (IOException ex) {}
+        if (spillFile != null) {
+            spillFile.delete();
+        }
+    }
+
+    private void collect(ByteBuffer src) throws IOException {
+        int n = src.remaining();
+        if (spill == null && spillFile == null && length + n > spillThreshold) {
+            spillFile = File.createTempFile("http-server-body", ".tmp");
+            spillFile.deleteOnExit();
+            spill = FileChannel.open(spillFile.toPath(), StandardOpenOption.WRITE);
+            Debug.DEBUG(() -> "RequestBody: spilling to " + spillFile, DebugType.NONSERVER);
+            spill.write(ByteBuffer.wrap(memory, 0, (int) length));
+            memory = null;
+        }
+        if (spill != null) {
+            while (src.hasRemaining()) {
+                spill.write(src);
+            }
+        } else {
+            if (length + n > memory.length) {
+                memory = Arrays.copyOf(memory, (int) Math.min(Math.max(memory.length * 2, length + n), spillThreshold));
+            }
+            src.get(memory, (int) length, n);
+        }
+        length += n;
+    }
+
+    // Reads a streamed body out of the window, waiting for the connection to write more
+    private class WindowInputStream extends InputStream {
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xff);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            boolean resume;
+            int n;
+            synchronized (RequestBody.this) {
+                while (count == 0 && !finished && !aborted) {
+                    try {
+                        RequestBody.this.wait();
+                    } catch (InterruptedException ex) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (aborted) {
+                    throw new IOException("request body aborted");
+                }
+                if (count == 0) {
+                    return -1;
+                }
+                n = Math.min(len, count);
+                for (int i = 0; i < n; ) {
+                    int part = Math.min(n - i, window.length - start);
+                    System.arraycopy(window, start, b, off + i, part);
+                    i += part;
+                    start = (start + part) % window.length;
+                }
+                count -= n;
+                resume = paused;
+                paused = false;
+            }
+            if (resume) {
+                callbacks.execute(onRoom);
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Resumable byte-level parser for an HTTP request head (request line, headers, blank line).
+// Bytes are consumed straight from the connection's inBuffer; parsing can stop at any byte when the
+// buffer runs out and continue with the next read. Well-known header names are matched
+// case-insensitively against Request's fixed slots without allocating. The token being read is kept in a
+// scratch buffer borrowed from the connection's BufferPool when the request starts and given back once
+// its head is parsed, so an idle keep-alive connection holds none.
+//
+// parser interface:
+// RequestParser(maxRequestLine, maxHeaderSize, bufferPool)
+// parse(buf): NEED_MORE, DONE, or an HTTP error status (400, 414, 431, 505)
+// getRequest(): request being / just parsed
+// hasStarted(): some of the request has been received
+// reset(): start a new request
+// release(): give back the scratch buffer of a request cut short (connection closed)
+//
+// After DONE, buf is positioned at the first byte after the blank line (request body or next request).
+// The protocol is always HTTP/<digit>.<digit>, with major version 1, and no part of the head has
+// control bytes other than the tabs allowed in header values. A Content-Length repeated with a different
+// value is a 400, so the body is framed by the one value every hop sees.
+
+public class RequestParser {
+    public static final int NEED_MORE = 0;
+    public static final int DONE = 1;
+
+    public static final int DEFAULT_MAX_REQUEST_LINE = 8192;
+    public static final int DEFAULT_MAX_HEADER_SIZE = 16384;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte SP = ' ';
+    private static final byte HTAB = '\t';
+
+    private static final byte[][] KNOWN_HEADER_BYTES = new byte[Request.knownHeaderCount()][];
+    static {
+        for (int i = 0; i < KNOWN_HEADER_BYTES.length; i++) {
+            KNOWN_HEADER_BYTES[i] = Request.knownHeaderName(i).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private enum State {
+        METHOD,
+        URL,
+        PROTOCOL,
+        REQUEST_LINE_LF,
+        LINE_START,
+        NAME,
+        VALUE_START,
+        VALUE,
+        HEADER_LF,
+        END_LF,
+        DONE,
+        ERROR
+    }
+
+    private final int maxRequestLine;
+    private final int maxHeaderSize;
+
+    // bytes of the token currently being read (method, url, protocol, header name or value); null
+    // between requests
+    private final BufferPool bufferPool;
+    private ByteBuffer scratch;
+    private int scratchLength;
+
+    private int requestLineBytes;
+    private int headerBytes;
+
+    private State state;
+    private int errorCode;
+
+    private Request request;
+    private ReqMethod reqMethod;
+    private String url;
+    private int headerSlot;
+    private String headerName;
+
+    // bufferPool: the serving thread's pool, or null for a heap scratch buffer per request
+    public RequestParser(int maxRequestLine, int maxHeaderSize, BufferPool bufferPool) {
+        this(new Request(), maxRequestLine, maxHeaderSize, bufferPool);
+    }
+
+    public RequestParser(Request request, int maxRequestLine, int maxHeaderSize, BufferPool bufferPool) {
+        this.maxRequestLine = maxRequestLine;
+        this.maxHeaderSize = maxHeaderSize;
+        this.bufferPool = bufferPool;
+        this.request = request;
+        restart();
+    }
+
+    public Request getRequest() {
+        return request;
+    }
+
+    // true once any byte of the request line has been consumed
+    public boolean hasStarted() {
+        return state != State.METHOD || scratchLength > 0;
+    }
+
+    public void reset() {
+        request = new Request();
+        restart();
+    }
+
+    public void release() {
+        if (scratch != null && bufferPool != null) {
+            bufferPool.release(scratch);
+        }
+        scratch = null;
+    }
+
+    private void restart() {
+        state = State.METHOD;
+        scratchLength = 0;
+        requestLineBytes = 0;
+        headerBytes = 0;
+        errorCode = 0;
+        reqMethod = null;
+        url = null;
+        headerName = null;
+    }
+
+    // Consumes bytes from buf until the end of the request head or the end of buf
+    public int parse(ByteBuffer buf) {
+        if (scratch == null && buf.hasRemaining() && state != State.DONE && state != State.ERROR) {
+            int size = Math.max(maxRequestLine, maxHeaderSize);
+            scratch = (bufferPool != null) ? bufferPool.borrow(size) : ByteBuffer.allocate(size);
+        }
+        while (state != State.DONE && state != State.ERROR && buf.hasRemaining()) {
+            byte b = buf.get();
+
+            if (state == State.METHOD || state == State.URL || state == State.PROTOCOL || state == State.REQUEST_LINE_LF) {
+                if (++requestLineBytes > maxRequestLine) {
+                    return fail(414);
+                }
+            } else if (++headerBytes > maxHeaderSize) {
+                return fail(431);
+            }
+
+            switch (state) {
+                case METHOD:
+                    if (b == SP) {
+                        if (scratchLength == 0) {
+                            return fail(400);
+                        }
+                        reqMethod = matchMethod();
+                        if (reqMethod == ReqMethod.UNKNOWN) {
+                            request.setMethodName(scratchString());
+                        }
+                        scratchLength = 0;
+                        state = State.URL;
+                    } else if (b == CR || b == LF) {
+                        // ignore empty lines before the request line
+                        if (scratchLength != 0) {
+                            return fail(400);
+                        }
+                        requestLineBytes = 0;
+                    } else if (isControl(b)) {
+                        return fail(400);
+                    } else {
+                        scratch.put(scratchLength++, b);
+                    }
+                    break;
+                case URL:
+                    if (b == SP) {
+                        if (scratchLength == 0) {
+                            return fail(400);
+                        }
+                        url = scratchString();
+                        state = State.PROTOCOL;
+                    } else if (b == CR || b == LF || isControl(b)) {
+                        return fail(400);
+                    } else {
+                        scratch.put(scratchLength++, b);
+                    }
+                    break;
+                case PROTOCOL:
+                    if (b == CR || b == LF) {
+                        if (!isHttpVersion()) {
+                            return fail(400);
+                        }
+                        if (scratch.get(5) != '1') {
+                            return fail(505);
+                        }
+                        request.setRequestLine(reqMethod, url, scratchString());
+                        Debug.DEBUG(() -> "Parsing req url: " + url, DebugType.PARSING);
+                        state = (b == CR) ? State.REQUEST_LINE_LF : State.LINE_START;
+                    } else if (b == SP) {
+                        return fail(400);
+                    } else {
+                        scratch.put(scratchLength++, b);
+                    }
+                    break;
+                case REQUEST_LINE_LF:
+                case HEADER_LF:
+                    if (b == LF) {
+                        state = State.LINE_START;
+                    } else if (b != CR) {
+                        return fail(400);
+                    }
+                    break;
+                case LINE_START:
+                    if (b == CR) {
+                        state = State.END_LF;
+                    } else if (b == LF) {
+                        state = State.DONE;
+                    } else if (b == ':' || b == SP || b == HTAB || isControl(b)) {
+                        return fail(400);
+                    } else {
+                        scratch.put(scratchLength++, b);
+                        state = State.NAME;
+                    }
+                    break;
+                case NAME:
+                    if (b == ':') {
+                        headerSlot = matchHeaderName();
+                        headerName = (headerSlot == Request.UNKNOWN_HEADER) ? scratchString() : null;
+                        scratchLength = 0;
+                        state = State.VALUE_START;
+                    } else if (b == CR || b == LF || isControl(b)) {
+                        return fail(400);
+                    } else {
+                        scratch.put(scratchLength++, b);
+                    }
+                    break;
+                case VALUE_START:
+                case VALUE:
+                    if (state == State.VALUE_START && (b == SP || b == HTAB)) {
+                        // leading whitespace is not part of the value
+                        break;
+                    }
+                    state = State.VALUE;
+                    if (b == CR || b == LF) {
+                        if (!storeHeader()) {
+                            return fail(400);
+                        }
+                        state = (b == CR) ? State.HEADER_LF : State.LINE_START;
+                    } else if (b != HTAB && isControl(b)) {
+                        return fail(400);
+                    } else {
+                        scratch.put(scratchLength++, b);
+                    }
+                    break;
+                case END_LF:
+                    if (b == LF) {
+                        state = State.DONE;
+                    } else if (b != CR) {
+                        return fail(400);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (state == State.ERROR) {
+            release();
+            return errorCode;
+        }
+        if (state == State.DONE) {
+            release();
+            return DONE;
+        }
+        return NEED_MORE;
+    }
+
+    private int fail(int code) {
+        Debug.DEBUG(() -> "RequestParser: error " + code + " in state " + state, DebugType.PARSING);
+        state = State.ERROR;
+        errorCode = code;
+        return code;
+    }
+
+    // CTL of RFC 5234 (NUL included), other than CR and LF, which end lines
+    private static boolean isControl(byte b) {
+        return (b >= 0 && b < SP && b != CR && b != LF) || b == 0x7f;
+    }
+
+    // scratch is HTTP/<digit>.<digit>
+    private boolean isHttpVersion() {
+        return scratchLength == 8 && scratch.get(0) == 'H' && scratch.get(1) == 'T' && scratch.get(2) == 'T' && scratch.get(3) == 'P'
+                && scratch.get(4) == '/' && isDigit(scratch.get(5)) && scratch.get(6) == '.' && isDigit(scratch.get(7));
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private ReqMethod matchMethod() {
+        if (scratchLength == 3 && scratch.get(0) == 'G' && scratch.get(1) == 'E' && scratch.get(2) == 'T') {
+            return ReqMethod.GET;
+        }
+        if (scratchLength == 4 && scratch.get(0) == 'P' && scratch.get(1) == 'O' && scratch.get(2) == 'S' && scratch.get(3) == 'T') {
+            return ReqMethod.POST;
+        }
+        return ReqMethod.UNKNOWN;
+    }
+
+    // ASCII case-insensitive match of scratch against the well-known header names
+    private int matchHeaderName() {
+        for (int slot = 0; slot < KNOWN_HEADER_BYTES.length; slot++) {
+            byte[] name = KNOWN_HEADER_BYTES[slot];
+            if (name.length != scratchLength) {
+                continue;
+            }
+            int i = 0;
+            while (i < scratchLength && (scratch.get(i) | 0x20) == (name[i] | 0x20)) {
+                i++;
+            }
+            if (i == scratchLength) {
+                return slot;
+            }
+        }
+        return Request.UNKNOWN_HEADER;
+    }
+
+    // false if the header conflicts with one already stored
+    private boolean storeHeader() {
+        // trailing whitespace is not part of the value
+        while (scratchLength > 0 && (scratch.get(scratchLength - 1) == SP || scratch.get(scratchLength - 1) == HTAB)) {
+            scratchLength--;
+        }
+        String value = scratchString();
+
+        if (headerSlot != Request.UNKNOWN_HEADER) {
+            String previous = request.lookupHeader(headerSlot);
+            if (headerSlot == Request.CONTENT_LENGTH && previous != null && !previous.equals(value)) {
+                return false;
+            }
+            request.setHeader(headerSlot, value);
+        } else {
+            request.addHeader(headerName, value);
+        }
+        return true;
+    }
+
+    private String scratchString() {
+        byte[] bytes = new byte[scratchLength];
+        scratch.get(0, bytes);
+        String s = new String(bytes, StandardCharsets.ISO_8859_1);
+        scratchLength = 0;
+        return s;
+    }
+}
@@ -0,0 +1,310 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+
+// Ordered list of byte sources making up the queued responses of a connection: heap/direct buffers
+// (headers, cached responses), file regions sent with transferTo, and file regions sent from
+// memory-mapped windows. Consecutive buffers and mapped windows go out in one gathering write, also
+// across pipelined responses; file channels added here are closed once everything has been written
+// or the body is released.
+//
+// typical use:
+// body.beginResponse();
+// body.addBuffer(headers);
+// body.addMappedRegion(fc, 500, 1000);
+// while (!body.isEmpty()) body.writeTo(client);   // across several handleWrite calls
+// or body.read(dst) to take the bytes instead, as an HTTP/2 stream does
+
+public class ResponseBody {
+    private static final int MAX_GATHER = 16;
+    // largest single mapping; bigger regions are mapped window by window as they are sent
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    private static abstract class Part {
+        // run once the part has been written or dropped
+        Runnable onDone;
+
+        abstract boolean isDone();
+    }
+
+    private static class BufferPart extends Part {
+        private final ByteBuffer buf;
+
+        BufferPart(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        ByteBuffer buffer() throws IOException {
+            return buf;
+        }
+
+        boolean isDone() {
+            return !buf.hasRemaining();
+        }
+
+        // true if the current buffer still has bytes the socket did not take
+        boolean isBlocked() {
+            return buf.hasRemaining();
+        }
+    }
+
+    // zero-length part marking where the next response starts
+    private static class ResponseStart extends BufferPart {
+        private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+        ResponseStart() {
+            super(EMPTY);
+        }
+    }
+
+    private static class MappedPart extends BufferPart {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+        private MappedByteBuffer window;
+
+        MappedPart(FileChannel channel, long position, long count) {
+            super(null);
+            this.channel = channel;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        ByteBuffer buffer() throws IOException {
+            if ((window == null || !window.hasRemaining()) && remaining > 0) {
+                long size = Math.min(MAP_WINDOW, remaining);
+                if (position + size > channel.size()) {
+                    // mapped bytes past the end of a file that shrank would fault when read
+                    throw new IOException("file truncated");
+                }
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                position += size;
+                remaining -= size;
+            }
+            return window;
+        }
+
+        boolean isDone() {
+            return remaining == 0 && window != null && !window.hasRemaining();
+        }
+
+        boolean isBlocked() {
+            return window != null && window.hasRemaining();
+        }
+    }
+
+    private static class TransferPart extends Part {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        TransferPart(FileChannel channel, long position, long count) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        // a file that shrank while queued fails the response, as in read: transferTo would send nothing
+        // from past its end, forever
+        long transferTo(SocketChannel client) throws IOException {
+            long sentBytes = channel.transferTo(position, remaining, client);
+            if (sentBytes == 0 && position >= channel.size()) {
+                throw new IOException("file truncated");
+            }
+            position += sentBytes;
+            remaining -= sentBytes;
+            return sentBytes;
+        }
+
+        // copies into dst instead; a file that shrank while queued fails the response
+        int read(ByteBuffer dst) throws IOException {
+            int limit = dst.limit();
+            if (dst.remaining() > remaining) {
+                dst.limit(dst.position() + (int) remaining);
+            }
+            int readBytes = channel.read(dst, position);
+            dst.limit(limit);
+            if (readBytes == -1) {
+                throw new IOException("file truncated");
+            }
+            position += readBytes;
+            remaining -= readBytes;
+            return readBytes;
+        }
+
+        boolean isDone() {
+            return remaining <= 0;
+        }
+    }
+
+    private final ArrayDeque<Part> parts;
+    private final ArrayList<FileChannel> channels;
+    private final ByteBuffer[] gather;
+    private int queuedStarts;
+
+    public ResponseBody() {
+        parts = new ArrayDeque<Part>();
+        channels = new ArrayList<FileChannel>();
+        gather = new ByteBuffer[MAX_GATHER];
+    }
+
+    // marks the start of the next response's parts
+    public void beginResponse() {
+        parts.addLast(new ResponseStart());
+        queuedStarts++;
+    }
+
+    // number of responses not yet completely written
+    public int getPendingResponses() {
+        boolean inProgress = !parts.isEmpty() && !(parts.peekFirst() instanceof ResponseStart);
+        return queuedStarts + (inProgress ? 1 : 0);
+    }
+
+    public void addBuffer(ByteBuffer buf) {
+        if (buf.hasRemaining()) {
+            parts.addLast(new BufferPart(buf));
+        }
+    }
+
+    // buf, running onDone once it has been written or the body is released (e.g. to return cgi credits)
+    public void addBuffer(ByteBuffer buf, Runnable onDone) {
+        if (!buf.hasRemaining()) {
+            onDone.run();
+            return;
+        }
+        BufferPart part = new BufferPart(buf);
+        part.onDone = onDone;
+        parts.addLast(part);
+    }
+
+    // count bytes of fc starting at position, sent with transferTo (sendfile)
+    public void addFileRegion(FileChannel fc, long position, long count) {
+        track(fc);
+        if (count > 0) {
+            parts.addLast(new TransferPart(fc, position, count));
+        }
+    }
+
+    // count bytes of fc starting at position, sent from read-only memory mappings of the region only
+    public void addMappedRegion(FileChannel fc, long position, long count) {
+        track(fc);
+        if (count > 0) {
+            parts.addLast(new MappedPart(fc, position, count));
+        }
+    }
+
+    public boolean isEmpty() {
+        return parts.isEmpty();
+    }
+
+    // Writes as much as the socket accepts; returns number of bytes written
+    public long writeTo(SocketChannel client) throws IOException {
+        long total = 0;
+
+        removeDoneParts();
+        while (!parts.isEmpty()) {
+            Part head = parts.peekFirst();
+
+            if (head instanceof TransferPart) {
+                TransferPart tp = (TransferPart) head;
+                total += tp.transferTo(client);
+                if (!tp.isDone()) {
+                    break;      // socket send buffer full
+                }
+                parts.removeFirst();
+                removeDoneParts();
+                continue;
+            }
+
+            // gather consecutive buffers up to the next transferTo region
+            int n = 0;
+            for (Part p : parts) {
+                if (p instanceof TransferPart || n == MAX_GATHER) {
+                    break;
+                }
+                gather[n++] = ((BufferPart) p).buffer();
+            }
+
+            long writeBytes = client.write(gather, 0, n);
+            total += writeBytes;
+            Arrays.fill(gather, 0, n, null);
+
+            removeDoneParts();
+            Part next = parts.peekFirst();
+            if (writeBytes == 0 || (next instanceof BufferPart && ((BufferPart) next).isBlocked())) {
+                break;      // socket send buffer full
+            }
+        }
+
+        if (parts.isEmpty()) {
+            release();
+        }
+        return total;
+    }
+
+    // Copies as much as fits into dst instead of writing to a socket (an HTTP/2 stream frames the
+    // bytes itself); returns number of bytes copied
+    public int read(ByteBuffer dst) throws IOException {
+        int total = 0;
+
+        removeDoneParts();
+        while (!parts.isEmpty() && dst.hasRemaining()) {
+            Part head = parts.peekFirst();
+            if (head instanceof TransferPart) {
+                total += ((TransferPart) head).read(dst);
+            } else {
+                ByteBuffer src = ((BufferPart) head).buffer();
+                int n = Math.min(src.remaining(), dst.remaining());
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + n);
+                dst.put(slice);
+                src.position(src.position() + n);
+                total += n;
+            }
+            removeDoneParts();
+        }
+
+        if (parts.isEmpty()) {
+            release();
+        }
+        return total;
+    }
+
+    private void removeDoneParts() {
+        while (!parts.isEmpty() && parts.peekFirst().isDone()) {
+            Part done = parts.removeFirst();
+            if (done instanceof ResponseStart) {
+                queuedStarts--;
+            }
+            if (done.onDone != null) {
+                done.onDone.run();
+            }
+        }
+    }
+
+    // drops anything not yet sent and closes file channels
+    public void release() {
+        for (Part p : parts) {
+            if (p.onDone != null) {
+                p.onDone.run();
+            }
+        }
+        parts.clear();
+        queuedStarts = 0;
+        for (FileChannel fc : channels) {
+            try {
+                fc.close();
+            } catch (IOException ex) {}
+        }
+        channels.clear();
+    }
+
+    private void track(FileChannel fc) {
+        if (!channels.contains(fc)) {
+            channels.add(fc);
+        }
+    }
+}
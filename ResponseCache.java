@@ -0,0 +1,259 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.*;
+
+// Shared cache of rendered static responses, keyed by doc-rooted file name (doc root + resolved url).
+// Entries are checked against the file's current length and mtime from FileMetaCache, so a lookup
+// never touches the filesystem. Each entry holds the file-specific headers (Last-Modified, Content-Type, Content-Length), the blank
+// line and the file body in one read-only direct buffer, so every dispatcher can send a hot file with a
+// single gathering write after its own status line and Date header. Compressed variants are kept the
+// same way under ContentEncoding.variantKey(fileName, coding), checked against the file they encode;
+// a variant that did not compress well is remembered as a body-less entry so it is not retried.
+//
+// cache interface:
+// ResponseCache(maxBytes, maxEntryBytes)
+// lookup(fileName, lastModified, length): matching entry or null
+// store(fileName, f, lastModified, length, contentType, fileHeaders): new entry or null if not cacheable
+// storeResponse(key, f, lastModified, length, contentType, response, bodyLength): caches rendered headers + body
+// storeNoVariant(key, f, lastModified, length): remembers that f is not worth sending with that coding
+// isEnabled(): false if nothing is ever stored
+
+public class ResponseCache {
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_MAX_ENTRY_BYTES = 1024 * 1024;
+    // accounted size of a body-less entry
+    private static final int NO_VARIANT_SIZE = 64;
+
+    public static class Entry {
+        private final File file;
+        private final long lastModified;
+        private final long length;
+        private final String contentType;
+        private final ByteBuffer response;      // file headers + CRLF + body, read-only; null: no variant
+        private final long bodyLength;
+
+        private Entry(File file, long lastModified, long length, String contentType, ByteBuffer response, long bodyLength) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.contentType = contentType;
+            this.response = response;
+            this.bodyLength = bodyLength;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        // bytes of body sent, differs from getLength() for compressed variants
+        public long getBodyLength() {
+            return bodyLength;
+        }
+
+        // stored by storeNoVariant: send the file as is
+        public boolean isNoVariant() {
+            return response == null;
+        }
+
+        // independent position/limit over the shared bytes, one per response being sent
+        public ByteBuffer newResponseView() {
+            return response.duplicate();
+        }
+
+        private int size() {
+            return (response != null) ? response.capacity() : NO_VARIANT_SIZE;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+
+    // access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries;
+    private long currentBytes;
+    private final Lock lock;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+    private final LongAdder invalidations;
+
+    public ResponseCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(Math.min(maxEntryBytes, maxBytes), Integer.MAX_VALUE);
+
+        entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+        lock = new ReentrantLock();
+
+        hits = new LongAdder();
+        misses = new LongAdder();
+        evictions = new LongAdder();
+        invalidations = new LongAdder();
+    }
+
+    // false if configured with no room at all: nothing is ever stored
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    // Returns the entry for fileName, or null if not cached or cached for a different version of the
+    // file (lastModified and length as currently known)
+    public Entry lookup(String fileName, long lastModified, long length) {
+        if (maxBytes <= 0) {
+            return null;
+        }
+
+        Entry entry;
+        lock.lock();
+        try {
+            entry = entries.get(fileName);
+        } finally {
+            lock.unlock();
+        }
+
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+
+        if (lastModified != entry.lastModified || length != entry.length) {
+            Debug.DEBUG(() -> "ResponseCache: invalidating " + fileName, DebugType.NONSERVER);
+            remove(fileName, entry);
+            invalidations.increment();
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        return entry;
+    }
+
+    // Reads f into a new direct buffer behind fileHeaders and caches it.
+    // Returns null if the file is too large to cache or changed while being read.
+    public Entry store(String fileName, File f, long lastModified, long length, String contentType, ByteBuffer fileHeaders) {
+        if (maxBytes <= 0 || fileHeaders.remaining() + length > maxEntryBytes) {
+            return null;
+        }
+
+        ByteBuffer response = ByteBuffer.allocateDirect(fileHeaders.remaining() + (int) length);
+        response.put(fileHeaders);
+
+        try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            while (response.hasRemaining()) {
+                int readBytes = fc.read(response, position);
+                if (readBytes < 0) {
+                    return null;        // file shrank underneath us
+                }
+                position += readBytes;
+            }
+            if (fc.size() != length) {
+                return null;
+            }
+        } catch (IOException ex) {
+            return null;
+        }
+        response.flip();
+
+        return put(fileName, new Entry(f, lastModified, length, contentType, response.asReadOnlyBuffer(), length));
+    }
+
+    // Caches an already rendered response (headers + CRLF + body) under key, checked against f's
+    // lastModified and length; returns null if too large to cache
+    public Entry storeResponse(String key, File f, long lastModified, long length, String contentType, ByteBuffer response,
+            long bodyLength) {
+        if (maxBytes <= 0 || response.remaining() > maxEntryBytes) {
+            return null;
+        }
+        ByteBuffer copy = ByteBuffer.allocateDirect(response.remaining());
+        copy.put(response.duplicate());
+        copy.flip();
+        return put(key, new Entry(f, lastModified, length, contentType, copy.asReadOnlyBuffer(), bodyLength));
+    }
+
+    // Remembers that key (a variant of f) is not worth generating until f changes
+    public void storeNoVariant(String key, File f, long lastModified, long length) {
+        if (maxBytes > 0) {
+            put(key, new Entry(f, lastModified, length, null, null, length));
+        }
+    }
+
+    private Entry put(String fileName, Entry entry) {
+        lock.lock();
+        try {
+            Entry old = entries.put(fileName, entry);
+            if (old != null) {
+                currentBytes -= old.size();
+            }
+            currentBytes += entry.size();
+            evictIfNeeded();
+        } finally {
+            lock.unlock();
+        }
+
+        Debug.DEBUG(() -> "ResponseCache: stored " + fileName + " (" + entry.size() + " bytes)", DebugType.NONSERVER);
+        return entry;
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            currentBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String toString() {
+        lock.lock();
+        try {
+            return "ResponseCache: " + entries.size() + " entries, " + currentBytes + "/" + maxBytes + " bytes, "
+                    + hits.sum() + " hits, " + misses.sum() + " misses, "
+                    + evictions.sum() + " evictions, " + invalidations.sum() + " invalidations";
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void remove(String fileName, Entry entry) {
+        lock.lock();
+        try {
+            // only remove if not already replaced by a newer entry
+            if (entries.get(fileName) == entry) {
+                entries.remove(fileName);
+                currentBytes -= entry.size();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // caller holds lock
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            currentBytes -= eldest.size();
+            evictions.increment();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Pre-rendered response header bytes, shared by all dispatchers:
+// - status lines per protocol and status code
+// - Date header, formatted at most once per second
+// - Server header
+// - per-file Last-Modified, Accept-Ranges, Content-Type and Content-Length lines
+// - the same for compressed variants, with Content-Encoding instead of Accept-Ranges
+// so writing a response head is a handful of bulk puts. Every returned array ends in CRLF and must
+// not be modified.
+//
+// typical use:
+// outBuffer.put(ResponseHeaders.statusLine("HTTP/1.1", 200, "OK"));
+// outBuffer.put(ResponseHeaders.dateHeader(System.currentTimeMillis()));
+// outBuffer.put(ResponseHeaders.SERVER_HEADER);
+// outBuffer.put(ResponseHeaders.fileHeaders(f.getPath(), lastModified, length, contentType));
+
+public class ResponseHeaders {
+    public static final byte[] SERVER_HEADER = ascii("Server: aPAXche/1.0.0 (Ubuntu)\r\n");
+
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    // per-file header blocks kept before the table is dropped and rebuilt
+    private static final int MAX_FILE_ENTRIES = 4096;
+
+    private static class StatusLine {
+        final String message;
+        final byte[] bytes;
+
+        StatusLine(String message, byte[] bytes) {
+            this.message = message;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class CachedDate {
+        final long second;
+        final byte[] bytes;
+
+        CachedDate(long second, byte[] bytes) {
+            this.second = second;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class FileHeaders {
+        final long lastModified;
+        final long length;
+        final String contentType;
+        final byte[] bytes;
+
+        FileHeaders(long lastModified, long length, String contentType, byte[] bytes) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.contentType = contentType;
+            this.bytes = bytes;
+        }
+    }
+
+    // by status code, for HTTP/1.1 and HTTP/1.0; filled on first use, a racing fill is harmless
+    private static final StatusLine[] statusLines11 = new StatusLine[600];
+    private static final StatusLine[] statusLines10 = new StatusLine[600];
+
+    private static volatile CachedDate cachedDate = new CachedDate(-1, null);
+
+    private static final ConcurrentHashMap<String, FileHeaders> fileHeaders = new ConcurrentHashMap<String, FileHeaders>();
+
+    // "<protocol> <code> <message>" CRLF; protocol defaults to HTTP/1.1
+    public static byte[] statusLine(String protocol, int statusCode, String message) {
+        if (protocol == null) {
+            protocol = "HTTP/1.1";
+        }
+        StatusLine[] table = protocol.equals("HTTP/1.1") ? statusLines11 : protocol.equals("HTTP/1.0") ? statusLines10 : null;
+        if (table == null || statusCode < 0 || statusCode >= table.length) {
+            return ascii(protocol + " " + statusCode + " " + message + "\r\n");
+        }
+
+        StatusLine line = table[statusCode];
+        if (line == null || !line.message.equals(message)) {
+            line = new StatusLine(message, ascii(protocol + " " + statusCode + " " + message + "\r\n"));
+            table[statusCode] = line;
+        }
+        return line.bytes;
+    }
+
+    // "Date: <now>" CRLF, reformatted when the second changes
+    public static byte[] dateHeader(long now) {
+        long second = now / 1000;
+        CachedDate date = cachedDate;
+        if (date.second != second) {
+            date = new CachedDate(second, ascii("Date: " + formatHttpDate(second * 1000) + "\r\n"));
+            cachedDate = date;
+        }
+        return date.bytes;
+    }
+
+    // Last-Modified, Accept-Ranges, Content-Type and Content-Length lines for a file, cached by path
+    // until its modification time or length changes
+    public static byte[] fileHeaders(String path, long lastModified, long length, String contentType) {
+        FileHeaders headers = fileHeaders.get(path);
+        if (headers != null && headers.lastModified == lastModified && headers.length == length
+                && headers.contentType.equals(contentType)) {
+            return headers.bytes;
+        }
+
+        byte[] bytes = ascii("Last-Modified: " + formatHttpDate(lastModified) + "\r\n"
+                + "Accept-Ranges: bytes\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + length + "\r\n");
+        if (fileHeaders.size() >= MAX_FILE_ENTRIES) {
+            fileHeaders.clear();
+        }
+        fileHeaders.put(path, new FileHeaders(lastModified, length, contentType, bytes));
+        return bytes;
+    }
+
+    // Last-Modified, Content-Type, Content-Encoding and Content-Length lines of a compressed variant;
+    // not cached here, the variant's whole response is kept in the ResponseCache. No Accept-Ranges:
+    // ranges are only served from the file as stored.
+    public static byte[] encodedFileHeaders(long lastModified, long length, String contentType, String coding) {
+        return ascii("Last-Modified: " + formatHttpDate(lastModified) + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Encoding: " + coding + "\r\n"
+                + "Content-Length: " + length + "\r\n");
+    }
+
+    // IMF-fixdate, e.g. "Sun, 06 Nov 1994 08:49:37 GMT"
+    public static String formatHttpDate(long millis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
+
+    // Returns epoch millis of an HTTP date, or -1 if it is malformed
+    public static long parseHttpDate(String date) {
+        try {
+            return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            return -1;
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -2,8 +2,12 @@ import java.nio.channels.*;
 import java.net.*;
 import java.io.IOException;
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.*;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 // Note: finished. Also move the static methods sometime soon
 
@@ -11,64 +15,448 @@ public class Server {
     public static final int DEFAULT_PORT = 1223;
     public static final String DEFAULT_DOC_ROOT = "./www-root/";
 
-    private static ServerConfig serverConfig;
+    // current config snapshot, null if running on defaults; reload() swaps in a new one, and readers
+    // take one get() per lookup, without locks
+    private static final AtomicReference<ServerConfig> serverConfig = new AtomicReference<ServerConfig>();
+    // file the config was read from, null if running on defaults
+    private static File configFile;
     private static Selector selector;
 
+    // shared by all dispatchers; replaced in main once the config is known
+    private static ResponseCache responseCache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES,
+            ResponseCache.DEFAULT_MAX_ENTRY_BYTES);
+    private static FileMetaCache fileMetaCache = new FileMetaCache(FileMetaCache.DEFAULT_TTL_MILLIS,
+            FileMetaCache.DEFAULT_MAX_ENTRIES);
+    // also replaced by a reload that changes their directives
+    private static volatile CgiExecutor cgiExecutor = new CgiExecutor(CgiExecutor.DEFAULT_MAX_CONCURRENCY,
+            CgiExecutor.DEFAULT_QUEUE_SIZE, new ArrayList<String>(), new ArrayList<String>(),
+            CgiWorkerPool.DEFAULT_TIMEOUT_MILLIS, CgiWorkerPool.DEFAULT_PING_MILLIS, new ArrayList<String>());
+    private static volatile CgiCache cgiCache = new CgiCache(new ArrayList<String>(), CgiCache.DEFAULT_MAX_BYTES,
+            CgiCache.DEFAULT_MAX_ENTRY_BYTES);
+    private static volatile LoadMonitor loadMonitor = new LoadMonitor(LoadMonitor.DEFAULT_MAX_CONNECTIONS,
+            LoadMonitor.DEFAULT_MAX_CGI_PENDING, LoadMonitor.DEFAULT_MAX_LATENCY_MILLIS,
+            LoadMonitor.DEFAULT_RETRY_AFTER_SECONDS, new ArrayList<String>());
+    // null unless the AccessLog directive is set
+    private static volatile AccessLog accessLog;
+    // set once all dispatchers are started, and again when a reload changes nSelectLoops
+    private static volatile Dispatcher[] dispatchers = new Dispatcher[0];
+    private static final long startMillis = System.currentTimeMillis();
+
+    // how connections are accepted; set up by main, changed only by reload
+    private static boolean virtualEngine;
+    private static String acceptStrategy;
+    private static int listenPort;
+    // the listener of the shared and acceptor strategies and of Engine virtual
+    private static ServerSocketChannel listener;
+    private static Lock acceptHandlerLock;
+    private static Acceptor acceptor;
+    private static int nextDispatcherId;
+
+    // directives only read at startup
+    private static final String[] RESTART_DIRECTIVES = { "Engine", "AcceptStrategy", "AcceptBalance", "AccessLog",
+            "AccessLogFormat", "CacheSize", "CacheMaxEntrySize", "FileCacheTTL", "FileCacheSize", "ConfigWatch" };
+
     public static int getPort() {
-        return serverConfig.getPort();
+        ServerConfig config = serverConfig.get();
+        if (config == null) {
+            return DEFAULT_PORT;
+        }
+        return config.getPort();
+    }
+
+    public static ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    public static FileMetaCache getFileMetaCache() {
+        return fileMetaCache;
+    }
+
+    public static CgiExecutor getCgiExecutor() {
+        return cgiExecutor;
+    }
+
+    public static CgiCache getCgiCache() {
+        return cgiCache;
+    }
+
+    public static LoadMonitor getLoadMonitor() {
+        return loadMonitor;
+    }
+
+    public static AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    public static Dispatcher[] getDispatchers() {
+        return dispatchers;
+    }
+
+    public static long getStartMillis() {
+        return startMillis;
+    }
+
+    // exposes a dispatcher's metrics to JMX clients (jconsole, VisualVM) as http-server:type=Dispatcher,id=<n>
+    private static void registerMetrics(Dispatcher dispatcher) {
+        try {
+            ObjectName name = new ObjectName("http-server:type=Dispatcher,id=" + dispatcher.getDispatcherId());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(dispatcher.getMetrics(), name);
+        } catch (JMException ex) {
+            Debug.DEBUG(() -> "Server: cannot register metrics of dispatcher " + dispatcher.getDispatcherId(), DebugType.SERVER);
+        }
+    }
+
+    private static void unregisterMetrics(Dispatcher dispatcher) {
+        try {
+            ObjectName name = new ObjectName("http-server:type=Dispatcher,id=" + dispatcher.getDispatcherId());
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException ex) {
+            Debug.DEBUG(() -> "Server: cannot unregister metrics of dispatcher " + dispatcher.getDispatcherId(), DebugType.SERVER);
+        }
+    }
+
+    // returns numeric value of a config directive, or defaultValue if no config or not configured
+    public static long getConfigValue(String name, long defaultValue) {
+        ServerConfig config = serverConfig.get();
+        if (config == null) {
+            return defaultValue;
+        }
+        return config.lookupDirective(name, defaultValue);
+    }
+
+    // returns value of a config directive, or defaultValue if no config or not configured
+    public static String getConfigString(String name, String defaultValue) {
+        ServerConfig config = serverConfig.get();
+        if (config == null || config.lookupDirective(name) == null) {
+            return defaultValue;
+        }
+        return config.lookupDirective(name);
+    }
+
+    // returns every value of a repeatable config directive, or an empty list if no config or not configured
+    public static List<String> getConfigStrings(String name) {
+        ServerConfig config = serverConfig.get();
+        if (config == null) {
+            return new ArrayList<String>();
+        }
+        return config.lookupDirectives(name);
     }
 
     // TODO: move static method to ServerConfig?
-    // returns docroot associated with serverName in serverConfig, 
+    // returns docroot associated with serverName in serverConfig,
     // or default doc root if no config,
     // or first configured server's doc root if serverName not in config
     public static String getVirtualHostDocRoot(String serverName) {
-        if (serverConfig == null) {
+        ServerConfig config = serverConfig.get();
+        if (config == null) {
             return DEFAULT_DOC_ROOT;
         }
-        String docRoot = serverConfig.lookupVirtualHost(serverName);
-        // 
+        String docRoot = config.lookupVirtualHost(serverName);
+        //
         if (docRoot == null) {
-            return getVirtualHostDocRoot();
+            return config.lookupVirtualHost(config.getFirstVirtualHost());
         }
         return docRoot;
     }
 
+    // returns the ProxyPass route of serverName's virtual host matching url, or null if url is not proxied
+    public static ProxyRoute getProxyRoute(String serverName, String url) {
+        ServerConfig config = serverConfig.get();
+        if (config == null) {
+            return null;
+        }
+        return config.lookupProxyRoute(serverName, url);
+    }
+
+    // returns every configured doc root, or the default doc root if no config
+    public static Collection<String> getDocumentRoots() {
+        ServerConfig config = serverConfig.get();
+        if (config == null) {
+            return Collections.singletonList(DEFAULT_DOC_ROOT);
+        }
+        return config.getDocumentRoots();
+    }
+
     // TODO: move static method to ServerConfig?
     // returns docroot associated with first server in serverConfig,
     // or default doc root if no config
     public static String getVirtualHostDocRoot() {
-        if (serverConfig == null) {
+        ServerConfig config = serverConfig.get();
+        if (config == null) {
             return DEFAULT_DOC_ROOT;
         }
-        String firstServerName = serverConfig.getFirstVirtualHost();
+        String firstServerName = config.getFirstVirtualHost();
         if (firstServerName == null) {
             // TODO: throw lookup error
         }
-        return serverConfig.lookupVirtualHost(firstServerName);
+        return config.lookupVirtualHost(firstServerName);
     }
 
     public static ServerSocketChannel openServerSocketChannel(int port) {
         ServerSocketChannel serverSocketChannel = null;
-        
+
         try {
-            serverSocketChannel = ServerSocketChannel.open();
-            ServerSocket serverSocket = serverSocketChannel.socket();
-            InetSocketAddress address = new InetSocketAddress(port);
-            serverSocket.bind(address);
+            serverSocketChannel = bindListener(port, false);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+
+        return serverSocketChannel;
+    }
+
+    public static boolean supportsReusePort() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    // non-blocking listener on port; failure to bind is left to the caller
+    private static ServerSocketChannel bindListener(int port, boolean reusePort) throws IOException {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        try {
+            if (reusePort) {
+                serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            serverSocketChannel.bind(new InetSocketAddress(port));
 
             // non-blocking channel
             serverSocketChannel.configureBlocking(false);
-
-            Debug.PRINT("Server listening on port " + Integer.toString(port));
         } catch (IOException ex) {
-            ex.printStackTrace();
-            System.exit(1);
+            serverSocketChannel.close();
+            throw ex;
         }
 
+        Debug.PRINT("Server listening on port " + Integer.toString(port) + (reusePort ? " (SO_REUSEPORT)" : ""));
         return serverSocketChannel;
     }
 
+    private static CgiExecutor newCgiExecutor() {
+        return new CgiExecutor((int) getConfigValue("CgiMaxConcurrency", CgiExecutor.DEFAULT_MAX_CONCURRENCY),
+                (int) getConfigValue("CgiQueueSize", CgiExecutor.DEFAULT_QUEUE_SIZE), getConfigStrings("CgiLimit"),
+                getConfigStrings("CgiWorkers"), getConfigValue("CgiWorkerTimeout", CgiWorkerPool.DEFAULT_TIMEOUT_MILLIS),
+                getConfigValue("CgiWorkerPing", CgiWorkerPool.DEFAULT_PING_MILLIS), getConfigStrings("CgiDirectory"));
+    }
+
+    private static CgiCache newCgiCache() {
+        return new CgiCache(getConfigStrings("CgiCache"), getConfigValue("CgiCacheSize", CgiCache.DEFAULT_MAX_BYTES),
+                getConfigValue("CgiCacheMaxEntry", CgiCache.DEFAULT_MAX_ENTRY_BYTES));
+    }
+
+    private static LoadMonitor newLoadMonitor() {
+        return new LoadMonitor(getConfigValue("LoadMaxConnections", LoadMonitor.DEFAULT_MAX_CONNECTIONS),
+                getConfigValue("LoadMaxCgiPending", LoadMonitor.DEFAULT_MAX_CGI_PENDING),
+                getConfigValue("LoadMaxLatency", LoadMonitor.DEFAULT_MAX_LATENCY_MILLIS),
+                getConfigValue("RetryAfter", LoadMonitor.DEFAULT_RETRY_AFTER_SECONDS),
+                getConfigStrings("LowPriorityUrl"));
+    }
+
+    // creates and starts a dispatcher accepting the acceptStrategy way (acceptor: handed connections)
+    private static Dispatcher startDispatcher() throws IOException {
+        ServerSocketChannel ownListener = acceptStrategy.equals("reuseport") ? bindListener(listenPort, true) : null;
+
+        IReadWriteHandlerFactory rwhFactory = new ReadWriteHandlerFactory();
+        Dispatcher dispatcher = new Dispatcher(nextDispatcherId++, rwhFactory);
+
+        if (acceptStrategy.equals("shared")) {
+            dispatcher.setListener(listener, new AcceptHandler(dispatcher, acceptHandlerLock), true);
+        } else if (ownListener != null) {
+            dispatcher.setListener(ownListener, new AcceptHandler(dispatcher, null), false);
+        }
+
+        registerMetrics(dispatcher);
+        dispatcher.start();
+        return dispatcher;
+    }
+
+    private static void startAcceptor() {
+        Acceptor.Balance balance = getConfigString("AcceptBalance", "roundrobin").equals("leastconn")
+                ? Acceptor.Balance.LEAST_CONNECTIONS : Acceptor.Balance.ROUND_ROBIN;
+        acceptor = new Acceptor(listener, dispatchers, balance);
+        Thread acceptorThread = new Thread(acceptor, "acceptor");
+        acceptorThread.setDaemon(true);
+        acceptorThread.start();
+    }
+
+    // Re-reads the config file and publishes it as the new snapshot, off the select loops (manager or
+    // config watcher thread). Connections opened from now on use it; open ones, keep-alive included,
+    // keep the settings they started with, and the caches stay warm. Listen and nSelectLoops are
+    // reconciled live: the new port is bound before the old listeners close, and extra dispatchers
+    // are started or retired (a retired one stops accepting and ends once its connections have
+    // closed). A file that does not parse, or a port that cannot be bound, changes nothing.
+    // Returns a one-line report for the console.
+    public static synchronized String reload() {
+        if (configFile == null) {
+            return "reload: started without a config file, nothing to reload";
+        }
+
+        ServerConfig sc = new ServerConfig();
+        try {
+            sc.parseConfigFile(configFile);
+        } catch (IOException | RuntimeException ex) {
+            return "reload: cannot parse " + configFile + " (" + ex.getMessage() + "), keeping the running config";
+        }
+        ServerConfig old = serverConfig.get();
+        List<String> changes = new ArrayList<String>();
+
+        // bind first, so that a port in use leaves everything as it was
+        if (sc.getPort() != listenPort) {
+            String change = "Listen " + listenPort + " -> " + sc.getPort();
+            try {
+                moveListeners(sc.getPort());
+            } catch (IOException ex) {
+                return "reload: cannot listen on port " + sc.getPort() + " (" + ex.getMessage() + "), keeping the running config";
+            }
+            changes.add(change);
+        }
+
+        serverConfig.set(sc);
+
+        if (!sc.sameVirtualHosts(old)) {
+            changes.add("virtual hosts");
+            fileMetaCache.watch(getDocumentRoots());
+        }
+        if (!sc.sameDirectives(old, "LogLevel") && sc.lookupDirective("LogLevel") != null) {
+            Debug.setLevels(sc.lookupDirective("LogLevel"));
+            changes.add("LogLevel");
+        }
+        if (!sc.sameDirectives(old, "TypesConfig")) {
+            String typesConfig = sc.lookupDirective("TypesConfig");
+            try {
+                if (typesConfig != null) {
+                    MimeTypes.load(new File(typesConfig));
+                } else {
+                    MimeTypes.reset();
+                }
+                // content types are part of cached metadata and responses
+                fileMetaCache.clear();
+                responseCache.clear();
+                changes.add("TypesConfig");
+            } catch (IOException ex) {
+                changes.add("TypesConfig not readable, types kept");
+            }
+        }
+        if (!sc.sameDirectives(old, "CgiMaxConcurrency", "CgiQueueSize", "CgiLimit", "CgiWorkers",
+                "CgiWorkerTimeout", "CgiWorkerPing", "CgiDirectory")) {
+            CgiExecutor previous = cgiExecutor;
+            cgiExecutor = newCgiExecutor();
+            previous.shutdown();
+            changes.add("CGI limits");
+        }
+        if (!sc.sameDirectives(old, "CgiCache", "CgiCacheSize", "CgiCacheMaxEntry")) {
+            // runs in progress finish into the old cache
+            cgiCache = newCgiCache();
+            changes.add("CGI cache");
+        }
+        if (!sc.sameDirectives(old, "LoadMaxConnections", "LoadMaxCgiPending", "LoadMaxLatency", "RetryAfter", "LowPriorityUrl")) {
+            loadMonitor = newLoadMonitor();
+            changes.add("load watermarks");
+        }
+        for (Dispatcher d : dispatchers) {
+            d.reloadConfig();
+        }
+
+        // Engine virtual has no select loops to add or retire
+        int nSelectLoops = Math.max(sc.getNSelectLoops(), 1);
+        if (!virtualEngine && nSelectLoops != dispatchers.length) {
+            int before = dispatchers.length;
+            resizeDispatchers(nSelectLoops);
+            changes.add("nSelectLoops " + before + " -> " + dispatchers.length);
+        }
+
+        List<String> needRestart = new ArrayList<String>();
+        for (String name : RESTART_DIRECTIVES) {
+            if (!sc.sameDirectives(old, name)) {
+                needRestart.add(name);
+            }
+        }
+
+        String report = "reload: " + configFile + " loaded";
+        if (!changes.isEmpty()) {
+            report += "; " + String.join(", ", changes);
+        }
+        if (!needRestart.isEmpty()) {
+            report += "; takes a restart: " + String.join(", ", needRestart);
+        }
+        return report;
+    }
+
+    // Binds port and moves the dispatchers (or the acceptor) over to it, then closes the old listeners.
+    // If port cannot be bound, nothing changes.
+    private static void moveListeners(int port) throws IOException {
+        Dispatcher[] dispatchers = Server.dispatchers;
+
+        if (!virtualEngine && acceptStrategy.equals("reuseport")) {
+            ServerSocketChannel[] listeners = new ServerSocketChannel[dispatchers.length];
+            try {
+                for (int i = 0; i < dispatchers.length; i++) {
+                    listeners[i] = bindListener(port, true);
+                }
+            } catch (IOException ex) {
+                for (ServerSocketChannel l : listeners) {
+                    if (l != null) {
+                        l.close();
+                    }
+                }
+                throw ex;
+            }
+            // each dispatcher closes its old listener itself
+            for (int i = 0; i < dispatchers.length; i++) {
+                dispatchers[i].setListener(listeners[i], new AcceptHandler(dispatchers[i], null), false);
+            }
+        } else {
+            ServerSocketChannel oldListener = listener;
+            listener = bindListener(port, false);
+
+            if (virtualEngine) {
+                // closes the old listener
+                dispatchers[0].setListener(listener, null, false);
+            } else {
+                if (acceptStrategy.equals("acceptor")) {
+                    // the old acceptor thread ends when its listener is closed
+                    startAcceptor();
+                } else {
+                    for (Dispatcher d : dispatchers) {
+                        d.setListener(listener, new AcceptHandler(d, acceptHandlerLock), true);
+                    }
+                }
+                oldListener.close();
+            }
+        }
+
+        listenPort = port;
+    }
+
+    // Starts or retires dispatchers until there are n (fewer if a reuseport listener cannot be bound)
+    private static void resizeDispatchers(int n) {
+        Dispatcher[] current = dispatchers;
+        Dispatcher[] resized = Arrays.copyOf(current, n);
+
+        for (int i = current.length; i < n; i++) {
+            Debug.DEBUG("starting dispatcher " + Integer.toString(nextDispatcherId), DebugType.SERVER);
+            try {
+                resized[i] = startDispatcher();
+            } catch (IOException ex) {
+                Debug.PRINT("Server: cannot start dispatcher (" + ex.getMessage() + ")");
+                resized = Arrays.copyOf(resized, i);
+                break;
+            }
+        }
+
+        // out of the acceptor's and the load monitor's sight before they stop accepting
+        dispatchers = resized;
+        if (acceptor != null) {
+            acceptor.setDispatchers(resized);
+        }
+        for (int i = n; i < current.length; i++) {
+            Debug.DEBUG("retiring dispatcher " + Integer.toString(current[i].getDispatcherId()), DebugType.SERVER);
+            current[i].retire();
+            unregisterMetrics(current[i]);
+        }
+    }
+
     public static void main(String[] args) {
         Debug.PRINT("Starting server");
 
@@ -78,7 +466,7 @@ public class Server {
             System.out.println("Cannot create selector");
             ex.printStackTrace();
             System.exit(1);
-        }    
+        }
 
         int port = DEFAULT_PORT;
         int nSelectLoops = 1;
@@ -99,20 +487,80 @@ public class Server {
                 ServerConfig sc = new ServerConfig();
                 try {
                     sc.parseConfigFile(f);
-                    serverConfig = sc;
-                    port = serverConfig.getPort();
-                    nSelectLoops = serverConfig.getNSelectLoops();
+                    serverConfig.set(sc);
+                    configFile = f;
+                    port = sc.getPort();
+                    nSelectLoops = sc.getNSelectLoops();
                 } catch (IOException ex) {
                     // TODO: throw server config file parsing error
-                    System.out.println("Server config file parsing error");
+                    System.out.println("Server config file parsing error: " + ex.getMessage());
                     System.exit(1);
                 }
             }
         }
 
-        ServerSocketChannel ssc = openServerSocketChannel(port);
+        String logLevel = getConfigString("LogLevel", null);
+        if (logLevel != null) {
+            Debug.setLevels(logLevel);
+        }
+        String accessLogFile = getConfigString("AccessLog", null);
+        if (accessLogFile != null) {
+            try {
+                accessLog = new AccessLog(accessLogFile, !getConfigString("AccessLogFormat", "combined").equals("common"));
+            } catch (IOException ex) {
+                System.out.println("Cannot open access log " + accessLogFile);
+                System.exit(1);
+            }
+        }
+
+        String typesConfig = getConfigString("TypesConfig", null);
+        if (typesConfig != null) {
+            try {
+                MimeTypes.load(new File(typesConfig));
+            } catch (IOException ex) {
+                System.out.println("Cannot read types config " + typesConfig);
+                System.exit(1);
+            }
+        }
+
+        responseCache = new ResponseCache(getConfigValue("CacheSize", ResponseCache.DEFAULT_MAX_BYTES),
+                getConfigValue("CacheMaxEntrySize", ResponseCache.DEFAULT_MAX_ENTRY_BYTES));
+        fileMetaCache = new FileMetaCache(getConfigValue("FileCacheTTL", FileMetaCache.DEFAULT_TTL_MILLIS),
+                (int) getConfigValue("FileCacheSize", FileMetaCache.DEFAULT_MAX_ENTRIES));
+        fileMetaCache.watch(getDocumentRoots());
+        cgiExecutor = newCgiExecutor();
+        cgiCache = newCgiCache();
+        loadMonitor = newLoadMonitor();
+        listenPort = port;
+
+        // Engine virtual: a thread per connection with blocking I/O instead of nSelectLoops select loops
+        if (getConfigString("Engine", "dispatcher").equals("virtual")) {
+            virtualEngine = true;
+            listener = openServerSocketChannel(port);
+            VirtualThreadDispatcher dispatcher = new VirtualThreadDispatcher(nextDispatcherId++, listener);
+            dispatchers = new Dispatcher[] { dispatcher };
+            registerMetrics(dispatcher);
+            dispatcher.start();
+
+            startManager();
+            return;
+        }
+
+        // how new connections reach the dispatchers:
+        // shared: every dispatcher selects on the one listener, serialized by a lock (default)
+        // acceptor: one thread accepts and hands connections to dispatchers through their task queues
+        // reuseport: one SO_REUSEPORT listener per dispatcher, the kernel spreads connections
+        acceptStrategy = getConfigString("AcceptStrategy", "shared");
+        if (acceptStrategy.equals("reuseport") && !supportsReusePort()) {
+            System.out.println("SO_REUSEPORT not supported; using shared accept");
+            acceptStrategy = "shared";
+        }
+
+        if (!acceptStrategy.equals("reuseport")) {
+            listener = openServerSocketChannel(port);
+        }
 
-        Lock acceptHandlerLock = new ReentrantLock();
+        acceptHandlerLock = new ReentrantLock();
 
         try {
             Dispatcher[] dispatchers = new Dispatcher[nSelectLoops];
@@ -120,25 +568,28 @@ public class Server {
             // start nSelectLoops select multiplexing loops
             for (int i = 0; i < nSelectLoops; i++) {
                 Debug.DEBUG("starting dispatcher " + Integer.toString(i), DebugType.SERVER);
-                
-                Dispatcher dispatcher = new Dispatcher(i);
-
-                IReadWriteHandlerFactory rwhFactory = new ReadWriteHandlerFactory();
-                AcceptHandler acceptor = new AcceptHandler(rwhFactory, acceptHandlerLock);
-
-                SelectionKey key = ssc.register(dispatcher.selector(), SelectionKey.OP_ACCEPT);
-                key.attach(acceptor);
+                dispatchers[i] = startDispatcher();
+            }
+            Server.dispatchers = dispatchers;
 
-                dispatchers[i] = dispatcher;
-                dispatcher.start();
+            if (acceptStrategy.equals("acceptor")) {
+                startAcceptor();
             }
-            // spin up management thread
-            Manager manager = new Manager(dispatchers);
-            Thread managerThread = new Thread(manager);
-            managerThread.start();
+
+            startManager();
         } catch (IOException ex) {
             System.out.println("Cannot register or start dispatcher thread");
             System.exit(1);
         }
     }
-}
\ No newline at end of file
+
+    // spins up the management thread, and the config watcher unless ConfigWatch is off
+    private static void startManager() {
+        Thread managerThread = new Thread(new Manager());
+        managerThread.start();
+
+        if (configFile != null && !getConfigString("ConfigWatch", "on").equals("off")) {
+            new ConfigWatcher(configFile).start();
+        }
+    }
+}
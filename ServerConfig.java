@@ -6,17 +6,46 @@ import java.io.StringReader;
 import java.io.File;
 import java.io.FileReader;
 
+// Parsed httpd.conf. Once parsed, a ServerConfig is never changed: Server publishes it as the current
+// snapshot and a reload parses a new one and swaps it in, so readers need no locks and a request sees
+// one consistent config. Numeric directives are parsed with the file, so a reload with a value that is
+// not a number is refused as a whole instead of failing when a connection reads it.
+
 public class ServerConfig {
+    // directives read with lookupDirective(name, defaultValue)
+    private static final Set<String> NUMERIC_DIRECTIVES = new HashSet<String>(Arrays.asList(
+            "BodyTimeout", "BufferPoolSize", "CacheMaxEntrySize", "CacheSize", "CgiBodySpill", "CgiBodyWindow",
+            "CgiCacheMaxEntry", "CgiCacheSize", "CgiMaxBuffered", "CgiMaxConcurrency", "CgiQueryStringMax", "CgiQueueSize",
+            "CgiWorkerPing", "CgiWorkerTimeout", "CompressMaxRatio", "CompressMaxSize", "CompressMinSize", "CompressionLevel",
+            "FileCacheSize", "FileCacheTTL", "H2MaxConcurrentStreams", "HeaderTimeout", "KeepAliveTimeout",
+            "LoadMaxCgiPending", "LoadMaxConnections", "LoadMaxLatency", "MaxConnectionsPerDispatcher", "MaxContentLength",
+            "MaxHeaderSize", "MaxPipelinedRequests", "MaxRequestLine", "MmapThreshold", "ProxyConnectTimeout",
+            "ProxyKeepAlive", "ProxyMaxBuffered", "ProxyMaxIdle", "ProxyRetry", "ProxyTimeout", "RetryAfter"));
+
     private int port;
     private int nSelectLoops;
 
     private HashMap<String, String> virtualHosts;
     private String firstVirtualHost;
+    // ProxyPass lines of each virtual host as written, and the routes made from them, longest prefix first
+    private HashMap<String, List<String>> proxyLines;
+    private HashMap<String, ProxyRoute[]> proxyRoutes;
+
+    // any other top-level directives, e.g. "CacheSize 67108864"; a directive may appear more than once
+    private HashMap<String, ArrayList<String>> directives;
+    // last value of each numeric directive, checked while parsing
+    private HashMap<String, Long> numbers;
 
     public ServerConfig() {
+        port = Server.DEFAULT_PORT;
+        nSelectLoops = 1;
         virtualHosts = new HashMap<String, String>();
+        proxyLines = new HashMap<String, List<String>>();
+        proxyRoutes = new HashMap<String, ProxyRoute[]>();
+        directives = new HashMap<String, ArrayList<String>>();
+        numbers = new HashMap<String, Long>();
     }
-    
+
     public int getPort() {
         return port;
     }
@@ -27,7 +56,7 @@ public class ServerConfig {
 
     // Returns String value of serverName key in virtualHosts, or null if not found
     public String lookupVirtualHost(String serverName) {
-        Debug.DEBUG("attempting lookup of key " + serverName, DebugType.PARSING);
+        Debug.DEBUG(() -> "attempting lookup of key " + serverName, DebugType.PARSING);
 
         return virtualHosts.get(serverName);
     }
@@ -36,57 +65,197 @@ public class ServerConfig {
         return firstVirtualHost;
     }
 
+    // Returns the distinct DocumentRoots of all virtual hosts
+    public Collection<String> getDocumentRoots() {
+        return new HashSet<String>(virtualHosts.values());
+    }
+
+    // Returns the proxy route of serverName (or of the first virtual host if serverName is not one)
+    // with the longest prefix matching url, or null if url is served locally
+    public ProxyRoute lookupProxyRoute(String serverName, String url) {
+        ProxyRoute[] routes = (serverName == null) ? null : proxyRoutes.get(serverName);
+        if (routes == null && (serverName == null || !virtualHosts.containsKey(serverName))) {
+            routes = proxyRoutes.get(firstVirtualHost);
+        }
+        if (routes == null) {
+            return null;
+        }
+        for (ProxyRoute route : routes) {
+            if (route.matches(url)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    // true if both configs map the same server names to the same doc roots and proxy routes, with the
+    // same default
+    public boolean sameVirtualHosts(ServerConfig other) {
+        return virtualHosts.equals(other.virtualHosts) && Objects.equals(firstVirtualHost, other.firstVirtualHost)
+                && proxyLines.equals(other.proxyLines);
+    }
+
+    // Returns String value of a top-level directive (last one if repeated), or null if not configured
+    public String lookupDirective(String name) {
+        ArrayList<String> values = directives.get(name);
+        if (values == null) {
+            return null;
+        }
+        return values.get(values.size() - 1);
+    }
+
+    // Returns numeric value of a top-level directive, or defaultValue if not configured (or, for a name
+    // missing from NUMERIC_DIRECTIVES, not a number)
+    public long lookupDirective(String name, long defaultValue) {
+        Long number = numbers.get(name);
+        if (number != null) {
+            return number;
+        }
+        String value = lookupDirective(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+
+    // Returns every value of a repeatable directive in file order, or an empty list
+    public List<String> lookupDirectives(String name) {
+        ArrayList<String> values = directives.get(name);
+        if (values == null) {
+            return new ArrayList<String>();
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    // true if every one of the directives has the same values in both configs
+    public boolean sameDirectives(ServerConfig other, String... names) {
+        for (String name : names) {
+            if (!lookupDirectives(name).equals(other.lookupDirectives(name))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // config file format:
+    //   Listen <port>
+    //   nSelectLoops <n>
+    //   <Directive> <value>
+    //   <VirtualHost *:port>
+    //     DocumentRoot <dir>
+    //     ServerName <name>
+    //     ProxyPass <prefix> <upstream url> ...
+    //   </VirtualHost>
+    // blank lines and lines starting with # are ignored; a numeric directive whose value is not a
+    // number is an IOException naming it and its line
     public void parseConfigFile(File f) throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader(f));
+        try (BufferedReader reader = new BufferedReader(new FileReader(f))) {
+            String docRootString = null;
+            String serverNameString = null;
+            ArrayList<String> proxyPassStrings = new ArrayList<String>();
 
-        parsePort(reader.readLine());
-        parseNSelectLoops(reader.readLine());
+            String nextLine;
+            int lineNumber = 0;
+            while ((nextLine = reader.readLine()) != null) {
+                lineNumber++;
+                String line = nextLine.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
 
-        // virtual hosts specified in groups of 5 lines:
-        // CRLF, <ignore>, DocumentRoot, ServerName, <ignore>
-        String nextLine = reader.readLine();                    // line 1
-        while (nextLine != null) {
-            reader.readLine();                                  // line 2
-            String docRootString = reader.readLine();           // line 3
-            String serverNameString = reader.readLine();        // line 4
-            parseVirtualHost(docRootString, serverNameString);
-            reader.readLine();                                  // line 5
-            nextLine = reader.readLine();                       // line 1
+                if (line.startsWith("<VirtualHost")) {
+                    docRootString = null;
+                    serverNameString = null;
+                    proxyPassStrings = new ArrayList<String>();
+                } else if (line.startsWith("</VirtualHost")) {
+                    parseVirtualHost(docRootString, serverNameString, proxyPassStrings);
+                } else if (line.startsWith("ProxyPass ") || line.startsWith("ProxyPass\t")) {
+                    proxyPassStrings.add(line);
+                } else if (line.startsWith("DocumentRoot")) {
+                    docRootString = line;
+                } else if (line.startsWith("ServerName")) {
+                    serverNameString = line;
+                } else if (line.startsWith("Listen")) {
+                    parsePort(line, lineNumber);
+                } else if (line.startsWith("nSelectLoops")) {
+                    parseNSelectLoops(line, lineNumber);
+                } else {
+                    parseDirective(line, lineNumber);
+                }
+            }
         }
     }
 
-    private void parsePort(String portLine) {
-        String[] arr = portLine.split("\\s");
+    private void parsePort(String portLine, int lineNumber) throws IOException {
+        String[] arr = portLine.split("\\s+");
         if (arr.length < 2) {
-            // TODO: throw parsing error
+            throw new IOException("Listen: missing port");
         }
 
-        port = Integer.parseInt(arr[1]);
+        port = (int) parseNumber("Listen", arr[1], lineNumber);
         Debug.DEBUG("Parsing port: " + Integer.toString(port), DebugType.PARSING);
     }
 
-    private void parseNSelectLoops(String loopsLine) {
-        String[] arr = loopsLine.split("\\s");
+    private void parseNSelectLoops(String loopsLine, int lineNumber) throws IOException {
+        String[] arr = loopsLine.split("\\s+");
         if (arr.length < 2) {
-            // TODO: throw parsing error
+            throw new IOException("nSelectLoops: missing value");
         }
 
-        nSelectLoops = Integer.valueOf(arr[1]);
+        nSelectLoops = (int) parseNumber("nSelectLoops", arr[1], lineNumber);
         Debug.DEBUG("Parsing nSelectLoops: " + Integer.toString(nSelectLoops), DebugType.PARSING);
     }
 
-    private void parseVirtualHost(String docRootLine, String serverNameLine) { 
+    private void parseDirective(String directiveLine, int lineNumber) throws IOException {
+        String[] arr = directiveLine.split("\\s+", 2);
+        if (arr.length < 2) {
+            throw new IOException(arr[0] + ": missing value");
+        }
+
+        if (NUMERIC_DIRECTIVES.contains(arr[0])) {
+            numbers.put(arr[0], parseNumber(arr[0], arr[1].trim(), lineNumber));
+        }
+        directives.computeIfAbsent(arr[0], k -> new ArrayList<String>()).add(arr[1].trim());
+        Debug.DEBUG("Parsing directive: " + arr[0] + ", val: " + arr[1], DebugType.PARSING);
+    }
+
+    private static long parseNumber(String name, String value, int lineNumber) throws IOException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            throw new IOException(name + " on line " + lineNumber + ": not a number: " + value);
+        }
+    }
+
+    private void parseVirtualHost(String docRootLine, String serverNameLine, List<String> proxyPassLines) throws IOException {
+        if (docRootLine == null || serverNameLine == null) {
+            throw new IOException("VirtualHost: missing DocumentRoot or ServerName");
+        }
         String[] docRoot = docRootLine.split("DocumentRoot");
         String[] serverName = serverNameLine.split("ServerName");
         if (docRoot.length < 2 || serverName.length < 2) {
-            // TODO: throw virtual host parsing error
+            throw new IOException("VirtualHost: missing DocumentRoot or ServerName");
         }
-        
+
         String sn = serverName[1].trim();
         String dr = docRoot[1].trim();
         virtualHosts.put(sn, dr);
         Debug.DEBUG("Parsing virtual host: " + sn + ", docRoot: " + dr, DebugType.PARSING);
 
+        if (!proxyPassLines.isEmpty()) {
+            ProxyRoute[] routes = new ProxyRoute[proxyPassLines.size()];
+            for (int i = 0; i < routes.length; i++) {
+                routes[i] = new ProxyRoute(proxyPassLines.get(i));
+            }
+            Arrays.sort(routes, (a, b) -> b.getPrefix().length() - a.getPrefix().length());
+            proxyLines.put(sn, proxyPassLines);
+            proxyRoutes.put(sn, routes);
+        }
+
         if (firstVirtualHost == null) {
             firstVirtualHost = sn;
         }
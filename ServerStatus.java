@@ -0,0 +1,158 @@
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Renders the /server-status page from every dispatcher's DispatcherMetrics: totals first, then one
+// section per dispatcher. Text is "Key: value" lines (like Apache's mod_status ?auto); JSON has the
+// same fields. Latencies are microseconds, CGI latency milliseconds; percentiles are bucket upper bounds.
+//
+// typical use:
+// String body = ServerStatus.render(Server.getDispatchers(), wantJson);
+
+public class ServerStatus {
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    public static String render(Dispatcher[] dispatchers, boolean json) {
+        StringBuilder sb = new StringBuilder(2048);
+        long uptimeSeconds = (System.currentTimeMillis() - Server.getStartMillis()) / 1000;
+
+        DispatcherMetrics[] metrics = new DispatcherMetrics[dispatchers.length];
+        for (int i = 0; i < dispatchers.length; i++) {
+            metrics[i] = dispatchers[i].getMetrics();
+        }
+
+        if (json) {
+            sb.append("{\"uptimeSeconds\":").append(uptimeSeconds).append(",\"total\":");
+            renderJson(sb, metrics, -1);
+            sb.append(",\"dispatchers\":[");
+            for (int i = 0; i < metrics.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                renderJson(sb, new DispatcherMetrics[] { metrics[i] }, metrics[i].getDispatcherId());
+            }
+            sb.append("]}\n");
+        } else {
+            sb.append("Uptime: ").append(uptimeSeconds).append('\n');
+            sb.append("Dispatchers: ").append(metrics.length).append('\n');
+            renderText(sb, metrics, "Total");
+            for (DispatcherMetrics m : metrics) {
+                renderText(sb, new DispatcherMetrics[] { m }, "Dispatcher" + m.getDispatcherId());
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void renderText(StringBuilder sb, DispatcherMetrics[] metrics, String prefix) {
+        Sums s = new Sums(metrics);
+        sb.append(prefix).append("Accepts: ").append(s.accepts).append('\n');
+        sb.append(prefix).append("OpenConnections: ").append(s.openConnections).append('\n');
+        sb.append(prefix).append("Requests: ").append(s.requests).append('\n');
+        for (Map.Entry<String, Long> e : s.statusCounts.entrySet()) {
+            sb.append(prefix).append("Status").append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+        }
+        sb.append(prefix).append("BytesIn: ").append(s.bytesIn).append('\n');
+        sb.append(prefix).append("BytesOut: ").append(s.bytesOut).append('\n');
+        sb.append(prefix).append("SelectWakeups: ").append(s.selectWakeups).append('\n');
+        sb.append(prefix).append("EmptySelects: ").append(s.emptySelects).append('\n');
+        sb.append(prefix).append("CgiInvocations: ").append(s.cgiInvocations).append('\n');
+        sb.append(prefix).append("AcceptPauses: ").append(s.acceptPauses).append('\n');
+        sb.append(prefix).append("ShedRequests: ").append(s.shedRequests).append('\n');
+        renderLatencyText(sb, prefix + "Parse", s.parse, "Micros", 1000);
+        renderLatencyText(sb, prefix + "Lookup", s.lookup, "Micros", 1000);
+        renderLatencyText(sb, prefix + "Write", s.write, "Micros", 1000);
+        renderLatencyText(sb, prefix + "Cgi", s.cgi, "Millis", 1000000);
+    }
+
+    private static void renderLatencyText(StringBuilder sb, String prefix, long[] counts, String unit, double unitNanos) {
+        sb.append(prefix).append("Count: ").append(LatencyHistogram.count(counts)).append('\n');
+        for (double p : PERCENTILES) {
+            sb.append(prefix).append('P').append(percentileName(p)).append(unit).append(": ")
+                    .append(format(LatencyHistogram.percentile(counts, p) / unitNanos)).append('\n');
+        }
+    }
+
+    private static void renderJson(StringBuilder sb, DispatcherMetrics[] metrics, int id) {
+        Sums s = new Sums(metrics);
+        sb.append('{');
+        if (id >= 0) {
+            sb.append("\"id\":").append(id).append(',');
+        }
+        sb.append("\"accepts\":").append(s.accepts);
+        sb.append(",\"openConnections\":").append(s.openConnections);
+        sb.append(",\"requests\":").append(s.requests);
+        sb.append(",\"status\":{");
+        boolean first = true;
+        for (Map.Entry<String, Long> e : s.statusCounts.entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append('"').append(e.getKey()).append("\":").append(e.getValue());
+        }
+        sb.append('}');
+        sb.append(",\"bytesIn\":").append(s.bytesIn);
+        sb.append(",\"bytesOut\":").append(s.bytesOut);
+        sb.append(",\"selectWakeups\":").append(s.selectWakeups);
+        sb.append(",\"emptySelects\":").append(s.emptySelects);
+        sb.append(",\"cgiInvocations\":").append(s.cgiInvocations);
+        sb.append(",\"acceptPauses\":").append(s.acceptPauses);
+        sb.append(",\"shedRequests\":").append(s.shedRequests);
+        renderLatencyJson(sb, "parseMicros", s.parse, 1000);
+        renderLatencyJson(sb, "lookupMicros", s.lookup, 1000);
+        renderLatencyJson(sb, "writeMicros", s.write, 1000);
+        renderLatencyJson(sb, "cgiMillis", s.cgi, 1000000);
+        sb.append('}');
+    }
+
+    private static void renderLatencyJson(StringBuilder sb, String name, long[] counts, double unitNanos) {
+        sb.append(",\"").append(name).append("\":{\"count\":").append(LatencyHistogram.count(counts));
+        for (double p : PERCENTILES) {
+            sb.append(",\"p").append(percentileName(p)).append("\":")
+                    .append(format(LatencyHistogram.percentile(counts, p) / unitNanos));
+        }
+        sb.append('}');
+    }
+
+    // 50 -> "50", 99.9 -> "999"
+    private static String percentileName(double p) {
+        return (p == Math.floor(p)) ? Long.toString((long) p) : Double.toString(p).replace(".", "");
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    // counters and histogram snapshots added up over some dispatchers
+    private static class Sums {
+        long accepts, openConnections, requests, bytesIn, bytesOut, selectWakeups, emptySelects, cgiInvocations;
+        long acceptPauses, shedRequests;
+        Map<String, Long> statusCounts = new TreeMap<String, Long>();
+        long[] parse = new long[LatencyHistogram.BUCKETS];
+        long[] lookup = new long[LatencyHistogram.BUCKETS];
+        long[] write = new long[LatencyHistogram.BUCKETS];
+        long[] cgi = new long[LatencyHistogram.BUCKETS];
+
+        Sums(DispatcherMetrics[] metrics) {
+            for (DispatcherMetrics m : metrics) {
+                accepts += m.getAccepts();
+                openConnections += m.getOpenConnections();
+                bytesIn += m.getBytesIn();
+                bytesOut += m.getBytesOut();
+                selectWakeups += m.getSelectWakeups();
+                emptySelects += m.getEmptySelects();
+                cgiInvocations += m.getCgiInvocations();
+                acceptPauses += m.getAcceptPauses();
+                shedRequests += m.getShedRequests();
+                for (Map.Entry<String, Long> e : m.getStatusCounts().entrySet()) {
+                    statusCounts.merge(e.getKey(), e.getValue(), Long::sum);
+                    requests += e.getValue();
+                }
+                LatencyHistogram.add(parse, m.getParseLatency().snapshot());
+                LatencyHistogram.add(lookup, m.getLookupLatency().snapshot());
+                LatencyHistogram.add(write, m.getWriteLatency().snapshot());
+                LatencyHistogram.add(cgi, m.getCgiLatency().snapshot());
+            }
+        }
+    }
+}
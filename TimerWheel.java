@@ -0,0 +1,173 @@
+import java.util.*;
+
+// Hashed timer wheel for connection timeouts. Timeouts hash into one of wheelSize buckets by their
+// deadline tick, so scheduling, cancelling and rescheduling are O(1); each tick only looks at one
+// bucket. Owned by one Dispatcher and only used on its thread, which calls expire() after every
+// select and bounds its select timeout with millisUntilNextDeadline(), so a loop whose timeouts are
+// minutes away is not woken every tick.
+//
+// typical use:
+// TimerWheel.Timeout t = new TimerWheel.Timeout(() -> closeIdleConnection());
+// wheel.schedule(t, 5000, System.currentTimeMillis());
+// wheel.cancel(t);                                  // e.g. a request arrived
+// wheel.expire(System.currentTimeMillis());         // in the select loop; runs due tasks
+
+public class TimerWheel {
+    public static final long DEFAULT_TICK_MILLIS = 100;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    // one pending task; reusable, a handler keeps one and reschedules it as its state changes
+    public static class Timeout {
+        private final Runnable task;
+        private long deadlineTick;
+        private Timeout prev;
+        private Timeout next;
+        private boolean scheduled;
+        private boolean due;            // in the batch expire() is running; cancel() takes it out
+
+        public Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        public boolean isScheduled() {
+            return scheduled;
+        }
+    }
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Timeout[] buckets;    // head of each bucket's doubly linked list
+    private final int mask;
+    private long currentTick;           // last tick whose bucket has been expired
+    private int size;
+    private final ArrayList<Timeout> due;
+    // no scheduled deadline is earlier than this tick (Long.MAX_VALUE: none scheduled)
+    private long nextDeadlineTick;
+
+    public TimerWheel(long tickMillis, int wheelSize) {
+        this.tickMillis = Math.max(tickMillis, 1);
+        int n = 1;
+        while (n < wheelSize) {
+            n <<= 1;
+        }
+        buckets = new Timeout[n];
+        mask = n - 1;
+        startMillis = System.currentTimeMillis();
+        currentTick = 0;
+        due = new ArrayList<Timeout>();
+        nextDeadlineTick = Long.MAX_VALUE;
+    }
+
+    // (Re)schedules t to run delayMillis from now, rounded up to the next tick
+    public void schedule(Timeout t, long delayMillis, long now) {
+        cancel(t);
+
+        long deadlineTick = (now + Math.max(delayMillis, 0) - startMillis + tickMillis - 1) / tickMillis;
+        t.deadlineTick = Math.max(deadlineTick, currentTick + 1);
+
+        int bucket = (int) (t.deadlineTick & mask);
+        t.prev = null;
+        t.next = buckets[bucket];
+        if (t.next != null) {
+            t.next.prev = t;
+        }
+        buckets[bucket] = t;
+        t.scheduled = true;
+        size++;
+        nextDeadlineTick = Math.min(nextDeadlineTick, t.deadlineTick);
+    }
+
+    public void cancel(Timeout t) {
+        t.due = false;
+        if (!t.scheduled) {
+            return;
+        }
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            buckets[(int) (t.deadlineTick & mask)] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.prev = null;
+        t.next = null;
+        t.scheduled = false;
+        size--;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // select timeout until the earliest deadline; 0 (block until woken) if nothing is scheduled
+    public long millisUntilNextDeadline(long now) {
+        if (size == 0) {
+            return 0;
+        }
+        long next = startMillis + nextDeadlineTick * tickMillis - now;
+        return Math.max(next, 1);
+    }
+
+    // Runs every task whose deadline has passed; returns number of tasks run
+    public int expire(long now) {
+        long nowTick = (now - startMillis) / tickMillis;
+        if (size == 0 || nowTick <= currentTick) {
+            currentTick = Math.max(currentTick, nowTick);
+            if (size == 0) {
+                nextDeadlineTick = Long.MAX_VALUE;
+            }
+            return 0;
+        }
+
+        // after a long gap every bucket is visited once at most
+        long lastTick = Math.min(nowTick, currentTick + buckets.length);
+        for (long tick = currentTick + 1; tick <= lastTick; tick++) {
+            Timeout t = buckets[(int) (tick & mask)];
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.deadlineTick <= nowTick) {
+                    cancel(t);
+                    t.due = true;
+                    due.add(t);
+                }
+                t = next;
+            }
+        }
+        currentTick = nowTick;
+
+        // run after unlinking, tasks may reschedule themselves or cancel others
+        int count = due.size();
+        for (int i = 0; i < count; i++) {
+            Timeout t = due.get(i);
+            due.set(i, null);
+            if (t.due) {              // not cancelled or rescheduled by an earlier task
+                t.due = false;
+                t.task.run();
+            }
+        }
+        due.clear();
+        if (nextDeadlineTick <= currentTick) {
+            nextDeadlineTick = findNextDeadline();
+        }
+        return count;
+    }
+
+    // Earliest deadline tick of the scheduled timeouts: the first tick after currentTick whose bucket
+    // has a timeout due in that very tick, else the smallest deadline seen (all a round or more away)
+    private long findNextDeadline() {
+        long min = Long.MAX_VALUE;
+        if (size == 0) {
+            return min;
+        }
+        for (long tick = currentTick + 1; tick <= currentTick + buckets.length; tick++) {
+            for (Timeout t = buckets[(int) (tick & mask)]; t != null; t = t.next) {
+                if (t.deadlineTick == tick) {
+                    return tick;
+                }
+                min = Math.min(min, t.deadlineTick);
+            }
+        }
+        return min;
+    }
+}
@@ -0,0 +1,112 @@
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One upstream HTTP server that ProxyPass routes send requests to. There is one Upstream per host:port,
+// shared by every route naming it, every dispatcher and every config reload, so its health and load
+// are known server-wide; the connections to it are pooled per dispatcher (UpstreamPool).
+//
+// Health is passive: a failed connect or an exchange broken off before the response head marks the
+// upstream down for ProxyRetry milliseconds, during which balancing skips it; the first response after
+// that (or a retry once the time is up) marks it up again.
+//
+// typical use:
+// Upstream u = Upstream.get("backend", 8080);
+// u.begin();  ...  u.end();                 // around each exchange; outstanding() balances on it
+// u.markFailed();                           // connect refused, reset, timed out
+//
+// config:
+// ProxyRetry <millis>      how long an upstream that failed is skipped (default 5000)
+
+public class Upstream {
+    public static final long DEFAULT_RETRY_MILLIS = 5000;
+
+    private static final ConcurrentHashMap<String, Upstream> upstreams = new ConcurrentHashMap<String, Upstream>();
+
+    private final String host;
+    private final int port;
+    private final String hostHeader;       // Host sent upstream: host, with :port unless it is 80
+    private volatile InetSocketAddress address;
+
+    // exchanges in progress on every dispatcher
+    private final AtomicInteger outstanding;
+    private volatile long downUntil;       // 0: up
+    private final AtomicLong requests;
+    private final AtomicLong failures;
+
+    private Upstream(String host, int port) {
+        this.host = host;
+        this.port = port;
+        hostHeader = (port == 80) ? host : host + ":" + port;
+        outstanding = new AtomicInteger();
+        requests = new AtomicLong();
+        failures = new AtomicLong();
+    }
+
+    // Returns the upstream at host:port, created on first use
+    public static Upstream get(String host, int port) {
+        return upstreams.computeIfAbsent(host + ":" + port, k -> new Upstream(host, port));
+    }
+
+    public static Collection<Upstream> getAll() {
+        return upstreams.values();
+    }
+
+    // Resolved address; a name that did not resolve is looked up again on the next connect
+    public InetSocketAddress getAddress() {
+        InetSocketAddress a = address;
+        if (a == null || a.isUnresolved()) {
+            a = new InetSocketAddress(host, port);
+            address = a;
+        }
+        return a;
+    }
+
+    public String getHostHeader() {
+        return hostHeader;
+    }
+
+    public boolean isUp() {
+        long until = downUntil;
+        return until == 0 || System.currentTimeMillis() >= until;
+    }
+
+    public void markFailed() {
+        failures.incrementAndGet();
+        downUntil = System.currentTimeMillis() + Server.getConfigValue("ProxyRetry", DEFAULT_RETRY_MILLIS);
+        address = null;
+        Debug.DEBUG(() -> "Upstream: " + this + " marked down", DebugType.SERVER);
+    }
+
+    public void markUp() {
+        if (downUntil != 0) {
+            downUntil = 0;
+            Debug.DEBUG(() -> "Upstream: " + this + " up again", DebugType.SERVER);
+        }
+    }
+
+    public void begin() {
+        requests.incrementAndGet();
+        outstanding.incrementAndGet();
+    }
+
+    public void end() {
+        outstanding.decrementAndGet();
+    }
+
+    public int outstanding() {
+        return outstanding.get();
+    }
+
+    public String toString() {
+        return host + ":" + port;
+    }
+
+    // one line for the manager's proxy command
+    public String report() {
+        return toString() + (isUp() ? " up" : " down") + ", " + outstanding.get() + " outstanding, "
+                + requests.get() + " requests, " + failures.get() + " failures";
+    }
+}
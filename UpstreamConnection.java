@@ -0,0 +1,692 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.net.StandardSocketOptions;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// A non-blocking HTTP/1.1 connection to an Upstream, registered with the selector of the dispatcher
+// whose client connection it serves. It carries one Exchange at a time: the request is written with
+// a gathering write, then the response head is parsed and handed to the client's handler like a cgi
+// script's headers, and the body follows piece by piece as it arrives (Content-Length, chunked, or up
+// to the upstream's close), without buffering the whole response. At most ProxyMaxBuffered bytes the
+// client has not taken yet are held: reading stops above that and resumes as the client catches up.
+// Once a response is done the connection goes back to the dispatcher's UpstreamPool for the next
+// request to the same upstream, if the upstream keeps it alive.
+//
+// A failure before any response byte arrived answers 502 (504 on a timeout) and marks the upstream
+// down, except on a reused connection: the upstream may have closed it just as the request went out,
+// so an idempotent request is tried once more on a new connection instead.
+//
+// typical use (ReadWriteHandler, on the dispatcher thread):
+// UpstreamConnection.Exchange ex = new UpstreamConnection.Exchange(key, handler, head, body, idempotent, false);
+// ex.start(dispatcher, upstream);
+// ... handler.handleCgiHeaders / handleCgiData (ex.release(n) once written) / handleCgiEnd
+// ... or handler.handleProxyError(key, 502, "Bad Gateway")
+// ex.cancel();          // client connection closed early
+//
+// config:
+// ProxyConnectTimeout <millis>     connect to an upstream (default 5000)
+// ProxyTimeout <millis>            longest wait for an upstream to take the request or send more of
+//                                  its response (default 60000)
+// ProxyKeepAlive <millis>          idle time before a pooled connection is closed (default 4000)
+// ProxyMaxBuffered <bytes>         response bytes held for a slow client (default 65536)
+
+public class UpstreamConnection implements IReadWriteHandler, IConnectHandler {
+    public static final long DEFAULT_CONNECT_TIMEOUT = 5000;
+    public static final long DEFAULT_TIMEOUT = 60000;
+    public static final long DEFAULT_KEEPALIVE = 4000;
+    public static final long DEFAULT_MAX_BUFFERED = 64 * 1024;
+    private static final int READ_SIZE = 16384;
+    // largest response head accepted
+    private static final int MAX_HEAD_SIZE = 16384;
+
+    // hop-by-hop headers (RFC 9110 7.6.1), and those the server writes itself
+    private static final Set<String> DROPPED_HEADERS = new HashSet<String>(Arrays.asList(
+        "connection", "keep-alive", "proxy-connection", "transfer-encoding", "te", "trailer", "upgrade", "date", "server"));
+
+    // One request and its response; moves to a new connection if the request is retried
+    public static class Exchange implements IResponseStream {
+        private final SelectionKey clientKey;
+        private final IProxyOutputHandler handler;
+        private final ByteBuffer head;         // request line and headers
+        private final ByteBuffer body;         // request body, or null
+        private final boolean idempotent;      // may be sent again after a failure
+        private final boolean headRequest;     // HEAD: the response has no body whatever its headers say
+
+        private Upstream upstream;
+        private UpstreamConnection conn;       // null once done or cancelled
+        private boolean responseStarted;       // the final response head arrived
+        private boolean retried;
+        private boolean done;
+        private boolean cancelled;
+        private long buffered;                 // handed to the handler, not yet released
+
+        public Exchange(SelectionKey clientKey, IProxyOutputHandler handler, ByteBuffer head, ByteBuffer body,
+                boolean idempotent, boolean headRequest) {
+            this.clientKey = clientKey;
+            this.handler = handler;
+            this.head = head;
+            this.body = body;
+            this.idempotent = idempotent;
+            this.headRequest = headRequest;
+        }
+
+        // Sends the request over an idle pooled connection to upstream, or a new one; on dispatcher's thread
+        public void start(Dispatcher dispatcher, Upstream upstream) {
+            this.upstream = upstream;
+            upstream.begin();
+            UpstreamConnection c = dispatcher.getUpstreamPool().take(upstream);
+            if (c == null) {
+                c = new UpstreamConnection(dispatcher, upstream);
+            }
+            c.send(this);
+        }
+
+        public void release(int bytes) {
+            buffered -= bytes;
+            if (conn != null) {
+                conn.resumeLater();
+            }
+        }
+
+        public void cancel() {
+            cancelled = true;
+            if (conn != null) {
+                UpstreamConnection c = conn;
+                c.detach();
+                c.close();
+            }
+            finish();
+        }
+
+        // head and body as written on one attempt
+        private ByteBuffer[] requestBuffers() {
+            if (body == null) {
+                return new ByteBuffer[] { head.duplicate() };
+            }
+            return new ByteBuffer[] { head.duplicate(), body.duplicate() };
+        }
+
+        private void finish() {
+            if (!done) {
+                done = true;
+                upstream.end();
+            }
+        }
+    }
+
+    private enum Phase {
+        CONNECTING,
+        WRITING,
+        HEAD,
+        BODY,
+        IDLE,           // in the pool
+        CLOSED
+    }
+
+    // how the response body ends
+    private enum Framing {
+        NONE,
+        LENGTH,
+        CHUNKED,
+        CLOSE
+    }
+
+    // where the chunked body parser is
+    private enum ChunkState {
+        SIZE,
+        DATA,
+        DATA_CRLF,
+        TRAILERS
+    }
+
+    private final Dispatcher dispatcher;
+    private final Upstream upstream;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private Phase phase;
+    private boolean reused;            // an earlier response came over this connection
+    private TimerWheel.Timeout timeout;
+    private long responseTimeout;
+    private long maxBuffered;
+
+    private Exchange exchange;
+    private ByteBuffer[] requestBuffers;
+    private ByteBuffer readBuffer;     // borrowed from the dispatcher's pool during an exchange
+    private boolean paused;            // the client holds maxBuffered bytes; reading waits for release
+    private boolean resumePosted;
+    private boolean upstreamClosed;    // end of stream read
+
+    // response being parsed
+    private byte[] head;
+    private int headLength;
+    private boolean upstreamKeepAlive;
+    private Framing framing;
+    private long remaining;            // LENGTH: body bytes left; CHUNKED: bytes left of the current chunk
+    private ChunkState chunkState;
+    private StringBuilder line;        // chunk size or trailer line being read
+
+    public UpstreamConnection(Dispatcher dispatcher, Upstream upstream) {
+        this.dispatcher = dispatcher;
+        this.upstream = upstream;
+        timeout = new TimerWheel.Timeout(this::handleTimeout);
+        head = new byte[MAX_HEAD_SIZE];
+        line = new StringBuilder();
+    }
+
+    public Upstream getUpstream() {
+        return upstream;
+    }
+
+    public int getInitOps() {
+        return SelectionKey.OP_CONNECT;
+    }
+
+    // registered by send, not by the dispatcher
+    public void handleConnected(SelectionKey key) {
+    }
+
+    private void send(Exchange ex) {
+        exchange = ex;
+        ex.conn = this;
+        requestBuffers = ex.requestBuffers();
+        readBuffer = dispatcher.getBufferPool().borrow(READ_SIZE);
+        responseTimeout = Server.getConfigValue("ProxyTimeout", DEFAULT_TIMEOUT);
+        maxBuffered = Server.getConfigValue("ProxyMaxBuffered", DEFAULT_MAX_BUFFERED);
+        paused = false;
+        upstreamClosed = false;
+        headLength = 0;
+
+        if (channel != null) {
+            startWriting();
+            return;
+        }
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            key = channel.register(dispatcher.selector(), 0, this);
+            if (channel.connect(upstream.getAddress())) {
+                startWriting();
+            } else {
+                phase = Phase.CONNECTING;
+                key.interestOps(SelectionKey.OP_CONNECT);
+                schedule(Server.getConfigValue("ProxyConnectTimeout", DEFAULT_CONNECT_TIMEOUT));
+            }
+        } catch (IOException | UnresolvedAddressException e) {
+            Debug.DEBUG(() -> "UpstreamConnection: cannot connect to " + upstream + ": " + e, DebugType.NONSERVER);
+            fail(502, "Bad Gateway");
+        }
+    }
+
+    public void handleConnect(SelectionKey key) {
+        try {
+            channel.finishConnect();
+        } catch (IOException ex) {
+            Debug.DEBUG(() -> "UpstreamConnection: connect to " + upstream + " failed: " + ex, DebugType.NONSERVER);
+            fail(502, "Bad Gateway");
+            return;
+        }
+        startWriting();
+    }
+
+    private void startWriting() {
+        phase = Phase.WRITING;
+        writeRequest();
+    }
+
+    public void handleWrite(SelectionKey key) {
+        writeRequest();
+    }
+
+    private void writeRequest() {
+        try {
+            channel.write(requestBuffers);
+        } catch (IOException ex) {
+            fail(502, "Bad Gateway");
+            return;
+        }
+        schedule(responseTimeout);
+        if (requestBuffers[requestBuffers.length - 1].hasRemaining()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            requestBuffers = null;
+            phase = Phase.HEAD;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    public void handleRead(SelectionKey key) {
+        if (exchange == null) {
+            // idle in the pool: the upstream closed it (or sent something unasked)
+            Debug.DEBUG(() -> "UpstreamConnection: idle connection to " + upstream + " closed", DebugType.NONSERVER);
+            close();
+            return;
+        }
+
+        int readBytes;
+        try {
+            readBytes = channel.read(readBuffer);
+        } catch (IOException ex) {
+            fail(502, "Bad Gateway");
+            return;
+        }
+        if (readBytes == -1) {
+            upstreamClosed = true;
+        } else {
+            schedule(responseTimeout);
+        }
+        readBuffer.flip();
+        processResponse();
+    }
+
+    // Parses and hands on what readBuffer holds, leaving it in fill mode (or given back once the
+    // exchange is over)
+    private void processResponse() {
+        Exchange ex = exchange;
+        while (exchange == ex && !paused) {
+            if (phase == Phase.HEAD) {
+                if (!readHead()) {
+                    break;
+                }
+            } else if (phase == Phase.BODY) {
+                if (!readBody()) {
+                    break;
+                }
+            } else {
+                break;
+            }
+        }
+        if (exchange != ex) {
+            return;
+        }
+        readBuffer.compact();
+        if (paused) {
+            key.interestOps(0);
+            timeout();
+        } else if (upstreamClosed) {
+            // everything read is handed on: the end of a body framed by the close, else a broken response
+            if (phase == Phase.BODY && framing == Framing.CLOSE) {
+                complete();
+            } else {
+                fail(502, "Bad Gateway");
+            }
+        }
+    }
+
+    // Collects the response head; returns true once it is parsed and handed on
+    private boolean readHead() {
+        while (readBuffer.hasRemaining()) {
+            if (headLength == head.length) {
+                Debug.DEBUG(() -> "UpstreamConnection: response head from " + upstream + " too large", DebugType.NONSERVER);
+                fail(502, "Bad Gateway");
+                return false;
+            }
+            byte b = readBuffer.get();
+            head[headLength++] = b;
+            if (b == '\n' && (endsWith("\n\n") || endsWith("\r\n\r\n"))) {
+                String section = new String(head, 0, headLength, StandardCharsets.ISO_8859_1);
+                headLength = 0;
+                return parseHead(section);
+            }
+        }
+        return false;
+    }
+
+    private boolean endsWith(String s) {
+        if (headLength < s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (head[headLength - s.length() + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Status line and headers; 1xx heads are skipped. Returns true to go on with the body (or the next
+    // head), false if the exchange failed.
+    private boolean parseHead(String section) {
+        String[] lines = section.split("\r?\n");
+        String[] statusLine = lines[0].split(" ", 3);
+        int statusCode;
+        try {
+            statusCode = Integer.parseInt(statusLine[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            statusCode = -1;
+        }
+        if (!statusLine[0].startsWith("HTTP/1.") || statusCode < 100 || statusCode > 999 || statusCode == 101) {
+            Debug.DEBUG(() -> "UpstreamConnection: bad status line from " + upstream + ": " + lines[0], DebugType.NONSERVER);
+            fail(502, "Bad Gateway");
+            return false;
+        }
+        upstream.markUp();
+        if (statusCode < 200) {
+            return true;        // interim response; the final head follows
+        }
+        exchange.responseStarted = true;
+        String message = (statusLine.length > 2) ? statusLine[2] : "";
+
+        String connection = "";
+        String transferEncoding = null;
+        String contentLength = null;
+        ArrayList<String> headers = new ArrayList<String>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            String lowerName = name.toLowerCase(Locale.ROOT);
+            if (lowerName.equals("connection")) {
+                connection += "," + value.toLowerCase(Locale.ROOT);
+            } else if (lowerName.equals("transfer-encoding")) {
+                transferEncoding = value.toLowerCase(Locale.ROOT);
+            } else if (lowerName.equals("content-length")) {
+                contentLength = value;
+            }
+            headers.add(name + ": " + value);
+        }
+
+        // headers named in Connection are hop-by-hop too
+        Set<String> dropped = new HashSet<String>(DROPPED_HEADERS);
+        for (String token : connection.split(",")) {
+            dropped.add(token.trim());
+        }
+        headers.removeIf(h -> dropped.contains(h.substring(0, h.indexOf(':')).toLowerCase(Locale.ROOT)));
+
+        boolean http10 = statusLine[0].equals("HTTP/1.0");
+        upstreamKeepAlive = http10 ? connection.contains("keep-alive") : !connection.contains("close");
+
+        framing = Framing.CLOSE;
+        if (exchange.headRequest || statusCode == 204 || statusCode == 304) {
+            framing = Framing.NONE;
+        } else if (transferEncoding != null) {
+            if (!transferEncoding.endsWith("chunked")) {
+                fail(502, "Bad Gateway");
+                return false;
+            }
+            framing = Framing.CHUNKED;
+            chunkState = ChunkState.SIZE;
+            line.setLength(0);
+            headers.removeIf(h -> h.regionMatches(true, 0, "Content-Length:", 0, 15));
+        } else if (contentLength != null) {
+            try {
+                remaining = Long.parseLong(contentLength);
+            } catch (NumberFormatException ex) {
+                remaining = -1;
+            }
+            if (remaining < 0) {
+                fail(502, "Bad Gateway");
+                return false;
+            }
+            framing = Framing.LENGTH;
+        }
+        if (framing == Framing.CLOSE) {
+            upstreamKeepAlive = false;
+        }
+
+        Exchange ex = exchange;
+        phase = Phase.BODY;
+        ex.handler.handleCgiHeaders(ex.clientKey, statusCode, message, headers);
+        if (exchange != ex) {
+            return false;       // cancelled by the handler
+        }
+        if (framing == Framing.NONE || (framing == Framing.LENGTH && remaining == 0)) {
+            complete();
+            return false;
+        }
+        return true;
+    }
+
+    // Hands on body bytes up to the end of the body or of readBuffer; returns true if there may be more
+    // to do with what is left in readBuffer
+    private boolean readBody() {
+        if (framing == Framing.CHUNKED) {
+            return readChunked();
+        }
+        if (!readBuffer.hasRemaining()) {
+            return false;
+        }
+        int n = readBuffer.remaining();
+        if (framing == Framing.LENGTH) {
+            n = (int) Math.min(n, remaining);
+        }
+        Exchange ex = exchange;
+        deliver(n);
+        if (exchange != ex) {
+            return false;
+        }
+        if (framing == Framing.LENGTH) {
+            remaining -= n;
+            if (remaining == 0) {
+                complete();
+                return false;
+            }
+        }
+        return readBuffer.hasRemaining();
+    }
+
+    private boolean readChunked() {
+        while (readBuffer.hasRemaining() && !paused) {
+            switch (chunkState) {
+                case SIZE:
+                case TRAILERS:
+                    if (!readLine()) {
+                        return false;
+                    }
+                    String l = line.toString();
+                    line.setLength(0);
+                    if (chunkState == ChunkState.TRAILERS) {
+                        if (l.isEmpty()) {
+                            complete();
+                            return false;
+                        }
+                        continue;       // trailer fields are dropped
+                    }
+                    int semicolon = l.indexOf(';');
+                    try {
+                        remaining = Long.parseLong((semicolon < 0 ? l : l.substring(0, semicolon)).trim(), 16);
+                    } catch (NumberFormatException ex) {
+                        remaining = -1;
+                    }
+                    if (remaining < 0) {
+                        fail(502, "Bad Gateway");
+                        return false;
+                    }
+                    chunkState = (remaining == 0) ? ChunkState.TRAILERS : ChunkState.DATA;
+                    break;
+                case DATA:
+                    int n = (int) Math.min(readBuffer.remaining(), remaining);
+                    Exchange ex = exchange;
+                    deliver(n);
+                    if (exchange != ex) {
+                        return false;
+                    }
+                    remaining -= n;
+                    if (remaining == 0) {
+                        chunkState = ChunkState.DATA_CRLF;
+                    }
+                    break;
+                case DATA_CRLF:
+                    if (!readLine()) {
+                        return false;
+                    }
+                    if (line.length() != 0) {
+                        fail(502, "Bad Gateway");
+                        return false;
+                    }
+                    chunkState = ChunkState.SIZE;
+                    break;
+            }
+        }
+        return false;
+    }
+
+    // Reads up to LF into line (without CR LF); returns false if the line goes on in the next read
+    private boolean readLine() {
+        while (readBuffer.hasRemaining()) {
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+                    line.setLength(line.length() - 1);
+                }
+                return true;
+            }
+            if (line.length() >= MAX_HEAD_SIZE) {
+                fail(502, "Bad Gateway");
+                return false;
+            }
+            line.append((char) (b & 0xff));
+        }
+        return false;
+    }
+
+    // Copies n bytes of readBuffer to the client's handler; pauses once it holds maxBuffered
+    private void deliver(int n) {
+        if (n == 0) {
+            return;
+        }
+        byte[] bytes = new byte[n];
+        readBuffer.get(bytes);
+        Exchange ex = exchange;
+        ex.buffered += n;
+        if (ex.buffered >= maxBuffered) {
+            paused = true;
+        }
+        ex.handler.handleCgiData(ex.clientKey, ByteBuffer.wrap(bytes));
+    }
+
+    // The client took some of the response; reading resumes from the select loop, not from within its write
+    private void resumeLater() {
+        if (!paused || resumePosted || exchange.buffered >= maxBuffered / 2) {
+            return;
+        }
+        resumePosted = true;
+        dispatcher.invokeLater(() -> {
+            resumePosted = false;
+            if (exchange == null || !paused) {
+                return;
+            }
+            paused = false;
+            key.interestOps(SelectionKey.OP_READ);
+            schedule(responseTimeout);
+            // bytes read before pausing may complete the response without another read event
+            readBuffer.flip();
+            processResponse();
+        });
+    }
+
+    // The response is done; keeps the connection for the next request to upstream if it can be
+    private void complete() {
+        Exchange ex = exchange;
+        boolean reusable = upstreamKeepAlive && !upstreamClosed && readBuffer.position() == readBuffer.limit();
+        detach();
+        ex.finish();
+        if (reusable && dispatcher.getUpstreamPool().put(this)) {
+            reused = true;
+            phase = Phase.IDLE;
+            key.interestOps(SelectionKey.OP_READ);
+            schedule(Server.getConfigValue("ProxyKeepAlive", DEFAULT_KEEPALIVE));
+        } else {
+            close();
+        }
+        ex.handler.handleCgiEnd(ex.clientKey, false);
+    }
+
+    // The exchange broke off: before the response head this answers statusCode (or retries an
+    // idempotent request on a fresh connection), after it the client's response is cut short
+    private void fail(int statusCode, String message) {
+        Exchange ex = exchange;
+        boolean wasReused = reused;
+        detach();
+        close();
+        if (ex == null) {
+            return;
+        }
+
+        if (ex.responseStarted) {
+            ex.finish();
+            ex.handler.handleCgiEnd(ex.clientKey, true);
+            return;
+        }
+        if (wasReused && ex.idempotent && !ex.retried) {
+            // most likely the upstream closed this keep-alive connection as the request went out
+            Debug.DEBUG(() -> "UpstreamConnection: retrying on a new connection to " + upstream, DebugType.NONSERVER);
+            ex.retried = true;
+            new UpstreamConnection(dispatcher, upstream).send(ex);
+            return;
+        }
+        if (!wasReused) {
+            upstream.markFailed();
+        }
+        ex.finish();
+        // may be called from within start(), so the handler hears of it from the select loop
+        dispatcher.invokeLater(() -> {
+            if (!ex.cancelled) {
+                ex.handler.handleProxyError(ex.clientKey, statusCode, message);
+            }
+        });
+    }
+
+    private void handleTimeout() {
+        if (phase == Phase.IDLE) {
+            close();
+            return;
+        }
+        Debug.DEBUG(() -> "UpstreamConnection: " + upstream + " timed out in " + phase, DebugType.NONSERVER);
+        // a reused connection that times out is not a stale one; no retry
+        reused = false;
+        fail(504, "Gateway Timeout");
+    }
+
+    public void handleException() {
+        fail(502, "Bad Gateway");
+    }
+
+    // Unlinks the exchange; the connection stays open
+    private void detach() {
+        if (exchange != null) {
+            exchange.conn = null;
+            exchange = null;
+        }
+        requestBuffers = null;
+        paused = false;
+        dispatcher.getBufferPool().release(readBuffer);
+        readBuffer = null;
+        timeout();
+    }
+
+    public void close() {
+        if (phase == Phase.IDLE) {
+            dispatcher.getUpstreamPool().remove(this);
+        }
+        phase = Phase.CLOSED;
+        timeout();
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {}
+        }
+    }
+
+    // (re)arms the connection's one timeout; 0 disarms it
+    private void schedule(long millis) {
+        if (millis > 0) {
+            dispatcher.getTimerWheel().schedule(timeout, millis, System.currentTimeMillis());
+        } else {
+            timeout();
+        }
+    }
+
+    // disarms it
+    private void timeout() {
+        dispatcher.getTimerWheel().cancel(timeout);
+    }
+}
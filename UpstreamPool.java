@@ -0,0 +1,68 @@
+import java.util.*;
+
+// A dispatcher's idle keep-alive connections to upstreams, per upstream. Only used on the
+// dispatcher's thread: connections are registered with its selector, so a pooled connection is
+// always driven by the dispatcher that takes it. Most recently used connections are taken first,
+// leaving the others to time out when there is less traffic.
+//
+// typical use:
+// UpstreamConnection c = pool.take(upstream);     // null: connect a new one
+// pool.put(c);                                    // response done, connection still good
+// pool.remove(c);                                 // idle connection closed by the upstream or timed out
+//
+// config:
+// ProxyMaxIdle <n>         idle connections kept per upstream and dispatcher (default 16)
+
+public class UpstreamPool {
+    public static final long DEFAULT_MAX_IDLE = 16;
+
+    private final HashMap<Upstream, ArrayDeque<UpstreamConnection>> idle;
+    private volatile int idleCount;         // for reports from other threads
+
+    public UpstreamPool() {
+        idle = new HashMap<Upstream, ArrayDeque<UpstreamConnection>>();
+    }
+
+    // Returns an idle connection to u, or null if there is none
+    public UpstreamConnection take(Upstream u) {
+        ArrayDeque<UpstreamConnection> conns = idle.get(u);
+        if (conns == null || conns.isEmpty()) {
+            return null;
+        }
+        idleCount--;
+        return conns.pollLast();
+    }
+
+    // Keeps c for reuse; returns false (and c should be closed) if its upstream has enough idle ones
+    public boolean put(UpstreamConnection c) {
+        ArrayDeque<UpstreamConnection> conns = idle.computeIfAbsent(c.getUpstream(), k -> new ArrayDeque<UpstreamConnection>());
+        if (conns.size() >= Server.getConfigValue("ProxyMaxIdle", DEFAULT_MAX_IDLE)) {
+            return false;
+        }
+        conns.addLast(c);
+        idleCount++;
+        return true;
+    }
+
+    public void remove(UpstreamConnection c) {
+        ArrayDeque<UpstreamConnection> conns = idle.get(c.getUpstream());
+        if (conns != null && conns.remove(c)) {
+            idleCount--;
+        }
+    }
+
+    // Closes every idle connection; the dispatcher is done
+    public void closeAll() {
+        for (ArrayDeque<UpstreamConnection> conns : idle.values()) {
+            for (UpstreamConnection c : new ArrayList<UpstreamConnection>(conns)) {
+                c.close();
+            }
+        }
+        idle.clear();
+        idleCount = 0;
+    }
+
+    public int getIdleCount() {
+        return idleCount;
+    }
+}
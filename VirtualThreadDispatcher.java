@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Blocking engine (Engine virtual): accepts on the listening channel and serves every connection on a
+// virtual thread of its own with blocking socket I/O (ReadWriteHandler.serve), so a slow disk read or
+// cgi script only parks that connection's thread. Request parsing, content selection and response
+// generation are the same as with selector dispatchers. Needs Java 21 for virtual threads; on older
+// runtimes each connection gets a platform thread instead.
+//
+// It stands in for all dispatchers: the Manager interrupts it to shut down, it has one set of metrics
+// (updated from every connection thread) and one BufferPool of BufferPoolSize bytes, locked, that all
+// connection threads borrow from, and MaxConnectionsPerDispatcher caps the whole engine.
+// Its own selector is not used.
+
+public class VirtualThreadDispatcher extends Dispatcher {
+    // how often a full engine checks whether a connection has closed
+    private static final long FULL_POLL_MILLIS = 10;
+
+    // replaced when a config reload changes Listen
+    private volatile ServerSocketChannel server;
+    private final ThreadFactory threadFactory;
+    // the access log batch is shared by all connection threads
+    private final ReentrantLock accessLogLock;
+
+    public VirtualThreadDispatcher(int id, ServerSocketChannel server) {
+        super(id, null, true);
+        this.server = server;
+        threadFactory = newThreadFactory();
+        accessLogLock = new ReentrantLock();
+    }
+
+    // Thread.ofVirtual().name("conn-", 0).factory() if this runtime has virtual threads (looked up
+    // reflectively, the build targets Java 17), else daemon platform threads
+    private static ThreadFactory newThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "conn-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            Debug.PRINT("Virtual threads not available on Java " + Runtime.version().feature()
+                    + "; using a platform thread per connection");
+            AtomicInteger threadCount = new AtomicInteger();
+            return r -> {
+                Thread t = new Thread(r, "conn-" + threadCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            };
+        }
+    }
+
+    // Accepts from listener from now on; closing the old one ends the accept blocked on it
+    public void setListener(ServerSocketChannel listener, IAcceptHandler handler, boolean shared) {
+        try {
+            listener.configureBlocking(true);
+        } catch (IOException ex) {
+            Debug.DEBUG(() -> "VirtualThreadDispatcher: cannot accept from " + listener, DebugType.SERVER);
+            return;
+        }
+        ServerSocketChannel old = server;
+        server = listener;
+        try {
+            old.close();
+        } catch (IOException ex) {}
+    }
+
+    // Starts a thread serving the connection
+    public void addConnection(SocketChannel client) throws IOException {
+        connectionCount.incrementAndGet();
+        getMetrics().countAccept();
+
+        ReadWriteHandler rwh;
+        try {
+            rwh = new ReadWriteHandler(this, getBufferPool());
+        } catch (RuntimeException ex) {
+            Debug.DEBUG(() -> "VirtualThreadDispatcher: cannot set up connection " + client + ": " + ex, DebugType.NONSERVER);
+            connectionClosed();
+            client.close();
+            return;
+        }
+        threadFactory.newThread(() -> rwh.serve(client)).start();
+    }
+
+    // same, from another thread
+    public void handOff(SocketChannel client) {
+        try {
+            addConnection(client);
+        } catch (IOException ex) {
+            connectionClosed();
+        }
+    }
+
+    // No select loop: the task gets a thread of its own, so LoadMonitor's probe measures how long a
+    // new connection thread waits to be scheduled
+    public void invokeLater(Runnable task) {
+        threadFactory.newThread(task).start();
+    }
+
+    public void logAccess(String remoteAddress, Request request, int status, long bytes) {
+        accessLogLock.lock();
+        try {
+            super.logAccess(remoteAddress, request, status, bytes);
+        } finally {
+            accessLogLock.unlock();
+        }
+    }
+
+    public void run() {
+        try {
+            server.configureBlocking(true);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        }
+        if (getAccessLog() != null) {
+            threadFactory.newThread(this::flushAccessLog).start();
+        }
+
+        while (!Thread.interrupted()) {
+            try {
+                // at the connection cap, leave new connections in the listen backlog
+                while (isFull()) {
+                    Thread.sleep(FULL_POLL_MILLIS);
+                }
+            } catch (InterruptedException ex) {
+                break;
+            }
+
+            ServerSocketChannel listener = server;
+            try {
+                SocketChannel client = listener.accept();
+                Debug.DEBUG(() -> "VirtualThreadDispatcher: accepted connection from " + client, DebugType.NONSERVER);
+                addConnection(client);
+            } catch (ClosedChannelException ex) {
+                // replaced by setListener: go on with the new one; otherwise shut down (also an
+                // interrupt while blocked in accept)
+                if (server == listener) {
+                    break;
+                }
+            } catch (IOException ex) {
+                Debug.DEBUG(() -> "VirtualThreadDispatcher: accept failed: " + ex, DebugType.SERVER);
+            }
+        }
+
+        if (getAccessLog() != null) {
+            accessLogLock.lock();
+            try {
+                getAccessLog().flush();
+            } finally {
+                accessLogLock.unlock();
+            }
+        }
+    }
+
+    // hands stale access log entries to the writer, as the select loop does
+    private void flushAccessLog() {
+        while (isAlive()) {
+            try {
+                Thread.sleep(AccessLog.FLUSH_MILLIS);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            accessLogLock.lock();
+            try {
+                getAccessLog().flushIfStale(System.currentTimeMillis());
+            } finally {
+                accessLogLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Compares accept strategies (shared listener, dedicated acceptor, SO_REUSEPORT) as the rate of new
+// connections grows. Each strategy runs in its own server process on a loopback port; connections
+// are opened open-loop at a fixed rate, each sending one HTTP/1.0 GET, and latency is measured from
+// the scheduled start so a stalled accept shows up as queueing delay.
+//
+// Usage (from the repository root):
+//   mvn -B package
+//   java -cp bench/target/bench.jar AcceptBenchmark [nSelectLoops] [rate ...]
+
+public class AcceptBenchmark {
+    private static final String[] STRATEGIES = { "shared", "acceptor", "reuseport" };
+    private static final int BASE_PORT = 18080;
+    private static final long RUN_MILLIS = 3000;
+    private static final int CLIENT_THREADS = 64;
+
+    public static void main(String[] args) throws Exception {
+        int nSelectLoops = (args.length > 0) ? Integer.parseInt(args[0]) : 15;
+        int[] rates = { 500, 1000, 2000, 4000, 8000 };
+        if (args.length > 1) {
+            rates = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                rates[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("strategy   rate/s   done/s  errors   p50(ms)   p99(ms)   max(ms)");
+        for (int s = 0; s < STRATEGIES.length; s++) {
+            int port = BASE_PORT + s;
+            Process server = startServer(STRATEGIES[s], port, nSelectLoops);
+            try {
+                for (int rate : rates) {
+                    runRate(STRATEGIES[s], port, rate);
+                }
+            } finally {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+    }
+
+    private static Process startServer(String strategy, int port, int nSelectLoops) throws Exception {
+        File conf = File.createTempFile("accept-bench", ".conf");
+        conf.deleteOnExit();
+        try (PrintWriter w = new PrintWriter(new FileWriter(conf))) {
+            w.println("Listen " + port);
+            w.println("nSelectLoops " + nSelectLoops);
+            w.println("AcceptStrategy " + strategy);
+            w.println();
+            w.println("<VirtualHost *:" + port + ">");
+            w.println("  DocumentRoot  /www-root/");
+            w.println("  ServerName home");
+            w.println("</VirtualHost>");
+        }
+
+        ProcessBuilder pb = new ProcessBuilder("java", "-cp", System.getProperty("java.class.path"),
+                "Server", "-c", conf.getPath());
+        pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        pb.redirectErrorStream(true);
+        Process p = pb.start();
+
+        // wait until the server accepts connections
+        for (int i = 0; i < 100; i++) {
+            try (Socket s = new Socket("localhost", port)) {
+                return p;
+            } catch (IOException ex) {
+                Thread.sleep(100);
+            }
+        }
+        p.destroy();
+        throw new IOException("server with AcceptStrategy " + strategy + " did not start");
+    }
+
+    private static void runRate(String strategy, int port, int rate) throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENT_THREADS);
+        int total = (int) (rate * RUN_MILLIS / 1000);
+        long[] latencies = new long[total];
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        byte[] request = "GET /index.html HTTP/1.0\r\nHost: home\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+        long intervalNanos = 1_000_000_000L / rate;
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            long scheduled = start + i * intervalNanos;
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            int index = i;
+            clients.execute(() -> {
+                try (Socket s = new Socket("localhost", port)) {
+                    s.setSoTimeout(10000);
+                    s.getOutputStream().write(request);
+                    InputStream in = s.getInputStream();
+                    byte[] buf = new byte[8192];
+                    while (in.read(buf) != -1) {
+                    }
+                    latencies[index] = System.nanoTime() - scheduled;
+                    completed.incrementAndGet();
+                } catch (IOException ex) {
+                    latencies[index] = -1;
+                    errors.incrementAndGet();
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(60, TimeUnit.SECONDS);
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+        long[] ok = Arrays.stream(latencies).filter(l -> l > 0).sorted().toArray();
+        System.out.printf("%-9s %7d %8.0f %7d %9.2f %9.2f %9.2f%n", strategy, rate, completed.get() / elapsedSeconds,
+                errors.get(), percentile(ok, 0.50), percentile(ok, 0.99), percentile(ok, 1.0));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(i, 0)] / 1e6;
+    }
+}
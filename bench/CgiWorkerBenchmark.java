@@ -0,0 +1,38 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Compares a cgi script forked per request with the same script served by persistent workers
+// (CgiWorkers): price.cgi against price-worker.cgi, which answers identically over the worker protocol.
+// Both run in servers started by LoadGenerator --spawn with the same concurrency per script, so the
+// difference is the cost of fork and exec (and perl start-up) against a pipe round trip.
+//
+// Usage (from the repository root):
+//   mvn -B package
+//   java -cp bench/target/bench.jar CgiWorkerBenchmark [nSelectLoops] [connections] [duration s] [workers]
+
+public class CgiWorkerBenchmark {
+    public static void main(String[] args) throws Exception {
+        String nSelectLoops = (args.length > 0) ? args[0] : Integer.toString(Runtime.getRuntime().availableProcessors());
+        String connections = (args.length > 1) ? args[1] : "32";
+        String duration = (args.length > 2) ? args[2] : "10";
+        String workers = (args.length > 3) ? args[3] : "4";
+
+        String[][] variants = {
+            { "fork per request", "--request", "POST /cgi/price.cgi home 1 @cgi/post.data",
+                "--server-directive", "CgiLimit /cgi/price.cgi " + workers + " 1024" },
+            { "persistent workers", "--request", "POST /cgi/price-worker.cgi home 1 @cgi/post.data",
+                "--server-directive", "CgiWorkers /cgi/price-worker.cgi " + workers,
+                "--server-directive", "CgiLimit /cgi/price-worker.cgi " + workers + " 1024" },
+        };
+
+        for (String[] variant : variants) {
+            System.out.println();
+            System.out.println("== " + variant[0] + ", " + workers + " concurrent");
+            List<String> options = new ArrayList<String>(Arrays.asList("--spawn", nSelectLoops,
+                    "--connections", connections, "--duration", duration));
+            options.addAll(Arrays.asList(variant).subList(1, variant.length));
+            LoadGenerator.main(options.toArray(new String[0]));
+        }
+    }
+}
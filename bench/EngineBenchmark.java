@@ -0,0 +1,40 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Compares the selector dispatcher engine with the virtual-thread engine (Engine virtual) on three
+// workloads: static files with a new connection per request, static files over keep-alive
+// connections, and CGI-heavy traffic (mostly POSTs to a CGI script). Each engine runs in its own
+// server process started by LoadGenerator --spawn, with the same JDK as the benchmark; run it on
+// Java 21 so the virtual engine really uses virtual threads.
+//
+// Usage (from the repository root):
+//   mvn -B package
+//   java -cp bench/target/bench.jar EngineBenchmark [nSelectLoops] [connections] [duration s]
+
+public class EngineBenchmark {
+    private static final String[] ENGINES = { "dispatcher", "virtual" };
+
+    public static void main(String[] args) throws Exception {
+        String nSelectLoops = (args.length > 0) ? args[0] : Integer.toString(Runtime.getRuntime().availableProcessors());
+        String connections = (args.length > 1) ? args[1] : "64";
+        String duration = (args.length > 2) ? args[2] : "10";
+
+        String[][] workloads = {
+            { "static", "--no-keepalive", "--request", "GET /index.html home" },
+            { "keep-alive", "--request", "GET /index.html home 8", "--request", "GET /index.html test 2" },
+            { "cgi", "--request", "POST /cgi/price.cgi home 8 @cgi/post.data", "--request", "GET /index.html home 2" },
+        };
+
+        for (String[] workload : workloads) {
+            for (String engine : ENGINES) {
+                System.out.println();
+                System.out.println("== " + workload[0] + ", Engine " + engine);
+                List<String> options = new ArrayList<String>(Arrays.asList("--spawn", nSelectLoops, "--engine", engine,
+                        "--connections", connections, "--duration", duration));
+                options.addAll(Arrays.asList(workload).subList(1, workload.length));
+                LoadGenerator.main(options.toArray(new String[0]));
+            }
+        }
+    }
+}
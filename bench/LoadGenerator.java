@@ -0,0 +1,890 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+
+// NIO load generator for the server. Client threads each drive a share of the connections from their
+// own selector, with keep-alive (or a new connection per request), pipelining, and a weighted mix of
+// GETs and POSTs across virtual hosts.
+//
+// closed loop (default): every connection keeps --pipeline requests outstanding. Latency is measured
+//   from the send; the corrected histogram adds the samples a stalled connection would have sent
+//   (HdrHistogram coordinated-omission correction, expected interval = mean latency or --interval).
+// open loop (--rate): requests are scheduled at a constant arrival rate whether or not a connection is
+//   free; latency is measured from the scheduled time, so queueing behind a slow response counts.
+//   The uncorrected histogram is the service time from the actual send.
+//
+// --spawn 1,2,4 starts a server per nSelectLoops value on --port (from the repository root, with the
+// server classes on the classpath) and runs the workload against each, to see how throughput scales.
+// --engine virtual spawns servers with the virtual-thread engine instead of selector dispatchers;
+// --server-directive adds lines to a spawned server's config (CgiWorkers, CgiLimit, ...).
+//
+// Usage (from the repository root):
+//   mvn -B package
+//   java -cp bench/target/bench.jar LoadGenerator [options]
+//
+// Requests sent on a reused keep-alive connection that the server closes before answering are retried
+// on a new connection (reported as "retried"), keeping their original time.
+//
+// options:
+//   --host <addr>          server address (default 127.0.0.1)
+//   --port <n>             server port (default 1223)
+//   --connections <n>      connections (default 16)
+//   --threads <n>          client threads (default min(4, cores))
+//   --rate <req/s>         open loop at this total arrival rate; closed loop if not given
+//   --duration <s>         measured time (default 10)
+//   --warmup <s>           time before measuring (default 2)
+//   --pipeline <n>         requests outstanding per connection (default 1)
+//   --no-keepalive         one request per connection (Connection: close)
+//   --request "<METHOD> <path> [host] [weight] [@bodyfile]"   may be repeated, e.g.
+//                          --request "GET /index.html home 8" --request "GET /index.html test 2"
+//                          --request "POST /cgi/price.cgi home 1 @cgi/post.data"
+//   --timeout <ms>         per-request timeout (default 10000)
+//   --interval <ms>        expected interval for the closed-loop correction
+//   --json <file|->        write results as JSON
+//   --spawn <n,n,...>      start a local server per nSelectLoops value
+//   --engine <name>        Engine of spawned servers: dispatcher (default) or virtual
+//   --server-directive "<line>"   config line for spawned servers, may be repeated, e.g.
+//                          --server-directive "CgiWorkers /cgi/price-worker.cgi 4"
+
+public class LoadGenerator {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long RECONNECT_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    static class Options {
+        String host = "127.0.0.1";
+        int port = 1223;
+        int connections = 16;
+        int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+        double rate = 0;                // 0: closed loop
+        double durationSeconds = 10;
+        double warmupSeconds = 2;
+        int pipeline = 1;
+        boolean keepAlive = true;
+        List<String> requests = new ArrayList<String>();
+        long timeoutNanos = TimeUnit.SECONDS.toNanos(10);
+        double intervalMillis = 0;      // 0: mean latency
+        String json;
+        List<Integer> spawn = new ArrayList<Integer>();
+        String engine = "dispatcher";
+        List<String> serverDirectives = new ArrayList<String>();
+
+        boolean isOpenLoop() {
+            return rate > 0;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options o = parseOptions(args);
+        Workload workload = new Workload(o);
+
+        List<String> results = new ArrayList<String>();
+        System.out.println("nSelectLoops   req/s     MB/s  errors   p50(ms)   p99(ms) p99.9(ms)   max(ms)  corrected p99/p99.9(ms)");
+        if (o.spawn.isEmpty()) {
+            results.add(run(o, workload, 0));
+        } else {
+            for (int nSelectLoops : o.spawn) {
+                Process server = startServer(o.port, nSelectLoops, o.engine, o.serverDirectives);
+                try {
+                    results.add(run(o, workload, nSelectLoops));
+                } finally {
+                    server.destroy();
+                    server.waitFor();
+                }
+            }
+        }
+
+        if (o.json != null) {
+            String json = (results.size() == 1) ? results.get(0) : "[\n" + String.join(",\n", results) + "\n]";
+            if (o.json.equals("-")) {
+                System.out.println(json);
+            } else {
+                Files.write(Paths.get(o.json), (json + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    // One measured run against the server; prints a summary line and returns the JSON result
+    private static String run(Options o, Workload workload, int nSelectLoops) throws Exception {
+        long start = System.nanoTime();
+        long measureStart = start + (long) (o.warmupSeconds * 1e9);
+        long end = measureStart + (long) (o.durationSeconds * 1e9);
+
+        Worker[] workers = new Worker[o.threads];
+        for (int i = 0; i < o.threads; i++) {
+            int connections = o.connections / o.threads + ((i < o.connections % o.threads) ? 1 : 0);
+            workers[i] = new Worker(i, o, workload, connections, start, measureStart, end);
+        }
+        for (Worker w : workers) {
+            w.start();
+        }
+
+        Histogram latency = new Histogram(3);
+        Histogram service = new Histogram(3);
+        long completed = 0;
+        long bytes = 0;
+        long connectErrors = 0;
+        long closedErrors = 0;
+        long timeouts = 0;
+        long retried = 0;
+        long backlog = 0;
+        long[] statuses = new long[600];
+        for (Worker w : workers) {
+            w.join();
+            latency.add(w.latency);
+            service.add(w.service);
+            completed += w.completed;
+            bytes += w.bytes;
+            connectErrors += w.connectErrors;
+            closedErrors += w.closedErrors;
+            timeouts += w.timeouts;
+            retried += w.retried;
+            backlog += w.pending.size();
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] += w.statuses[i];
+            }
+        }
+
+        // open loop: latency from the schedule already includes queueing; closed loop: correct for the
+        // requests a stalled connection did not get to send
+        Histogram uncorrected = o.isOpenLoop() ? service : latency;
+        Histogram corrected = latency;
+        double intervalMicros = 0;
+        if (!o.isOpenLoop() && latency.getTotalCount() > 0) {
+            intervalMicros = (o.intervalMillis > 0) ? o.intervalMillis * 1000 : latency.getMean();
+            corrected = latency.copyCorrectedForCoordinatedOmission((long) Math.max(1, intervalMicros));
+        }
+
+        double seconds = o.durationSeconds;
+        long errors = connectErrors + closedErrors + timeouts;
+        System.out.printf("%12s %7.0f %8.2f %7d %9.2f %9.2f %9.2f %9.2f %12.2f/%.2f%n",
+                (nSelectLoops > 0) ? Integer.toString(nSelectLoops) : "-", completed / seconds, bytes / seconds / 1e6, errors,
+                ms(uncorrected, 50), ms(uncorrected, 99), ms(uncorrected, 99.9), uncorrected.getMaxValue() / 1000.0,
+                ms(corrected, 99), ms(corrected, 99.9));
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"mode\": \"").append(o.isOpenLoop() ? "open" : "closed").append("\",\n");
+        if (nSelectLoops > 0) {
+            json.append("  \"nSelectLoops\": ").append(nSelectLoops).append(",\n");
+            json.append("  \"engine\": \"").append(o.engine).append("\",\n");
+        }
+        json.append("  \"connections\": ").append(o.connections).append(",\n");
+        json.append("  \"threads\": ").append(o.threads).append(",\n");
+        json.append("  \"pipeline\": ").append(o.pipeline).append(",\n");
+        json.append("  \"keepAlive\": ").append(o.keepAlive).append(",\n");
+        if (o.isOpenLoop()) {
+            json.append("  \"targetRate\": ").append(o.rate).append(",\n");
+        }
+        json.append("  \"durationSeconds\": ").append(seconds).append(",\n");
+        json.append("  \"requests\": ").append(completed).append(",\n");
+        json.append("  \"throughput\": ").append(String.format("%.1f", completed / seconds)).append(",\n");
+        json.append("  \"bytes\": ").append(bytes).append(",\n");
+        json.append("  \"statuses\": {");
+        String sep = "";
+        for (int i = 0; i < statuses.length; i++) {
+            if (statuses[i] > 0) {
+                json.append(sep).append("\"").append(i).append("\": ").append(statuses[i]);
+                sep = ", ";
+            }
+        }
+        json.append("},\n");
+        json.append("  \"errors\": {\"connect\": ").append(connectErrors).append(", \"closed\": ").append(closedErrors)
+                .append(", \"timeout\": ").append(timeouts).append(", \"unsent\": ").append(backlog).append("},\n");
+        json.append("  \"retried\": ").append(retried).append(",\n");
+        if (intervalMicros > 0) {
+            json.append("  \"correctionIntervalMillis\": ").append(String.format("%.3f", intervalMicros / 1000)).append(",\n");
+        }
+        json.append("  \"latencyMillis\": ").append(histogramJson(uncorrected)).append(",\n");
+        json.append("  \"correctedLatencyMillis\": ").append(histogramJson(corrected)).append("\n");
+        json.append("}");
+        return json.toString();
+    }
+
+    private static double ms(Histogram h, double percentile) {
+        return h.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    private static String histogramJson(Histogram h) {
+        return String.format("{\"count\": %d, \"mean\": %.3f, \"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"p99.9\": %.3f, \"max\": %.3f}",
+                h.getTotalCount(), h.getMean() / 1000, ms(h, 50), ms(h, 90), ms(h, 99), ms(h, 99.9), h.getMaxValue() / 1000.0);
+    }
+
+    private static Options parseOptions(String[] args) throws IOException {
+        Options o = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--no-keepalive")) {
+                o.keepAlive = false;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException(arg + ": missing value");
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--host": o.host = value; break;
+                case "--port": o.port = Integer.parseInt(value); break;
+                case "--connections": o.connections = Integer.parseInt(value); break;
+                case "--threads": o.threads = Integer.parseInt(value); break;
+                case "--rate": o.rate = Double.parseDouble(value); break;
+                case "--duration": o.durationSeconds = Double.parseDouble(value); break;
+                case "--warmup": o.warmupSeconds = Double.parseDouble(value); break;
+                case "--pipeline": o.pipeline = Integer.parseInt(value); break;
+                case "--request": o.requests.add(value); break;
+                case "--timeout": o.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value)); break;
+                case "--interval": o.intervalMillis = Double.parseDouble(value); break;
+                case "--json": o.json = value; break;
+                case "--engine": o.engine = value; break;
+                case "--server-directive": o.serverDirectives.add(value); break;
+                case "--spawn":
+                    for (String n : value.split(",")) {
+                        o.spawn.add(Integer.parseInt(n.trim()));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+
+        if (o.requests.isEmpty()) {
+            o.requests.add("GET /index.html home");
+        }
+        o.threads = Math.max(1, Math.min(o.threads, o.connections));
+        if (!o.keepAlive) {
+            o.pipeline = 1;
+        }
+        return o;
+    }
+
+    private static Process startServer(int port, int nSelectLoops, String engine, List<String> directives) throws Exception {
+        File conf = File.createTempFile("load-generator", ".conf");
+        conf.deleteOnExit();
+        try (PrintWriter w = new PrintWriter(new FileWriter(conf))) {
+            w.println("Listen " + port);
+            w.println("nSelectLoops " + nSelectLoops);
+            w.println("Engine " + engine);
+            for (String directive : directives) {
+                w.println(directive);
+            }
+            w.println();
+            w.println("<VirtualHost *:" + port + ">");
+            w.println("  DocumentRoot  /www-root/");
+            w.println("  ServerName home");
+            w.println("</VirtualHost>");
+            w.println("<VirtualHost *:" + port + ">");
+            w.println("  DocumentRoot  /www-root/test/");
+            w.println("  ServerName test");
+            w.println("</VirtualHost>");
+        }
+
+        // same runtime as the load generator, so --engine virtual gets virtual threads when run on Java 21
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "Server", "-c", conf.getPath());
+        pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        pb.redirectErrorStream(true);
+        Process p = pb.start();
+
+        // wait until the server accepts connections
+        for (int i = 0; i < 100; i++) {
+            try (Socket s = new Socket("localhost", port)) {
+                return p;
+            } catch (IOException ex) {
+                Thread.sleep(100);
+            }
+        }
+        p.destroy();
+        throw new IOException(engine + " server with nSelectLoops " + nSelectLoops + " did not start");
+    }
+
+    // Weighted mix of pre-rendered requests
+    static class Workload {
+        private final byte[][] requests;
+        private final int[] cumulativeWeights;
+        private final int totalWeight;
+
+        Workload(Options o) throws IOException {
+            requests = new byte[o.requests.size()][];
+            cumulativeWeights = new int[o.requests.size()];
+            int total = 0;
+            for (int i = 0; i < requests.length; i++) {
+                String[] arr = o.requests.get(i).trim().split("\\s+");
+                if (arr.length < 2) {
+                    throw new IllegalArgumentException("--request: expected <METHOD> <path> [host] [weight] [@bodyfile]");
+                }
+                String host = "localhost";
+                int weight = 1;
+                byte[] body = null;
+                int field = 0;
+                for (int j = 2; j < arr.length; j++) {
+                    if (arr[j].startsWith("@")) {
+                        body = Files.readAllBytes(Paths.get(arr[j].substring(1)));
+                    } else if (field++ == 0 && !arr[j].matches("\\d+")) {
+                        host = arr[j];
+                    } else {
+                        weight = Integer.parseInt(arr[j]);
+                    }
+                }
+
+                String head = arr[0] + " " + arr[1] + " HTTP/1.1\r\nHost: " + host + "\r\nUser-Agent: LoadGenerator\r\n";
+                if (!o.keepAlive) {
+                    head += "Connection: close\r\n";
+                }
+                if (body != null || arr[0].equals("POST")) {
+                    body = (body != null) ? body : new byte[0];
+                    head += "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: " + body.length + "\r\n";
+                }
+                head += "\r\n";
+
+                byte[] headBytes = head.getBytes(StandardCharsets.ISO_8859_1);
+                requests[i] = (body == null) ? headBytes : concat(headBytes, body);
+                total += weight;
+                cumulativeWeights[i] = total;
+            }
+            totalWeight = total;
+        }
+
+        byte[] next(SplittableRandom random) {
+            if (requests.length == 1) {
+                return requests[0];
+            }
+            int r = random.nextInt(totalWeight);
+            int i = 0;
+            while (cumulativeWeights[i] <= r) {
+                i++;
+            }
+            return requests[i];
+        }
+
+        private static byte[] concat(byte[] a, byte[] b) {
+            byte[] c = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, c, a.length, b.length);
+            return c;
+        }
+    }
+
+    // Client thread: its connections, their outstanding requests and its own histograms
+    static class Worker extends Thread {
+        private final Options o;
+        private final Workload workload;
+        private final Connection[] connections;
+        private final Selector selector;
+        private final InetSocketAddress address;
+        private final ByteBuffer readBuffer;
+        private final SplittableRandom random;
+        private final long start;
+        private final long measureStart;
+        private final long end;
+
+        // open loop: scheduled times not yet sent
+        final LongQueue pending;
+        private final long arrivalInterval;
+        private long nextArrival;
+
+        final Histogram latency;
+        final Histogram service;
+        final long[] statuses;
+        long completed;
+        long bytes;
+        long connectErrors;
+        long closedErrors;
+        long timeouts;
+        long retried;
+
+        Worker(int id, Options o, Workload workload, int nConnections, long start, long measureStart, long end) throws IOException {
+            super("load-" + id);
+            this.o = o;
+            this.workload = workload;
+            this.start = start;
+            this.measureStart = measureStart;
+            this.end = end;
+            selector = Selector.open();
+            address = new InetSocketAddress(o.host, o.port);
+            readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            random = new SplittableRandom(id);
+
+            connections = new Connection[nConnections];
+            for (int i = 0; i < nConnections; i++) {
+                connections[i] = new Connection(o.pipeline);
+            }
+
+            pending = new LongQueue();
+            double threadRate = o.rate * nConnections / o.connections;
+            arrivalInterval = (threadRate > 0) ? (long) (1e9 / threadRate) : 0;
+            nextArrival = start;
+
+            latency = new Histogram(3);
+            service = new Histogram(3);
+            statuses = new long[600];
+        }
+
+        public void run() {
+            try {
+                long nextTimeoutCheck = start;
+                while (true) {
+                    long now = System.nanoTime();
+                    if (now >= end) {
+                        break;
+                    }
+
+                    if (o.isOpenLoop()) {
+                        while (nextArrival <= now) {
+                            pending.add(nextArrival);
+                            nextArrival += arrivalInterval;
+                        }
+                    }
+                    sendRequests(now);
+                    if (now >= nextTimeoutCheck) {
+                        checkTimeouts(now);
+                        nextTimeoutCheck = now + TimeUnit.MILLISECONDS.toNanos(10);
+                    }
+
+                    long waitNanos = Math.min(end - now, o.isOpenLoop() ? nextArrival - now : TimeUnit.MILLISECONDS.toNanos(10));
+                    if (waitNanos >= 1_000_000) {
+                        selector.select(waitNanos / 1_000_000);
+                    } else {
+                        selector.selectNow();
+                    }
+                    handleKeys();
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            } finally {
+                for (Connection c : connections) {
+                    c.close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException ex) {}
+            }
+        }
+
+        // fills every connected connection up to its pipeline depth; (re)connects the others
+        private void sendRequests(long now) {
+            for (Connection c : connections) {
+                if (c.channel == null) {
+                    if (now >= c.retryAt && (!o.isOpenLoop() || !pending.isEmpty() || !c.retry.isEmpty())) {
+                        try {
+                            connect(c, now);
+                        } catch (IOException ex) {
+                            connectErrors++;
+                            c.close();
+                            c.retryAt = now + RECONNECT_DELAY_NANOS;
+                        }
+                    }
+                    continue;
+                }
+                if (!c.connected) {
+                    continue;
+                }
+                int before = c.inFlight();
+                while (c.inFlight() < o.pipeline && (!c.retry.isEmpty() || !(o.isOpenLoop() && pending.isEmpty()))) {
+                    // retries keep their original time; open loop: the schedule;
+                    // a new connection per request: the connect is part of the request
+                    long scheduled = !c.retry.isEmpty() ? c.retry.poll() : o.isOpenLoop() ? pending.poll()
+                            : o.keepAlive ? now : c.connectStarted;
+                    c.send(workload.next(random), scheduled, now);
+                }
+                if (c.inFlight() > before) {
+                    try {
+                        c.flush();
+                    } catch (IOException ex) {
+                        connectionLost(c);
+                        c.retryAt = now + RECONNECT_DELAY_NANOS;
+                    }
+                }
+            }
+        }
+
+        private void connect(Connection c, long now) throws IOException {
+            c.channel = SocketChannel.open();
+            c.channel.configureBlocking(false);
+            c.connectStarted = now;
+            c.connected = c.channel.connect(address);
+            c.key = c.channel.register(selector, c.connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, c);
+        }
+
+        private void handleKeys() {
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Connection c = (Connection) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                try {
+                    if (key.isConnectable()) {
+                        c.channel.finishConnect();
+                        c.connected = true;
+                        key.interestOps(SelectionKey.OP_READ);
+                        continue;
+                    }
+                    if (key.isWritable()) {
+                        c.flush();
+                    }
+                    if (key.isReadable()) {
+                        read(c);
+                    }
+                } catch (IOException ex) {
+                    if (c.connected) {
+                        connectionLost(c);
+                    } else {
+                        connectErrors++;
+                        c.close();
+                    }
+                    c.retryAt = System.nanoTime() + RECONNECT_DELAY_NANOS;
+                }
+            }
+        }
+
+        private void read(Connection c) throws IOException {
+            readBuffer.clear();
+            int readBytes = c.channel.read(readBuffer);
+            long now = System.nanoTime();
+            if (readBytes < 0) {
+                // end of a close-delimited body, otherwise requests still outstanding are lost
+                if (c.parser.finishOnClose()) {
+                    complete(c, now);
+                }
+                connectionLost(c);
+                return;
+            }
+
+            readBuffer.flip();
+            if (c.scheduled.peekFirstOr(-1) >= measureStart) {
+                bytes += readBytes;
+            }
+            while (c.parser.parse(readBuffer)) {
+                complete(c, now);
+                if (c.parser.closesConnection() || !o.keepAlive) {
+                    // anything pipelined behind this response will not be answered
+                    connectionLost(c);
+                    return;
+                }
+            }
+        }
+
+        // The connection is gone. Like a browser, requests sent on a reused connection that the server
+        // closed before starting to answer are retried on a new one; anything else is an error.
+        private void connectionLost(Connection c) {
+            if (c.responses > 0 && c.parser.isIdle()) {
+                retried += c.inFlight();
+                while (c.inFlight() > 0) {
+                    c.retry.add(c.scheduled.poll());
+                    c.sent.poll();
+                }
+            } else {
+                closedErrors += c.inFlight();
+            }
+            c.close();
+        }
+
+        private void complete(Connection c, long now) {
+            if (c.inFlight() == 0) {
+                return;
+            }
+            c.responses++;
+            long scheduled = c.scheduled.poll();
+            long sent = c.sent.poll();
+            if (scheduled >= measureStart) {
+                latency.recordValue(Math.max(0, (now - scheduled) / 1000));
+                service.recordValue(Math.max(0, (now - sent) / 1000));
+                int status = c.parser.getStatus();
+                statuses[(status > 0 && status < statuses.length) ? status : 0]++;
+                completed++;
+            }
+        }
+
+        private void checkTimeouts(long now) {
+            for (Connection c : connections) {
+                if (c.inFlight() > 0 && now - c.sent.peekFirstOr(now) > o.timeoutNanos) {
+                    timeouts += c.inFlight();
+                    c.close();
+                } else if (c.channel != null && !c.connected && now - c.connectStarted > o.timeoutNanos) {
+                    connectErrors++;
+                    c.close();
+                }
+            }
+        }
+    }
+
+    static class Connection {
+        SocketChannel channel;
+        SelectionKey key;
+        boolean connected;
+        long connectStarted;
+        long retryAt;
+
+        int responses;                  // on the current connection
+
+        // outstanding requests, oldest first
+        final LongQueue scheduled;
+        final LongQueue sent;
+        // scheduled times of requests to send again after reconnecting
+        final LongQueue retry;
+        final ResponseParser parser;
+        private ByteBuffer out;
+
+        Connection(int pipeline) {
+            scheduled = new LongQueue();
+            sent = new LongQueue();
+            retry = new LongQueue();
+            parser = new ResponseParser();
+            out = ByteBuffer.allocate(4096);
+        }
+
+        int inFlight() {
+            return scheduled.size();
+        }
+
+        // queues a request; flush() writes it
+        void send(byte[] request, long scheduledTime, long now) {
+            if (out.remaining() < request.length) {
+                out.flip();
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.remaining() + request.length));
+                bigger.put(out);
+                out = bigger;
+            }
+            out.put(request);
+            scheduled.add(scheduledTime);
+            sent.add(now);
+        }
+
+        void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            boolean blocked = out.hasRemaining();
+            out.compact();
+            key.interestOps(blocked ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {}
+            }
+            channel = null;
+            key = null;
+            connected = false;
+            responses = 0;
+            scheduled.clear();
+            sent.clear();
+            parser.reset();
+            out.clear();
+        }
+    }
+
+    // Incremental HTTP/1.x response parser: Content-Length, chunked and close-delimited bodies
+    static class ResponseParser {
+        private enum State { HEAD, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, UNTIL_CLOSE }
+
+        private State state = State.HEAD;
+        private final byte[] line = new byte[16384];
+        private int lineLength;
+        private int headLength;
+        private long remaining;
+        private int status;
+        private boolean close;
+
+        // Consumes bytes of buf; returns true once a complete response has been read
+        boolean parse(ByteBuffer buf) {
+            while (buf.hasRemaining()) {
+                switch (state) {
+                    case HEAD:
+                    case TRAILER:
+                    case CHUNK_SIZE:
+                        byte b = buf.get();
+                        if (b != '\n') {
+                            if (b != '\r' && lineLength < line.length) {
+                                line[lineLength++] = b;
+                            }
+                            break;
+                        }
+                        if (endOfLine()) {
+                            return true;
+                        }
+                        break;
+                    case BODY:
+                    case CHUNK_DATA:
+                        int skip = (int) Math.min(remaining, buf.remaining());
+                        buf.position(buf.position() + skip);
+                        remaining -= skip;
+                        if (remaining == 0) {
+                            if (state == State.BODY) {
+                                return done();
+                            }
+                            state = State.CHUNK_END;
+                            remaining = 2;
+                        }
+                        break;
+                    case CHUNK_END:
+                        buf.get();      // CRLF after the chunk data
+                        if (--remaining == 0) {
+                            state = State.CHUNK_SIZE;
+                        }
+                        break;
+                    case UNTIL_CLOSE:
+                        buf.position(buf.limit());
+                        break;
+                }
+            }
+            return false;
+        }
+
+        // the connection closed; true if that completed a close-delimited response
+        boolean finishOnClose() {
+            if (state == State.UNTIL_CLOSE) {
+                done();
+                close = true;
+                return true;
+            }
+            return false;
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        // no byte of the next response has been read
+        boolean isIdle() {
+            return state == State.HEAD && headLength == 0 && lineLength == 0;
+        }
+
+        boolean closesConnection() {
+            return close;
+        }
+
+        void reset() {
+            state = State.HEAD;
+            lineLength = 0;
+            headLength = 0;
+            remaining = 0;
+            status = 0;
+            close = false;
+        }
+
+        // a header, trailer or chunk-size line is complete; returns true if the response is complete
+        private boolean endOfLine() {
+            String s = new String(line, 0, lineLength, StandardCharsets.ISO_8859_1);
+            lineLength = 0;
+
+            if (state == State.CHUNK_SIZE) {
+                int semi = s.indexOf(';');
+                remaining = Long.parseLong((semi == -1 ? s : s.substring(0, semi)).trim(), 16);
+                state = (remaining == 0) ? State.TRAILER : State.CHUNK_DATA;
+                return false;
+            }
+            if (state == State.TRAILER) {
+                return s.isEmpty() && done();
+            }
+
+            // response head
+            if (headLength++ == 0) {
+                if (s.isEmpty()) {
+                    headLength = 0;     // stray CRLF between responses
+                    return false;
+                }
+                String[] arr = s.split(" ", 3);
+                status = (arr.length > 1) ? Integer.parseInt(arr[1]) : 0;
+                close = arr[0].equals("HTTP/1.0");
+                remaining = -1;
+                return false;
+            }
+            if (!s.isEmpty()) {
+                int colon = s.indexOf(':');
+                if (colon != -1) {
+                    String name = s.substring(0, colon).trim();
+                    String value = s.substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("Content-Length")) {
+                        remaining = Long.parseLong(value);
+                    } else if (name.equalsIgnoreCase("Transfer-Encoding") && value.equalsIgnoreCase("chunked")) {
+                        remaining = -2;
+                    } else if (name.equalsIgnoreCase("Connection")) {
+                        close = value.equalsIgnoreCase("close");
+                    }
+                }
+                return false;
+            }
+
+            // blank line: body follows
+            if (remaining == -2) {
+                state = State.CHUNK_SIZE;
+                return false;
+            }
+            if (status == 204 || status == 304 || (status >= 100 && status < 200) || remaining == 0) {
+                return done();
+            }
+            if (remaining > 0) {
+                state = State.BODY;
+                return false;
+            }
+            state = State.UNTIL_CLOSE;
+            return false;
+        }
+
+        private boolean done() {
+            int s = status;
+            boolean c = close;
+            reset();
+            status = s;
+            close = c;
+            return true;
+        }
+    }
+
+    // Growable FIFO of longs
+    static class LongQueue {
+        private long[] items = new long[16];
+        private int head;
+        private int size;
+
+        void add(long v) {
+            if (size == items.length) {
+                long[] bigger = new long[items.length * 2];
+                for (int i = 0; i < size; i++) {
+                    bigger[i] = items[(head + i) % items.length];
+                }
+                items = bigger;
+                head = 0;
+            }
+            items[(head + size) % items.length] = v;
+            size++;
+        }
+
+        long poll() {
+            long v = items[head];
+            head = (head + 1) % items.length;
+            size--;
+            return v;
+        }
+
+        long peekFirstOr(long fallback) {
+            return (size == 0) ? fallback : items[head];
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void clear() {
+            head = 0;
+            size = 0;
+        }
+    }
+}
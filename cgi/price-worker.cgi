@@ -0,0 +1,34 @@
+#!/usr/bin/perl -w
+
+# price.cgi as a persistent worker (CgiWorkers): serves requests framed as described in
+# CgiWorkerPool.java until its stdin is closed
+
+binmode(STDIN);
+binmode(STDOUT);
+$| = 1;
+
+while (defined(my $line = <STDIN>)) {
+  my ($envLength, $bodyLength) = split(' ', $line);
+  my ($vars, $body) = ('', '');
+  read(STDIN, $vars, $envLength) == $envLength or exit;
+  read(STDIN, $body, $bodyLength) if $bodyLength > 0;
+
+  if ($envLength == 0) {
+    # ping
+    print "0\n";
+    next;
+  }
+  my %env = map { split(/=/, $_, 2) } split(/\0/, $vars);
+
+  my $company = $env{'QUERY_STRING'};
+  my $out = "Content-Type: text/html\r\n\r\n";
+  $out .= "<html><p>The price of $company is ";
+  if ($company =~ /appl/) {
+    $out .= 450 + 10 * rand();
+  } else {
+    $out .= "150";
+  }
+  $out .= "</html>";
+
+  print length($out) . "\n" . $out . "0\n";
+}
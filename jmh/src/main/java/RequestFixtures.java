@@ -0,0 +1,90 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import benchmarks.Fixture;
+
+// Fixtures for request parsing and virtual host resolution, run by benchmarks.RequestBenchmark.
+
+public class RequestFixtures {
+    // typical browser request head, about 500 bytes
+    static final String REQUEST = "GET /index.html HTTP/1.1\r\n"
+            + "Host: home\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "If-Modified-Since: Thu, 06 Nov 2025 01:59:44 GMT\r\n"
+            + "Cache-Control: max-age=0\r\n"
+            + "\r\n";
+
+    // Request.parseRequest on a complete head held in a String
+    public static class ParseRequest implements Fixture {
+        public ParseRequest(String... args) {}
+
+        public Object run() throws Exception {
+            Request r = new Request();
+            r.parseRequest(REQUEST);
+            return r;
+        }
+    }
+
+    // RequestParser over a direct buffer, as ReadWriteHandler.processRequestInBuffer drives it to find
+    // the end of the head; args[0] "split" delivers the head in two reads
+    public static class ParseHead implements Fixture {
+        private final RequestParser parser;
+        private final ByteBuffer buf;
+        private final boolean split;
+
+        public ParseHead(String... args) {
+            parser = new RequestParser(RequestParser.DEFAULT_MAX_REQUEST_LINE, RequestParser.DEFAULT_MAX_HEADER_SIZE,
+                    new BufferPool(BufferPool.DEFAULT_MAX_BYTES));
+            byte[] bytes = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+            buf = ByteBuffer.allocateDirect(bytes.length);
+            buf.put(bytes).flip();
+            split = args.length > 0 && args[0].equals("split");
+        }
+
+        public Object run() throws Exception {
+            parser.reset();
+            buf.rewind();
+            if (split) {
+                buf.limit(buf.capacity() / 2);
+                parser.parse(buf);
+                buf.limit(buf.capacity());
+            }
+            if (parser.parse(buf) != RequestParser.DONE) {
+                throw new IllegalStateException("request head not parsed");
+            }
+            return parser.getRequest();
+        }
+    }
+
+    // ServerConfig.lookupVirtualHost among args[0] virtual hosts; args[1] "miss" looks up an unknown name
+    public static class LookupVirtualHost implements Fixture {
+        private final ServerConfig config;
+        private final String serverName;
+
+        public LookupVirtualHost(String... args) throws IOException {
+            int hosts = Integer.parseInt(args[0]);
+            File f = File.createTempFile("jmh-vhosts", ".conf");
+            try (FileWriter writer = new FileWriter(f)) {
+                for (int i = 0; i < hosts; i++) {
+                    writer.write("<VirtualHost *:1223>\n  DocumentRoot /www-root/\n  ServerName host" + i + "\n</VirtualHost>\n");
+                }
+            }
+            config = new ServerConfig();
+            config.parseConfigFile(f);
+            f.delete();
+            serverName = (args.length > 1 && args[1].equals("miss")) ? "unknown" : "host" + (hosts / 2);
+        }
+
+        public Object run() {
+            return config.lookupVirtualHost(serverName);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import benchmarks.Fixture;
+
+// Fixtures answering GETs for static files over loopback connections, run by
+// benchmarks.ResponseBenchmark. Without a config file the server maps urls below ./www-root/, so the
+// benchmarks must be started from the repository root; the large file is created there for the run.
+//
+// args[0]: "small" (www-root/index.html, served from the response cache) or
+//          "large" (a 4MB file, sent with transferTo)
+
+public class ResponseFixtures {
+    static final String LARGE_FILE = "www-root/jmh-large.bin";
+    static final int LARGE_FILE_SIZE = 4 * 1024 * 1024;
+
+    // request for args[0], creating the large file if needed
+    static byte[] requestFor(String size) throws IOException {
+        if (!new File("www-root").isDirectory()) {
+            throw new IllegalStateException("run the benchmarks from the repository root (no ./www-root)");
+        }
+
+        String url = "/index.html";
+        if (size.equals("large")) {
+            File f = new File(LARGE_FILE);
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                raf.setLength(LARGE_FILE_SIZE);
+            }
+            f.deleteOnExit();
+            url = "/" + f.getName();
+        }
+        return ("GET " + url + " HTTP/1.1\r\nHost: home\r\nUser-Agent: jmh\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // Length of a complete response (head + Content-Length body) at the start of bytes, or -1
+    static int responseLength(byte[] bytes, int length) {
+        String head = new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+        int end = head.indexOf("\r\n\r\n");
+        int cl = head.indexOf("Content-Length: ");
+        if (end == -1 || cl == -1 || cl > end) {
+            return -1;
+        }
+        long contentLength = Long.parseLong(head.substring(cl + 16, head.indexOf("\r\n", cl)));
+        return end + 4 + (int) contentLength;
+    }
+
+    // ReadWriteHandler alone: the request is read, the response generated and written by calling the
+    // handler on this thread, with the client draining in between (generateResponseWithCode and the
+    // write path, without a dispatcher thread)
+    public static class HandleRequest implements Fixture {
+        private final ServerSocketChannel listener;
+        private final SocketChannel client;
+        private final Dispatcher dispatcher;
+        private final Selector selector;
+        private final ByteBuffer request;
+        private final ByteBuffer drain;
+        private final int responseLength;
+
+        public HandleRequest(String... args) throws IOException {
+            request = ByteBuffer.wrap(requestFor(args[0]));
+            drain = ByteBuffer.allocate(256 * 1024);
+
+            listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            client = SocketChannel.open(listener.getLocalAddress());
+            client.configureBlocking(false);
+
+            // the dispatcher is not started; this thread plays its part
+            dispatcher = new Dispatcher(0, new ReadWriteHandlerFactory());
+            selector = dispatcher.selector();
+            dispatcher.addConnection(listener.accept());
+
+            responseLength = exchange(-1);
+        }
+
+        public Object run() throws Exception {
+            return exchange(responseLength);
+        }
+
+        // sends the request and handles keys until expected bytes (or one whole response if -1) arrived
+        private int exchange(int expected) throws IOException {
+            request.rewind();
+            while (request.hasRemaining()) {
+                client.write(request);
+            }
+
+            byte[] head = new byte[4096];
+            int received = 0;
+            while (expected < 0 || received < expected) {
+                selector.selectNow();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    IReadWriteHandler rwh = (IReadWriteHandler) key.attachment();
+                    if (key.isReadable()) {
+                        rwh.handleRead(key);
+                    } else if (key.isWritable()) {
+                        rwh.handleWrite(key);
+                    }
+                }
+
+                drain.clear();
+                int readBytes = client.read(drain);
+                if (readBytes < 0) {
+                    throw new IOException("server closed the connection");
+                }
+                if (expected < 0) {
+                    System.arraycopy(drain.array(), 0, head, received, Math.min(readBytes, head.length - received));
+                    expected = responseLength(head, Math.min(received + readBytes, head.length));
+                }
+                received += readBytes;
+            }
+            return received;
+        }
+
+        public void close() throws IOException {
+            client.close();
+            listener.close();
+            selector.close();
+        }
+    }
+
+    // The Dispatcher select loop on its own thread, with a blocking client on this thread sending
+    // args[1] pipelined requests (default 1) and reading all responses
+    public static class DispatchRequests implements Fixture {
+        private final ServerSocketChannel listener;
+        private final SocketChannel client;
+        private final Dispatcher dispatcher;
+        private final ByteBuffer requests;
+        private final ByteBuffer drain;
+        private final int responsesLength;
+
+        public DispatchRequests(String... args) throws IOException {
+            byte[] request = requestFor(args[0]);
+            int pipelined = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+            requests = ByteBuffer.allocate(request.length * pipelined);
+            for (int i = 0; i < pipelined; i++) {
+                requests.put(request);
+            }
+            drain = ByteBuffer.allocate(256 * 1024);
+
+            listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            client = SocketChannel.open(listener.getLocalAddress());
+
+            dispatcher = new Dispatcher(0, new ReadWriteHandlerFactory());
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+            dispatcher.handOff(listener.accept());
+
+            // learn the length of one response from a single request
+            client.write(ByteBuffer.wrap(request));
+            byte[] head = new byte[4096];
+            int received = 0;
+            int length = -1;
+            while (length < 0 || received < length) {
+                drain.clear();
+                int readBytes = client.read(drain);
+                if (readBytes < 0) {
+                    throw new IOException("server closed the connection");
+                }
+                if (length < 0) {
+                    System.arraycopy(drain.array(), 0, head, received, Math.min(readBytes, head.length - received));
+                    length = responseLength(head, Math.min(received + readBytes, head.length));
+                }
+                received += readBytes;
+            }
+            responsesLength = length * pipelined;
+        }
+
+        public Object run() throws Exception {
+            requests.rewind();
+            while (requests.hasRemaining()) {
+                client.write(requests);
+            }
+
+            int received = 0;
+            while (received < responsesLength) {
+                drain.clear();
+                int readBytes = client.read(drain);
+                if (readBytes < 0) {
+                    throw new IOException("server closed the connection");
+                }
+                received += readBytes;
+            }
+            return received;
+        }
+
+        public void close() throws Exception {
+            client.close();
+            listener.close();
+            dispatcher.interrupt();
+            dispatcher.selector().wakeup();
+            dispatcher.join(1000);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package benchmarks;
+
+// One benchmarked operation on the server's classes. The server lives in the default package, which
+// named packages cannot refer to, and JMH will not generate code for benchmarks in the default
+// package; so the work is done by default-package fixtures (jmh/src/main/java/*Fixtures.java)
+// implementing this interface, created by name in @Setup. run() is a monomorphic interface call the
+// JIT inlines like a direct one.
+//
+// typical use:
+// fixture = Fixture.create("RequestFixtures$ParseRequest");
+// @Benchmark public Object parse() throws Exception { return fixture.run(); }
+// fixture.close();     // in @TearDown
+
+public interface Fixture extends AutoCloseable {
+    // performs the operation once; the result is handed to JMH so it is not optimized away
+    Object run() throws Exception;
+
+    default void close() throws Exception {}
+
+    // instantiates a default-package fixture class, passing args to its (String...) constructor
+    static Fixture create(String className, String... args) throws Exception {
+        Class<?> cls = Class.forName(className);
+        return (Fixture) cls.getConstructor(String[].class).newInstance((Object) args);
+    }
+}
@@ -0,0 +1,66 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Request head parsing and virtual host resolution (RequestFixtures).
+//
+// Usage (from the repository root):
+//   mvn -B package && java -jar jmh/target/benchmarks.jar RequestBenchmark
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+    @Param({ "16" })
+    public int virtualHosts;
+
+    private Fixture parseRequest;
+    private Fixture parseHead;
+    private Fixture parseHeadSplit;
+    private Fixture lookupHit;
+    private Fixture lookupMiss;
+
+    @Setup
+    public void setup() throws Exception {
+        parseRequest = Fixture.create("RequestFixtures$ParseRequest");
+        parseHead = Fixture.create("RequestFixtures$ParseHead");
+        parseHeadSplit = Fixture.create("RequestFixtures$ParseHead", "split");
+        lookupHit = Fixture.create("RequestFixtures$LookupVirtualHost", Integer.toString(virtualHosts));
+        lookupMiss = Fixture.create("RequestFixtures$LookupVirtualHost", Integer.toString(virtualHosts), "miss");
+    }
+
+    // Request.parseRequest(String)
+    @Benchmark
+    public Object parseRequest() throws Exception {
+        return parseRequest.run();
+    }
+
+    // end-of-head detection as in ReadWriteHandler.processRequestInBuffer, head in one read
+    @Benchmark
+    public Object parseHead() throws Exception {
+        return parseHead.run();
+    }
+
+    // same, head arriving in two reads
+    @Benchmark
+    public Object parseHeadSplit() throws Exception {
+        return parseHeadSplit.run();
+    }
+
+    // ServerConfig.lookupVirtualHost for a configured name
+    @Benchmark
+    public Object lookupVirtualHost() throws Exception {
+        return lookupHit.run();
+    }
+
+    // ServerConfig.lookupVirtualHost for an unknown name
+    @Benchmark
+    public Object lookupVirtualHostMiss() throws Exception {
+        return lookupMiss.run();
+    }
+}
@@ -0,0 +1,62 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Static file responses over loopback connections (ResponseFixtures): the handler's read, response
+// generation and write path driven on the benchmark thread, and full round trips through a running
+// Dispatcher's key-processing loop. Must be started from the repository root.
+// The GC profiler only sees the benchmark thread: for dispatch* that is the client, so the handler's
+// own allocation per request shows up in generateResponse.
+//
+// Usage (from the repository root):
+//   mvn -B package && java -jar jmh/target/benchmarks.jar ResponseBenchmark
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+    // small: www-root/index.html from the response cache; large: 4MB file sent with transferTo
+    @Param({ "small", "large" })
+    public String file;
+
+    private Fixture handleRequest;
+    private Fixture dispatchRequest;
+    private Fixture dispatchPipelined;
+
+    @Setup
+    public void setup() throws Exception {
+        handleRequest = Fixture.create("ResponseFixtures$HandleRequest", file);
+        dispatchRequest = Fixture.create("ResponseFixtures$DispatchRequests", file, "1");
+        dispatchPipelined = Fixture.create("ResponseFixtures$DispatchRequests", file, "8");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        handleRequest.close();
+        dispatchRequest.close();
+        dispatchPipelined.close();
+    }
+
+    // ReadWriteHandler.handleRead / generateResponseWithCode / handleWrite for one GET
+    @Benchmark
+    public Object generateResponse() throws Exception {
+        return handleRequest.run();
+    }
+
+    // one GET through the Dispatcher select loop
+    @Benchmark
+    public Object dispatch() throws Exception {
+        return dispatchRequest.run();
+    }
+
+    // 8 pipelined GETs through the Dispatcher select loop
+    @Benchmark
+    public Object dispatchPipelined() throws Exception {
+        return dispatchPipelined.run();
+    }
+}